@@ -6,21 +6,48 @@
  * included with this distribution in the LICENSE.NPL file.  */
 package er.directtoweb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.log4j.Logger;
 
@@ -64,18 +91,51 @@ import er.directtoweb.assignments.delayed.ERDDelayedAssignment;
 import er.directtoweb.qualifiers.ERDQualifierTraversal;
 import er.directtoweb.qualifiers.ERDQualifierTraversalCallback;
 import er.extensions.ERXExtensions;
+import er.extensions.appserver.ERXApplication;
+import er.extensions.appserver.ERXMemoryMonitor;
 import er.extensions.foundation.ERXArrayUtilities;
 import er.extensions.foundation.ERXFileUtilities;
 import er.extensions.foundation.ERXMappingObjectStream;
 import er.extensions.foundation.ERXMultiKey;
 import er.extensions.foundation.ERXProperties;
 import er.extensions.foundation.ERXSelectorUtilities;
+import er.extensions.foundation.ERXStringUtilities;
 import er.extensions.localization.ERXLocalizer;
 
 /**
  * Overhaul of the caching system.
+ * <p>
+ * Fired values are cached per rhs key and the values of the keys it depends on. The
+ * cache is not locked, so lookups from several sessions don't wait for each other.
+ * When <code>er.directtoweb.ERD2WModel.useCompiledRules</code> is set, cache misses are
+ * resolved with an {@link ERD2WRuleIndex} that only evaluates the rules that can match
+ * the context instead of every rule for the key. Set
+ * <code>er.directtoweb.ERD2WModel.verifyCompiledRules</code> while trying this out to
+ * fire the rules both ways and log any difference.
+ * </p>
+ * <p>
+ * With <code>er.directtoweb.ERD2WModel.cacheSnapshot.enabled</code> the cache is written
+ * to a snapshot file when the application terminates and every
+ * <code>er.directtoweb.ERD2WModel.cacheSnapshot.interval</code> seconds, and read back
+ * in the background when the next instance has finished launching, so it doesn't start
+ * with an empty cache. Snapshots need both <code>er.directtoweb.ERD2WModel.cacheSnapshot.path</code>
+ * and a secret <code>er.directtoweb.ERD2WModel.cacheSnapshot.key</code> shared by the
+ * instances of the deployment. The file is only readable by its owner and signed with
+ * the key, and a snapshot with a wrong signature is ignored without deserializing any of
+ * it. The snapshot is tagged with a hash of the loaded rule files and is ignored when the
+ * rules have changed. Values computed by assignments also depend on their code, so delete
+ * the snapshot when deploying changed assignments.
+ * </p>
+ *
+ * @property er.directtoweb.ERD2WModel.useCompiledRules
+ * @property er.directtoweb.ERD2WModel.verifyCompiledRules
+ * @property er.directtoweb.ERD2WModel.cacheSnapshot.enabled
+ * @property er.directtoweb.ERD2WModel.cacheSnapshot.path
+ * @property er.directtoweb.ERD2WModel.cacheSnapshot.key
+ * @property er.directtoweb.ERD2WModel.cacheSnapshot.interval
+ * @property er.directtoweb.ERD2WModel.cacheSnapshot.maxEntries
  */
-public class ERD2WModel extends D2WModel {
+public class ERD2WModel extends D2WModel implements ERXMemoryMonitor.Reclaimable {
 
     /** logging support */
     public static final Logger log = Logger.getLogger(ERD2WModel.class);
@@ -97,9 +157,19 @@ public class ERD2WModel extends D2WModel {
     /** null referenced used to represent null in the caching system */
     private final static Object NULL_VALUE="<NULL>";
 
-    private Hashtable _cache=new Hashtable(10000);
-    private Hashtable _systemCache=new Hashtable(10000);
-    private Hashtable _significantKeysPerKey=new Hashtable(500);
+    private Map _cache=new ConcurrentHashMap(10000);
+    private Map _systemCache=new ConcurrentHashMap(10000);
+    private Map _significantKeysPerKey=new ConcurrentHashMap(500);
+    private volatile ERD2WRuleIndex _ruleIndex;
+    private boolean _verifyCompiledRules;
+
+    /** reusable lookup keys per thread, indexed by the number of keys */
+    private static final ThreadLocal<ERXMultiKey[]> _lookupKeys = new ThreadLocal<ERXMultiKey[]>() {
+        @Override
+        protected ERXMultiKey[] initialValue() {
+            return new ERXMultiKey[16];
+        }
+    };
 
     private static D2WModel _defaultModel;
 
@@ -203,6 +273,12 @@ public class ERD2WModel extends D2WModel {
     }
 
     public void applicationDidFinishLaunching(NSNotification n) {
+    	if(D2WModel.defaultModel() == this) {
+    		ERXMemoryMonitor.register(this);
+    		if(cacheSnapshotEnabled()) {
+    			startCacheSnapshots();
+    		}
+    	}
     	if(!WOApplication.application().isCachingEnabled()) {
     		NSNotificationCenter.defaultCenter().addObserver(this,
     				ERXSelectorUtilities.notificationSelector("applicationWillDispatchRequest"),
@@ -293,16 +369,22 @@ public class ERD2WModel extends D2WModel {
         String[] significantKeys=(String[])_significantKeysPerKey.get(keyPath);
         if (significantKeys==null) return null;
         short s=(short)significantKeys.length;
-        Object[] lhsKeys=new Object[(short)(s+1)];
+        // look up with a key that is reused by this thread and only copy it when the value gets cached
+        ERXMultiKey[] lookupKeys=_lookupKeys.get();
+        ERXMultiKey lookupKey=takeLookupKey(lookupKeys, s);
+        Object[] lhsKeys=lookupKey.keysNoCopy();
         for (short i=0; i<s; i++) {
             //lhsKeys[i]=context.valueForKeyPathNoInference(significantKeys[i]);
             lhsKeys[i]=ERD2WUtilities.contextValueForKeyNoInferenceNoException(context, significantKeys[i]);
         }
         lhsKeys[s]=keyPath;
-        ERXMultiKey k=new ERXMultiKey(lhsKeys);
+        lookupKey.recomputeHashCode();
 
-        Object result=useCache ? cache.get(k) : null;
+        Object result=useCache ? cache.get(lookupKey) : null;
         if (result==null) {
+            // firing may come back here for other keys, so give the lookup key back first
+            ERXMultiKey k=new ERXMultiKey(lhsKeys);
+            releaseLookupKey(lookupKeys, lookupKey, s);
             boolean resetTraceRuleFiring = false;
             Logger ruleFireLog=null;
             if (ruleTraceEnabledLog.isDebugEnabled()) {
@@ -319,8 +401,17 @@ public class ERD2WModel extends D2WModel {
                 }
             }
             try {
+                ERD2WRuleIndex ruleIndex=_ruleIndex;
                 if (cache == _systemCache) {
                     result = super.fireSystemRuleForKeyPathInContext(keyPath, context);
+                } else if (ruleIndex != null && ruleFireLog == null) {
+                    result = ruleIndex.fireRuleForKeyPathInContext(keyPath, context);
+                    if (_verifyCompiledRules) {
+                        Object expected = super.fireRuleForKeyPathInContext(keyPath, context);
+                        if (!(expected == null ? result == null : expected.equals(result))) {
+                            log.warn("Compiled rules fired " + result + " instead of " + expected + " for " + keyPath + " in " + context);
+                        }
+                    }
                 } else {
                     result = super.fireRuleForKeyPathInContext(keyPath, context);
                 }
@@ -342,9 +433,10 @@ public class ERD2WModel extends D2WModel {
             if (ruleTraceEnabledLog.isDebugEnabled()) {
                 Logger ruleLog = Logger.getLogger("er.directtoweb.rules." + keyPath + ".cache");
                 if (ruleLog.isDebugEnabled())
-                	ruleLog.debug("CACHE: " + keyPath + " for propertyKey: " + context.propertyKey() + " depends on: "  + new NSArray(significantKeys) + " = " + k
+                	ruleLog.debug("CACHE: " + keyPath + " for propertyKey: " + context.propertyKey() + " depends on: "  + new NSArray(significantKeys) + " = " + lookupKey
                                   + " value: " + (result==NULL_VALUE ? "<NULL>" : (result instanceof EOEntity ? ((EOEntity)result).name() : result)));
             }
+            releaseLookupKey(lookupKeys, lookupKey, s);
             if (result==NULL_VALUE)
                 result=null;
         }
@@ -354,6 +446,27 @@ public class ERD2WModel extends D2WModel {
         return result;
     }
 
+    private static ERXMultiKey takeLookupKey(ERXMultiKey[] lookupKeys, short s) {
+        ERXMultiKey lookupKey=s < lookupKeys.length ? lookupKeys[s] : null;
+        if (lookupKey==null) {
+            return new ERXMultiKey(new Object[s+1]);
+        }
+        // taken out while in use, so a nested lookup with the same number of keys gets a new one
+        lookupKeys[s]=null;
+        return lookupKey;
+    }
+
+    private static void releaseLookupKey(ERXMultiKey[] lookupKeys, ERXMultiKey lookupKey, short s) {
+        if (s < lookupKeys.length) {
+            // don't keep the context's values alive
+            Object[] lhsKeys=lookupKey.keysNoCopy();
+            for (short i=0; i<s; i++) {
+                lhsKeys[i]=null;
+            }
+            lookupKeys[s]=lookupKey;
+        }
+    }
+
     /** Means to dump the cache. You shouldn't use this unless you know what you are doing. */
     public void dumpCache(String fileName) {
         fileName = fileName == null ? "dmp.cache": fileName;
@@ -371,7 +484,10 @@ public class ERD2WModel extends D2WModel {
         fileName = fileName == null ? "dmp.cache": fileName;
         synchronized(this) {
             try {
-                _cache = cacheFromBytes(ERXFileUtilities.bytesFromFile(new File(fileName)));
+                Map cache = cacheFromBytes(ERXFileUtilities.bytesFromFile(new File(fileName)));
+                if (cache != null) {
+                    _cache = new ConcurrentHashMap(cache);
+                }
             } catch(IOException ex) {
                 log.error(ex);
             }
@@ -546,6 +662,36 @@ public class ERD2WModel extends D2WModel {
             if(_significantKeysPerKey != null)
                 _significantKeysPerKey.put(key,a);
         }
+        _verifyCompiledRules = ERXProperties.booleanForKeyWithDefault("er.directtoweb.ERD2WModel.verifyCompiledRules", false);
+        if (_significantKeysPerKey != null && ERXProperties.booleanForKeyWithDefault("er.directtoweb.ERD2WModel.useCompiledRules", false)) {
+            _ruleIndex = compileRuleIndex();
+            if(log.isDebugEnabled())
+              log.debug("Compiled rules: " + _ruleIndex);
+        }
+    }
+
+    /**
+     * Builds an index of the current rules. This is done by {@link #prepareDataStructures()}
+     * when <code>er.directtoweb.ERD2WModel.useCompiledRules</code> is set.
+     * @return a new rule index
+     */
+    public ERD2WRuleIndex compileRuleIndex() {
+        return new ERD2WRuleIndex(rules(), _significantKeysPerKey);
+    }
+
+    /**
+     * @return the index used to fire rules or null if the rules aren't compiled
+     */
+    public ERD2WRuleIndex ruleIndex() {
+        return _ruleIndex;
+    }
+
+    /**
+     * Fires the rules for the key the way D2W does without looking at the cache or the
+     * rule index. Used to compare the two.
+     */
+    Object _fireRuleForKeyPathInContextWithoutIndex(String keyPath, D2WContext context) {
+        return super.fireRuleForKeyPathInContext(keyPath, context);
     }
 
     @Override
@@ -559,6 +705,7 @@ public class ERD2WModel extends D2WModel {
             _systemCache.clear();
         if (_significantKeysPerKey!=null)
             _significantKeysPerKey.clear();
+        _ruleIndex = null;
         super.invalidateCaches();
     }
 
@@ -575,6 +722,8 @@ public class ERD2WModel extends D2WModel {
       
       if (_filePathRuleTraceCache!=null)
         _filePathRuleTraceCache.clear();
+      if (_ruleFileURLs!=null)
+        _ruleFileURLs.clear();
       
       NSNotificationCenter.defaultCenter().postNotification(ModelWillReset, this);
       setRules(new NSArray());
@@ -629,6 +778,9 @@ public class ERD2WModel extends D2WModel {
             log.debug("Merging rule file \"" + modelFile.getPath() + "\"");
             
             setCurrentFile(modelFile);
+            // null while the super constructor loads the rules
+            if (_ruleFileURLs != null)
+                _ruleFileURLs.add(modelURL);
             NSDictionary dic = dictionaryFromPathUrl(modelURL);
             if(dic != null) {
                 if (ruleDecodeLog.isDebugEnabled()) {
@@ -1054,25 +1206,30 @@ public class ERD2WModel extends D2WModel {
         return true;
     }
 
-    protected ERXMultiKey readEntry(Hashtable cache, ObjectInputStream in) throws IOException, ClassNotFoundException {
+    protected ERXMultiKey readEntry(Map cache, ObjectInputStream in) throws IOException, ClassNotFoundException {
         Object keys[]=(Object[])in.readObject();
         Object value = decodeObject(in.readObject());
+        // the cache compares with the instance
+        if (NULL_VALUE.equals(value))
+            value = NULL_VALUE;
         for (short i=0; i<keys.length; i++) {
             Object o=decodeObject(keys[i]);
             keys[i]=o;
         }
         ERXMultiKey key = new ERXMultiKey(keys);
-        cache.put(key,value);
+        if (value != null)
+            cache.put(key,value);
         return key;
     }
 
-    protected byte[] cacheToBytes(Hashtable cache) {
+    protected byte[] cacheToBytes(Map cache) {
         try {
             ByteArrayOutputStream ostream = new ByteArrayOutputStream();
             ObjectOutputStream out = new ObjectOutputStream(ostream);
-            for(Enumeration keys = cache.keys(); keys.hasMoreElements();) {
-                ERXMultiKey key = (ERXMultiKey)keys.nextElement();
-                Object o = cache.get(key);
+            for(Iterator entries = cache.entrySet().iterator(); entries.hasNext();) {
+                Map.Entry entry = (Map.Entry)entries.next();
+                ERXMultiKey key = (ERXMultiKey)entry.getKey();
+                Object o = entry.getValue();
                 if(writeEntry(key,o,out)) {
                   if(log.isDebugEnabled())
                         log.debug("Wrote: " + key + " -- " + o);
@@ -1090,7 +1247,7 @@ public class ERD2WModel extends D2WModel {
         return null;
     }
 
-    protected Hashtable cacheFromBytes(byte[] bytes) {
+    protected Map cacheFromBytes(byte[] bytes) {
         try {
             ByteArrayInputStream istream = new ByteArrayInputStream(bytes);
 			ObjectInputStream in = new ERXMappingObjectStream(istream);
@@ -1114,6 +1271,324 @@ public class ERD2WModel extends D2WModel {
         return null;
     }
 
+    // warm start snapshots: like dumpCache and restoreCache, but each entry is written on its
+    // own so one that can't be written or read doesn't spoil the others
+
+    private static final String SNAPSHOT_VERSION = "ERD2WModel.cacheSnapshot.2";
+    private static final String SNAPSHOT_MAC_ALGORITHM = "HmacSHA256";
+
+    /** the rule files merged into the model, to tell whether a snapshot is for the same rules */
+    private final List<URL> _ruleFileURLs = new CopyOnWriteArrayList<>();
+    private ScheduledThreadPoolExecutor _snapshotExecutor;
+    private int _snapshotCacheSize = -1;
+
+    protected boolean cacheSnapshotEnabled() {
+        return ERXProperties.booleanForKeyWithDefault("er.directtoweb.ERD2WModel.cacheSnapshot.enabled", false);
+    }
+
+    /**
+     * Returns the file the cache snapshot is written to, set with
+     * <code>er.directtoweb.ERD2WModel.cacheSnapshot.path</code>. There is no default,
+     * the file should be in a directory only the application's user can write to.
+     * @return the snapshot file or null if none is set
+     */
+    protected File cacheSnapshotFile() {
+        String path = ERXProperties.stringForKey("er.directtoweb.ERD2WModel.cacheSnapshot.path");
+        return path != null ? new File(path) : null;
+    }
+
+    /**
+     * Returns the secret the cache snapshot is signed with, set with
+     * <code>er.directtoweb.ERD2WModel.cacheSnapshot.key</code>.
+     * @return the key or null if none is set
+     */
+    protected byte[] cacheSnapshotKey() {
+        String key = ERXProperties.stringForKey("er.directtoweb.ERD2WModel.cacheSnapshot.key");
+        return key != null && key.length() > 0 ? key.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private Mac cacheSnapshotMac() {
+        byte[] key = cacheSnapshotKey();
+        if (key == null) {
+            throw new IllegalStateException("There is no er.directtoweb.ERD2WModel.cacheSnapshot.key to sign the cache snapshot with.");
+        }
+        try {
+            Mac mac = Mac.getInstance(SNAPSHOT_MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, SNAPSHOT_MAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException ex) {
+            throw NSForwardException._runtimeExceptionForThrowable(ex);
+        }
+    }
+
+    /**
+     * Reads the snapshot in the background, writes it when the application terminates
+     * and every <code>er.directtoweb.ERD2WModel.cacheSnapshot.interval</code> seconds.
+     */
+    protected synchronized void startCacheSnapshots() {
+        if (_snapshotExecutor != null) {
+            return;
+        }
+        final File file = cacheSnapshotFile();
+        if (file == null || cacheSnapshotKey() == null) {
+            log.warn("Cache snapshots need er.directtoweb.ERD2WModel.cacheSnapshot.path and er.directtoweb.ERD2WModel.cacheSnapshot.key, not writing any.");
+            return;
+        }
+        _snapshotExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "ERD2WModelCacheSnapshot");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        _snapshotExecutor.execute(() -> {
+            try {
+                readCacheSnapshot(file);
+            } catch (Throwable t) {
+                log.error("Could not read the cache snapshot " + file, t);
+            }
+        });
+        long interval = ERXProperties.longForKeyWithDefault("er.directtoweb.ERD2WModel.cacheSnapshot.interval", 600);
+        if (interval > 0) {
+            _snapshotExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    if (_cache.size() != _snapshotCacheSize) {
+                        writeCacheSnapshot(file);
+                    }
+                } catch (Throwable t) {
+                    log.error("Could not write the cache snapshot " + file, t);
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+        NSNotificationCenter.defaultCenter().addObserver(this,
+                ERXSelectorUtilities.notificationSelector("applicationWillTerminate"),
+                ERXApplication.ApplicationWillTerminateNotification, null);
+    }
+
+    public void applicationWillTerminate(NSNotification n) {
+        synchronized (this) {
+            if (_snapshotExecutor == null) {
+                return;
+            }
+            _snapshotExecutor.shutdownNow();
+            _snapshotExecutor = null;
+        }
+        File file = cacheSnapshotFile();
+        try {
+            writeCacheSnapshot(file);
+        } catch (IOException ex) {
+            log.error("Could not write the cache snapshot " + file, ex);
+        }
+    }
+
+    /**
+     * Called when the application runs short of memory. Removes entries from the rule cache until
+     * it is down to the fraction of its size the pressure asks for. The cache doesn't know which
+     * entries were used last, so the entries that go are the ones the iteration returns first.
+     * The system cache is kept.
+     * @param pressure the memory pressure
+     */
+    public void reclaimMemory(ERXMemoryMonitor.Pressure pressure) {
+        Map cache = _cache;
+        if (pressure.retainedFraction() <= 0.0) {
+            cache.clear();
+            return;
+        }
+        int count = cache.size() - (int) (cache.size() * pressure.retainedFraction());
+        for (Iterator i = cache.keySet().iterator(); count > 0 && i.hasNext(); count--) {
+            i.next();
+            i.remove();
+        }
+    }
+
+    /**
+     * Returns a hash of the rule files merged into the model and the number of rules,
+     * which tells if a snapshot was taken with the same rules.
+     * @return the hash as a hex string
+     */
+    public String rulesHash() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (URL url : _ruleFileURLs) {
+                try (InputStream in = url.openStream()) {
+                    digest.update(ERXFileUtilities.bytesFromInputStream(in));
+                }
+            }
+            NSArray rules = rules();
+            digest.update(String.valueOf(rules != null ? rules.count() : 0).getBytes());
+            return ERXStringUtilities.byteArrayToHexString(digest.digest());
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            throw NSForwardException._runtimeExceptionForThrowable(ex);
+        }
+    }
+
+    /**
+     * Writes the entries of the cache that can be serialized to the file, up to
+     * <code>er.directtoweb.ERD2WModel.cacheSnapshot.maxEntries</code> of them, and signs
+     * it with the snapshot key. The file is created readable by its owner only and
+     * replaced at once, so other instances never read half a snapshot.
+     * @param file the snapshot file
+     * @return the number of entries written
+     * @throws IOException if the file can't be written
+     */
+    public int writeCacheSnapshot(File file) throws IOException {
+        int maxEntries = ERXProperties.intForKeyWithDefault("er.directtoweb.ERD2WModel.cacheSnapshot.maxEntries", 100000);
+        Mac mac = cacheSnapshotMac();
+        String rulesHash = rulesHash();
+        Map cache = _cache;
+        int cacheSize = cache.size();
+        Path directory = file.getAbsoluteFile().getParentFile().toPath();
+        Files.createDirectories(directory);
+        Path tempFile;
+        if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            tempFile = Files.createTempFile(directory, file.getName(), ".tmp", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            tempFile = Files.createTempFile(directory, file.getName(), ".tmp");
+            File f = tempFile.toFile();
+            f.setReadable(false, false);
+            f.setWritable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(true, true);
+        }
+        int count = 0;
+        try (OutputStream fileOut = Files.newOutputStream(tempFile)) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new SignedOutputStream(fileOut, mac))))) {
+                out.writeUTF(SNAPSHOT_VERSION);
+                out.writeUTF(rulesHash);
+                ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+                for (Iterator entries = cache.entrySet().iterator(); entries.hasNext() && count < maxEntries;) {
+                    Map.Entry entry = (Map.Entry)entries.next();
+                    entryBytes.reset();
+                    try {
+                        ObjectOutputStream entryOut = new ObjectOutputStream(entryBytes);
+                        if (!writeEntry((ERXMultiKey)entry.getKey(), entry.getValue(), entryOut)) {
+                            continue;
+                        }
+                        entryOut.flush();
+                    } catch (IOException ex) {
+                        // arrays and dictionaries can hold objects that aren't serializable
+                        if (log.isDebugEnabled())
+                            log.debug("Can't write: " + entry.getKey() + " -- " + entry.getValue() + ": " + ex);
+                        continue;
+                    }
+                    out.writeInt(entryBytes.size());
+                    entryBytes.writeTo(out);
+                    count++;
+                }
+                out.writeInt(-1);
+            }
+            fileOut.write(mac.doFinal());
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tempFile);
+            throw ex;
+        }
+        try {
+            Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        _snapshotCacheSize = cacheSize;
+        if (log.isInfoEnabled())
+            log.info("Wrote " + count + " of " + cacheSize + " cache entries to " + file);
+        return count;
+    }
+
+    /**
+     * Adds the entries of the snapshot to the cache if it was signed with the snapshot
+     * key and written for the current rules. Entries the cache already has are kept,
+     * entries that can't be read are skipped.
+     * @param file the snapshot file
+     * @return the number of entries added
+     */
+    public int readCacheSnapshot(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        Mac mac = cacheSnapshotMac();
+        String rulesHash = rulesHash();
+        Map entries = new HashMap();
+        byte[] snapshot;
+        try {
+            snapshot = Files.readAllBytes(file.toPath());
+        } catch (IOException ex) {
+            log.warn("Could not read the cache snapshot " + file + ": " + ex);
+            return 0;
+        }
+        int length = snapshot.length - mac.getMacLength();
+        if (length < 0) {
+            log.warn("Ignoring the cache snapshot " + file + ", it is too short");
+            return 0;
+        }
+        mac.update(snapshot, 0, length);
+        if (!MessageDigest.isEqual(mac.doFinal(), Arrays.copyOfRange(snapshot, length, snapshot.length))) {
+            log.warn("Ignoring the cache snapshot " + file + ", it wasn't signed with the cache snapshot key");
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(snapshot, 0, length))))) {
+            if (!SNAPSHOT_VERSION.equals(in.readUTF()) || !rulesHash.equals(in.readUTF())) {
+                log.info("Ignoring the cache snapshot " + file + ", it was written for other rules");
+                return 0;
+            }
+            for (int length = in.readInt(); length >= 0; length = in.readInt()) {
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                try {
+                    readEntry(entries, new ERXMappingObjectStream(new ByteArrayInputStream(bytes)));
+                } catch (Exception ex) {
+                    if (log.isDebugEnabled())
+                        log.debug("Can't read a cache entry: " + ex);
+                }
+            }
+        } catch (IOException ex) {
+            log.warn("Could not read the cache snapshot " + file + ": " + ex);
+            return 0;
+        }
+        if (!rulesHash.equals(rulesHash())) {
+            // the rules were reloaded while reading
+            return 0;
+        }
+        Map cache = _cache;
+        int count = 0;
+        for (Iterator i = entries.entrySet().iterator(); i.hasNext();) {
+            Map.Entry entry = (Map.Entry)i.next();
+            if (cache.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+                count++;
+            }
+        }
+        if (log.isInfoEnabled())
+            log.info("Added " + count + " cache entries from " + file);
+        return count;
+    }
+
+    /**
+     * Passes the snapshot through to the file while adding it to the signature, but leaves
+     * the file open when closed, so the signature can be appended.
+     */
+    private static class SignedOutputStream extends FilterOutputStream {
+        private final Mac _mac;
+
+        public SignedOutputStream(OutputStream out, Mac mac) {
+            super(out);
+            _mac = mac;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            _mac.update((byte) b);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            _mac.update(b, off, len);
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
     public void _diagnoseCache() {
         final Map cache = _cache;
         final Set keySet = cache.keySet();
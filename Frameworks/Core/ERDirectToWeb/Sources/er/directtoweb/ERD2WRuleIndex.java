@@ -0,0 +1,304 @@
+package er.directtoweb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.webobjects.directtoweb.D2WContext;
+import com.webobjects.directtoweb.ERD2WUtilities;
+import com.webobjects.directtoweb.Rule;
+import com.webobjects.eocontrol.EOAndQualifier;
+import com.webobjects.eocontrol.EOKeyValueQualifier;
+import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.foundation.NSArray;
+
+/**
+ * Compiled form of the rules of a model. For every rhs key the rules are put into a
+ * discrimination tree that branches on the local values of the context, so firing a key
+ * only evaluates the qualifiers of the rules that can match instead of all rules for the key.
+ * <p>
+ * The tree only branches on keys that have no dots, are among the significant keys
+ * of the rhs key and are compared for equality with a string on the top level of a
+ * rule's lhs, like <code>task = 'edit'</code> or <code>pageConfiguration = 'ListMovie'</code>.
+ * A rule is put into the branch of the value it requires, rules that don't constrain
+ * the key go into a wildcard branch. A lookup follows the branch for the context's value
+ * and the wildcard branch. When the context has no local string value for the key, all
+ * branches are followed, so values that would be inferred are still handled by the
+ * rules themselves. Each rule ends up in exactly one leaf, which keeps the rules in the
+ * order of the sorted rules of the model, and the leaves are searched for the rule that
+ * comes first in that order, which is the same one a scan over all rules would find.
+ * </p>
+ * The index is immutable and can be used by several threads at once. It has to be
+ * rebuilt when the rules change.
+ */
+public class ERD2WRuleIndex {
+
+    /** nodes with fewer rules are not split further */
+    private static final int MIN_RULES_TO_SPLIT = 8;
+
+    /** maximum number of keys checked before evaluating the rules */
+    private static final int MAX_DEPTH = 6;
+
+    private final Map<String, Node> _roots;
+    private final int _ruleCount;
+    private int _nodeCount;
+
+    private static class Node {
+        /** the rules of a leaf and their position in the rules for the rhs key */
+        Rule[] rules;
+        int[] ordinals;
+        String key;
+        Map<String, Node> children;
+        Node wildcard;
+    }
+
+    /**
+     * Builds an index for the given rules.
+     * @param rules the rules, sorted by priority as done by the model
+     * @param significantKeysPerKey the keys the value of each rhs key depends on
+     */
+    public ERD2WRuleIndex(NSArray rules, Map significantKeysPerKey) {
+        Map<String, List<Rule>> rulesPerKey = new LinkedHashMap<>();
+        Map<Rule, Map<String, String>> constraints = new HashMap<>();
+        for (Enumeration e = rules.objectEnumerator(); e.hasMoreElements();) {
+            Rule r = (Rule) e.nextElement();
+            String rhsKey = r.rhs() != null ? r.rhs().keyPath() : null;
+            if (rhsKey == null) {
+                continue;
+            }
+            List<Rule> list = rulesPerKey.get(rhsKey);
+            if (list == null) {
+                list = new ArrayList<>();
+                rulesPerKey.put(rhsKey, list);
+            }
+            list.add(r);
+            Map<String, String> equalities = equalityConstraints(r);
+            if (!equalities.isEmpty()) {
+                constraints.put(r, equalities);
+            }
+        }
+        Map<String, Node> roots = new HashMap<>(rulesPerKey.size() * 2);
+        for (Map.Entry<String, List<Rule>> entry : rulesPerKey.entrySet()) {
+            Set<String> discriminants = discriminantKeys((String[]) significantKeysPerKey.get(entry.getKey()));
+            List<Rule> keyRules = entry.getValue();
+            int[] ordinals = new int[keyRules.size()];
+            for (int i = 0; i < ordinals.length; i++) {
+                ordinals[i] = i;
+            }
+            roots.put(entry.getKey(), nodeForRules(keyRules, ordinals, constraints, discriminants, 0));
+        }
+        _roots = roots;
+        _ruleCount = rules.count();
+    }
+
+    private static Set<String> discriminantKeys(String[] significantKeys) {
+        if (significantKeys == null) {
+            return Collections.emptySet();
+        }
+        Set<String> keys = new HashSet<>();
+        for (String key : significantKeys) {
+            if (key.indexOf('.') == -1) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the <code>key = 'value'</code> parts of the rule's lhs the index can branch on.
+     */
+    private static Map<String, String> equalityConstraints(Rule r) {
+        Object lhs = r.lhs();
+        Map<String, String> result = new HashMap<>();
+        if (lhs instanceof EOAndQualifier) {
+            NSArray qualifiers = ((EOAndQualifier) lhs).qualifiers();
+            for (Enumeration e = qualifiers.objectEnumerator(); e.hasMoreElements();) {
+                addEqualityConstraint(e.nextElement(), result);
+            }
+        } else {
+            addEqualityConstraint(lhs, result);
+        }
+        return result;
+    }
+
+    private static void addEqualityConstraint(Object qualifier, Map<String, String> result) {
+        // subclasses may evaluate differently, so only take the plain qualifier the rule files decode to
+        if (qualifier == null || qualifier.getClass() != EOKeyValueQualifier.class) {
+            return;
+        }
+        EOKeyValueQualifier q = (EOKeyValueQualifier) qualifier;
+        if (EOQualifier.QualifierOperatorEqual.equals(q.selector()) && q.value() instanceof String
+                && q.key().indexOf('.') == -1 && !result.containsKey(q.key())) {
+            result.put(q.key(), (String) q.value());
+        }
+    }
+
+    private Node nodeForRules(List<Rule> rules, int[] ordinals, Map<Rule, Map<String, String>> constraints, Set<String> keys, int depth) {
+        Node node = new Node();
+        _nodeCount++;
+        String key = rules.size() < MIN_RULES_TO_SPLIT || depth >= MAX_DEPTH ? null : mostConstrainedKey(rules, constraints, keys);
+        if (key == null) {
+            node.rules = rules.toArray(new Rule[rules.size()]);
+            node.ordinals = ordinals;
+            return node;
+        }
+        Map<String, List<Integer>> positionsPerValue = new HashMap<>();
+        List<Integer> unconstrained = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            String value = valueForKey(constraints, rules.get(i), key);
+            if (value != null) {
+                List<Integer> positions = positionsPerValue.get(value);
+                if (positions == null) {
+                    positions = new ArrayList<>();
+                    positionsPerValue.put(value, positions);
+                }
+                positions.add(i);
+            } else {
+                unconstrained.add(i);
+            }
+        }
+        Set<String> remainingKeys = new HashSet<>(keys);
+        remainingKeys.remove(key);
+        node.key = key;
+        node.children = new HashMap<>(positionsPerValue.size() * 2);
+        for (Map.Entry<String, List<Integer>> entry : positionsPerValue.entrySet()) {
+            node.children.put(entry.getKey(), subnode(rules, ordinals, entry.getValue(), constraints, remainingKeys, depth));
+        }
+        if (!unconstrained.isEmpty()) {
+            node.wildcard = subnode(rules, ordinals, unconstrained, constraints, remainingKeys, depth);
+        }
+        return node;
+    }
+
+    private Node subnode(List<Rule> rules, int[] ordinals, List<Integer> positions, Map<Rule, Map<String, String>> constraints, Set<String> keys, int depth) {
+        List<Rule> subrules = new ArrayList<>(positions.size());
+        int[] subordinals = new int[positions.size()];
+        for (int i = 0; i < subordinals.length; i++) {
+            int position = positions.get(i);
+            subrules.add(rules.get(position));
+            subordinals[i] = ordinals[position];
+        }
+        return nodeForRules(subrules, subordinals, constraints, keys, depth + 1);
+    }
+
+    /**
+     * Returns the key most of the rules have a value for, if at least two do.
+     */
+    private static String mostConstrainedKey(List<Rule> rules, Map<Rule, Map<String, String>> constraints, Set<String> keys) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Rule r : rules) {
+            Map<String, String> equalities = constraints.get(r);
+            if (equalities != null) {
+                for (String key : equalities.keySet()) {
+                    if (keys.contains(key)) {
+                        Integer count = counts.get(key);
+                        counts.put(key, count == null ? 1 : count + 1);
+                    }
+                }
+            }
+        }
+        String key = null;
+        int keyCount = 1;
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            int count = entry.getValue();
+            if (count > keyCount || (count == keyCount && key != null && entry.getKey().compareTo(key) < 0)) {
+                key = entry.getKey();
+                keyCount = count;
+            }
+        }
+        return key;
+    }
+
+    private static String valueForKey(Map<Rule, Map<String, String>> constraints, Rule r, String key) {
+        Map<String, String> equalities = constraints.get(r);
+        return equalities != null ? equalities.get(key) : null;
+    }
+
+    /** the rule found so far while searching the leaves */
+    private static class Match {
+        Rule rule;
+        int ordinal = Integer.MAX_VALUE;
+    }
+
+    private static void findRule(Node node, D2WContext context, Match match) {
+        if (node.key == null) {
+            Rule[] rules = node.rules;
+            int[] ordinals = node.ordinals;
+            // only rules that come before the match found so far can replace it
+            for (int i = 0; i < rules.length && ordinals[i] < match.ordinal; i++) {
+                if (rules[i].canFireInContext(context)) {
+                    match.rule = rules[i];
+                    match.ordinal = ordinals[i];
+                    return;
+                }
+            }
+            return;
+        }
+        Object value = ERD2WUtilities.contextValueForKeyNoInferenceNoException(context, node.key);
+        if (value instanceof String) {
+            Node child = node.children.get(value);
+            if (child != null) {
+                findRule(child, context, match);
+            }
+        } else {
+            for (Node child : node.children.values()) {
+                findRule(child, context, match);
+            }
+        }
+        if (node.wildcard != null) {
+            findRule(node.wildcard, context, match);
+        }
+    }
+
+    /**
+     * Returns the rule with the highest priority for the key that can fire in the context.
+     * @param keyPath the rhs key
+     * @param context the context
+     * @return the rule or null
+     */
+    public Rule ruleForKeyPathInContext(String keyPath, D2WContext context) {
+        Node node = _roots.get(keyPath);
+        if (node == null) {
+            return null;
+        }
+        Match match = new Match();
+        findRule(node, context, match);
+        return match.rule;
+    }
+
+    /**
+     * Fires the rule with the highest priority for the key that can fire in the context.
+     * @param keyPath the rhs key
+     * @param context the context
+     * @return the value of the rule's assignment or null if no rule matched
+     */
+    public Object fireRuleForKeyPathInContext(String keyPath, D2WContext context) {
+        Rule rule = ruleForKeyPathInContext(keyPath, context);
+        return rule != null ? rule.rhs().fire(context) : null;
+    }
+
+    /**
+     * @return the rhs keys of the indexed rules
+     */
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(_roots.keySet());
+    }
+
+    /**
+     * @return the number of nodes in the trees of all rhs keys
+     */
+    public int nodeCount() {
+        return _nodeCount;
+    }
+
+    @Override
+    public String toString() {
+        return "<" + getClass().getSimpleName() + " rules: " + _ruleCount + " keys: " + _roots.size() + " nodes: " + _nodeCount + ">";
+    }
+}
@@ -31,6 +31,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.regex.Pattern;
@@ -141,6 +142,7 @@ import er.extensions.statistics.ERXStats;
  * @property er.extensions.ERXApplication.enableERXShutdownHook
  * @property er.extensions.ERXApplication.fixCachingEnabled
  * @property er.extensions.ERXApplication.lowMemBufferSize
+ * @property er.extensions.ERXApplication.memoryElevatedThreshold
  * @property er.extensions.ERXApplication.memoryLowThreshold
  * @property er.extensions.ERXApplication.memoryStarvedThreshold
  * @property er.extensions.ERXApplication.memoryThreshold
@@ -155,6 +157,8 @@ import er.extensions.statistics.ERXStats;
  * @property er.extensions.ERXApplication.ssl.port
  * @property er.extensions.ERXApplication.useSessionStoreDeadlockDetection
  * @property er.extensions.ERXComponentActionRedirector.enabled
+ * @property er.extensions.ERXMemoryMonitor.enabled
+ * @property er.extensions.ERXMemoryMonitor.interval
  * @property er.extensions.ERXApplication.allowMultipleDevInstances
  */
 public abstract class ERXApplication extends ERXAjaxApplication implements ERXGracefulShutdown.GracefulApplication {
@@ -253,7 +257,7 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 	/**
 	 * Time that garbage collection was last called when checking memory.
 	 */
-	private long _lastGC = 0;
+	private final AtomicLong _lastGC = new AtomicLong();
 
 	/**
 	 * Holds the value of the property
@@ -266,6 +270,17 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 	 * er.extensions.ERXApplication.memoryLowThreshold
 	 */
 	protected BigDecimal _memoryLowThreshold;
+
+	/**
+	 * Holds the value of the property
+	 * er.extensions.ERXApplication.memoryElevatedThreshold
+	 */
+	protected BigDecimal _memoryElevatedThreshold;
+
+	/**
+	 * The monitor that watches the memory thresholds, null if memory is checked on each request
+	 */
+	protected ERXMemoryMonitor _memoryMonitor;
 	
 	/**
 	 * The path rewriting pattern to match (@see _rewriteURL)
@@ -1244,6 +1259,8 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 		_memoryStarvedThreshold = ERXProperties.bigDecimalForKey("er.extensions.ERXApplication.memoryThreshold"); // MS: Kept around for backwards compat, replaced by memoryStarvedThreshold now
 		_memoryStarvedThreshold = ERXProperties.bigDecimalForKeyWithDefault("er.extensions.ERXApplication.memoryStarvedThreshold", _memoryStarvedThreshold);
 		_memoryLowThreshold = ERXProperties.bigDecimalForKeyWithDefault("er.extensions.ERXApplication.memoryLowThreshold", _memoryLowThreshold);
+		_memoryElevatedThreshold = ERXProperties.bigDecimalForKeyWithDefault("er.extensions.ERXApplication.memoryElevatedThreshold", _memoryElevatedThreshold);
+		startMemoryMonitor();
 		
 	    _replaceApplicationPathPattern = ERXProperties.stringForKey("er.extensions.ERXApplication.replaceApplicationPath.pattern");
 	    if (_replaceApplicationPathPattern != null && _replaceApplicationPathPattern.length() == 0) {
@@ -1514,8 +1531,42 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 		return super._componentDefinition(s, nsarray);
 	}
 	
-	private boolean _isMemoryLow = false;
-	private boolean _isMemoryStarved = false;
+	private volatile boolean _isMemoryLow = false;
+	private volatile boolean _isMemoryStarved = false;
+
+	/**
+	 * Starts an {@link ERXMemoryMonitor} for the memory thresholds, so the memory is watched on a
+	 * background thread instead of being checked on each request. Set
+	 * <code>er.extensions.ERXMemoryMonitor.enabled=false</code> to check the memory on each request with
+	 * {@link #checkMemory()} instead. Does nothing if no threshold is set.
+	 */
+	protected void startMemoryMonitor() {
+		if (_memoryElevatedThreshold == null && _memoryLowThreshold == null && _memoryStarvedThreshold == null) {
+			return;
+		}
+		if (ERXProperties.booleanForKeyWithDefault("er.extensions.ERXMemoryMonitor.enabled", true)) {
+			long interval = ERXProperties.longForKeyWithDefault("er.extensions.ERXMemoryMonitor.interval", 5000L);
+			NSNotificationCenter.defaultCenter().addObserver(this, new NSSelector("memoryPressureDidChange", ERXConstant.NotificationClassArray), ERXMemoryMonitor.MemoryPressureDidChangeNotification, null);
+			_memoryMonitor = new ERXMemoryMonitor(_memoryElevatedThreshold, _memoryLowThreshold, _memoryStarvedThreshold, interval);
+			_memoryMonitor.start();
+		}
+	}
+
+	/**
+	 * Called when the {@link ERXMemoryMonitor} measured a new pressure. Posts the low and starved memory
+	 * notifications just like {@link #checkMemory()} does.
+	 * 
+	 * @param n the notification with the new pressure as object
+	 */
+	public void memoryPressureDidChange(NSNotification n) {
+		ERXMemoryMonitor.Pressure pressure = (ERXMemoryMonitor.Pressure) n.object();
+		if (_memoryLowThreshold != null) {
+			setMemoryLow(pressure.compareTo(ERXMemoryMonitor.Pressure.LOW) >= 0);
+		}
+		if (_memoryStarvedThreshold != null) {
+			setMemoryStarved(pressure == ERXMemoryMonitor.Pressure.STARVED);
+		}
+	}
 	
 	/**
 	 * <p>
@@ -1526,8 +1577,10 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 	 * sessions until more memory becomes available. This helps when the
 	 * application is becoming unresponsive because it's more busy garbage
 	 * collecting than processing requests. The default is to do nothing unless
-	 * the property is set. This method is called on each request, but garbage
-	 * collection will be done only every minute.
+	 * the property is set. This method is called on each request when
+	 * <code>er.extensions.ERXMemoryMonitor.enabled</code> is false, garbage
+	 * collection will be done only every minute. Otherwise the memory is
+	 * watched by an {@link ERXMemoryMonitor}.
 	 * </p>
 	 * 
 	 * <p>
@@ -1544,7 +1597,11 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 	 * @author ak
 	 */
 	protected void checkMemory() {
-		boolean memoryLow = checkMemory(_memoryLowThreshold, false);
+		setMemoryLow(checkMemory(_memoryLowThreshold, false));
+		setMemoryStarved(checkMemory(_memoryStarvedThreshold, true));
+	}
+
+	private void setMemoryLow(boolean memoryLow) {
 		if(memoryLow != _isMemoryLow) {
 			if(!memoryLow) {
 				log.warn("App is no longer low on memory");
@@ -1555,8 +1612,9 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 			}
 			_isMemoryLow = memoryLow;
 		}
-		
-		boolean memoryStarved = checkMemory(_memoryStarvedThreshold, true);
+	}
+
+	private void setMemoryStarved(boolean memoryStarved) {
 		if(memoryStarved != _isMemoryStarved) {
 			if(!memoryStarved) {
 				log.warn("App is no longer starved, handling new sessions again");
@@ -1578,18 +1636,19 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 			long used = max - free;
 			long starvedThreshold = (long) (memoryThreshold.doubleValue() < 1.0 ? memoryThreshold.doubleValue() * max : (max - (memoryThreshold.doubleValue() * 1024 * 1024)));
 
-			synchronized (this) {
+			if (attemptGC && (used > starvedThreshold)) {
 				long time = System.currentTimeMillis();
-				if (attemptGC && (used > starvedThreshold) && (time > _lastGC + 60 * 1000L)) {
-					_lastGC = time;
+				long lastGC = _lastGC.get();
+				// only the thread that wins the update collects, the others go on with what they measured
+				if (time > lastGC + 60 * 1000L && _lastGC.compareAndSet(lastGC, time)) {
 					Runtime.getRuntime().gc();
 					max = Runtime.getRuntime().maxMemory();
 					total = Runtime.getRuntime().totalMemory();
 					free = Runtime.getRuntime().freeMemory() + (max - total);
 					used = max - free;
 				}
-				pastThreshold = (used > starvedThreshold);
 			}
+			pastThreshold = (used > starvedThreshold);
 		}
 		return pastThreshold;
 	}
@@ -2070,7 +2129,9 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 		try {
 			ERXApplication._startRequest();
 			ERXStats.initStatisticsIfNecessary();
-			checkMemory();
+			if (_memoryMonitor == null) {
+				checkMemory();
+			}
 			if (useComponentActionRedirection()) {
 				ERXComponentActionRedirector redirector = ERXComponentActionRedirector.redirectorForRequest(request);
 				if (redirector == null) {
@@ -2099,7 +2160,7 @@ public abstract class ERXApplication extends ERXAjaxApplication implements ERXGr
 
 		if (responseCompressionEnabled()) {
 			String contentType = response.headerForKey("content-type");
-			if (!"gzip".equals(response.headerForKey("content-encoding")) && (contentType != null) && (contentType.startsWith("text/") || responseCompressionTypes().containsObject(contentType))) {
+			if (!"gzip".equals(response.headerForKey("content-encoding")) && response.headerForKey("content-range") == null && (contentType != null) && (contentType.startsWith("text/") || responseCompressionTypes().containsObject(contentType))) {
 				String acceptEncoding = request.headerForKey("accept-encoding");
 				if ((acceptEncoding != null) && (acceptEncoding.toLowerCase().indexOf("gzip") != -1)) {
 					long start = System.currentTimeMillis();
@@ -0,0 +1,377 @@
+package er.extensions.appserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
+
+/**
+ * Watches the heap on a background thread and grades how short the application is on memory.
+ * <p>
+ * The monitor sets the collection usage threshold of the tenured heap pools to the lowest of the
+ * configured thresholds, so the VM tells it when the occupancy that is left after a garbage
+ * collection gets too high. Only then it measures the pools, and it keeps measuring them every
+ * <code>er.extensions.ERXMemoryMonitor.interval</code> milliseconds until the pressure is gone again.
+ * Some collectors free the tenured pools without updating their collection usage, so while a pool's
+ * collection usage stays the same, its current usage can lower the pressure too.
+ * As the occupancy after a collection is what can't be reclaimed by the collector, the monitor
+ * never calls <code>System.gc()</code> itself. When the VM has no pool that supports thresholds,
+ * the monitor polls the used heap instead.
+ * </p>
+ * <p>
+ * The thresholds have the same meaning as the ones of {@link ERXApplication}: a value below 1.0 is the
+ * fraction of the pool that may be used, a larger value is the number of MB that have to stay free.
+ * When the pressure rises, the registered {@link Reclaimable}s are asked to give memory back and
+ * {@link #MemoryPressureDidChangeNotification} is posted, with the new {@link Pressure} as the object.
+ * The notification is also posted when the pressure drops.
+ * </p>
+ * <p>
+ * Finding out about the pressure is lock-free, so it can be checked on every request:
+ * </p>
+ * <pre><code>
+ * if (ERXMemoryMonitor.currentPressure().compareTo(ERXMemoryMonitor.Pressure.LOW) &gt;= 0) {
+ *     // skip the expensive cache
+ * }
+ * </code></pre>
+ *
+ * @property er.extensions.ERXMemoryMonitor.interval milliseconds between measurements while memory is short, default 5000
+ */
+public class ERXMemoryMonitor {
+	private static final Logger log = LoggerFactory.getLogger(ERXMemoryMonitor.class);
+
+	/**
+	 * Notification that gets posted when the memory pressure changes. The object is the new {@link Pressure}.
+	 */
+	public static final String MemoryPressureDidChangeNotification = "ERXMemoryPressureDidChangeNotification";
+
+	/**
+	 * How short the application is on memory, from no pressure at all to being about to run out.
+	 */
+	public enum Pressure {
+		NONE(1.0), ELEVATED(0.5), LOW(0.25), STARVED(0.0);
+
+		private final double _retainedFraction;
+
+		Pressure(double retainedFraction) {
+			_retainedFraction = retainedFraction;
+		}
+
+		/**
+		 * @return the fraction of its entries a cache should keep at this pressure
+		 */
+		public double retainedFraction() {
+			return _retainedFraction;
+		}
+	}
+
+	/**
+	 * Implemented by caches that can give memory back when the application runs short of it.
+	 */
+	public static interface Reclaimable {
+		/**
+		 * Called on the monitor thread when the pressure rises. Implementations should shrink to about
+		 * {@link Pressure#retainedFraction()} of their size and must not block for long.
+		 *
+		 * @param pressure the new pressure
+		 */
+		public void reclaimMemory(Pressure pressure);
+	}
+
+	private static final List<Reclaimable> _reclaimables = new CopyOnWriteArrayList<>();
+
+	private static volatile ERXMemoryMonitor _sharedInstance;
+
+	/**
+	 * Registers an object that is asked to give memory back when the pressure rises. The object is
+	 * held on to until it is unregistered.
+	 *
+	 * @param reclaimable the object to register
+	 */
+	public static void register(Reclaimable reclaimable) {
+		_reclaimables.add(reclaimable);
+	}
+
+	/**
+	 * Unregisters an object registered with {@link #register(Reclaimable)}.
+	 *
+	 * @param reclaimable the object to unregister
+	 */
+	public static void unregister(Reclaimable reclaimable) {
+		_reclaimables.remove(reclaimable);
+	}
+
+	/**
+	 * @return the monitor started by the application or null if there is none
+	 */
+	public static ERXMemoryMonitor sharedInstance() {
+		return _sharedInstance;
+	}
+
+	/**
+	 * @return the pressure measured by the shared monitor, {@link Pressure#NONE} if there is none
+	 */
+	public static Pressure currentPressure() {
+		ERXMemoryMonitor monitor = _sharedInstance;
+		return monitor != null ? monitor.pressure() : Pressure.NONE;
+	}
+
+	/** the thresholds in the order of the pressure levels above NONE, null if not set */
+	private final BigDecimal[] _thresholds;
+	private final long _interval;
+	private final List<MemoryPoolMXBean> _pools = new ArrayList<>();
+	/** the used bytes of the last collection usage of each pool, to tell whether there was a collection since */
+	private final Map<String, Long> _collectionUsed = new ConcurrentHashMap<>();
+	private volatile Pressure _pressure = Pressure.NONE;
+	private ScheduledThreadPoolExecutor _executor;
+	private NotificationListener _listener;
+
+	/**
+	 * Creates a monitor for the given thresholds, each of which may be null.
+	 *
+	 * @param elevatedThreshold threshold for {@link Pressure#ELEVATED}
+	 * @param lowThreshold threshold for {@link Pressure#LOW}
+	 * @param starvedThreshold threshold for {@link Pressure#STARVED}
+	 * @param interval milliseconds between measurements while memory is short
+	 */
+	public ERXMemoryMonitor(BigDecimal elevatedThreshold, BigDecimal lowThreshold, BigDecimal starvedThreshold, long interval) {
+		_thresholds = new BigDecimal[] { elevatedThreshold, lowThreshold, starvedThreshold };
+		_interval = interval;
+	}
+
+	/**
+	 * @return the pressure of the last measurement
+	 */
+	public Pressure pressure() {
+		return _pressure;
+	}
+
+	/**
+	 * @return whether the monitor gets notified by the VM instead of polling
+	 */
+	public synchronized boolean usesThresholds() {
+		return !_pools.isEmpty();
+	}
+
+	/**
+	 * Installs the thresholds, starts the monitor thread and makes this the shared monitor. Does
+	 * nothing if no threshold is set.
+	 */
+	public synchronized void start() {
+		if (_executor != null || !hasThresholds()) {
+			return;
+		}
+		_executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "ERXMemoryMonitor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			// the young pools support collection usage thresholds too, but only the tenured pools support
+			// usage thresholds, and what is left in them after a collection is what we are looking for
+			if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() && pool.isCollectionUsageThresholdSupported()) {
+				long max = maxForPool(pool);
+				long threshold = Long.MAX_VALUE;
+				for (BigDecimal value : _thresholds) {
+					if (value != null) {
+						threshold = Math.min(threshold, bytesForThreshold(value, max));
+					}
+				}
+				pool.setCollectionUsageThreshold(Math.max(1L, Math.min(threshold, max)));
+				_pools.add(pool);
+			}
+		}
+		if (_pools.isEmpty()) {
+			log.info("No heap pool supports collection usage thresholds, polling the heap every {} ms.", _interval);
+		}
+		else {
+			_listener = (notification, handback) -> notificationReceived(notification);
+			((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(_listener, null, null);
+			log.info("Watching the heap pools {}.", _pools);
+		}
+		_executor.scheduleWithFixedDelay(() -> {
+			try {
+				if (_pressure != Pressure.NONE || !usesThresholds()) {
+					update();
+				}
+			}
+			catch (Throwable t) {
+				log.error("Checking the memory failed.", t);
+			}
+		}, _interval, _interval, TimeUnit.MILLISECONDS);
+		_sharedInstance = this;
+	}
+
+	/**
+	 * Removes the listener and stops the monitor thread.
+	 */
+	public synchronized void stop() {
+		if (_executor == null) {
+			return;
+		}
+		if (_listener != null) {
+			try {
+				((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(_listener);
+			}
+			catch (ListenerNotFoundException e) {
+				// already gone
+			}
+			_listener = null;
+		}
+		_pools.clear();
+		_collectionUsed.clear();
+		_executor.shutdownNow();
+		_executor = null;
+		if (_sharedInstance == this) {
+			_sharedInstance = null;
+		}
+	}
+
+	private boolean hasThresholds() {
+		for (BigDecimal value : _thresholds) {
+			if (value != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void notificationReceived(Notification notification) {
+		if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+			// the listener runs on a thread of the VM, so only hand the work over
+			ScheduledThreadPoolExecutor executor = _executor;
+			if (executor != null) {
+				executor.execute(() -> {
+					try {
+						update();
+					}
+					catch (Throwable t) {
+						log.error("Checking the memory failed.", t);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Measures the heap and, if the pressure changed, tells the reclaimables and posts
+	 * {@link #MemoryPressureDidChangeNotification}. Called on the monitor thread.
+	 */
+	protected void update() {
+		Pressure pressure = measurePressure();
+		Pressure previous = _pressure;
+		if (pressure == previous) {
+			return;
+		}
+		_pressure = pressure;
+		if (pressure.compareTo(previous) > 0) {
+			log.warn("Memory pressure rose from {} to {}.", previous, pressure);
+			for (Reclaimable reclaimable : _reclaimables) {
+				try {
+					reclaimable.reclaimMemory(pressure);
+				}
+				catch (RuntimeException e) {
+					log.error("{} failed to reclaim memory.", reclaimable, e);
+				}
+			}
+		}
+		else {
+			log.info("Memory pressure dropped from {} to {}.", previous, pressure);
+		}
+		NSNotificationCenter.defaultCenter().postNotification(new NSNotification(MemoryPressureDidChangeNotification, pressure));
+	}
+
+	/**
+	 * @return the highest pressure whose threshold is passed by one of the pools after a collection, or
+	 *         right now if that is lower and there was no collection since the last measurement
+	 */
+	protected Pressure measurePressure() {
+		List<MemoryPoolMXBean> pools;
+		synchronized (this) {
+			pools = new ArrayList<>(_pools);
+		}
+		Pressure pressure = Pressure.NONE;
+		if (pools.isEmpty()) {
+			Runtime runtime = Runtime.getRuntime();
+			long max = runtime.maxMemory();
+			long used = runtime.totalMemory() - runtime.freeMemory();
+			pressure = pressureForUsage(used, max);
+		}
+		else {
+			for (MemoryPoolMXBean pool : pools) {
+				MemoryUsage usage = pool.getCollectionUsage();
+				if (usage != null) {
+					long max = maxForPool(pool);
+					Pressure poolPressure = pressureForUsage(usage.getUsed(), max);
+					Long previousUsed = _collectionUsed.put(pool.getName(), Long.valueOf(usage.getUsed()));
+					if (poolPressure != Pressure.NONE && _pressure != Pressure.NONE && previousUsed != null && previousUsed.longValue() == usage.getUsed()) {
+						// no collection that updates the collection usage since the last measurement
+						Pressure currentPressure = pressureForUsage(pool.getUsage().getUsed(), max);
+						if (currentPressure.compareTo(poolPressure) < 0) {
+							poolPressure = currentPressure;
+						}
+					}
+					if (poolPressure.compareTo(pressure) > 0) {
+						pressure = poolPressure;
+					}
+				}
+			}
+		}
+		return pressure;
+	}
+
+	/**
+	 * @param used the used bytes
+	 * @param max the bytes that can be used at most
+	 * @return the highest pressure whose threshold the used bytes are above
+	 */
+	protected Pressure pressureForUsage(long used, long max) {
+		Pressure[] levels = Pressure.values();
+		for (int i = _thresholds.length - 1; i >= 0; i--) {
+			BigDecimal value = _thresholds[i];
+			if (value != null && used > bytesForThreshold(value, max)) {
+				return levels[i + 1];
+			}
+		}
+		return Pressure.NONE;
+	}
+
+	private static long maxForPool(MemoryPoolMXBean pool) {
+		long max = pool.getUsage().getMax();
+		return max > 0L ? max : Runtime.getRuntime().maxMemory();
+	}
+
+	/**
+	 * @param value a threshold, a fraction of max below 1.0, otherwise the number of MB that have to stay free
+	 * @param max the bytes that can be used at most
+	 * @return the used bytes the threshold is at
+	 */
+	protected static long bytesForThreshold(BigDecimal value, long max) {
+		double threshold = value.doubleValue();
+		return (long) (threshold < 1.0 ? threshold * max : max - threshold * 1024 * 1024);
+	}
+
+	@Override
+	public String toString() {
+		return "<" + getClass().getSimpleName() + " pressure: " + _pressure + " usesThresholds: " + usesThresholds() + ">";
+	}
+}
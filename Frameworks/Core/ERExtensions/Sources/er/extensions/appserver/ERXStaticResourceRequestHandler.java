@@ -1,5 +1,6 @@
 package er.extensions.appserver;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -8,6 +9,19 @@ import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.lang3.CharEncoding;
 import org.slf4j.Logger;
@@ -21,15 +35,43 @@ import com.webobjects.appserver.WOResourceManager;
 import com.webobjects.appserver.WOResponse;
 import com.webobjects.appserver._private.WODeployedBundle;
 import com.webobjects.foundation.NSBundle;
+import com.webobjects.foundation.NSData;
 import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSForwardException;
+import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSNotification;
 import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSRange;
+import com.webobjects.foundation.NSSelector;
 
+import er.extensions.eof.ERXConstant;
 import er.extensions.foundation.ERXDictionaryUtilities;
+import er.extensions.foundation.ERXFileNotificationCenter;
 import er.extensions.foundation.ERXProperties;
+import er.extensions.foundation.ERXStringUtilities;
 
 /**
  * Simple static resource request handler. Allows for better debugging 
  * and you can set the document root via the system property <code>WODocumentRoot</code>.
+ * <p>
+ * If <code>er.extensions.ERXStaticResourceRequestHandler.cacheEnabled</code> is set, the
+ * resources are kept in a cache that is bounded by size and evicts the least recently used
+ * resources first. Small files are read onto the heap, larger ones are memory-mapped and
+ * files larger than <code>maxMappedBytes</code> are streamed as before. Text and the
+ * responseCompressionTypes of ERXApplication are gzipped once when they are loaded. The gzipped
+ * variant is kept on the heap, also for mapped files, unless it is larger than <code>maxBytes</code>,
+ * in which case the file is sent uncompressed. Cached
+ * resources get a strong ETag and a Last-Modified header, conditional requests are answered
+ * with 304 and single byte ranges with 206. The cache registers every file with the
+ * {@link ERXFileNotificationCenter} and drops it when it changes, so set
+ * <code>er.extensions.ERXFileNotificationCenter.CheckFilesPeriod</code> in deployment if the
+ * files can change while the application is running.
+ * 
+ * @property er.extensions.ERXStaticResourceRequestHandler.cacheEnabled whether to cache the resources (defaults to false)
+ * @property er.extensions.ERXStaticResourceRequestHandler.maxBytes the maximum number of heap bytes the cache holds (defaults to 32MB)
+ * @property er.extensions.ERXStaticResourceRequestHandler.maxMappedBytes the maximum number of bytes the cache maps (defaults to 256MB)
+ * @property er.extensions.ERXStaticResourceRequestHandler.mappedThreshold the size from which on files are mapped instead of read (defaults to 1MB)
+ * 
  * @author ak
  */
 public class ERXStaticResourceRequestHandler extends WORequestHandler {
@@ -40,11 +82,42 @@ public class ERXStaticResourceRequestHandler extends WORequestHandler {
 	private String _documentRoot;
 	
 	private boolean _useRequestHandlerPath;
-	
+
+	private static final long[] UNSATISFIABLE_RANGE = new long[0];
+
+	private final boolean _cacheEnabled = ERXProperties.booleanForKeyWithDefault("er.extensions.ERXStaticResourceRequestHandler.cacheEnabled", false);
+	private final long _maxBytes = ERXProperties.longForKeyWithDefault("er.extensions.ERXStaticResourceRequestHandler.maxBytes", 32L * 1024L * 1024L);
+	private final long _maxMappedBytes = ERXProperties.longForKeyWithDefault("er.extensions.ERXStaticResourceRequestHandler.maxMappedBytes", 256L * 1024L * 1024L);
+	private final long _mappedThreshold = ERXProperties.longForKeyWithDefault("er.extensions.ERXStaticResourceRequestHandler.mappedThreshold", 1024L * 1024L);
+
+	/**
+	 * The cached resources by absolute path in access order, guarded by itself.
+	 */
+	private final Map<String, Resource> _cache = new LinkedHashMap<>(64, 0.75f, true);
+	private final Set<String> _observedPaths = new HashSet<>();
+	private long _bytes;
+	private long _mappedBytes;
+
+	private final LongAdder _hits = new LongAdder();
+	private final LongAdder _misses = new LongAdder();
+	private final LongAdder _notModified = new LongAdder();
+	private final LongAdder _partial = new LongAdder();
+	private final LongAdder _evictions = new LongAdder();
+	private final LongAdder _invalidations = new LongAdder();
+
 	public ERXStaticResourceRequestHandler() {
 		_documentRoot = null;
 	}
 
+	/**
+	 * Creates a static resource handler that serves the files below the given directory.
+	 * 
+	 * @param documentRoot the directory to serve the files from
+	 */
+	public ERXStaticResourceRequestHandler(File documentRoot) {
+		_documentRoot = documentRoot.getAbsolutePath();
+	}
+
 	/**
 	 * Creates a static resource handler for the given framework, which gives you
 	 * nicer relative URLs to work with.  For instance, you could register a request
@@ -150,36 +223,47 @@ public class ERXStaticResourceRequestHandler extends WORequestHandler {
 			}
 			
 			String path = sb.toString();
+			int queryIndex = path.indexOf('?');
+			if (queryIndex >= 0) {
+				path = path.substring(0, queryIndex);
+			}
 			try {
-				path = path.replaceAll("\\?.*", "");
-				if (request.userInfo() != null && !request.userInfo().containsKey("HttpServletRequest")) {
+				if (request.userInfo() != null && !request.userInfo().containsKey("HttpServletRequest") && (path.indexOf('%') >= 0 || path.indexOf('+') >= 0)) {
 					/* PATH_INFO is already decoded by the servlet container */
 					path = path.replace('+', ' ');
 					path = URLDecoder.decode(path, CharEncoding.UTF_8);
 				}
 
-				file = new File(path);
+				if (_cacheEnabled) {
+					Resource resource = resourceForPath(path);
+					if (resource != null) {
+						response = responseForResource(request, resource);
+					}
+				}
+				if (response == null) {
+					file = new File(path);
 
-				if(path.startsWith("jar:"))
-				{
-					URLConnection uc = new URL(path).openConnection();
-					if(uc instanceof JarURLConnection)
+					if(path.startsWith("jar:"))
 					{
-						length = (int)uc.getContentLengthLong();
+						URLConnection uc = new URL(path).openConnection();
+						if(uc instanceof JarURLConnection)
+						{
+							length = (int)uc.getContentLengthLong();
+						} else
+						{
+							length = -1;						
+						}
+						is = uc.getInputStream();
+						
 					} else
 					{
-						length = -1;						
+						length = (int) file.length();
+						is = new FileInputStream(file);
 					}
-					is = uc.getInputStream();
 					
-				} else
-				{
-					length = (int) file.length();
-					is = new FileInputStream(file);
-				}
-				
-				contentType = rm.contentTypeForResourceNamed(path);
-				log.debug("Reading file '{}' for uri: {}", file, uri);
+					contentType = rm.contentTypeForResourceNamed(path);
+					log.debug("Reading file '{}' for uri: {}", file, uri);
+				}
 			} catch (IOException ex) {
 				if (!uri.toLowerCase().endsWith("/favicon.ico")) {
 					log.info("Unable to get contents of file '{}' for uri: {}", file, uri);
@@ -188,9 +272,443 @@ public class ERXStaticResourceRequestHandler extends WORequestHandler {
 		} else {
 			log.error("Can't fetch relative path: {}", uri);
 		}
-		response = _generateResponseForInputStream(is, length, contentType);
+		if (response == null) {
+			response = _generateResponseForInputStream(is, length, contentType);
+		}
 		NSNotificationCenter.defaultCenter().postNotification(WORequestHandler.DidHandleRequestNotification, response);
 		response._finalizeInContext(null);
 		return response;
 	}
+
+	/**
+	 * Returns the cached resource for the given path, loading it if it is not cached yet.
+	 * 
+	 * @param path the path of a file or a jar: URL
+	 * @return the resource or <code>null</code> if it can't be cached
+	 */
+	protected Resource resourceForPath(String path) {
+		boolean isJar = path.startsWith("jar:");
+		String key = isJar ? path : new File(path).getAbsolutePath();
+		Resource resource;
+		synchronized (_cache) {
+			resource = _cache.get(key);
+		}
+		if (resource != null) {
+			_hits.increment();
+			return resource;
+		}
+		_misses.increment();
+		try {
+			resource = isJar ? loadJarResource(key) : loadFileResource(key);
+		}
+		catch (IOException e) {
+			log.debug("Unable to cache '{}'.", path, e);
+			return null;
+		}
+		if (resource != null) {
+			storeResource(resource);
+		}
+		return resource;
+	}
+
+	private Resource loadFileResource(String path) throws IOException {
+		File file = new File(path);
+		if (!file.isFile() || file.length() > Math.min(_maxMappedBytes, Integer.MAX_VALUE)) {
+			return null;
+		}
+		synchronized (_cache) {
+			// register before reading, so a change while we read is noticed
+			if (_observedPaths.add(path)) {
+				ERXFileNotificationCenter.defaultCenter().addObserver(this, new NSSelector("resourceDidChange", ERXConstant.NotificationClassArray), file);
+			}
+		}
+		long lastModified = file.lastModified();
+		if (file.length() > _mappedThreshold) {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				return new Resource(path, file, contentTypeForPath(path), lastModified, null, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), _maxBytes);
+			}
+		}
+		return new Resource(path, file, contentTypeForPath(path), lastModified, Files.readAllBytes(file.toPath()), null, _maxBytes);
+	}
+
+	private Resource loadJarResource(String path) throws IOException {
+		URLConnection uc = new URL(path).openConnection();
+		long length = uc.getContentLengthLong();
+		if (length < 0 || length > _mappedThreshold) {
+			return null;
+		}
+		ByteArrayOutputStream content = new ByteArrayOutputStream((int) length);
+		try (InputStream is = uc.getInputStream()) {
+			byte[] buffer = new byte[8192];
+			for (int read; (read = is.read(buffer)) != -1;) {
+				content.write(buffer, 0, read);
+			}
+		}
+		return new Resource(path, null, contentTypeForPath(path), uc.getLastModified(), content.toByteArray(), null, _maxBytes);
+	}
+
+	private String contentTypeForPath(String path) {
+		return application.resourceManager().contentTypeForResourceNamed(path);
+	}
+
+	private void storeResource(Resource resource) {
+		if (resource.size() > _maxBytes || resource.mappedSize() > _maxMappedBytes) {
+			return;
+		}
+		synchronized (_cache) {
+			Resource previous = _cache.put(resource.path, resource);
+			if (previous != null) {
+				_bytes -= previous.size();
+				_mappedBytes -= previous.mappedSize();
+			}
+			_bytes += resource.size();
+			_mappedBytes += resource.mappedSize();
+			for (Iterator<Resource> iterator = _cache.values().iterator(); (_bytes > _maxBytes || _mappedBytes > _maxMappedBytes) && iterator.hasNext();) {
+				Resource eldest = iterator.next();
+				iterator.remove();
+				_bytes -= eldest.size();
+				_mappedBytes -= eldest.mappedSize();
+				_evictions.increment();
+			}
+		}
+	}
+
+	/**
+	 * Drops the changed file from the cache. Called by the {@link ERXFileNotificationCenter}.
+	 * 
+	 * @param notification the notification with the changed file
+	 */
+	public void resourceDidChange(NSNotification notification) {
+		String path = ((File) notification.object()).getAbsolutePath();
+		synchronized (_cache) {
+			Resource resource = _cache.remove(path);
+			if (resource != null) {
+				_bytes -= resource.size();
+				_mappedBytes -= resource.mappedSize();
+				_invalidations.increment();
+			}
+		}
+		log.debug("Dropped changed file '{}' from the cache.", path);
+	}
+
+	/**
+	 * Empties the cache.
+	 */
+	public void flushCache() {
+		synchronized (_cache) {
+			_cache.clear();
+			_bytes = 0L;
+			_mappedBytes = 0L;
+		}
+	}
+
+	/**
+	 * Creates the response for a cached resource: a 304 if the request's validators match,
+	 * a 206 or 416 for a byte range, otherwise the content, gzipped if the client accepts it.
+	 * 
+	 * @param request the request
+	 * @param resource the cached resource
+	 * @return the response
+	 */
+	protected WOResponse responseForResource(WORequest request, Resource resource) {
+		long[] range = byteRangeForRequest(request, resource);
+		boolean gzip = range == null && resource.gzippedContent != null && acceptsGzip(request);
+		String eTag = gzip ? resource.gzippedETag : resource.eTag;
+		WOResponse response = application.createResponseInContext(null);
+		response.setHeader(eTag, "etag");
+		if (resource.lastModified > 0L) {
+			response.setHeader(ERXWOResponseCache.formatHttpDate(resource.lastModified), "last-modified");
+		}
+		response.setHeader("bytes", "accept-ranges");
+		if (resource.gzippedContent != null) {
+			response.setHeader("accept-encoding", "vary");
+		}
+		if (isNotModified(request, resource, eTag)) {
+			_notModified.increment();
+			response.setStatus(304);
+			return response;
+		}
+		if (resource.contentType != null) {
+			response.setHeader(resource.contentType, "content-type");
+		}
+		if (range == UNSATISFIABLE_RANGE) {
+			response.setStatus(416);
+			response.setHeader("bytes */" + resource.length, "content-range");
+			response.setHeader("0", "content-length");
+			return response;
+		}
+		if (gzip) {
+			response.setHeader("gzip", "content-encoding");
+			response.setContent(new NSData(resource.gzippedContent, new NSRange(0, resource.gzippedContent.length), true));
+			response.setHeader(String.valueOf(resource.gzippedContent.length), "content-length");
+			return response;
+		}
+		long first = 0L;
+		long length = resource.length;
+		if (range != null) {
+			_partial.increment();
+			first = range[0];
+			length = range[1] - range[0] + 1;
+			response.setStatus(206);
+			response.setHeader("bytes " + range[0] + "-" + range[1] + "/" + resource.length, "content-range");
+		}
+		if (resource.content != null) {
+			response.setContent(new NSData(resource.content, new NSRange((int) first, (int) length), true));
+		}
+		else if (length > 0) {
+			ByteBuffer content = resource.mappedContent.duplicate();
+			content.position((int) first);
+			content.limit((int) (first + length));
+			response.setContentStream(new ByteBufferInputStream(content), 50*1024, length);
+		}
+		response.setHeader(String.valueOf(length), "content-length");
+		return response;
+	}
+
+	private static boolean isNotModified(WORequest request, Resource resource, String eTag) {
+		String ifNoneMatch = request.headerForKey("if-none-match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if ("*".equals(tag) || eTag.equals(tag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		String ifModifiedSince = request.headerForKey("if-modified-since");
+		if (ifModifiedSince != null && resource.lastModified > 0L) {
+			long date = ERXWOResponseCache.parseHttpDate(ifModifiedSince);
+			return date >= 0L && resource.lastModified / 1000L <= date / 1000L;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the first and last byte of the range the request asks for, <code>null</code> if
+	 * the whole resource should be sent and an empty array if the range can't be satisfied.
+	 * Only single ranges are supported, requests for several ranges get the whole resource.
+	 * 
+	 * @param request the request
+	 * @param resource the requested resource
+	 * @return the byte range
+	 */
+	protected long[] byteRangeForRequest(WORequest request, Resource resource) {
+		String range = request.headerForKey("range");
+		if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+			return null;
+		}
+		String ifRange = request.headerForKey("if-range");
+		if (ifRange != null) {
+			ifRange = ifRange.trim();
+			if (ifRange.startsWith("\"")) {
+				if (!ifRange.equals(resource.eTag)) {
+					return null;
+				}
+			}
+			else {
+				long date = ERXWOResponseCache.parseHttpDate(ifRange);
+				if (date < 0L || resource.lastModified / 1000L > date / 1000L) {
+					return null;
+				}
+			}
+		}
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		try {
+			long first;
+			long last = resource.length - 1;
+			if (dash == 0) {
+				long suffixLength = Long.parseLong(spec.substring(1).trim());
+				if (suffixLength <= 0L) {
+					return UNSATISFIABLE_RANGE;
+				}
+				first = Math.max(0L, resource.length - suffixLength);
+			}
+			else {
+				first = Long.parseLong(spec.substring(0, dash).trim());
+				String lastByte = spec.substring(dash + 1).trim();
+				if (lastByte.length() > 0) {
+					long lastBytePosition = Long.parseLong(lastByte);
+					if (lastBytePosition < first) {
+						return null;
+					}
+					last = Math.min(last, lastBytePosition);
+				}
+			}
+			if (first >= resource.length) {
+				return UNSATISFIABLE_RANGE;
+			}
+			return new long[] { first, last };
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static boolean acceptsGzip(WORequest request) {
+		String acceptEncoding = request.headerForKey("accept-encoding");
+		return acceptEncoding != null && acceptEncoding.toLowerCase().indexOf("gzip") != -1;
+	}
+
+	private static boolean isCompressible(String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		if (contentType.startsWith("text/")) {
+			return true;
+		}
+		WOApplication application = WOApplication.application();
+		if (application instanceof ERXApplication) {
+			int parametersIndex = contentType.indexOf(';');
+			String mimeType = parametersIndex < 0 ? contentType : contentType.substring(0, parametersIndex).trim();
+			return ((ERXApplication) application).responseCompressionTypes().containsObject(mimeType);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the hits, misses, 304 and 206 responses, evictions, invalidations and the bytes held by the cache.
+	 * 
+	 * @return the statistics of the cache
+	 */
+	public NSDictionary<String, Object> statistics() {
+		NSMutableDictionary<String, Object> statistics = new NSMutableDictionary<>();
+		synchronized (_cache) {
+			statistics.setObjectForKey(Integer.valueOf(_cache.size()), "entries");
+			statistics.setObjectForKey(Long.valueOf(_bytes), "bytes");
+			statistics.setObjectForKey(Long.valueOf(_mappedBytes), "mappedBytes");
+		}
+		statistics.setObjectForKey(Long.valueOf(_hits.sum()), "hits");
+		statistics.setObjectForKey(Long.valueOf(_misses.sum()), "misses");
+		statistics.setObjectForKey(Long.valueOf(_notModified.sum()), "notModified");
+		statistics.setObjectForKey(Long.valueOf(_partial.sum()), "partial");
+		statistics.setObjectForKey(Long.valueOf(_evictions.sum()), "evictions");
+		statistics.setObjectForKey(Long.valueOf(_invalidations.sum()), "invalidations");
+		return statistics;
+	}
+
+	/**
+	 * An immutable cached resource. The content is either on the heap or mapped, the gzipped
+	 * variant is always on the heap.
+	 */
+	protected static class Resource {
+		final String path;
+		final File file;
+		final String contentType;
+		final long lastModified;
+		final long length;
+		final byte[] content;
+		final ByteBuffer mappedContent;
+		final byte[] gzippedContent;
+		final String eTag;
+		final String gzippedETag;
+
+		Resource(String path, File file, String contentType, long lastModified, byte[] content, ByteBuffer mappedContent, long maxGzippedBytes) {
+			this.path = path;
+			this.file = file;
+			this.contentType = contentType;
+			this.lastModified = lastModified;
+			this.content = content;
+			this.mappedContent = mappedContent;
+			length = content != null ? content.length : mappedContent.capacity();
+			try {
+				MessageDigest digest = MessageDigest.getInstance("MD5");
+				if (content != null) {
+					digest.update(content);
+				}
+				else {
+					digest.update(mappedContent.duplicate());
+				}
+				String hash = ERXStringUtilities.byteArrayToHexString(digest.digest());
+				eTag = "\"" + hash + "\"";
+				gzippedETag = "\"" + hash + "-gzip\"";
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw NSForwardException._runtimeExceptionForThrowable(e);
+			}
+			gzippedContent = isCompressible(contentType) && length > 0 ? gzip(content != null ? ByteBuffer.wrap(content) : mappedContent.duplicate(), maxGzippedBytes) : null;
+		}
+
+		/**
+		 * @return the gzipped content or null if it isn't smaller than the content or larger than maxBytes
+		 */
+		private byte[] gzip(ByteBuffer source, long maxBytes) {
+			long limit = Math.min(length - 1L, maxBytes);
+			ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+			try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+				byte[] buffer = new byte[8192];
+				while (source.hasRemaining()) {
+					int count = Math.min(buffer.length, source.remaining());
+					source.get(buffer, 0, count);
+					out.write(buffer, 0, count);
+					if (gzipped.size() > limit) {
+						break;
+					}
+				}
+			}
+			catch (IOException e) {
+				log.warn("Unable to gzip '{}', sending it uncompressed.", path, e);
+				return null;
+			}
+			if (gzipped.size() > limit) {
+				if (length - 1L > maxBytes) {
+					log.info("Sending '{}' uncompressed, it doesn't fit into maxBytes when gzipped.", path);
+				}
+				return null;
+			}
+			return gzipped.toByteArray();
+		}
+
+		/**
+		 * @return the number of heap bytes held by this resource
+		 */
+		long size() {
+			return (content != null ? content.length : 0L) + (gzippedContent != null ? gzippedContent.length : 0L);
+		}
+
+		/**
+		 * @return the number of mapped bytes held by this resource
+		 */
+		long mappedSize() {
+			return mappedContent != null ? mappedContent.capacity() : 0L;
+		}
+	}
+
+	/**
+	 * Streams the remaining bytes of a buffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer _buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			_buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return _buffer.hasRemaining() ? _buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (!_buffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(length, _buffer.remaining());
+			_buffer.get(bytes, offset, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return _buffer.remaining();
+		}
+	}
 }
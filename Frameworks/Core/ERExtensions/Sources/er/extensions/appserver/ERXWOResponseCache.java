@@ -6,16 +6,35 @@
 //
 package er.extensions.appserver;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.webobjects.appserver.WOApplication;
+import com.webobjects.appserver.WOCookie;
 import com.webobjects.appserver.WORequest;
 import com.webobjects.appserver.WOResponse;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSData;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSForwardException;
+import com.webobjects.foundation.NSMutableDictionary;
 
+import er.extensions.foundation.ERXCompressionUtilities;
 import er.extensions.foundation.ERXMultiKey;
 import er.extensions.foundation.ERXProperties;
+import er.extensions.foundation.ERXStringUtilities;
 
 /**
  * The response cache is a way to cache WOResponse output from a DirectAction
@@ -47,10 +66,25 @@ import er.extensions.foundation.ERXProperties;
 }
 </code></pre>
 You must also set the default <code>er.extensions.ERXWOResponseCache.Enabled=true</code> for the cache to get used.
+ * <p>
+ * The cache holds copies of the responses, not the responses themselves, and hands out a new response for every
+ * hit. It is bounded by the total size of the cached content: when <code>er.extensions.ERXWOResponseCache.maxBytes</code>
+ * is exceeded, the least recently used responses are evicted. Responses expire after
+ * <code>er.extensions.ERXWOResponseCache.timeToLive</code> seconds, which a single action can override by setting the
+ * {@link #TIME_TO_LIVE_KEY} header in its response.
+ * <p>
+ * Cached responses with status 200 get an ETag and a Last-Modified header (unless the action already set them), and
+ * requests with a matching If-None-Match or If-Modified-Since header are answered with a 304 without touching the
+ * content. If <code>er.extensions.ERXWOResponseCache.storeGzippedContent</code> is set, compressible content is also
+ * stored gzipped and sent as is to clients that accept it, so it is compressed once instead of for every request.
  * 
  * @property er.extensions.ERXWOResponseCache.Enabled
+ * @property er.extensions.ERXWOResponseCache.maxBytes the maximum size of the cached content in bytes, 0 for no limit (defaults to 16MB)
+ * @property er.extensions.ERXWOResponseCache.timeToLive the number of seconds a response is cached, 0 to cache it until it is evicted (defaults to 0)
+ * @property er.extensions.ERXWOResponseCache.storeGzippedContent whether to also store gzipped content for clients that accept it (defaults to false)
  */
-public class ERXWOResponseCache {
+public class ERXWOResponseCache implements ERXMemoryMonitor.Reclaimable {
+    private static final Logger log = LoggerFactory.getLogger(ERXWOResponseCache.class);
 
     /**
      * Holds a reference to the shared instance
@@ -62,6 +96,14 @@ public class ERXWOResponseCache {
      */
     public static String NO_CACHE_KEY = "ERXDirectActionRequestHandler.DontCache";
 
+    /**
+     * Header key you can set in the response to the number of seconds it should be cached, overriding
+     * <code>er.extensions.ERXWOResponseCache.timeToLive</code>.
+     */
+    public static String TIME_TO_LIVE_KEY = "ERXWOResponseCache.TimeToLive";
+
+    private static final DateTimeFormatter HTTP_DATE_FORMATTER = DateTimeFormatter.RFC_1123_DATE_TIME;
+
     /**
      * Gets the shared instance
      * @return the shared instance
@@ -69,6 +111,7 @@ public class ERXWOResponseCache {
     public static ERXWOResponseCache sharedInstance() {
         if (sharedInstance == null) {
             sharedInstance = new ERXWOResponseCache();
+            ERXMemoryMonitor.register(sharedInstance);
         }
         return sharedInstance;
     }
@@ -81,20 +124,201 @@ public class ERXWOResponseCache {
 
     public static interface Cacheable {
     }
-    
-    protected Map cache;
+
+    /**
+     * An immutable copy of a cached response.
+     */
+    public static class Entry {
+        private final int _status;
+        private final String _httpVersion;
+        private final NSDictionary<String, NSArray<String>> _headers;
+        private final NSArray<WOCookie> _cookies;
+        private final String _contentEncoding;
+        private final NSData _content;
+        private final NSData _gzippedContent;
+        private final String _eTag;
+        private final long _lastModified;
+        private final long _expirationTime;
+        private final long _size;
+
+        public Entry(WOResponse response, NSData content, NSData gzippedContent, String eTag, long lastModified, long expirationTime) {
+            _status = response.status();
+            _httpVersion = response.httpVersion();
+            NSMutableDictionary<String, NSArray<String>> headers = new NSMutableDictionary<>(response.headers());
+            headers.removeObjectForKey("content-length");
+            if (gzippedContent != null) {
+                NSArray<String> vary = headers.objectForKey("vary");
+                headers.setObjectForKey(vary == null ? new NSArray<>("accept-encoding") : vary.arrayByAddingObject("accept-encoding"), "vary");
+            }
+            _headers = headers.immutableClone();
+            _cookies = response.cookies().immutableClone();
+            _contentEncoding = response.contentEncoding();
+            _content = content;
+            _gzippedContent = gzippedContent;
+            _eTag = eTag;
+            _lastModified = lastModified;
+            _expirationTime = expirationTime;
+
+            long size = 256L + content.length() + (gzippedContent == null ? 0 : gzippedContent.length());
+            for (Map.Entry<String, NSArray<String>> header : _headers.entrySet()) {
+                size += 32L + 2L * header.getKey().length();
+                for (String value : header.getValue()) {
+                    size += 2L * value.length();
+                }
+            }
+            _size = size;
+        }
+
+        public int status() {
+            return _status;
+        }
+
+        public NSData content() {
+            return _content;
+        }
+
+        public NSData gzippedContent() {
+            return _gzippedContent;
+        }
+
+        public String eTag() {
+            return _eTag;
+        }
+
+        /**
+         * Returns the ETag of the gzipped content, which is a different representation than the plain content and
+         * therefore gets a different tag.
+         * 
+         * @return the ETag of the gzipped content
+         */
+        public String gzippedETag() {
+            if (_eTag == null || _gzippedContent == null) {
+                return null;
+            }
+            return _eTag.endsWith("\"") ? _eTag.substring(0, _eTag.length() - 1) + "-gzip\"" : _eTag + "-gzip";
+        }
+
+        public long lastModified() {
+            return _lastModified;
+        }
+
+        public boolean isExpired(long now) {
+            return _expirationTime > 0L && now >= _expirationTime;
+        }
+
+        /**
+         * Returns the approximate number of bytes this entry holds.
+         * 
+         * @return the size of the entry
+         */
+        public long size() {
+            return _size;
+        }
+
+        /**
+         * Returns whether the client that sent the request already has this response, that is, whether one of the
+         * tags in If-None-Match matches or, if there is no If-None-Match header, whether the response was not
+         * modified after If-Modified-Since.
+         * 
+         * @param request the request to check
+         * @return true if a 304 can be sent instead of the response
+         */
+        public boolean isNotModifiedForRequest(WORequest request) {
+            if (_status != 200 || _eTag == null) {
+                return false;
+            }
+            String ifNoneMatch = request.headerForKey("if-none-match");
+            if (ifNoneMatch != null) {
+                String eTag = opaqueTag(_eTag);
+                String gzippedETag = opaqueTag(gzippedETag());
+                for (String tag : ifNoneMatch.split(",")) {
+                    tag = opaqueTag(tag.trim());
+                    if ("*".equals(tag) || tag.equals(eTag) || tag.equals(gzippedETag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            String ifModifiedSince = request.headerForKey("if-modified-since");
+            if (ifModifiedSince != null) {
+                long since = parseHttpDate(ifModifiedSince);
+                return since >= 0L && _lastModified <= since;
+            }
+            return false;
+        }
+
+        /**
+         * Creates a new response with the cached status, headers, cookies and content.
+         * 
+         * @param gzip whether to send the gzipped content if there is one
+         * @return a new response
+         */
+        public WOResponse response(boolean gzip) {
+            WOResponse response = new ERXResponse();
+            response.setStatus(_status);
+            response.setHTTPVersion(_httpVersion);
+            response.setHeaders(_headers);
+            response.setContentEncoding(_contentEncoding);
+            for (WOCookie cookie : _cookies) {
+                response.addCookie(cookie);
+            }
+            NSData content = _content;
+            if (gzip && _gzippedContent != null) {
+                content = _gzippedContent;
+                response.setHeader("gzip", "content-encoding");
+                response.setHeader(gzippedETag(), "etag");
+            }
+            response.setContent(content);
+            response.setHeader(String.valueOf(content.length()), "content-length");
+            return response;
+        }
+
+        /**
+         * Creates a 304 response with the validators and caching headers of the cached response.
+         * 
+         * @return a new 304 response
+         */
+        public WOResponse notModifiedResponse() {
+            WOResponse response = new ERXResponse();
+            response.setStatus(304);
+            response.setHTTPVersion(_httpVersion);
+            for (String key : new String[] { "etag", "last-modified", "cache-control", "expires", "vary" }) {
+                NSArray<String> values = _headers.objectForKey(key);
+                if (values != null) {
+                    response.setHeaders(values, key);
+                }
+            }
+            return response;
+        }
+
+        private static String opaqueTag(String tag) {
+            return (tag != null && tag.startsWith("W/")) ? tag.substring(2) : tag;
+        }
+    }
+
+    protected Map<ERXMultiKey, Entry> cache;
 
     protected Policy policy;
 
     protected Boolean isEnabled;
-    
+
+    private long _maxBytes;
+    private long _timeToLive;
+    private boolean _storeGzippedContent;
+    private long _bytes;
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private final LongAdder _notModified = new LongAdder();
+    private final LongAdder _stores = new LongAdder();
+    private final LongAdder _evictions = new LongAdder();
+    private final LongAdder _expirations = new LongAdder();
+
     public ERXWOResponseCache() {
         super();
-        if (WOApplication.application().isConcurrentRequestHandlingEnabled()) {
-            cache = Collections.synchronizedMap(new HashMap());
-        } else {
-            cache = new HashMap();
-        }
+        cache = new LinkedHashMap<>(16, 0.75f, true);
+        _maxBytes = ERXProperties.longForKeyWithDefault("er.extensions.ERXWOResponseCache.maxBytes", 16L * 1024L * 1024L);
+        _timeToLive = ERXProperties.longForKeyWithDefault("er.extensions.ERXWOResponseCache.timeToLive", 0L) * 1000L;
+        _storeGzippedContent = ERXProperties.booleanForKeyWithDefault("er.extensions.ERXWOResponseCache.storeGzippedContent", false);
     }
 
     public boolean isEnabled() {
@@ -124,8 +348,36 @@ public class ERXWOResponseCache {
         return hasPolicy() ? policy().actionNameIsCachableForClass(actionClass, actionName) : false;
     }
 
+    public long maxBytes() {
+        return _maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        _maxBytes = maxBytes;
+        evict();
+    }
+
+    public long timeToLive() {
+        return _timeToLive / 1000L;
+    }
+
+    public void setTimeToLive(long timeToLive) {
+        _timeToLive = timeToLive * 1000L;
+    }
+
+    public boolean storeGzippedContent() {
+        return _storeGzippedContent;
+    }
+
+    public void setStoreGzippedContent(boolean storeGzippedContent) {
+        _storeGzippedContent = storeGzippedContent;
+    }
+
     public void flushCache() {
-        cache.clear();
+        synchronized (cache) {
+            cache.clear();
+            _bytes = 0L;
+        }
     }
     
     public WOResponse cachedResponseForRequest(Class actionClass, String actionName, WORequest request) {
@@ -133,17 +385,252 @@ public class ERXWOResponseCache {
             flushCache();
         }
         ERXMultiKey cacheKey = policy().cacheKeyForRequest(actionClass, actionName, request);
-        return cacheKey != null ? (WOResponse)cache.get(cacheKey) : null;
+        if (cacheKey == null) {
+            return null;
+        }
+        Entry entry = entryForKey(cacheKey);
+        if (entry == null) {
+            _misses.increment();
+            return null;
+        }
+        _hits.increment();
+        if (entry.isNotModifiedForRequest(request)) {
+            _notModified.increment();
+            return entry.notModifiedResponse();
+        }
+        return entry.response(acceptsGzip(request));
     }
 
     public void cacheResponseForRequest(Class actionClass, String actionName, WORequest request, WOResponse response) {
         if(response.headerForKey(NO_CACHE_KEY) == null) {
             ERXMultiKey cacheKey = policy().cacheKeyForRequest(actionClass, actionName, request);
             if (cacheKey != null) {
-                cache.put(cacheKey, response);
+                Entry entry = entryForResponse(response);
+                if (entry != null) {
+                    storeEntry(cacheKey, entry);
+                }
             }
         } else {
             response.removeHeadersForKey(NO_CACHE_KEY);
         }
+        response.removeHeadersForKey(TIME_TO_LIVE_KEY);
+    }
+
+    /**
+     * Returns the unexpired entry for the given key and marks it as recently used.
+     * 
+     * @param cacheKey the key of the entry
+     * @return the entry or null
+     */
+    protected Entry entryForKey(ERXMultiKey cacheKey) {
+        synchronized (cache) {
+            Entry entry = cache.get(cacheKey);
+            if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+                cache.remove(cacheKey);
+                _bytes -= entry.size();
+                _expirations.increment();
+                entry = null;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Creates the cache entry for a response, adding the ETag and Last-Modified headers to the response if it
+     * has status 200. Returns null for responses that can't be cached, which are the ones with a content stream.
+     * 
+     * @param response the response to cache
+     * @return the cache entry or null
+     */
+    protected Entry entryForResponse(WOResponse response) {
+        if (response.contentInputStream() != null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        long timeToLive = _timeToLive;
+        String timeToLiveStr = response.headerForKey(TIME_TO_LIVE_KEY);
+        if (timeToLiveStr != null) {
+            response.removeHeadersForKey(TIME_TO_LIVE_KEY);
+            try {
+                timeToLive = Long.parseLong(timeToLiveStr.trim()) * 1000L;
+            }
+            catch (NumberFormatException e) {
+                log.warn("Ignoring invalid {} header '{}'.", TIME_TO_LIVE_KEY, timeToLiveStr);
+            }
+        }
+
+        NSData content = new NSData(response.content());
+        String eTag = null;
+        long lastModified = 0L;
+        if (response.status() == 200) {
+            eTag = response.headerForKey("etag");
+            if (eTag == null) {
+                eTag = eTagForContent(content);
+                response.setHeader(eTag, "etag");
+            }
+            String lastModifiedStr = response.headerForKey("last-modified");
+            lastModified = lastModifiedStr == null ? -1L : parseHttpDate(lastModifiedStr);
+            if (lastModified < 0L) {
+                lastModified = now / 1000L * 1000L;
+                response.setHeader(formatHttpDate(lastModified), "last-modified");
+            }
+        }
+
+        NSData gzippedContent = null;
+        if (_storeGzippedContent && content.length() > 0 && response.headerForKey("content-encoding") == null && isCompressible(response.headerForKey("content-type"))) {
+            gzippedContent = ERXCompressionUtilities.gzipByteArrayAsNSData(content._bytesNoCopy(), 0, content.length());
+            if (gzippedContent != null && gzippedContent.length() >= content.length()) {
+                gzippedContent = null;
+            }
+        }
+        return new Entry(response, content, gzippedContent, eTag, lastModified, timeToLive > 0L ? now + timeToLive : 0L);
+    }
+
+    /**
+     * Stores an entry and evicts the least recently used entries until the cache fits into maxBytes again. Entries
+     * larger than maxBytes are not stored at all.
+     * 
+     * @param cacheKey the key of the entry
+     * @param entry the entry to store
+     */
+    protected void storeEntry(ERXMultiKey cacheKey, Entry entry) {
+        if (_maxBytes > 0L && entry.size() > _maxBytes) {
+            log.debug("Not caching a response of {} bytes, which is more than the maximum of {} bytes.", entry.size(), _maxBytes);
+            return;
+        }
+        synchronized (cache) {
+            Entry previousEntry = cache.put(cacheKey, entry);
+            if (previousEntry != null) {
+                _bytes -= previousEntry.size();
+            }
+            _bytes += entry.size();
+        }
+        _stores.increment();
+        evict();
+    }
+
+    protected void evict() {
+        if (_maxBytes <= 0L) {
+            return;
+        }
+        evictToBytes(_maxBytes);
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache holds no more than the given number of bytes.
+     * 
+     * @param maxBytes the number of bytes to keep
+     */
+    protected void evictToBytes(long maxBytes) {
+        synchronized (cache) {
+            for (Iterator<Entry> entries = cache.values().iterator(); _bytes > maxBytes && entries.hasNext();) {
+                Entry eldestEntry = entries.next();
+                entries.remove();
+                _bytes -= eldestEntry.size();
+                _evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is down to the fraction of its size the pressure asks for.
+     */
+    public void reclaimMemory(ERXMemoryMonitor.Pressure pressure) {
+        long bytes;
+        synchronized (cache) {
+            bytes = _bytes;
+        }
+        evictToBytes((long) (bytes * pressure.retainedFraction()));
+    }
+
+    /**
+     * Returns whether content of the given type should be stored gzipped, which are text types and the
+     * responseCompressionTypes of ERXApplication.
+     * 
+     * @param contentType the content type of a response
+     * @return true if the content is worth compressing
+     */
+    protected boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        if (contentType.startsWith("text/")) {
+            return true;
+        }
+        WOApplication application = WOApplication.application();
+        if (application instanceof ERXApplication) {
+            int parametersIndex = contentType.indexOf(';');
+            String mimeType = parametersIndex < 0 ? contentType : contentType.substring(0, parametersIndex).trim();
+            return ((ERXApplication) application).responseCompressionTypes().containsObject(mimeType);
+        }
+        return false;
+    }
+
+    protected boolean acceptsGzip(WORequest request) {
+        String acceptEncoding = request.headerForKey("accept-encoding");
+        return acceptEncoding != null && acceptEncoding.toLowerCase().indexOf("gzip") != -1;
+    }
+
+    protected String eTagForContent(NSData content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(content._bytesNoCopy(), 0, content.length());
+            return "\"" + ERXStringUtilities.byteArrayToHexString(digest.digest()) + "\"";
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw NSForwardException._runtimeExceptionForThrowable(e);
+        }
+    }
+
+    /**
+     * Returns the number of bytes held by the cache.
+     * 
+     * @return the size of the cache
+     */
+    public long bytes() {
+        synchronized (cache) {
+            return _bytes;
+        }
+    }
+
+    /**
+     * Returns the hits, misses, 304 responses, evictions, expirations and the bytes held by this cache.
+     * 
+     * @return the statistics of this cache
+     */
+    public NSDictionary<String, Object> statistics() {
+        int entries;
+        long bytes;
+        synchronized (cache) {
+            entries = cache.size();
+            bytes = _bytes;
+        }
+        long hits = _hits.sum();
+        long misses = _misses.sum();
+        NSMutableDictionary<String, Object> statistics = new NSMutableDictionary<>();
+        statistics.setObjectForKey(Integer.valueOf(entries), "entries");
+        statistics.setObjectForKey(Long.valueOf(bytes), "bytes");
+        statistics.setObjectForKey(Long.valueOf(_maxBytes), "maxBytes");
+        statistics.setObjectForKey(Long.valueOf(hits), "hits");
+        statistics.setObjectForKey(Long.valueOf(misses), "misses");
+        statistics.setObjectForKey(Double.valueOf(hits + misses == 0L ? 0.0 : (double) hits / (hits + misses)), "hitRatio");
+        statistics.setObjectForKey(Long.valueOf(_notModified.sum()), "notModified");
+        statistics.setObjectForKey(Long.valueOf(_stores.sum()), "stores");
+        statistics.setObjectForKey(Long.valueOf(_evictions.sum()), "evictions");
+        statistics.setObjectForKey(Long.valueOf(_expirations.sum()), "expirations");
+        return statistics;
+    }
+
+    protected static String formatHttpDate(long time) {
+        return HTTP_DATE_FORMATTER.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneOffset.UTC));
+    }
+
+    protected static long parseHttpDate(String date) {
+        try {
+            return ZonedDateTime.parse(date.trim(), HTTP_DATE_FORMATTER).toInstant().toEpochMilli();
+        }
+        catch (DateTimeParseException e) {
+            return -1L;
+        }
     }
 }
@@ -5,6 +5,8 @@ import java.util.concurrent.FutureTask;
 
 import com.webobjects.foundation.NSKeyValueCoding;
 
+import er.extensions.foundation.ERXScopedContext;
+import er.extensions.foundation.ERXThreadStorage;
 import er.extensions.foundation.IERXStatus;
 
 /**
@@ -20,20 +22,40 @@ import er.extensions.foundation.IERXStatus;
    ERXExecutorService.executorService().execute(_future);
    </pre></blockquote>
  * 
+ * When <code>er.extensions.ERXThreadStorage.useScopedContext</code> is set, the task captures the
+ * {@link ERXThreadStorage} values of the thread that creates it and runs with them.
+ * 
  * @author kieran
  * @param <V> the result type returned by this ERXFutureTask's get method
  */
 public class ERXFutureTask<V> extends FutureTask<V> implements IERXExecutionStateTransition, IERXStatus, IERXPercentComplete, NSKeyValueCoding {
 	private final Object _task;
+	private final ERXScopedContext.Snapshot _context;
 
 	public ERXFutureTask(Callable<V> callable) {
 		super(callable);
 		_task = callable;
+		_context = ERXThreadStorage.useScopedContext() ? ERXThreadStorage.capture() : null;
 	}
 
 	public ERXFutureTask(Runnable runnable, V result) {
 		super(runnable, result);
 		_task = runnable;
+		_context = ERXThreadStorage.useScopedContext() ? ERXThreadStorage.capture() : null;
+	}
+
+	@Override
+	public void run() {
+		if (_context != null) {
+			_context.run(new Runnable() {
+				public void run() {
+					ERXFutureTask.super.run();
+				}
+			});
+		}
+		else {
+			super.run();
+		}
 	}
 
 	public Object task() {
@@ -14,6 +14,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import er.extensions.eof.ERXEC;
+import er.extensions.foundation.ERXScopedContext;
+import er.extensions.foundation.ERXThreadStorage;
 
 /**
  * This is a custom {@link ThreadPoolExecutor} subclass whose purpose in life is
@@ -21,6 +23,8 @@ import er.extensions.eof.ERXEC;
  * <li>to ensure that we initialize {@link ERXTaskThread} status before task execution and reset status after execution,
  * <li>use ERXFutureTask subclass of {@link FutureTask} so we have a reference to the wrapped task.
  * <li>tell ERXEC to unlock all editing contexts in the background thread at the end of task execution.
+ * <li>run tasks with the {@link ERXThreadStorage} values of the submitting thread when
+ * <code>er.extensions.ERXThreadStorage.useScopedContext</code> is set.
  * </ul>
  * 
  * <p>
@@ -62,6 +66,15 @@ public class ERXTaskThreadPoolExecutor extends ThreadPoolExecutor {
 		super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory, handler);
 	}
 	
+    @Override
+	public void execute(Runnable command) {
+		if (command != null && !(command instanceof ERXFutureTask) && ERXThreadStorage.useScopedContext()) {
+			// ERXFutureTask captures the context itself
+			command = new ScopedRunnable(ERXThreadStorage.capture(), command);
+		}
+		super.execute(command);
+	}
+
     @Override
 	public Future<?> submit(Runnable task) {
         if (task == null) throw new NullPointerException();
@@ -128,6 +141,9 @@ public class ERXTaskThreadPoolExecutor extends ThreadPoolExecutor {
 	}
 	
 	private boolean shouldUnlockContexts(Runnable r) {
+		if (r instanceof ScopedRunnable) {
+			r = ((ScopedRunnable) r).runnable;
+		}
 		if (r instanceof ERXFutureTask) {
 			Object task = ((ERXFutureTask)r).task();
 			if (task instanceof ERXTask || task instanceof ERXTimerTask) {
@@ -137,4 +153,38 @@ public class ERXTaskThreadPoolExecutor extends ThreadPoolExecutor {
 		}
 		return true;
 	}
+
+	/**
+	 * Runs a task that was passed to {@link #execute(Runnable)} with the context of the submitting thread.
+	 */
+	private static class ScopedRunnable implements Runnable, IERXExecutionStateTransition {
+		private final ERXScopedContext.Snapshot context;
+		private final Runnable runnable;
+
+		public ScopedRunnable(ERXScopedContext.Snapshot context, Runnable runnable) {
+			this.context = context;
+			this.runnable = runnable;
+		}
+
+		public void run() {
+			context.run(runnable);
+		}
+
+		public void beforeExecute() {
+			if (runnable instanceof IERXExecutionStateTransition) {
+				((IERXExecutionStateTransition) runnable).beforeExecute();
+			}
+		}
+
+		public void afterExecute() {
+			if (runnable instanceof IERXExecutionStateTransition) {
+				((IERXExecutionStateTransition) runnable).afterExecute();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return runnable.toString();
+		}
+	}
 }
@@ -1,32 +1,106 @@
 package er.extensions.eof;
 
 import java.util.Enumeration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.webobjects.eoaccess.EODatabase;
 import com.webobjects.eoaccess.EODatabaseContext;
 import com.webobjects.eoaccess.EOEntity;
 import com.webobjects.eoaccess.EORelationship;
 import com.webobjects.eoaccess.EOUtilities;
 import com.webobjects.eocontrol.EOEditingContext;
 import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.eocontrol.EOObjectStore;
 import com.webobjects.eocontrol.EOObjectStoreCoordinator;
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSForwardException;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSNotificationCenter;
 import com.webobjects.foundation.NSRange;
 
+import er.extensions.concurrency.ERXTaskThreadFactory;
+import er.extensions.concurrency.ERXTaskThreadPoolExecutor;
+import er.extensions.foundation.ERXProperties;
+import er.extensions.statistics.ERXStats;
+
 /**
  * ERXBatchFetchUtilities provides a collection of methods to support efficiently 
  * batch fetching arbitrarily deep keypaths on EOs.
+ * <p>
+ * Independent top level keypaths (like <code>customer</code>, <code>lineItems.product</code>
+ * and <code>shippingAddress</code>) can be fetched in parallel by setting the parallelism
+ * above 1. Each keypath is then fetched in a background thread on one of a few coordinators
+ * reserved for batch fetching, and the fetched snapshots are merged into the database of
+ * the source objects' coordinator before the relationships are resolved from them. Source
+ * objects with uncommitted changes are always fetched in the calling thread. The time spent
+ * on each top level keypath is added to the <code>Batching</code> group of {@link ERXStats}.
+ * 
+ * @property er.extensions.ERXBatchFetchUtilities.parallelism the number of keypaths to fetch
+ *           at the same time, defaults to 1 (no parallel fetching)
  *  
  * @author Lenny Marks (lenny@aps.org)
  */
 public class ERXBatchFetchUtilities {
 	private static final Logger log = LoggerFactory.getLogger(ERXBatchFetchUtilities.class);
 
+	private static volatile int _parallelism = ERXProperties.intForKeyWithDefault("er.extensions.ERXBatchFetchUtilities.parallelism", 1);
+
+	/**
+	 * The threads and coordinators used for parallel batch fetching, created on first use
+	 * with the parallelism set then.
+	 */
+	private static class ParallelFetcher {
+		static final int SIZE = Math.max(2, parallelism());
+		static final ExecutorService EXECUTOR;
+		static final BlockingQueue<EOObjectStoreCoordinator> COORDINATORS;
+
+		static {
+			ERXTaskThreadPoolExecutor executor = new ERXTaskThreadPoolExecutor(SIZE, SIZE, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ERXTaskThreadFactory());
+			executor.allowCoreThreadTimeOut(true);
+			EXECUTOR = executor;
+			// one coordinator per thread, so a worker never waits for another one's lock
+			COORDINATORS = new ArrayBlockingQueue<>(SIZE);
+			for (int i = 0; i < SIZE; i++) {
+				ERXObjectStoreCoordinator osc = new ERXObjectStoreCoordinator(true);
+				osc.setName("BatchFetch-" + (i + 1) + "/" + SIZE);
+				COORDINATORS.add(osc);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of keypaths that are fetched at the same time.
+	 * 
+	 * @return the parallelism, 1 if keypaths are fetched one after the other
+	 */
+	public static int parallelism() {
+		return _parallelism;
+	}
+
+	/**
+	 * Sets the number of keypaths that are fetched at the same time. The threads and
+	 * coordinators are created the first time keypaths are fetched in parallel, so a
+	 * higher parallelism set after that doesn't add any.
+	 * 
+	 * @param parallelism the parallelism, 1 to fetch keypaths one after the other
+	 */
+	public static void setParallelism(int parallelism) {
+		_parallelism = parallelism;
+	}
+
 	/**
 	 * Defaults skipFaultedSourceObjects to false for backwards compatibility
 	 * @see #batchFetch(NSArray, NSArray, boolean)
@@ -149,12 +223,19 @@ public class ERXBatchFetchUtilities {
         osc.lock();
         try {
 
-            NSArray rootKeyPathObjects = KeyPath.parseKeyPathStrings(keypaths);
+            NSArray<KeyPath> rootKeyPathObjects = KeyPath.parseKeyPathStrings(keypaths);
 
-            Enumeration keyPathObjectsEnum = rootKeyPathObjects.objectEnumerator();
-            while (keyPathObjectsEnum.hasMoreElements()) {
-                KeyPath kp = (KeyPath) keyPathObjectsEnum.nextElement();
-                kp.traverseForObjects(sourceObjects, skipFaultedSourceObjects);
+            if (rootKeyPathObjects.count() > 1 && parallelism() > 1 && canFetchInParallel(ec, sourceObjects)) {
+                parallelBatchFetch(ec, osc, sourceObjects, rootKeyPathObjects, skipFaultedSourceObjects);
+            }
+            else {
+                Enumeration keyPathObjectsEnum = rootKeyPathObjects.objectEnumerator();
+                while (keyPathObjectsEnum.hasMoreElements()) {
+                    KeyPath kp = (KeyPath) keyPathObjectsEnum.nextElement();
+                    long start = System.currentTimeMillis();
+                    kp.traverseForObjects(sourceObjects, skipFaultedSourceObjects);
+                    ERXStats.addDurationForKey(System.currentTimeMillis() - start, ERXStats.Group.Batching, "batchFetch." + kp.path());
+                }
             }
 
         } finally {
@@ -162,6 +243,299 @@ public class ERXBatchFetchUtilities {
         }
     }
 
+    /**
+     * Source objects can only be fetched on another coordinator if they are all
+     * saved and unchanged, so their snapshots describe them.
+     */
+    private static boolean canFetchInParallel(EOEditingContext ec, NSArray sourceObjects) {
+        if (ec.hasChanges()) {
+            return false;
+        }
+        for (Object object : sourceObjects) {
+            EOEnterpriseObject eo = (EOEnterpriseObject) object;
+            if (eo.editingContext() != ec) {
+                return false;
+            }
+            EOGlobalID gid = ec.globalIDForObject(eo);
+            if (gid == null || gid.isTemporary()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fetches each of the given keypaths on its own coordinator, records the fetched
+     * snapshots in the database of the calling coordinator and then resolves the
+     * relationships from them. The workers fetch with the fetch timestamp of the given
+     * editing context, so they don't hand back snapshots it would refetch. Assumes the
+     * calling coordinator is locked.
+     */
+    private static void parallelBatchFetch(EOEditingContext ec, EOObjectStoreCoordinator osc, NSArray sourceObjects, NSArray<KeyPath> keyPaths, boolean skipFaultedSourceObjects) {
+        FetchedSnapshots sourceSnapshots = new FetchedSnapshots();
+        for (Object object : sourceObjects) {
+            EOEnterpriseObject eo = (EOEnterpriseObject) object;
+            EODatabaseContext dbc = ERXEOAccessUtilities.databaseContextForObject(eo);
+            EOGlobalID gid = ec.globalIDForObject(eo);
+            NSDictionary snapshot;
+            dbc.lock();
+            try {
+                snapshot = dbc.database().snapshotForGlobalID(gid);
+            }
+            finally {
+                dbc.unlock();
+            }
+            if (snapshot == null) {
+                // not fetched through this coordinator, let EOF deal with it
+                traverse(sourceObjects, keyPaths, skipFaultedSourceObjects);
+                return;
+            }
+            sourceSnapshots.addSnapshot(eo.entityName(), gid, snapshot);
+        }
+
+        NSMutableArray<Future<FetchedSnapshots>> futures = new NSMutableArray<>();
+        for (KeyPath keyPath : keyPaths) {
+            futures.addObject(ParallelFetcher.EXECUTOR.submit(new ParallelFetch(keyPath, sourceSnapshots, skipFaultedSourceObjects, ec.fetchTimestamp())));
+        }
+        NSMutableArray<FetchedSnapshots> results = new NSMutableArray<>();
+        try {
+            for (Future<FetchedSnapshots> future : futures) {
+                results.addObject(future.get());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw NSForwardException._runtimeExceptionForThrowable(e);
+        }
+        catch (ExecutionException e) {
+            throw NSForwardException._runtimeExceptionForThrowable(e.getCause());
+        }
+        finally {
+            for (Future<FetchedSnapshots> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        for (int i = 0; i < keyPaths.count(); i++) {
+            KeyPath keyPath = keyPaths.objectAtIndex(i);
+            FetchedSnapshots fetchedSnapshots = results.objectAtIndex(i);
+            long start = System.currentTimeMillis();
+            fetchedSnapshots.recordInCoordinator(osc, ec.fetchTimestamp());
+            keyPath.resolveForObjects(sourceObjects);
+            ERXStats.addDurationForKey(fetchedSnapshots.fetchTime + System.currentTimeMillis() - start, ERXStats.Group.Batching, "batchFetch." + keyPath.path());
+        }
+    }
+
+    private static void traverse(NSArray sourceObjects, NSArray<KeyPath> keyPaths, boolean skipFaultedSourceObjects) {
+        for (KeyPath keyPath : keyPaths) {
+            keyPath.traverseForObjects(sourceObjects, skipFaultedSourceObjects);
+        }
+    }
+
+    /**
+     * Batch fetches one keypath on a coordinator of the parallel fetcher and returns the
+     * snapshots of everything it fetched.
+     */
+    private static class ParallelFetch implements Callable<FetchedSnapshots> {
+        private final KeyPath _keyPath;
+        private final FetchedSnapshots _sourceSnapshots;
+        private final boolean _skipFaultedSourceObjects;
+        private final long _fetchTimestamp;
+
+        public ParallelFetch(KeyPath keyPath, FetchedSnapshots sourceSnapshots, boolean skipFaultedSourceObjects, long fetchTimestamp) {
+            _keyPath = keyPath;
+            _sourceSnapshots = sourceSnapshots;
+            _skipFaultedSourceObjects = skipFaultedSourceObjects;
+            _fetchTimestamp = fetchTimestamp;
+        }
+
+        public FetchedSnapshots call() throws Exception {
+            long start = System.currentTimeMillis();
+            EOObjectStoreCoordinator osc = ParallelFetcher.COORDINATORS.take();
+            try {
+                osc.lock();
+                try {
+                    EOEditingContext ec = ERXEC.newEditingContext(osc);
+                    ec.lock();
+                    try {
+                        ec.setSharedEditingContext(null);
+                        // snapshots this coordinator kept from an earlier fetch may be too old for the caller
+                        ec.setFetchTimestamp(_fetchTimestamp);
+                        NSArray sourceObjects = _sourceSnapshots.faultsInEditingContext(ec);
+                        _keyPath.traverseForObjects(sourceObjects, _skipFaultedSourceObjects);
+                        FetchedSnapshots fetchedSnapshots = new FetchedSnapshots();
+                        fetchedSnapshots.addSnapshotsOfEditingContext(ec, _sourceSnapshots);
+                        fetchedSnapshots.fetchTime = System.currentTimeMillis() - start;
+                        log.debug("Fetched '{}' in {} ms.", _keyPath.path(), fetchedSnapshots.fetchTime);
+                        return fetchedSnapshots;
+                    }
+                    finally {
+                        ec.unlock();
+                        ec.dispose();
+                    }
+                }
+                finally {
+                    osc.unlock();
+                }
+            }
+            finally {
+                ParallelFetcher.COORDINATORS.add(osc);
+            }
+        }
+    }
+
+    /**
+     * Row and to-many snapshots by entity name, to move them from one coordinator to another.
+     */
+    private static class FetchedSnapshots {
+        private final NSMutableDictionary<String, NSMutableDictionary<EOGlobalID, NSDictionary>> _snapshots = new NSMutableDictionary<>();
+        private final NSMutableDictionary<String, NSMutableDictionary<EOGlobalID, NSDictionary>> _toManySnapshots = new NSMutableDictionary<>();
+        long fetchTime;
+
+        public void addSnapshot(String entityName, EOGlobalID gid, NSDictionary snapshot) {
+            NSMutableDictionary<EOGlobalID, NSDictionary> snapshots = _snapshots.objectForKey(entityName);
+            if (snapshots == null) {
+                snapshots = new NSMutableDictionary<>();
+                _snapshots.setObjectForKey(snapshots, entityName);
+            }
+            snapshots.setObjectForKey(snapshot, gid);
+        }
+
+        public boolean containsSnapshot(String entityName, EOGlobalID gid) {
+            NSDictionary<EOGlobalID, NSDictionary> snapshots = _snapshots.objectForKey(entityName);
+            return snapshots != null && snapshots.objectForKey(gid) != null;
+        }
+
+        /**
+         * Adds the row and to-many snapshots of the objects registered in the given editing
+         * context. The row snapshots of the source objects came from the caller and are left
+         * out, so they aren't recorded there again as if they had just been fetched.
+         */
+        public void addSnapshotsOfEditingContext(EOEditingContext ec, FetchedSnapshots sourceSnapshots) {
+            for (Object object : ec.registeredObjects()) {
+                EOEnterpriseObject eo = (EOEnterpriseObject) object;
+                if (eo.isFault()) {
+                    continue;
+                }
+                EOGlobalID gid = ec.globalIDForObject(eo);
+                EODatabaseContext dbc = ERXEOAccessUtilities.databaseContextForObject(eo);
+                EODatabase database = dbc.database();
+                NSDictionary snapshot = database.snapshotForGlobalID(gid);
+                if (snapshot == null) {
+                    continue;
+                }
+                if (!sourceSnapshots.containsSnapshot(eo.entityName(), gid)) {
+                    addSnapshot(eo.entityName(), gid, snapshot);
+                }
+                NSMutableDictionary<String, NSArray> toManySnapshots = null;
+                for (Object r : database.entityNamed(eo.entityName()).relationships()) {
+                    EORelationship relationship = (EORelationship) r;
+                    if (relationship.isToMany()) {
+                        NSArray gids = database.snapshotForSourceGlobalID(gid, relationship.name());
+                        if (gids != null) {
+                            if (toManySnapshots == null) {
+                                toManySnapshots = new NSMutableDictionary<>();
+                            }
+                            toManySnapshots.setObjectForKey(gids, relationship.name());
+                        }
+                    }
+                }
+                if (toManySnapshots != null) {
+                    NSMutableDictionary<EOGlobalID, NSDictionary> entityToManySnapshots = _toManySnapshots.objectForKey(eo.entityName());
+                    if (entityToManySnapshots == null) {
+                        entityToManySnapshots = new NSMutableDictionary<>();
+                        _toManySnapshots.setObjectForKey(entityToManySnapshots, eo.entityName());
+                    }
+                    entityToManySnapshots.setObjectForKey(toManySnapshots, gid);
+                }
+            }
+        }
+
+        /**
+         * Records the source snapshots in the coordinator of the given editing context and
+         * returns faults for them. Assumes the coordinator is locked.
+         */
+        public NSArray faultsInEditingContext(EOEditingContext ec) {
+            EOObjectStoreCoordinator osc = (EOObjectStoreCoordinator) ec.rootObjectStore();
+            NSMutableArray faults = new NSMutableArray();
+            for (String entityName : _snapshots.allKeys()) {
+                NSDictionary<EOGlobalID, NSDictionary> snapshots = _snapshots.objectForKey(entityName);
+                EODatabaseContext dbc = ERXEOAccessUtilities.databaseContextForEntityNamed(osc, entityName);
+                dbc.lock();
+                try {
+                    dbc.database().recordSnapshots(snapshots);
+                }
+                finally {
+                    dbc.unlock();
+                }
+                for (EOGlobalID gid : snapshots.allKeys()) {
+                    faults.addObject(ec.faultForGlobalID(gid, ec));
+                }
+            }
+            return faults;
+        }
+
+        /**
+         * Records the snapshots the given coordinator doesn't have yet or only has from before
+         * the given fetch timestamp, like a fetch in an editing context with that timestamp
+         * would do, and tells the editing contexts about the replaced ones. Assumes the
+         * coordinator is locked.
+         */
+        public void recordInCoordinator(EOObjectStoreCoordinator osc, long fetchTimestamp) {
+            NSMutableArray<String> entityNames = new NSMutableArray<>(_snapshots.allKeys());
+            for (String entityName : _toManySnapshots.allKeys()) {
+                if (!entityNames.containsObject(entityName)) {
+                    entityNames.addObject(entityName);
+                }
+            }
+            for (String entityName : entityNames) {
+                EODatabaseContext dbc = ERXEOAccessUtilities.databaseContextForEntityNamed(osc, entityName);
+                NSMutableArray<EOGlobalID> updatedGlobalIDs = new NSMutableArray<>();
+                dbc.lock();
+                try {
+                    EODatabase database = dbc.database();
+                    NSMutableDictionary<EOGlobalID, NSDictionary> newSnapshots = new NSMutableDictionary<>();
+                    NSDictionary<EOGlobalID, NSDictionary> snapshots = _snapshots.objectForKey(entityName);
+                    if (snapshots != null) {
+                        for (EOGlobalID gid : snapshots.allKeys()) {
+                            if (database.snapshotForGlobalID(gid, fetchTimestamp) == null) {
+                                if (database.snapshotForGlobalID(gid) != null) {
+                                    updatedGlobalIDs.addObject(gid);
+                                }
+                                newSnapshots.setObjectForKey(snapshots.objectForKey(gid), gid);
+                            }
+                        }
+                        database.recordSnapshots(newSnapshots);
+                    }
+
+                    NSDictionary<EOGlobalID, NSDictionary> toManySnapshots = _toManySnapshots.objectForKey(entityName);
+                    if (toManySnapshots != null) {
+                        NSMutableDictionary<EOGlobalID, NSDictionary> newToManySnapshots = new NSMutableDictionary<>();
+                        for (EOGlobalID gid : toManySnapshots.allKeys()) {
+                            NSDictionary<String, NSArray> relationshipSnapshots = toManySnapshots.objectForKey(gid);
+                            NSMutableDictionary<String, NSArray> newRelationshipSnapshots = new NSMutableDictionary<>();
+                            for (String relationshipName : relationshipSnapshots.allKeys()) {
+                                if (database.snapshotForSourceGlobalID(gid, relationshipName, fetchTimestamp) == null) {
+                                    newRelationshipSnapshots.setObjectForKey(relationshipSnapshots.objectForKey(relationshipName), relationshipName);
+                                }
+                            }
+                            if (newRelationshipSnapshots.count() > 0) {
+                                newToManySnapshots.setObjectForKey(newRelationshipSnapshots, gid);
+                            }
+                        }
+                        database.recordToManySnapshots(newToManySnapshots);
+                    }
+                }
+                finally {
+                    dbc.unlock();
+                }
+                if (updatedGlobalIDs.count() > 0) {
+                    NSNotificationCenter.defaultCenter().postNotification(EOObjectStore.ObjectsChangedInStoreNotification, dbc, new NSDictionary<>(updatedGlobalIDs, EOObjectStore.UpdatedKey));
+                }
+            }
+        }
+    }
+
 	/**
 	 * Overloads batchFetch(NSArray, NSArray, boolean) to batch through the
 	 * NSArray of sourceObjects batchSize at a time.
@@ -228,6 +602,44 @@ public class ERXBatchFetchUtilities {
             }
         }
 
+        /**
+         * Resolves the relationships represented by this keypath for <i>sourceObjects</i>
+         * from the snapshots recorded by a parallel batch fetch. Anything that is
+         * missing from the snapshots is fetched by EOF as usual.
+         * 
+         * <p>
+         * This method assumes the EOObjectStoreCoordinator has been externally
+         * locked.
+         * 
+         * @param sourceObjects
+         */
+        public void resolveForObjects(NSArray sourceObjects) {
+            if (sourceObjects == null || sourceObjects.count() < 1) return;
+
+            NSDictionary objectsByEntity = splitObjectsByEntity(sourceObjects);
+            Enumeration e = objectsByEntity.allValues().objectEnumerator();
+            while (e.hasMoreElements()) {
+                NSArray homogeniousObjects = (NSArray) e.nextElement();
+                EOEnterpriseObject eo = (EOEnterpriseObject) homogeniousObjects.objectAtIndex(0);
+                EOEntity entity = EOUtilities.entityForObject(eo.editingContext(), eo);
+                EORelationship relationship = entity.relationshipNamed(path);
+                if (relationship == null) continue;
+
+                NSArray destinationObjects = destinationObjectsForRelationship(relationship, homogeniousObjects);
+                Enumeration destinationsEnum = destinationObjects.objectEnumerator();
+                while (destinationsEnum.hasMoreElements()) {
+                    // fire the faults so the editing context holds on to the objects, see ERXEOAccessUtilities.batchFetchRelationship
+                    ((EOEnterpriseObject) destinationsEnum.nextElement()).willRead();
+                }
+
+                Enumeration subPathsEnum = subPaths.objectEnumerator();
+                while (subPathsEnum.hasMoreElements()) {
+                    KeyPath subPath = (KeyPath) subPathsEnum.nextElement();
+                    subPath.resolveForObjects(destinationObjects);
+                }
+            }
+        }
+
         public String path() {
             return path;
         }
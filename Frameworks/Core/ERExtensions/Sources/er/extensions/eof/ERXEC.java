@@ -13,10 +13,11 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 import java.util.WeakHashMap;
 
 import org.slf4j.Logger;
@@ -152,6 +153,9 @@ public class ERXEC extends EOEditingContext {
 	 */
 	private boolean isFinalizing;
 
+	/** The coordinator that counts this editing context as active until it is disposed. */
+	private ERXObjectStoreCoordinator _countingCoordinator;
+
 	/**
 	 * holds a flag if locked ECs should be unlocked after the request-response
 	 * loop.
@@ -291,12 +295,32 @@ public class ERXEC extends EOEditingContext {
 		markOpenLocks = Boolean.valueOf(value);
 	}
 
-	private static ThreadLocal<List> locks = new ThreadLocal() {
-		@Override
-		protected Object initialValue() {
-			return new Vector();
+	/**
+	 * The locks a thread holds. Created on the first lock and dropped again when
+	 * the thread holds none, so threads that never lock an editing context, like
+	 * most short-lived virtual threads, don't carry any state.
+	 */
+	private static final class ThreadLocks {
+		final List<EOEditingContext> lockedContexts = new ArrayList<>();
+		final Map<EOEditingContext, Integer> lockAttempts = new IdentityHashMap<>();
+	}
+
+	private static final ThreadLocal<ThreadLocks> locks = new ThreadLocal<>();
+
+	private static ThreadLocks threadLocks(boolean create) {
+		ThreadLocks threadLocks = locks.get();
+		if (threadLocks == null && create) {
+			threadLocks = new ThreadLocks();
+			locks.set(threadLocks);
 		}
-	};
+		return threadLocks;
+	}
+
+	private static void releaseThreadLocks(ThreadLocks threadLocks) {
+		if (threadLocks.lockedContexts.isEmpty() && threadLocks.lockAttempts.isEmpty()) {
+			locks.remove();
+		}
+	}
 
 	/**
 	 * Pushes the given EC to the array of locked ECs in the current thread. The
@@ -307,7 +331,7 @@ public class ERXEC extends EOEditingContext {
 	 */
 	public static void pushLockedContextForCurrentThread(EOEditingContext ec) {
 		if (useUnlocker() && ec != null) {
-			List ecs = locks.get();
+			List ecs = threadLocks(true).lockedContexts;
 			ecs.add(ec);
 			log.debug("After pushing: {}", ecs);
 		}
@@ -322,7 +346,8 @@ public class ERXEC extends EOEditingContext {
 	 */
 	public static void popLockedContextForCurrentThread(EOEditingContext ec) {
 		if (useUnlocker() && ec != null) {
-			List ecs = locks.get();
+			ThreadLocks threadLocks = threadLocks(false);
+			List ecs = threadLocks != null ? threadLocks.lockedContexts : null;
 			if (ecs != null) {
 				int index = ecs.lastIndexOf(ec);
 				if (index >= 0) {
@@ -331,17 +356,33 @@ public class ERXEC extends EOEditingContext {
 				else {
 					log.error("Should pop, but ec not found in Vector! {}, ec: {}, ecs: {}", Thread.currentThread().getName(), ec, ecs);
 				}
+				releaseThreadLocks(threadLocks);
 			}
 			log.debug("After popping: {}", ecs);
 		}
 	}
 
+	/**
+	 * Returns how often the current thread has locked the given editing context
+	 * without unlocking it again.
+	 *
+	 * @param ec
+	 *            the editing context
+	 * @return the number of open locks of the current thread
+	 */
+	public static int lockCountForCurrentThread(EOEditingContext ec) {
+		ThreadLocks threadLocks = threadLocks(false);
+		Integer attempts = threadLocks != null ? threadLocks.lockAttempts.get(ec) : null;
+		return attempts != null ? attempts.intValue() : 0;
+	}
+
 	/**
 	 * Unlocks all remaining locked contexts in the current thread. You
 	 * shouldn't call this yourself, but let the Unlocker handle it for you.
 	 */
 	public static void unlockAllContextsForCurrentThread() {
-		List ecs = locks.get();
+		ThreadLocks threadLocks = threadLocks(false);
+		List ecs = threadLocks != null ? threadLocks.lockedContexts : null;
 		if (useUnlocker() && ecs != null && ecs.size() > 0) {
 			log.debug("Unlock remaining: {}", ecs);
 			// we can't use an iterator, because calling unlock() will remove
@@ -459,6 +500,11 @@ public class ERXEC extends EOEditingContext {
 		//super._initWithParentObjectStore(os);
 		
 		ERXEnterpriseObject.Observer.install();
+		EOObjectStore rootObjectStore = rootObjectStore();
+		if (rootObjectStore instanceof ERXObjectStoreCoordinator) {
+			_countingCoordinator = (ERXObjectStoreCoordinator) rootObjectStore;
+			_countingCoordinator._editingContextDidCreate();
+		}
 		if (ERXEC.markOpenLocks()) {
 			creationTrace = new Exception("Creation");
 			creationTrace.fillInStackTrace();
@@ -564,7 +610,9 @@ public class ERXEC extends EOEditingContext {
 		if (markOpenLocks()) {
 			traceLock();
 		}
-		lockAttempts().set(lockAttempts().get().intValue()+1);
+		ThreadLocks threadLocks = threadLocks(true);
+		Integer attempts = threadLocks.lockAttempts.get(this);
+		threadLocks.lockAttempts.put(this, Integer.valueOf(attempts == null ? 1 : attempts.intValue() + 1));
 		super.lock();
 		pushLockedContextForCurrentThread(this);
 		if (markOpenLocks()) {
@@ -658,25 +706,27 @@ public class ERXEC extends EOEditingContext {
 			}
 		}
 		super.unlock();
-		lockAttempts().set(lockAttempts().get().intValue()-1);
+		ThreadLocks threadLocks = threadLocks(false);
+		if (threadLocks != null) {
+			Integer attempts = threadLocks.lockAttempts.get(this);
+			if (attempts != null && attempts.intValue() > 1) {
+				threadLocks.lockAttempts.put(this, Integer.valueOf(attempts.intValue() - 1));
+			}
+			else {
+				threadLocks.lockAttempts.remove(this);
+				releaseThreadLocks(threadLocks);
+			}
+		}
 	}
 
 	private boolean isLockedInThread() {
-		return locks.get().contains(this);
+		ThreadLocks threadLocks = threadLocks(false);
+		return threadLocks != null && threadLocks.lockedContexts.contains(this);
 	}
 
-	private transient ThreadLocal<Integer> lockAttempts;
-	
-	private ThreadLocal<Integer> lockAttempts() {
-		if(lockAttempts == null) {
-			lockAttempts = new ThreadLocal<Integer>() {
-		@Override
-		protected Integer initialValue() {
-			return Integer.valueOf(0);
-		}
-	};
-		}
-		return lockAttempts;
+	private boolean hasLockAttemptsInThread() {
+		ThreadLocks threadLocks = threadLocks(false);
+		return threadLocks != null && threadLocks.lockAttempts.containsKey(this);
 	}
 		
   
@@ -690,7 +740,7 @@ public class ERXEC extends EOEditingContext {
 	 * @return whether we did lock automatically
 	 */
 	protected boolean autoLock(String method) {
-		if (!useAutoLock() || isFinalizing || isLockedInThread() || lockAttempts().get().intValue() > 0)
+		if (!useAutoLock() || isFinalizing || isLockedInThread() || hasLockAttemptsInThread())
 			return false;
 
 		boolean wasAutoLocked = false;
@@ -758,9 +808,18 @@ public class ERXEC extends EOEditingContext {
 		if (markOpenLocks()) {
 			_checkOpenLockTraces();
 		}
+		_uncountEditingContext();
 		super.dispose();
 	}
 
+	private void _uncountEditingContext() {
+		ERXObjectStoreCoordinator coordinator = _countingCoordinator;
+		if (coordinator != null) {
+			_countingCoordinator = null;
+			coordinator._editingContextDidDispose();
+		}
+	}
+
 	@Override
 	public void finalize() throws Throwable {
 		isFinalizing = true;
@@ -769,6 +828,7 @@ public class ERXEC extends EOEditingContext {
 				// log.info("Finalize {}@{}", getClass(), System.identityHashCode(this));
 				_checkOpenLockTraces();
 			}
+			_uncountEditingContext();
 		} catch(Throwable ex) {
 			// we *must* not fail in a finalizer
 			log.error("Error finalizing.", ex);
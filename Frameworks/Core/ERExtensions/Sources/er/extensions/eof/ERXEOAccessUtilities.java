@@ -72,6 +72,7 @@ import er.extensions.foundation.ERXStringUtilities;
 import er.extensions.foundation.ERXThreadStorage;
 import er.extensions.foundation.ERXUtilities;
 import er.extensions.foundation.ERXValueUtilities;
+import er.extensions.jdbc.ERXJDBCAdaptor;
 import er.extensions.jdbc.ERXSQLHelper;
 import er.extensions.statistics.ERXStats;
 import er.extensions.statistics.ERXStats.Group;
@@ -409,6 +410,32 @@ public class ERXEOAccessUtilities {
         return results;
     }
 
+    /**
+     * Returns a cursor over the raw rows for the given EOSQLExpression. Unlike
+     * {@link #rawRowsForSQLExpression(EOEditingContext, EOModel, EOSQLExpression, NSArray)}
+     * the rows are not collected into an array, they are read from the database
+     * as the cursor is iterated. The cursor keeps the database context locked
+     * until it is exhausted or closed, so always close it:
+     * <pre><code>
+     * try (ERXRowCursor&lt;NSDictionary&gt; rows = ERXEOAccessUtilities.rawRowCursorForSQLExpression(ec, model, expression, attributes)) {
+     *     for (NSDictionary row : rows.nextBatch(1000)) { ... }
+     * }
+     * </code></pre>
+     *
+     * @param ec
+     *            the EOEditingContext
+     * @param model
+     *            the model in question
+     * @param expression
+     *            the EOSQLExpression to fetch with
+     * @param attributes the attributes to fetch, null to use the ones the adaptor describes
+     *
+     * @return cursor over the rows
+     */
+    public static ERXRowCursor<NSDictionary> rawRowCursorForSQLExpression(EOEditingContext ec, EOModel model, EOSQLExpression expression, NSArray<EOAttribute> attributes) {
+        return new ERXRowCursor<>(ec, model, expression, attributes);
+    }
+
     /**
      * Creates the SQL which is used by the provided EOFetchSpecification,
      * limited by the given range.
@@ -1662,7 +1689,8 @@ public class ERXEOAccessUtilities {
     }
 
     /**
-     * Insert rows described the array of dictionaries. 
+     * Insert rows described the array of dictionaries. The rows are sent as JDBC batches
+     * if <code>er.extensions.ERXJDBCAdaptor.batchSize</code> is set.
      * @param ec
      * @param entityName
      * @param newValues
@@ -1673,6 +1701,10 @@ public class ERXEOAccessUtilities {
         ChannelAction action = new ChannelAction() {
             @Override
             protected int doPerform(EOAdaptorChannel channel) {
+            	if (channel instanceof ERXJDBCAdaptor.Channel) {
+            		((ERXJDBCAdaptor.Channel) channel).insertRows(newValues, entity);
+            		return newValues.size();
+            	}
             	int insert = 0;
             	for (NSDictionary dictionary : newValues) {
                 	channel.insertRow(dictionary, entity);
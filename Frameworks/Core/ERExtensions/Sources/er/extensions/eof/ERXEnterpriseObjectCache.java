@@ -1,12 +1,18 @@
 package er.extensions.eof;
 
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.webobjects.eoaccess.EOEntity;
 import com.webobjects.eoaccess.EOUtilities;
 import com.webobjects.eocontrol.EOEditingContext;
 import com.webobjects.eocontrol.EOEnterpriseObject;
 import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.eocontrol.EOObjectStore;
 import com.webobjects.eocontrol.EOObjectStoreCoordinator;
 import com.webobjects.eocontrol.EOQualifier;
 import com.webobjects.eocontrol.EOTemporaryGlobalID;
@@ -14,13 +20,17 @@ import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSKeyValueCoding;
 import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSNotification;
 import com.webobjects.foundation.NSNotificationCenter;
 import com.webobjects.foundation.NSSelector;
 
 import er.extensions.ERXExtensions;
+import er.extensions.appserver.ERXMemoryMonitor;
+import er.extensions.foundation.ERXConcurrentExpiringCache;
 import er.extensions.foundation.ERXExpiringCache;
 import er.extensions.foundation.ERXSelectorUtilities;
+import er.extensions.statistics.ERXStats;
 
 /**
  * Caches instances of one entity by a given key(path). Typically you'd have an "identifier" property 
@@ -37,6 +47,11 @@ import er.extensions.foundation.ERXSelectorUtilities;
  * 
  * Listens to EOEditingContextDidSaveChanges notifications to track changes to objects in the cache and ClearCachesNotification 
  * for messages to purge the cache.
+ * 
+ * A lazily loading cache can be bounded with {@link #setMaximumSize(int)}, in which case the least recently used entries
+ * are evicted once the cache is full. Each cache keeps hit, miss, load, eviction and invalidation counters, which are
+ * available from {@link #statistics()} and, for all caches of the application, from {@link #allStatistics()}.
+ * 
  * @author ak inspired by a class from Dominik Westner
  * @param <T> the type of EOEnterpriseObject in this cache
  */
@@ -61,6 +76,30 @@ public class ERXEnterpriseObjectCache<T extends EOEnterpriseObject> {
     /** Actual cache implementation. */
     private ERXExpiringCache<Object, EORecord<T>> _cache;
     
+    /** Maximum number of entries in this cache, or <code>ERXConcurrentExpiringCache.NO_MAXIMUM_SIZE</code>. */
+    private int _maximumSize;
+    
+    /** Keys of the cached objects by their EOGlobalID. This is only a hint and is always verified against the cache. */
+    private final Map<EOGlobalID, Object> _keysByGlobalID = new ConcurrentHashMap<>();
+    
+    /** Statistics counters. */
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private final LongAdder _loads = new LongAdder();
+    private final LongAdder _evictions = new LongAdder();
+    private final LongAdder _invalidations = new LongAdder();
+    
+    /** All caches that have been created, so their statistics can be reported. */
+    private static final Map<ERXEnterpriseObjectCache<?>, Boolean> _allCaches = Collections.synchronizedMap(new WeakHashMap<ERXEnterpriseObjectCache<?>, Boolean>());
+
+    static {
+    	ERXMemoryMonitor.register(pressure -> {
+    		for (ERXEnterpriseObjectCache<?> cache : allCaches()) {
+    			cache.reclaimMemory(pressure);
+    		}
+    	});
+    }
+    
     /** Time to live in milliseconds for an object in this cache. */
     private long _timeout;
     
@@ -217,11 +256,18 @@ public class ERXEnterpriseObjectCache<T extends EOEnterpriseObject> {
 	 * @see #stop()
      */
 	public void start() {
+		_allCaches.put(this, Boolean.TRUE);
+		
 		// Catch this to update the cache when an object is changed
         NSSelector selector = ERXSelectorUtilities.notificationSelector("editingContextDidSaveChanges");
         NSNotificationCenter.defaultCenter().addObserver(this, selector, 
                 EOEditingContext.EditingContextDidSaveChangesNotification, null);
         
+        // Catch this to drop objects that were deleted or invalidated, even if another instance changed them
+        selector = ERXSelectorUtilities.notificationSelector("objectsChangedInStore");
+        NSNotificationCenter.defaultCenter().addObserver(this, selector, 
+                EOObjectStore.ObjectsChangedInStoreNotification, null);
+        
         // Catch this for custom notifications that the cache should be discarded
         selector = ERXSelectorUtilities.notificationSelector("clearCaches");
         NSNotificationCenter.defaultCenter().addObserver(this, selector, 
@@ -238,8 +284,12 @@ public class ERXEnterpriseObjectCache<T extends EOEnterpriseObject> {
      */
 	public void stop() {
 		NSNotificationCenter.defaultCenter().removeObserver(this, EOEditingContext.EditingContextDidSaveChangesNotification, null);
+		NSNotificationCenter.defaultCenter().removeObserver(this, EOObjectStore.ObjectsChangedInStoreNotification, null);
 		NSNotificationCenter.defaultCenter().removeObserver(this, ERXEnterpriseObjectCache.ClearCachesNotification, null);
-    	_cache.stopBackgroundExpiration();
+		_allCaches.remove(this);
+		if (_cache != null) {
+			_cache.stopBackgroundExpiration();
+		}
 	}
 
 	/**
@@ -338,6 +388,107 @@ public class ERXEnterpriseObjectCache<T extends EOEnterpriseObject> {
         }
     }
     
+    /**
+     * Handler for the ObjectsChangedInStoreNotification of the object store coordinators. The entries for deleted
+     * global IDs are removed from the cache and, unless <code>_fetchInitialValues</code> is <code>true</code>, the
+     * entries for invalidated global IDs are discarded so they are fetched again on the next access. Only the
+     * affected keys are touched.
+     * 
+     * @param n NSNotification with an EOObjectStoreCoordinator as the object and a dictionary of global IDs in the userInfo
+     */
+    public void objectsChangedInStore(NSNotification n) {
+    	if (_cache != null && n.object() instanceof EOObjectStoreCoordinator && n.userInfo() != null) {
+    		NSArray<EOGlobalID> deletedGIDs = cachedGlobalIDs((NSArray<EOGlobalID>) n.userInfo().objectForKey(EOObjectStore.DeletedKey));
+    		if (deletedGIDs.count() > 0) {
+    			removeObjectsWithGlobalIDs(deletedGIDs);
+    		}
+    		if (!_fetchInitialValues) {
+    			NSArray<EOGlobalID> invalidatedGIDs = cachedGlobalIDs((NSArray<EOGlobalID>) n.userInfo().objectForKey(EOObjectStore.InvalidatedKey));
+    			if (invalidatedGIDs.count() > 0) {
+    				invalidateObjectsWithGlobalIDs(invalidatedGIDs);
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Returns the global IDs from gids that are (probably) in this cache, so unrelated changes are skipped without locking.
+     * 
+     * @param gids the global IDs from a notification, or null
+     * @return the global IDs that are indexed by this cache
+     */
+    private NSArray<EOGlobalID> cachedGlobalIDs(NSArray<EOGlobalID> gids) {
+    	NSMutableArray<EOGlobalID> cachedGIDs = null;
+    	if (gids != null) {
+    		for (EOGlobalID gid : gids) {
+    			if (_keysByGlobalID.containsKey(gid)) {
+    				if (cachedGIDs == null) {
+    					cachedGIDs = new NSMutableArray<>();
+    				}
+    				cachedGIDs.addObject(gid);
+    			}
+    		}
+    	}
+    	return cachedGIDs != null ? cachedGIDs : NSArray.EmptyArray;
+    }
+    
+    /**
+     * Removes the objects with the given global IDs from the cache. A place holder is left under their keys, so that
+     * the next query for one of them returns null.
+     * 
+     * @param gids the global IDs of the objects to remove
+     */
+    public void removeObjectsWithGlobalIDs(NSArray<EOGlobalID> gids) {
+    	ERXExpiringCache<Object, EORecord<T>> cache = cache();
+    	synchronized (cache) {
+    		for (EOGlobalID gid : gids) {
+    			Object key = keyForGlobalID(gid);
+    			if (key != null) {
+    				removeObjectForKey(null, key);
+    				_invalidations.increment();
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Discards the cache entries of the objects with the given global IDs, so they are fetched again on the next access.
+     * This must not be used if <code>_fetchInitialValues</code> is <code>true</code>, as a missing entry is then treated
+     * as a missing object.
+     * 
+     * @param gids the global IDs of the objects to discard
+     */
+    public void invalidateObjectsWithGlobalIDs(NSArray<EOGlobalID> gids) {
+    	ERXExpiringCache<Object, EORecord<T>> cache = cache();
+    	synchronized (cache) {
+    		for (EOGlobalID gid : gids) {
+    			Object key = keyForGlobalID(gid);
+    			if (key != null) {
+    				cache.removeObjectForKey(key);
+    				_invalidations.increment();
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Returns the key the object with the given global ID is cached under, or null if it is not in the cache.
+     * 
+     * @param gid the global ID to look up
+     * @return the key of the object or null
+     */
+    protected Object keyForGlobalID(EOGlobalID gid) {
+    	Object key = _keysByGlobalID.get(gid);
+    	if (key != null) {
+    		EORecord<T> record = cache().objectForKey(key);
+    		if (record == null || !record.gid.equals(gid)) {
+    			_keysByGlobalID.remove(gid, key);
+    			key = null;
+    		}
+    	}
+    	return key;
+    }
+    
     /**
      * Handler for the clearCaches notification. Calls reset if n.object is the name of the entity we are caching.
      * Other code can send this notification if it needs to have this cache discard all of the objects.
@@ -374,10 +525,10 @@ public class ERXEnterpriseObjectCache<T extends EOEnterpriseObject> {
     protected synchronized ERXExpiringCache<Object, EORecord<T>> cache() {
         if(_cache == null) {
         	if (_fetchInitialValues) {
-                _cache = new ERXExpiringCache<Object, EORecord<T>>(ERXExpiringCache.NO_TIMEOUT);
+                _cache = new RecordCache<>(this, ERXExpiringCache.NO_TIMEOUT, ERXConcurrentExpiringCache.NO_MAXIMUM_SIZE);
         	}
         	else {
-                _cache = new ERXExpiringCache<Object, EORecord<T>>(_timeout);
+                _cache = new RecordCache<>(this, _timeout, _maximumSize);
                 if (_timeout > 0) {
                 	_cache.startBackgroundExpiration();
                 }
@@ -533,19 +684,12 @@ public class ERXEnterpriseObjectCache<T extends EOEnterpriseObject> {
         ERXExpiringCache<Object, EORecord<T>> cache = cache();
         synchronized (cache) {
         	Object previousKey = key;
-        	T previousObject = objectForKey(editingContext(), key, false);
+        	EORecord<T> previousRecord = cache.objectForKey(key);
         	
         	// If the object does not exist under key, or a different object exists under that key,
-            // the key value may have been changed. Search the entire cache for the object by GID
-        	if (previousObject == null || ! previousObject.editingContext().globalIDForObject(previousObject).equals(gid)) {
-            	previousKey = null;
-            	for (Object entryKey : cache.allKeys()) {
-            		EORecord<T> entryValue = cache.objectForKey(entryKey);
-            		if (entryValue != null && entryValue.gid.equals(gid)) {
-            			previousKey = entryKey;
-            			break;
-            		}
-            	}
+            // the key value may have been changed. Look the object up by GID
+        	if (previousRecord == null || ! previousRecord.gid.equals(gid)) {
+            	previousKey = keyForGlobalID(gid);
         	}
         	if (previousKey != null) {
         		if (!previousKey.equals(key)) {
@@ -594,6 +738,7 @@ public class ERXEnterpriseObjectCache<T extends EOEnterpriseObject> {
         ERXExpiringCache<Object, EORecord<T>> cache = cache();
         EORecord<T> record = cache.objectForKey(key);
         if (record == null) {
+        	_misses.increment();
         	if (handleUnsuccessfulQueryForKey) {
             	if (_returnUnsavedObjects) {
             		T unsavedMatchingObject = unsavedMatchingObject(ec, key);
@@ -614,9 +759,23 @@ public class ERXEnterpriseObjectCache<T extends EOEnterpriseObject> {
             	return null;
         	}
         }
-        else if (record.gid == NO_GID_MARKER) {
-            return null;
+        else {
+        	_hits.increment();
+        	if (record.gid == NO_GID_MARKER) {
+        		return null;
+        	}
         }
+        return objectForRecord(ec, record);
+    }
+    
+    /**
+     * Returns the object for the given record in ec.
+     * 
+     * @param ec editing context to get the object into
+     * @param record the cache record
+     * @return the object of the record
+     */
+    private T objectForRecord(EOEditingContext ec, EORecord<T> record) {
         T eo = record.eo;
         if (eo == null) {
         	eo = (T) ERXEOGlobalIDUtilities.fetchObjectWithGlobalID(ec, record.gid);
@@ -667,7 +826,8 @@ public class ERXEnterpriseObjectCache<T extends EOEnterpriseObject> {
     	NSMutableArray<T> allObjects = new NSMutableArray<>(allKeys.count());
 
     	for (Object entryKey : allKeys) {
-    		T object = objectForKey(ec, entryKey, false);
+    		EORecord<T> record = cache.objectForKey(entryKey);
+    		T object = record != null && record.gid != NO_GID_MARKER ? objectForRecord(ec, record) : null;
     		if (object != null && (additionalQualifier == null || additionalQualifier.evaluateWithObject(object))) {
         		allObjects.addObject(object);
     		}
@@ -693,7 +853,21 @@ public class ERXEnterpriseObjectCache<T extends EOEnterpriseObject> {
                 ERXEC editingContext = editingContext();
             	editingContext.lock();
             	try {
-            		NSArray<T> objects = fetchObjectsForKey(editingContext, key);
+            		_loads.increment();
+            		NSArray<T> objects;
+            		if (ERXStats.isTrackingStatistics()) {
+            			String statsKey = entityName() + "." + keyPath();
+            			ERXStats.markStart(ERXStats.Group.EnterpriseObjectCache, statsKey);
+            			try {
+            				objects = fetchObjectsForKey(editingContext, key);
+            			}
+            			finally {
+            				ERXStats.markEnd(ERXStats.Group.EnterpriseObjectCache, statsKey);
+            			}
+            		}
+            		else {
+            			objects = fetchObjectsForKey(editingContext, key);
+            		}
         			if (objects.count() == 0) {
         				cache.setObjectForKey(createRecord(NO_GID_MARKER, null), key);
         			}
@@ -769,6 +943,7 @@ public class ERXEnterpriseObjectCache<T extends EOEnterpriseObject> {
     public synchronized void reset() {
     	if (_cache != null) {
     		_cache.removeAllObjects();
+    		_keysByGlobalID.clear();
     	    preLoadCacheIfNeeded();
     	}
     }
@@ -785,8 +960,102 @@ public class ERXEnterpriseObjectCache<T extends EOEnterpriseObject> {
     	if (!fetchInitialValues) {
     		setResetOnChange(false);
     	}
+    	else {
+    		_maximumSize = ERXConcurrentExpiringCache.NO_MAXIMUM_SIZE;
+    	}
 	}
     
+    /**
+     * Sets the maximum number of entries in this cache. Once the cache is full, the least recently used entries
+     * are evicted and fetched again on their next access. A bounded cache can not fetch its initial values,
+     * so this turns fetchInitialValues (and resetOnChange) off. The backing cache is discarded if it was already
+     * created.
+     * 
+     * @param maximumSize the maximum number of entries, or <code>ERXConcurrentExpiringCache.NO_MAXIMUM_SIZE</code>
+     */
+    public synchronized void setMaximumSize(int maximumSize) {
+    	if (maximumSize > 0) {
+    		setFetchInitialValues(false);
+    	}
+    	_maximumSize = maximumSize;
+    	if (_cache != null) {
+    		_cache.stopBackgroundExpiration();
+    		_cache = null;
+    		_keysByGlobalID.clear();
+    	}
+    }
+    
+    /**
+     * Returns the maximum number of entries in this cache.
+     * 
+     * @return the maximum number of entries, or <code>ERXConcurrentExpiringCache.NO_MAXIMUM_SIZE</code>
+     */
+    public int maximumSize() {
+    	return _maximumSize;
+    }
+    
+    /**
+     * Returns the statistics of this cache: the number of hits, misses, loads (fetches after a miss), evictions and
+     * invalidations since the cache was created, as well as the current and maximum number of entries.
+     * 
+     * @return the statistics of this cache
+     */
+    public NSDictionary<String, Object> statistics() {
+    	ERXExpiringCache<Object, EORecord<T>> cache = _cache;
+    	NSMutableDictionary<String, Object> statistics = new NSMutableDictionary<>();
+    	statistics.setObjectForKey(entityName(), "entityName");
+    	statistics.setObjectForKey(keyPath(), "keyPath");
+    	statistics.setObjectForKey(Long.valueOf(_hits.sum()), "hits");
+    	statistics.setObjectForKey(Long.valueOf(_misses.sum()), "misses");
+    	statistics.setObjectForKey(Long.valueOf(_loads.sum()), "loads");
+    	statistics.setObjectForKey(Long.valueOf(_evictions.sum()), "evictions");
+    	statistics.setObjectForKey(Long.valueOf(_invalidations.sum()), "invalidations");
+    	statistics.setObjectForKey(Integer.valueOf(cache instanceof ERXConcurrentExpiringCache ? ((ERXConcurrentExpiringCache) cache).count() : 0), "count");
+    	statistics.setObjectForKey(Integer.valueOf(_maximumSize), "maximumSize");
+    	return statistics;
+    }
+    
+    /**
+     * Returns the statistics of all active caches, keyed by "entityName.keyPath".
+     * 
+     * @see #statistics()
+     * @return the statistics of all active caches
+     */
+    public static NSDictionary<String, NSDictionary<String, Object>> allStatistics() {
+    	NSArray<ERXEnterpriseObjectCache<?>> caches = allCaches();
+    	NSMutableDictionary<String, NSDictionary<String, Object>> allStatistics = new NSMutableDictionary<>();
+    	for (ERXEnterpriseObjectCache<?> cache : caches) {
+    		String key = cache.entityName() + "." + cache.keyPath();
+    		String uniqueKey = key;
+    		for (int i = 2; allStatistics.objectForKey(uniqueKey) != null; i++) {
+    			uniqueKey = key + " (" + i + ")";
+    		}
+    		allStatistics.setObjectForKey(cache.statistics(), uniqueKey);
+    	}
+    	return allStatistics;
+    }
+    
+    private static NSArray<ERXEnterpriseObjectCache<?>> allCaches() {
+    	synchronized (_allCaches) {
+    		return new NSArray<>(_allCaches.keySet().toArray(new ERXEnterpriseObjectCache<?>[0]));
+    	}
+    }
+    
+    /**
+     * Called when the application runs short of memory to shrink the cache to the fraction of its entries
+     * the pressure asks for, evicting the least recently used entries. Caches that fetch their initial values
+     * are left alone, as an object that is missing from them is taken not to exist.
+     * 
+     * @param pressure the memory pressure
+     */
+    protected void reclaimMemory(ERXMemoryMonitor.Pressure pressure) {
+    	ERXExpiringCache<Object, EORecord<T>> cache = _cache;
+    	if (!_fetchInitialValues && cache instanceof ERXConcurrentExpiringCache) {
+    		ERXConcurrentExpiringCache<Object, EORecord<T>> concurrentCache = (ERXConcurrentExpiringCache<Object, EORecord<T>>) cache;
+    		concurrentCache.trimToCount((int) (concurrentCache.count() * pressure.retainedFraction()));
+    	}
+    }
+    
     /**
      * Sets whether or not the editing context for this cache is reused for multiple requests.
      * 
@@ -828,6 +1097,48 @@ public class ERXEnterpriseObjectCache<T extends EOEnterpriseObject> {
 		}
 	}
     
+    /**
+     * The backing cache, which maintains the global ID index and counts evictions.
+     */
+    private static class RecordCache<T> extends ERXConcurrentExpiringCache<Object, EORecord<T>> {
+    	private final ERXEnterpriseObjectCache<?> _owner;
+    	
+    	public RecordCache(ERXEnterpriseObjectCache<?> owner, long expiryTime, int maximumSize) {
+    		super(expiryTime, expiryTime, maximumSize);
+    		_owner = owner;
+    	}
+    	
+    	@Override
+    	protected void setEntryForKey(ERXExpiringCache.Entry<EORecord<T>> entry, Object key) {
+    		super.setEntryForKey(entry, key);
+    		EORecord<T> record = entry.object();
+    		if (record != null && record.gid != NO_GID_MARKER) {
+    			_owner._keysByGlobalID.put(record.gid, key);
+    		}
+    	}
+    	
+    	@Override
+    	protected void removeEntryForKey(ERXExpiringCache.Entry<EORecord<T>> entry, Object key) {
+    		super.removeEntryForKey(entry, key);
+    		EORecord<T> record = entry.object();
+    		if (record != null && record.gid != NO_GID_MARKER) {
+    			ERXExpiringCache.Entry<EORecord<T>> currentEntry = entryForKey(key);
+    			if (currentEntry == null || currentEntry.object() == null || !record.gid.equals(currentEntry.object().gid)) {
+    				_owner._keysByGlobalID.remove(record.gid, key);
+    			}
+    		}
+    	}
+    	
+    	@Override
+    	protected boolean evictLeastRecentlyUsedEntry() {
+    		boolean evicted = super.evictLeastRecentlyUsedEntry();
+    		if (evicted) {
+    			_owner._evictions.increment();
+    		}
+    		return evicted;
+    	}
+    }
+    
     private static class EORecord<T> {
     	public EOGlobalID gid;
     	public T eo;
@@ -14,17 +14,25 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.eoaccess.EODatabaseContext;
 import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EOSQLExpression;
 import com.webobjects.eoaccess.EOUtilities;
+import com.webobjects.eocontrol.EOAndQualifier;
 import com.webobjects.eocontrol.EOEditingContext;
 import com.webobjects.eocontrol.EOFetchSpecification;
+import com.webobjects.eocontrol.EOKeyValueQualifier;
 import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.eocontrol.EOSortOrdering;
 import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSKeyValueCoding;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSRange;
 
 import er.extensions.eof.qualifiers.ERXInQualifier;
 import er.extensions.foundation.ERXArrayUtilities;
+import er.extensions.foundation.ERXProperties;
 import er.extensions.jdbc.ERXSQLHelper;
 
 /**
@@ -44,8 +52,25 @@ import er.extensions.jdbc.ERXSQLHelper;
  * objects requested from the database at once, and may differ from the number
  * of objects returned by <b>nextBatch()</b>, for instance if the batch size is
  * changed after fetching, or if <b>filtersBatches()</b> is set to true.
+ * <p>
+ * By default the iterator fetches the primary keys of all matching objects
+ * before returning the first batch. With {@link #setUsesKeysetPagination(boolean)}
+ * it fetches only the keys of the next batch instead, ordered by the primary key
+ * (or another unique, non-null attribute set with {@link #setKeysetAttributeName(String)})
+ * and starting after the last key of the previous batch, like
+ * <code>WHERE key &gt; lastKey ORDER BY key LIMIT batchSize</code>. Starting the
+ * iteration then costs the same for ten rows as for ten million, and only one
+ * batch of keys is held at a time. The limit is generated by the
+ * {@link ERXSQLHelper} of the database plugin, so the plugin must support
+ * {@link ERXSQLHelper#limitExpressionForSQL(com.webobjects.eoaccess.EOSQLExpression, EOFetchSpecification, String, long, long)}.
+ * The sort orderings of the fetch specification are replaced by the ordering on
+ * the keyset attribute. Rows inserted behind the current position during the
+ * iteration are picked up, rows inserted before it are not.
+ * </p>
  * 
  * @param <E> the type of elements returned by this iterator
+ * 
+ * @property er.extensions.ERXFetchSpecificationBatchIterator.useKeysetPagination whether new iterators use keyset pagination, defaults to false
  */
 public class ERXFetchSpecificationBatchIterator<E> implements Iterator<E>, Enumeration<E> {
 
@@ -73,6 +98,21 @@ public class ERXFetchSpecificationBatchIterator<E> implements Iterator<E>, Enume
     /** determines whether we should re-apply the original qualifier to each batch of objects fetched */
     protected boolean shouldFilterBatches;
 
+    /** determines whether batches are fetched by seeking past the last key instead of from the array of all primary keys */
+    protected boolean usesKeysetPagination;
+    /** holds the name of the unique attribute the batches are ordered by in keyset mode */
+    protected String keysetAttributeName;
+    /** holds the value of the keyset attribute of the last row returned in keyset mode */
+    protected Object lastKeysetValue;
+    /** holds the primary keys of the next batch in keyset mode */
+    protected NSArray keysetPrimaryKeys;
+    /** holds the value of the keyset attribute of the last row of the next batch in keyset mode */
+    protected Object nextKeysetValue;
+    /** determines whether the last page of keys has been fetched in keyset mode */
+    protected boolean keysetExhausted;
+    /** holds the number of matching objects in keyset mode */
+    protected Integer keysetCount;
+
     /**
      * Constructs a fetch specification iterator for a given fetch
      * specification with the default batch size. Note you will have to
@@ -136,6 +176,8 @@ public class ERXFetchSpecificationBatchIterator<E> implements Iterator<E>, Enume
         setEditingContext(ec != null ? ec : ERXEC.newEditingContext());
         setBatchSize(batchSize);
         setFiltersBatches(false);
+        keysetAttributeName = primaryKeyAttributeName;
+        usesKeysetPagination = pkeys == null && ERXProperties.booleanForKeyWithDefault("er.extensions.ERXFetchSpecificationBatchIterator.useKeysetPagination", false);
         
         EOQualifier qualifier = this.fetchSpecification.qualifier();
         if (qualifier != null) {
@@ -178,7 +220,10 @@ public class ERXFetchSpecificationBatchIterator<E> implements Iterator<E>, Enume
      * @return number of objects
      */
     public int count() {
-         return primaryKeys().count();
+        if (usesKeysetPagination && primaryKeys == null) {
+            return keysetCount();
+        }
+        return primaryKeys().count();
     }
 
     /**
@@ -234,6 +279,55 @@ public class ERXFetchSpecificationBatchIterator<E> implements Iterator<E>, Enume
         shouldFilterBatches = newValue;
     }
 
+    /**
+     * Returns whether the batches are fetched by seeking past the last key
+     * of the previous batch.
+     * @see #setUsesKeysetPagination(boolean)
+     * @return whether keyset pagination is used
+     */
+    public boolean usesKeysetPagination() {
+        return usesKeysetPagination;
+    }
+
+    /**
+     * If set to true, the primary keys are not fetched all at once but one batch at
+     * a time, each batch starting after the last key of the previous one. See the
+     * class description. {@link #batchWithIndex(int)} and {@link #batchWithRange(NSRange)}
+     * still fetch all primary keys, {@link #count()} performs a count query.
+     *
+     * Defaults to the value of <code>er.extensions.ERXFetchSpecificationBatchIterator.useKeysetPagination</code>.
+     *
+     * @param newValue whether keyset pagination should be used
+     */
+    public void setUsesKeysetPagination(boolean newValue) {
+        if (newValue != usesKeysetPagination && currentObjectFetchCount > 0) {
+            throw new IllegalStateException("Can't switch keyset pagination after the iteration has started.");
+        }
+        usesKeysetPagination = newValue;
+    }
+
+    /**
+     * Gets the name of the attribute batches are ordered by in keyset mode.
+     * @return the keyset attribute name, the primary key attribute by default
+     */
+    public String keysetAttributeName() {
+        return keysetAttributeName;
+    }
+
+    /**
+     * Sets the attribute batches are ordered by in keyset mode. The attribute
+     * must be unique and must not be null, otherwise rows get skipped. If the
+     * first sort ordering of the fetch specification is on this attribute, its
+     * direction is used, otherwise the batches are in ascending order.
+     * @param attributeName name of the keyset attribute
+     */
+    public void setKeysetAttributeName(String attributeName) {
+        if (currentObjectFetchCount > 0) {
+            throw new IllegalStateException("Can't change the keyset attribute after the iteration has started.");
+        }
+        keysetAttributeName = attributeName != null ? attributeName : primaryKeyAttributeName;
+    }
+
     /**
      * Gets the currently set editing context.
      * @return editing context used to fetch against
@@ -261,6 +355,12 @@ public class ERXFetchSpecificationBatchIterator<E> implements Iterator<E>, Enume
     }
 
     protected boolean _hasMoreToFetch() {
+        if (usesKeysetPagination) {
+            if (keysetPrimaryKeys == null && !keysetExhausted) {
+                keysetPrimaryKeys = _fetchNextKeysetPrimaryKeys();
+            }
+            return keysetPrimaryKeys != null && keysetPrimaryKeys.count() > 0;
+        }
         return currentObjectFetchCount() < count();
     }
 
@@ -294,7 +394,17 @@ public class ERXFetchSpecificationBatchIterator<E> implements Iterator<E>, Enume
      * @return next batch
      */
     protected NSArray<E> _fetchNextBatch() {
-        if (hasNextBatch()) {
+        if (usesKeysetPagination) {
+            if (_hasMoreToFetch()) {
+                NSArray primaryKeysToFetch = keysetPrimaryKeys;
+                keysetPrimaryKeys = null;
+                lastKeysetValue = nextKeysetValue;
+                NSArray<E> nextBatch = batchWithPrimaryKeys(primaryKeysToFetch, keysetSortOrderings());
+                currentObjectFetchCount += primaryKeysToFetch.count();
+                return nextBatch;
+            }
+        }
+        else if (hasNextBatch()) {
             NSRange range = _rangeForOffset(currentObjectFetchCount);
             NSArray<E> nextBatch = batchWithRange(range);
             currentObjectFetchCount += range.length();
@@ -355,15 +465,35 @@ public class ERXFetchSpecificationBatchIterator<E> implements Iterator<E>, Enume
         }
 
         NSArray<E> nextBatch = null;
-        NSRange range = requestedRange.rangeByIntersectingRange( new NSRange(0, count()) ); //intersect with legal range
+        NSArray primaryKeys = primaryKeys();
+        NSRange range = requestedRange.rangeByIntersectingRange( new NSRange(0, primaryKeys.count()) ); //intersect with legal range
         if ( range.length() > 0 ) {
-            NSArray primaryKeys = primaryKeys();
             NSArray primaryKeysToFetch = primaryKeys.subarrayWithRange(range);
 
             log.debug("Of primaryKey count: {} fetching range: {} which is: {}", primaryKeys.count(), range, primaryKeysToFetch.count());
 
+            nextBatch = batchWithPrimaryKeys(primaryKeysToFetch, fetchSpecification.sortOrderings());
+        }
+        return nextBatch != null ? nextBatch : NSArray.EmptyArray;
+    }
+
+    /**
+     * Fetches the objects with the given primary keys into the current editing
+     * context, filtering them if {@link #filtersBatches()} is set.
+     * @param primaryKeysToFetch primary key values of the objects to fetch
+     * @param sortOrderings sort orderings for the batch
+     * @return batch of enterprise objects
+     */
+    protected NSArray<E> batchWithPrimaryKeys(NSArray primaryKeysToFetch, NSArray<EOSortOrdering> sortOrderings) {
+        EOEditingContext ec = editingContext();
+        if ( ec == null) {
+            throw new IllegalStateException("ERXFetchSpecificationBatchIterator: Calling nextBatch with a null editing context!");
+        }
+
+        NSArray<E> nextBatch = null;
+        if ( primaryKeysToFetch.count() > 0 ) {
             ERXInQualifier qual = new ERXInQualifier(primaryKeyAttributeName, primaryKeysToFetch);
-            EOFetchSpecification batchFS = new EOFetchSpecification(fetchSpecification.entityName(), qual, fetchSpecification.sortOrderings());
+            EOFetchSpecification batchFS = new EOFetchSpecification(fetchSpecification.entityName(), qual, sortOrderings);
             if (fetchSpecification.prefetchingRelationshipKeyPaths() != null) {
             	batchFS.setPrefetchingRelationshipKeyPaths(fetchSpecification.prefetchingRelationshipKeyPaths());
             }
@@ -439,12 +569,131 @@ public class ERXFetchSpecificationBatchIterator<E> implements Iterator<E>, Enume
         return primaryKeys;
     }
     
+    /**
+     * Returns the sort orderings used in keyset mode, an ordering on the
+     * keyset attribute in the direction of the first sort ordering of the
+     * fetch specification if it is on the same attribute.
+     * @return sort orderings for keyset pagination
+     */
+    protected NSArray<EOSortOrdering> keysetSortOrderings() {
+        return new NSArray<>(EOSortOrdering.sortOrderingWithKey(keysetAttributeName, keysetDescending() ? EOSortOrdering.CompareDescending : EOSortOrdering.CompareAscending));
+    }
+
+    private boolean keysetDescending() {
+        NSArray<EOSortOrdering> sortOrderings = fetchSpecification.sortOrderings();
+        if (sortOrderings != null && sortOrderings.count() > 0) {
+            EOSortOrdering sortOrdering = sortOrderings.objectAtIndex(0);
+            if (keysetAttributeName.equals(sortOrdering.key())) {
+                return sortOrdering.selector() == EOSortOrdering.CompareDescending || sortOrdering.selector() == EOSortOrdering.CompareCaseInsensitiveDescending;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fetches the primary keys of the next batch in keyset mode, that is the
+     * first {@link #batchSize()} keys of the matching rows whose keyset attribute
+     * comes after the last one fetched.
+     * @return primary keys of the next batch
+     */
+    protected NSArray _fetchNextKeysetPrimaryKeys() {
+        EOEditingContext ec = editingContext();
+        if (ec == null) {
+            throw new IllegalStateException("ERXFetchSpecificationBatchIterator: Calling nextBatch with a null editing context!");
+        }
+        int limit = batchSize();
+        if (fetchSpecification.fetchLimit() > 0) {
+            limit = Math.min(limit, fetchSpecification.fetchLimit() - currentObjectFetchCount);
+        }
+        if (limit <= 0) {
+            keysetExhausted = true;
+            return NSArray.EmptyArray;
+        }
+
+        EOEntity entity = ERXEOAccessUtilities.entityNamed(ec, fetchSpecification.entityName());
+        EOQualifier qualifier = fetchSpecification.qualifier();
+        if (lastKeysetValue == null && fetchSpecification.sortOrderings() != null && fetchSpecification.sortOrderings().count() > 0
+                && !keysetAttributeName.equals(fetchSpecification.sortOrderings().objectAtIndex(0).key())) {
+            log.warn("Ignoring the sort orderings {} of the fetch specification, keyset pagination orders by {}.", fetchSpecification.sortOrderings(), keysetAttributeName);
+        }
+        if (lastKeysetValue != null) {
+            EOQualifier seekQualifier = new EOKeyValueQualifier(keysetAttributeName, keysetDescending() ? EOQualifier.QualifierOperatorLessThan : EOQualifier.QualifierOperatorGreaterThan, lastKeysetValue);
+            qualifier = qualifier != null ? new EOAndQualifier(new NSArray<>(new EOQualifier[] { qualifier, seekQualifier })) : seekQualifier;
+        }
+        EOFetchSpecification keyFetchSpec = new EOFetchSpecification(fetchSpecification.entityName(), qualifier, keysetSortOrderings());
+        keyFetchSpec.setIsDeep(fetchSpecification.isDeep());
+        keyFetchSpec.setUsesDistinct(fetchSpecification.usesDistinct());
+        keyFetchSpec.setFetchesRawRows(true);
+        NSMutableArray<String> keyPaths = new NSMutableArray<>(primaryKeyAttributeName);
+        if (!primaryKeyAttributeName.equals(keysetAttributeName)) {
+            keyPaths.addObject(keysetAttributeName);
+        }
+        keyFetchSpec.setRawRowKeyPaths(keyPaths);
+        boolean performDistinctInMemory = ERXSQLHelper.newSQLHelper(entity).shouldPerformDistinctInMemory(keyFetchSpec);
+        if (performDistinctInMemory) {
+            keyFetchSpec.setUsesDistinct(false);
+        }
+        EOSQLExpression expression = ERXEOAccessUtilities.sqlExpressionForFetchSpecification(ec, keyFetchSpec, 0, limit);
+        keyFetchSpec.setHints(new NSDictionary<>(expression, EODatabaseContext.CustomQueryExpressionHintKey));
+
+        log.debug("Fetching the next {} primary keys after {}.", limit, lastKeysetValue);
+        NSArray<NSDictionary> rows = ec.objectsWithFetchSpecification(keyFetchSpec);
+        if (rows.count() < limit) {
+            keysetExhausted = true;
+        }
+        if (rows.count() == 0) {
+            return NSArray.EmptyArray;
+        }
+        // a row with a null value would be skipped or returned again by the next seek
+        for (NSDictionary row : rows) {
+            Object value = row.objectForKey(keysetAttributeName);
+            if (value == null || value == NSKeyValueCoding.NullValue) {
+                throw new IllegalStateException("ERXFetchSpecificationBatchIterator: The keyset attribute '" + keysetAttributeName + "' must not be null.");
+            }
+        }
+        nextKeysetValue = rows.lastObject().objectForKey(keysetAttributeName);
+        NSArray keys = (NSArray) rows.valueForKey(primaryKeyAttributeName);
+        if (performDistinctInMemory) {
+            keys = ERXArrayUtilities.arrayWithoutDuplicates(keys);
+        }
+        return keys;
+    }
+
+    /**
+     * Counts the matching objects in keyset mode without fetching their keys.
+     * @return number of objects
+     */
+    protected int keysetCount() {
+        if (keysetCount == null) {
+            if (editingContext() == null)
+                throw new RuntimeException("Attempting to count the objects for a null editingContext");
+
+            String entityName = fetchSpecification.entityName();
+            EOQualifier qualifier = fetchSpecification.qualifier();
+            Integer count;
+            if (fetchSpecification.usesDistinct()) {
+                count = ERXEOControlUtilities.objectCountUniqueWithQualifierAndAttribute(editingContext(), entityName, qualifier, primaryKeyAttributeName);
+            }
+            else {
+                count = ERXEOControlUtilities.objectCountWithQualifier(editingContext(), entityName, qualifier);
+            }
+            int fetchLimit = fetchSpecification.fetchLimit();
+            keysetCount = fetchLimit > 0 ? Math.min(fetchLimit, count.intValue()) : count;
+        }
+        return keysetCount.intValue();
+    }
+
     /**
      * Resets the batch iterator so it will refetch its primary keys again.
+     * In keyset mode the keys are refetched starting after the last key
+     * returned.
      */
     public void reset() {
         primaryKeys = null;
         cachedBatch = null;
+        keysetPrimaryKeys = null;
+        keysetExhausted = false;
+        keysetCount = null;
     }
     
 	/**
@@ -507,6 +756,10 @@ public class ERXFetchSpecificationBatchIterator<E> implements Iterator<E>, Enume
 	public String toString() {
 		ToStringBuilder b = new ToStringBuilder(this);
 		b.append("PKs Initialized", primaryKeys == null ? "No" : "Yes");
+		if (usesKeysetPagination) {
+			b.append("keysetAttributeName", keysetAttributeName);
+			b.append("lastKeysetValue", lastKeysetValue);
+		}
 		if (primaryKeys != null) {
 			b.append("Count", primaryKeys.count());
 		}
@@ -3,10 +3,18 @@ package er.extensions.eof;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +29,7 @@ import com.webobjects.eocontrol.EOObjectStoreCoordinator;
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSForwardException;
+import com.webobjects.foundation.NSMutableDictionary;
 
 import er.extensions.foundation.ERXProperties;
 import er.extensions.foundation.ERXSystem;
@@ -53,6 +62,19 @@ import er.extensions.jdbc.ERXJDBCConnectionBroker;
  * <p>
  * <code>key=entityCode</code><br>
  * <code>value= %lt;%lt; an unique integer, no longer than 6 bit - 1</code>
+ * <h3>Adaptive blocks</h3>
+ * By default every entity gets blocks of <code>increaseBy</code> keys, which are refilled on the thread that needs
+ * the next key while all other inserting threads wait. If
+ * <code>er.extensions.ERXLongPrimaryKeyFactory.adaptiveBlocks</code> is set, keys are handed out without locking
+ * and the next block is reserved in the background when a quarter of the current block is left. The size of the
+ * blocks adapts to the allocation rate: a block that lasts less than half of <code>refillInterval</code> makes the
+ * next one twice as large (up to <code>maxIncreaseBy</code>), one that lasts more than twice as long halves it
+ * (down to <code>increaseBy</code>). {@link #statistics()} returns the allocation metrics per entity.
+ * 
+ * @property er.extensions.ERXLongPrimaryKeyFactory.increaseBy the number of keys reserved at once (defaults to 1000)
+ * @property er.extensions.ERXLongPrimaryKeyFactory.adaptiveBlocks whether to reserve adaptively sized blocks in the background (defaults to false)
+ * @property er.extensions.ERXLongPrimaryKeyFactory.maxIncreaseBy the largest number of keys an adaptive block reserves (defaults to 100000)
+ * @property er.extensions.ERXLongPrimaryKeyFactory.refillInterval the number of milliseconds an adaptive block should last (defaults to 60000)
  * 
  * @author david@cluster9.com
  */
@@ -68,8 +90,28 @@ public class ERXLongPrimaryKeyFactory {
 	private  Boolean         encodeHostInPkValue;
 	private  Integer 		hostCode;
 	private  Map<String, Stack> pkCache      = new Hashtable();
+	private final Map<String, KeyBlockAllocator> allocators = new ConcurrentHashMap<>();
 	
 	private  Integer increaseBy;
+	private  Boolean adaptiveBlocks;
+	private  Integer maxIncreaseBy;
+	private  Long refillInterval;
+
+	/**
+	 * Reserves the keys for the KeyBlockAllocators in the background.
+	 */
+	private static final ExecutorService refillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "ERXLongPrimaryKeyFactory");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Creates a factory with key caches of its own. The static methods use a shared factory, so this is only
+	 * needed to hand out keys like another application instance would.
+	 */
+	public ERXLongPrimaryKeyFactory() {
+	}
 	
 	private Long getNextPkValueForEntity(String ename) {
 		Long pk = cachedPkValue(ename);
@@ -166,18 +208,50 @@ public class ERXLongPrimaryKeyFactory {
 		return encodeHostInPkValue.booleanValue();
 	}
 
-	public synchronized static Object primaryKeyValue(String entityName) {
+	public static Object primaryKeyValue(String entityName) {
 		return factory().primaryKeyDictionary(entityName).objectEnumerator().nextElement();
 	}
 
-	public synchronized static NSDictionary primaryKeyDictionary(EOEnterpriseObject eo) {
+	public static NSDictionary primaryKeyDictionary(EOEnterpriseObject eo) {
 		String entityName = eo.entityName();
 		return factory().primaryKeyDictionary(entityName);
 	}
 
+	/**
+	 * Returns the allocation metrics of the adaptive blocks by entity name: the number of keys handed out, the
+	 * number of blocks reserved, how many of them were reserved in the background, how often and how long
+	 * threads had to wait for a block, the current block size and the keys left in the current block.
+	 * 
+	 * @return the statistics by entity name, empty unless adaptive blocks are enabled
+	 */
+	public static NSDictionary<String, NSDictionary<String, Object>> statistics() {
+		ERXLongPrimaryKeyFactory factory;
+		synchronized (ERXLongPrimaryKeyFactory.class) {
+			factory = _factory;
+		}
+		if (factory == null) {
+			return NSDictionary.emptyDictionary();
+		}
+		return factory.blockStatistics();
+	}
+
+	/**
+	 * Returns the allocation metrics of the adaptive blocks of this factory by entity name.
+	 * 
+	 * @return the statistics by entity name, empty unless adaptive blocks are enabled
+	 * @see #statistics()
+	 */
+	public NSDictionary<String, NSDictionary<String, Object>> blockStatistics() {
+		NSMutableDictionary<String, NSDictionary<String, Object>> statistics = new NSMutableDictionary<>();
+		for (KeyBlockAllocator allocator : allocators.values()) {
+			statistics.setObjectForKey(allocator.statistics(), allocator.entityName);
+		}
+		return statistics;
+	}
+
 	private static ERXLongPrimaryKeyFactory _factory;
 
-	private static ERXLongPrimaryKeyFactory factory() {
+	private synchronized static ERXLongPrimaryKeyFactory factory() {
 		if(_factory == null) {
 			_factory = new ERXLongPrimaryKeyFactory();
 			if(_factory.encodeEntityInPkValue()) {
@@ -187,7 +261,14 @@ public class ERXLongPrimaryKeyFactory {
 		return _factory;
 	}
 
-	private NSDictionary primaryKeyDictionary(String entityName) {
+	/**
+	 * Returns a primary key dictionary with a new key for the given entity from the keys cached by this factory.
+	 * 
+	 * @param entityName
+	 *            the name of the entity, subentities get the keys of their root entity
+	 * @return the primary key dictionary
+	 */
+	public NSDictionary primaryKeyDictionary(String entityName) {
 		EOEntity entity = EOModelGroup.defaultGroup().entityNamed(entityName);
 		while (entity.parentEntity() != null) {
 			entity = entity.parentEntity();
@@ -252,34 +333,33 @@ public class ERXLongPrimaryKeyFactory {
 				}
 
 				for(int tries = 0; tries < count; tries++) {
-					try {
-						ResultSet resultSet = con.createStatement().executeQuery("select pk_value from pk_table " + where);
-						con.commit();
-
-						boolean hasNext = resultSet.next();
-						long pk = 1;
-						if (hasNext) {
-							pk = resultSet.getLong("pk_value");
-							// now execute the update
-							con.createStatement().executeUpdate("update pk_table set pk_value = " + (pk+increasePkBy) + " " + where);
+					try (Statement statement = con.createStatement()) {
+						// increment first, so the row stays locked until the commit and no other
+						// instance can read the same value in between
+						long pk;
+						if (statement.executeUpdate("update pk_table set pk_value = pk_value + " + increasePkBy + " " + where) > 0) {
+							try (ResultSet resultSet = statement.executeQuery("select pk_value from pk_table " + where)) {
+								resultSet.next();
+								pk = resultSet.getLong("pk_value") - increasePkBy;
+							}
 						} else {
 							pk = maxIdFromTable(entityName);
 							// first time, we need to set i up
-							con.createStatement().executeUpdate("insert into pk_table (eoentity_name, pk_value) values ('" + entityName + "', " + (pk+increasePkBy) + ")");
+							statement.executeUpdate("insert into pk_table (eoentity_name, pk_value) values ('" + entityName + "', " + (pk+increasePkBy) + ")");
 						}
 						con.commit();
 						return Long.valueOf(pk);
 					} catch(SQLException ex) {
-						String s = ex.getMessage().toLowerCase();
+						String s = ex.getMessage() == null ? "" : ex.getMessage().toLowerCase();
 						boolean creationError = (s.indexOf("error code 116") != -1); // frontbase?
 						creationError |= (s.indexOf("pk_table") != -1 && s.indexOf("does not exist") != -1); // postgres ?
 						creationError |= s.indexOf("ora-00942") != -1; // oracle
 						if (creationError) {
-							try {
+							try (Statement statement = con.createStatement()) {
 								con.rollback();
 								log.info("creating pk table");
-								con.createStatement().executeUpdate("create table pk_table (eoentity_name varchar(100) not null, pk_value integer)");
-								con.createStatement().executeUpdate("alter table pk_table add primary key (eoentity_name)");// NOT
+								statement.executeUpdate("create table pk_table (eoentity_name varchar(100) not null, pk_value integer)");
+								statement.executeUpdate("alter table pk_table add primary key (eoentity_name)");// NOT
 								// DEFERRABLE
 								// INITIALLY
 								// IMMEDIATE");
@@ -287,6 +367,14 @@ public class ERXLongPrimaryKeyFactory {
 							} catch (SQLException ee) {
 								throw new NSForwardException(ee, "could not create pk table");
 							}
+						} else if (tries < count - 1) {
+							// another instance inserted the row for this entity first or the row was deadlocked
+							log.debug("Retrying to get a PK for {}.", entityName, ex);
+							try {
+								con.rollback();
+							} catch (SQLException ee) {
+								throw new NSForwardException(ee, "Error fetching PK");
+							}
 						} else {
 							throw new NSForwardException(ex, "Error fetching PK");
 						}
@@ -353,6 +441,15 @@ public class ERXLongPrimaryKeyFactory {
 	 * @return a new Integer based primary key for the specified entity.
 	 */
 	private Long cachedPkValue(String ename) {
+		if (adaptiveBlocks()) {
+			return Long.valueOf(allocator(ename).nextValue());
+		}
+		synchronized (ERXLongPrimaryKeyFactory.class) {
+			return stackPkValue(ename);
+		}
+	}
+
+	private Long stackPkValue(String ename) {
 		Stack s = cacheStack(ename);
 		if (s.empty()) {
 			synchronized (s) {
@@ -416,4 +513,149 @@ public class ERXLongPrimaryKeyFactory {
 		return increaseBy.intValue();
 	}
 
+	private boolean adaptiveBlocks() {
+		if (adaptiveBlocks == null) {
+			adaptiveBlocks = Boolean.valueOf(ERXProperties.booleanForKeyWithDefault("er.extensions.ERXLongPrimaryKeyFactory.adaptiveBlocks", false));
+		}
+		return adaptiveBlocks.booleanValue();
+	}
+
+	private int maxIncreaseBy() {
+		if (maxIncreaseBy == null) {
+			maxIncreaseBy = Integer.valueOf(Math.max(increaseBy(), ERXProperties.intForKeyWithDefault("er.extensions.ERXLongPrimaryKeyFactory.maxIncreaseBy", 100000)));
+		}
+		return maxIncreaseBy.intValue();
+	}
+
+	private long refillInterval() {
+		if (refillInterval == null) {
+			refillInterval = Long.valueOf(ERXProperties.longForKeyWithDefault("er.extensions.ERXLongPrimaryKeyFactory.refillInterval", 60000L));
+		}
+		return refillInterval.longValue();
+	}
+
+	private KeyBlockAllocator allocator(String ename) {
+		return allocators.computeIfAbsent(ename, KeyBlockAllocator::new);
+	}
+
+	/**
+	 * A range of reserved keys. The keys from next up to, but excluding, limit are left.
+	 */
+	private static class KeyBlock {
+		final AtomicLong next;
+		final long limit;
+		final long refillMark;
+
+		KeyBlock(long first, long size) {
+			next = new AtomicLong(first);
+			limit = first + size;
+			refillMark = limit - Math.max(1L, size / 4L);
+		}
+	}
+
+	/**
+	 * Hands out the keys of one entity without locking. Only the thread that takes the key at the refill mark
+	 * schedules the reservation of the next block, and only the threads that find the block exhausted lock to
+	 * switch to the next one.
+	 */
+	private class KeyBlockAllocator {
+		final String entityName;
+		private volatile KeyBlock block = new KeyBlock(0L, 0L);
+		private CompletableFuture<KeyBlock> nextBlock;
+		private int blockSize;
+		private long blockStartTime;
+		private final LongAdder allocated = new LongAdder();
+		private final AtomicLong refills = new AtomicLong();
+		private final AtomicLong backgroundRefills = new AtomicLong();
+		private final AtomicLong waits = new AtomicLong();
+		private final AtomicLong waitNanos = new AtomicLong();
+
+		KeyBlockAllocator(String entityName) {
+			this.entityName = entityName;
+			blockSize = increaseBy();
+		}
+
+		long nextValue() {
+			while (true) {
+				KeyBlock current = block;
+				long value = current.next.getAndIncrement();
+				if (value < current.limit) {
+					allocated.increment();
+					if (value == current.refillMark) {
+						reserveNextBlock();
+					}
+					return value;
+				}
+				switchBlock(current);
+			}
+		}
+
+		private synchronized void reserveNextBlock() {
+			if (nextBlock == null) {
+				int size = blockSize;
+				nextBlock = CompletableFuture.supplyAsync(() -> reserveBlock(size), refillExecutor);
+			}
+		}
+
+		private synchronized void switchBlock(KeyBlock exhausted) {
+			if (block != exhausted) {
+				return;
+			}
+			long startTime = System.nanoTime();
+			CompletableFuture<KeyBlock> reservation = nextBlock;
+			nextBlock = null;
+			KeyBlock reserved = null;
+			if (reservation != null) {
+				try {
+					reserved = reservation.get();
+					backgroundRefills.incrementAndGet();
+				}
+				catch (Exception e) {
+					log.error("Could not reserve keys for {} in the background, trying again.", entityName, e);
+				}
+			}
+			if (reserved == null) {
+				reserved = reserveBlock(blockSize);
+			}
+			long now = System.nanoTime();
+			if (reservation == null || now - startTime > TimeUnit.MILLISECONDS.toNanos(1L)) {
+				waits.incrementAndGet();
+				waitNanos.addAndGet(now - startTime);
+			}
+			if (blockStartTime != 0L) {
+				long lifetime = TimeUnit.NANOSECONDS.toMillis(now - blockStartTime);
+				if (lifetime < refillInterval() / 2L) {
+					blockSize = (int) Math.min((long) blockSize * 2L, maxIncreaseBy());
+				}
+				else if (lifetime > refillInterval() * 2L) {
+					blockSize = Math.max(blockSize / 2, increaseBy());
+				}
+			}
+			blockStartTime = now;
+			block = reserved;
+		}
+
+		private KeyBlock reserveBlock(int size) {
+			Long pkValueStart = getNextPkValueForEntityIncreaseBy(entityName, 10, size);
+			refills.incrementAndGet();
+			log.debug("reserved {} keys for {}, starting at {}", size, entityName, pkValueStart);
+			return new KeyBlock(pkValueStart.longValue() + 1L, size);
+		}
+
+		NSDictionary<String, Object> statistics() {
+			KeyBlock current = block;
+			NSMutableDictionary<String, Object> statistics = new NSMutableDictionary<>();
+			statistics.setObjectForKey(Long.valueOf(allocated.sum()), "allocated");
+			statistics.setObjectForKey(Long.valueOf(refills.get()), "refills");
+			statistics.setObjectForKey(Long.valueOf(backgroundRefills.get()), "backgroundRefills");
+			statistics.setObjectForKey(Long.valueOf(waits.get()), "waits");
+			statistics.setObjectForKey(Long.valueOf(TimeUnit.NANOSECONDS.toMillis(waitNanos.get())), "waitMillis");
+			synchronized (this) {
+				statistics.setObjectForKey(Integer.valueOf(blockSize), "blockSize");
+			}
+			statistics.setObjectForKey(Long.valueOf(Math.max(0L, current.limit - current.next.get())), "remaining");
+			return statistics;
+		}
+	}
+
 }
\ No newline at end of file
@@ -6,6 +6,9 @@ import java.io.StringWriter;
 import java.util.Collections;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.log4j.Logger;
@@ -15,12 +18,15 @@ import sun.misc.SignalHandler;
 
 import com.webobjects.eocontrol.EOCooperatingObjectStore;
 import com.webobjects.eocontrol.EOObjectStoreCoordinator;
+import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
 
 
 /**
  * Adds functionality to automatically close all related JDBC Connections. Also has open-lock debugging.
+ * Keeps track of the time threads wait for and hold the lock and of the number of editing contexts
+ * using this coordinator, so the {@link ERXObjectStoreCoordinatorPool} can pick the least busy one.
  * @author david
  * @author ak
  */
@@ -38,6 +44,23 @@ public class ERXObjectStoreCoordinator extends EOObjectStoreCoordinator {
 
 	private long lockCount = 0;
 
+	/** Weight of the latest sample in the moving averages of the wait and hold times. */
+	private static final double AVERAGE_WEIGHT = 0.1;
+
+	private final AtomicInteger waitingThreads = new AtomicInteger();
+	private final AtomicInteger activeEditingContexts = new AtomicInteger();
+	private final LongAdder locks = new LongAdder();
+	private final LongAdder contendedLocks = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final LongAdder holdNanos = new LongAdder();
+	private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0L);
+	private final LongAccumulator maxHoldNanos = new LongAccumulator(Math::max, 0L);
+	private volatile double averageWaitNanos;
+	private volatile double averageHoldNanos;
+	private long lockTime;
+	private volatile boolean locked;
+	private volatile long unlockTime;
+
 	public boolean _didClose = false;
 	
 	public boolean _shouldClose = false;
@@ -115,8 +138,19 @@ public class ERXObjectStoreCoordinator extends EOObjectStoreCoordinator {
 		if (tracing) {
 			traceLock();
 		}
-		super.lock();
+		long waitStart = System.nanoTime();
+		waitingThreads.incrementAndGet();
+		try {
+			super.lock();
+		} finally {
+			waitingThreads.decrementAndGet();
+		}
 		lockCount++;
+		if (lockCount == 1) {
+			lockTime = System.nanoTime();
+			locked = true;
+			recordWait(lockTime - waitStart);
+		}
 		lockingThread = Thread.currentThread();
 		lockingThreadName = lockingThread.getName();
 		//log.error("locked: " + lockingThread);
@@ -144,12 +178,114 @@ public class ERXObjectStoreCoordinator extends EOObjectStoreCoordinator {
 			}
 		}
 		lockCount--;
+		if (lockCount == 0) {
+			locked = false;
+			unlockTime = System.nanoTime();
+			recordHold(unlockTime - lockTime);
+		}
 		if (tracing) {
 			traceUnlock();
 		}
 		super.unlock();
 	}
 
+	private void recordWait(long nanos) {
+		locks.increment();
+		// an uncontended lock takes well below a tenth of a millisecond
+		if (nanos > 100000L) {
+			contendedLocks.increment();
+		}
+		waitNanos.add(nanos);
+		maxWaitNanos.accumulate(nanos);
+		averageWaitNanos += (nanos - averageWaitNanos) * AVERAGE_WEIGHT;
+	}
+
+	private void recordHold(long nanos) {
+		holdNanos.add(nanos);
+		maxHoldNanos.accumulate(nanos);
+		averageHoldNanos += (nanos - averageHoldNanos) * AVERAGE_WEIGHT;
+	}
+
+	/**
+	 * Called by ERXEC when an editing context with this coordinator as its
+	 * root object store is created.
+	 */
+	public void _editingContextDidCreate() {
+		activeEditingContexts.incrementAndGet();
+	}
+
+	/**
+	 * Called by ERXEC when an editing context with this coordinator as its
+	 * root object store is disposed or finalized.
+	 */
+	public void _editingContextDidDispose() {
+		activeEditingContexts.decrementAndGet();
+	}
+
+	/**
+	 * @return the number of editing contexts using this coordinator that are not disposed or finalized yet
+	 */
+	public int activeEditingContexts() {
+		return activeEditingContexts.get();
+	}
+
+	/**
+	 * @return the number of threads that are waiting for the lock
+	 */
+	public int waitingThreads() {
+		return waitingThreads.get();
+	}
+
+	/**
+	 * @return the moving average of the time threads waited for the lock in milliseconds
+	 */
+	public double averageWaitMillis() {
+		return averageWaitNanos / 1000000.0;
+	}
+
+	/**
+	 * @return the moving average of the time the lock was held in milliseconds
+	 */
+	public double averageHoldMillis() {
+		return averageHoldNanos / 1000000.0;
+	}
+
+	/**
+	 * Estimates how busy this coordinator is: the number of threads holding or
+	 * waiting for the lock times the average hold time, plus the average wait
+	 * time of the recent locks. A coordinator that has not been locked for a
+	 * second has a load of 0, so an old burst doesn't keep it from being used.
+	 * 
+	 * @return the estimated time in milliseconds a new request would wait for the lock
+	 */
+	public double load() {
+		int queued = waitingThreads.get() + (locked ? 1 : 0);
+		if (queued == 0 && System.nanoTime() - unlockTime > 1000000000L) {
+			return 0;
+		}
+		return queued * (averageHoldMillis() + 1) + averageWaitMillis();
+	}
+
+	/**
+	 * @return the lock contention statistics of this coordinator
+	 */
+	public NSDictionary<String, Object> statistics() {
+		NSMutableDictionary<String, Object> statistics = new NSMutableDictionary<>();
+		statistics.setObjectForKey(name(), "name");
+		statistics.setObjectForKey(Long.valueOf(locks.sum()), "locks");
+		statistics.setObjectForKey(Long.valueOf(contendedLocks.sum()), "contendedLocks");
+		statistics.setObjectForKey(Integer.valueOf(waitingThreads.get()), "waitingThreads");
+		statistics.setObjectForKey(Integer.valueOf(activeEditingContexts.get()), "activeEditingContexts");
+		statistics.setObjectForKey(Long.valueOf(waitNanos.sum() / 1000000L), "waitMillis");
+		statistics.setObjectForKey(Long.valueOf(maxWaitNanos.get() / 1000000L), "maxWaitMillis");
+		statistics.setObjectForKey(Long.valueOf(holdNanos.sum() / 1000000L), "holdMillis");
+		statistics.setObjectForKey(Long.valueOf(maxHoldNanos.get() / 1000000L), "maxHoldMillis");
+		statistics.setObjectForKey(Double.valueOf(averageWaitMillis()), "averageWaitMillis");
+		statistics.setObjectForKey(Double.valueOf(averageHoldMillis()), "averageHoldMillis");
+		statistics.setObjectForKey(Double.valueOf(load()), "load");
+		return statistics;
+	}
+
 
 	@Override
 	public void addCooperatingObjectStore(EOCooperatingObjectStore objectStore) {
@@ -2,10 +2,10 @@ package er.extensions.eof;
 
 
 import java.lang.reflect.Constructor;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.log4j.Logger;
 
@@ -14,6 +14,10 @@ import com.webobjects.eocontrol.EOEditingContext;
 import com.webobjects.eocontrol.EOObjectStore;
 import com.webobjects.eocontrol.EOObjectStoreCoordinator;
 import com.webobjects.eocontrol.EOSharedEditingContext;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSNotification;
 import com.webobjects.foundation.NSNotificationCenter;
 import com.webobjects.foundation.NSSelector;
@@ -30,11 +34,25 @@ import er.extensions.foundation.ERXThreadStorage;
  * Each Session will become one EOObjectStoreCoordinator and the method 
  * <code>newEditingContext</code> will always return an <code>EOEditingContext</code> 
  * with the same <code>EOObjectStoreCoordinator</code> for the same <code>WOSession</code>. 
- * This first release uses round-robin pooling, future versions might use better algorithms 
- * to decide which <code>EOObjectStoreCoordinator</code> will be used for the next new 
- * <code>WOSession</code>.<br>The code is tested in a heavy  multithreaded application 
+ * By default the coordinators are handed out round-robin, with the <code>leastBusy</code> 
+ * strategy the coordinator with the lowest {@link ERXObjectStoreCoordinator#load()} is 
+ * picked instead, based on the lock wait and hold times and the number of active editing 
+ * contexts. The pool can also grow at runtime when even the least busy coordinator has 
+ * a high lock wait time for some time.<br>The code is tested in a heavy  multithreaded application 
  * and afawk no deadlock occures, neither in EOF nor directly in Java.
  * 
+ * @property er.extensions.ERXObjectStoreCoordinatorPool.maxCoordinators the initial number of coordinators
+ * @property er.extensions.ERXObjectStoreCoordinatorPool.strategy <code>roundRobin</code> (default) or <code>leastBusy</code>
+ * @property er.extensions.ERXObjectStoreCoordinatorPool.rebalanceStatelessRequests if true, editing contexts created outside 
+ *           of a session get the least busy coordinator even with the <code>roundRobin</code> strategy. It is picked when the 
+ *           first editing context of a request or thread is created and kept for the others, defaults to false
+ * @property er.extensions.ERXObjectStoreCoordinatorPool.maxCoordinatorsLimit the number of coordinators the pool may grow to, 
+ *           defaults to maxCoordinators (no growth)
+ * @property er.extensions.ERXObjectStoreCoordinatorPool.growthWaitThreshold the expected lock wait time in milliseconds 
+ *           of the least busy coordinator that triggers growth, defaults to 50
+ * @property er.extensions.ERXObjectStoreCoordinatorPool.growthInterval the time in milliseconds the wait time has to stay 
+ *           above the threshold before a coordinator is added, defaults to 30000
+ * 
  * @author David Teran, Frank Caputo @ cluster9
  */
 public class ERXObjectStoreCoordinatorPool {
@@ -44,9 +62,16 @@ public class ERXObjectStoreCoordinatorPool {
     private Map<String, EOObjectStore> _oscForSession;
     private int _maxObjectStoreCoordinators;
     private int _currentObjectStoreIndex;
-    private List<EOObjectStoreCoordinator> _objectStores;
+    private volatile List<EOObjectStoreCoordinator> _objectStores;
     private List<EOSharedEditingContext> _sharedEditingContexts;
+    private Constructor<? extends EOSharedEditingContext> _sharedEditingContextConstructor;
     private Object _lock = new Object();
+    private boolean _leastBusy;
+    private boolean _rebalanceStatelessRequests;
+    private int _maxObjectStoreCoordinatorsLimit;
+    private double _growthWaitThreshold;
+    private long _growthInterval;
+    private long _highWaitSince;
     private static ERXObjectStoreCoordinatorPool _sharedObjectStoreCoordinatorPool;
 
     public static ERXObjectStoreCoordinatorPool _pool() {
@@ -89,7 +114,12 @@ public class ERXObjectStoreCoordinatorPool {
             log.warn("Registering the pool with only one coordinator doesn't make a lot of sense.");
             _maxObjectStoreCoordinators = 1;
         }
-        _oscForSession = new HashMap<>();
+        _oscForSession = new ConcurrentHashMap<>();
+        _leastBusy = "leastBusy".equals(ERXProperties.stringForKeyWithDefault("er.extensions.ERXObjectStoreCoordinatorPool.strategy", "roundRobin"));
+        _rebalanceStatelessRequests = ERXProperties.booleanForKeyWithDefault("er.extensions.ERXObjectStoreCoordinatorPool.rebalanceStatelessRequests", false);
+        _maxObjectStoreCoordinatorsLimit = Math.max(_maxObjectStoreCoordinators, ERXProperties.intForKeyWithDefault("er.extensions.ERXObjectStoreCoordinatorPool.maxCoordinatorsLimit", _maxObjectStoreCoordinators));
+        _growthWaitThreshold = ERXProperties.intForKeyWithDefault("er.extensions.ERXObjectStoreCoordinatorPool.growthWaitThreshold", 50);
+        _growthInterval = ERXProperties.longForKeyWithDefault("er.extensions.ERXObjectStoreCoordinatorPool.growthInterval", 30000L);
         
         NSNotificationCenter.defaultCenter().addObserver(this, new NSSelector/*<Void>*/("sessionDidCreate", ERXConstant.NotificationClassArray), WOSession.SessionDidCreateNotification, null);
         NSNotificationCenter.defaultCenter().addObserver(this, new NSSelector/*<Void>*/("sessionDidTimeout", ERXConstant.NotificationClassArray), WOSession.SessionDidTimeOutNotification, null);
@@ -102,9 +132,7 @@ public class ERXObjectStoreCoordinatorPool {
      */
     public void sessionDidCreate(NSNotification n) {
         WOSession s = (WOSession) n.object();
-        if (_oscForSession.get(s.sessionID()) == null) {
-            _oscForSession.put(s.sessionID(), currentThreadObjectStore());
-        }
+        _oscForSession.computeIfAbsent(s.sessionID(), sessionID -> currentThreadObjectStore());
     }
     
     /** Removes the timed out session from the internal array.
@@ -133,13 +161,11 @@ public class ERXObjectStoreCoordinatorPool {
         String sessionID = sessionID();
         EOObjectStore os = null;
         if (sessionID != null) {
-            os = _oscForSession.get(sessionID);
-            if (os == null) {
-            	os = currentThreadObjectStore();
-                _oscForSession.put(sessionID, os);
-            }
+            os = _oscForSession.computeIfAbsent(sessionID, id -> currentThreadObjectStore());
         } else {
-        	os = currentThreadObjectStore();
+            // the editing contexts of a request or thread may hand objects to each other,
+            // so they all have to use the same coordinator
+            os = currentThreadObjectStore(_rebalanceStatelessRequests);
         }
         return os;
     }
@@ -150,9 +176,19 @@ public class ERXObjectStoreCoordinatorPool {
      * @return the object store for the current thread
      */
     protected EOObjectStore currentThreadObjectStore() {
+    	return currentThreadObjectStore(false);
+    }
+
+    /**
+     * Returns the object store for the current thread (or requests one and sets it if there isn't one).
+     * 
+     * @param leastBusy if true, a new object store is picked by load regardless of the strategy
+     * @return the object store for the current thread
+     */
+    protected EOObjectStore currentThreadObjectStore(boolean leastBusy) {
     	EOObjectStore os = (EOObjectStore) ERXThreadStorage.valueForKey(ERXObjectStoreCoordinatorPool.THREAD_OSC_KEY);
     	if (os == null) {
-    		os = nextObjectStore();
+    		os = leastBusy ? leastBusyObjectStore() : nextObjectStore();
     		if (os != null) {
     			ERXThreadStorage.takeValueForKey(os, ERXObjectStoreCoordinatorPool.THREAD_OSC_KEY);
     		}
@@ -162,20 +198,140 @@ public class ERXObjectStoreCoordinatorPool {
     
     /** 
      * Lazy initialises the objectStores and then returns the next one, 
-     * this is based on round robin.
-     * @return the next EOObjectStore based on round robin
+     * this is based on round robin or, with the <code>leastBusy</code> strategy,
+     * on the load of the coordinators.
+     * @return the next EOObjectStore
      */
     public EOObjectStore nextObjectStore() {
-        synchronized (_lock) {
-            if (_objectStores == null) {
-                _initObjectStores();
+        if (_leastBusy) {
+            return leastBusyObjectStore();
+        }
+        List<EOObjectStoreCoordinator> objectStores = initializedObjectStores();
+        return objectStores.get(nextObjectStoreIndex(objectStores));
+    }
+
+    /**
+     * Lazy initialises the objectStores and then returns the one with the lowest load.
+     * @return the least busy EOObjectStore
+     */
+    public EOObjectStore leastBusyObjectStore() {
+        List<EOObjectStoreCoordinator> objectStores = initializedObjectStores();
+        EOObjectStoreCoordinator os = leastBusyObjectStore(objectStores, nextObjectStoreIndex(objectStores));
+        checkGrowth(os);
+        return os;
+    }
+
+    private List<EOObjectStoreCoordinator> initializedObjectStores() {
+        List<EOObjectStoreCoordinator> objectStores = _objectStores;
+        if (objectStores == null) {
+            synchronized (_lock) {
+                if (_objectStores == null) {
+                    _initObjectStores();
+                }
+                objectStores = _objectStores;
             }
-            if (_currentObjectStoreIndex == _maxObjectStoreCoordinators) {
+        }
+        return objectStores;
+    }
+
+    private int nextObjectStoreIndex(List<EOObjectStoreCoordinator> objectStores) {
+        synchronized (_lock) {
+            if (_currentObjectStoreIndex >= objectStores.size()) {
                 _currentObjectStoreIndex = 0;
             }
-            EOObjectStore os = _objectStores.get(_currentObjectStoreIndex++);
-        	return os;
+            return _currentObjectStoreIndex++;
+        }
+    }
+
+    /**
+     * Returns the coordinator with the lowest load. The scan begins at the given index so 
+     * that idle coordinators are still handed out in turn.
+     * 
+     * @param objectStores the coordinators to choose from
+     * @param start the index to start the scan at
+     * @return the least busy coordinator
+     */
+    protected EOObjectStoreCoordinator leastBusyObjectStore(List<EOObjectStoreCoordinator> objectStores, int start) {
+        int count = objectStores.size();
+        EOObjectStoreCoordinator best = null;
+        double bestLoad = Double.MAX_VALUE;
+        int bestEditingContexts = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            EOObjectStoreCoordinator os = objectStores.get((start + i) % count);
+            if (!(os instanceof ERXObjectStoreCoordinator)) {
+                return os;
+            }
+            ERXObjectStoreCoordinator osc = (ERXObjectStoreCoordinator) os;
+            double load = osc.load();
+            int editingContexts = osc.activeEditingContexts();
+            if (load < bestLoad || (load == bestLoad && editingContexts < bestEditingContexts)) {
+                best = osc;
+                bestLoad = load;
+                bestEditingContexts = editingContexts;
+            }
         }
+        return best;
+    }
+
+    /**
+     * Adds a coordinator if even the least busy one had a load (the expected lock wait 
+     * time) above the growth threshold for the whole growth interval.
+     * 
+     * @param leastBusy the least busy coordinator
+     */
+    protected void checkGrowth(EOObjectStoreCoordinator leastBusy) {
+        if (_objectStores.size() >= _maxObjectStoreCoordinatorsLimit || !(leastBusy instanceof ERXObjectStoreCoordinator)) {
+            return;
+        }
+        double load = ((ERXObjectStoreCoordinator) leastBusy).load();
+        synchronized (_lock) {
+            if (load < _growthWaitThreshold) {
+                _highWaitSince = 0;
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (_highWaitSince == 0) {
+                _highWaitSince = now;
+            }
+            else if (now - _highWaitSince >= _growthInterval && _objectStores.size() < _maxObjectStoreCoordinatorsLimit) {
+                _highWaitSince = 0;
+                log.info("Expected lock wait time is " + load + "ms, adding coordinator #" + (_objectStores.size() + 1) + ".");
+                _addObjectStore();
+            }
+        }
+    }
+
+    /**
+     * @return the coordinators of this pool
+     */
+    public NSArray<EOObjectStoreCoordinator> objectStores() {
+        List<EOObjectStoreCoordinator> objectStores = _objectStores;
+        return objectStores == null ? NSArray.<EOObjectStoreCoordinator>emptyArray() : new NSArray<>(objectStores);
+    }
+
+    /**
+     * Returns the contention statistics of the coordinators, see 
+     * {@link ERXObjectStoreCoordinator#statistics()}.
+     * 
+     * @return an array with one dictionary per coordinator
+     */
+    public NSArray<NSDictionary<String, Object>> statistics() {
+        NSMutableArray<NSDictionary<String, Object>> statistics = new NSMutableArray<>();
+        for (EOObjectStoreCoordinator os : objectStores()) {
+            if (os instanceof ERXObjectStoreCoordinator) {
+                NSDictionary<String, Object> oscStatistics = ((ERXObjectStoreCoordinator) os).statistics();
+                int sessions = 0;
+                for (EOObjectStore sessionObjectStore : _oscForSession.values()) {
+                    if (sessionObjectStore == os) {
+                        sessions++;
+                    }
+                }
+                NSMutableDictionary<String, Object> entry = oscStatistics.mutableClone();
+                entry.setObjectForKey(Integer.valueOf(sessions), "sessions");
+                statistics.addObject(entry);
+            }
+        }
+        return statistics;
     }
     
     public EOSharedEditingContext sharedEditingContextForObjectStore(EOObjectStore os) {
@@ -268,26 +424,42 @@ public class ERXObjectStoreCoordinatorPool {
 
     private void _initObjectStores() {
         log.info("initializing Pool...");
-        _objectStores = new ArrayList<>(_maxObjectStoreCoordinators);
-        _sharedEditingContexts = new ArrayList<>(_maxObjectStoreCoordinators);
+        List<EOObjectStoreCoordinator> objectStores = new CopyOnWriteArrayList<>();
+        _sharedEditingContexts = new CopyOnWriteArrayList<>();
 
         String className = ERXProperties.stringForKeyWithDefault("EOSharedEditingContext.defaultSharedEditingContextClassName", EOSharedEditingContext.class.getName()); //should really be "...defaultDefault..."
         try {
-            Constructor<? extends EOSharedEditingContext> sharedEditingContextConstructor = Class.forName(className).asSubclass(EOSharedEditingContext.class).getConstructor(EOObjectStore.class);
+            _sharedEditingContextConstructor = Class.forName(className).asSubclass(EOSharedEditingContext.class).getConstructor(EOObjectStore.class);
             for (int i = 0; i < _maxObjectStoreCoordinators; i++) {
-                EOObjectStoreCoordinator os = ERXObjectStoreCoordinator.create();
-                _objectStores.add(os);
-                _sharedEditingContexts.add(sharedEditingContextConstructor.newInstance(os));
+                _addObjectStore(objectStores);
             }
             if(_maxObjectStoreCoordinators > 0) {
-                EOObjectStoreCoordinator.setDefaultCoordinator(_objectStores.get(0));
+                EOObjectStoreCoordinator.setDefaultCoordinator(objectStores.get(0));
             }
         }
         catch (Exception e) {
             throw new IllegalStateException("Unable to create defaultSharedEditingContext with className = " + className, e);
         }
+        _objectStores = objectStores;
 
         log.info("initializing Pool finished");
      }
+
+    private void _addObjectStore() {
+        try {
+            _addObjectStore(_objectStores);
+        }
+        catch (Exception e) {
+            log.error("Unable to add a coordinator to the pool.", e);
+        }
+    }
+
+    private void _addObjectStore(List<EOObjectStoreCoordinator> objectStores) throws Exception {
+        EOObjectStoreCoordinator os = ERXObjectStoreCoordinator.create();
+        EOSharedEditingContext sharedEditingContext = _sharedEditingContextConstructor.newInstance(os);
+        // the shared editing context has to be there before the coordinator can be handed out
+        _sharedEditingContexts.add(sharedEditingContext);
+        objectStores.add(os);
+    }
 }
 
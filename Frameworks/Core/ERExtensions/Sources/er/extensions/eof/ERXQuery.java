@@ -7,8 +7,10 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.StringTokenizer;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -806,24 +808,9 @@ public class ERXQuery {
 		
 		// Array to hold fetched records
 		final NSMutableArray<T> records = new NSMutableArray<>();
-		boolean removeForeignKeysFromRowValues = ERXProperties.booleanForKeyWithDefault("er.extensions.eof.ERXQuery.removeForeignKeysFromRowValues", true);
+		boolean removeForeignKeysFromRowValues = removeForeignKeysFromRowValues();
 		for (NSMutableDictionary<String, Object> row : rows) {
-			// Replace any foreign keys with their corresponding relationship keys
-			// and the enterprise object as the value.
-			for (RelationshipKeyInfo relKeyInfo : relationshipKeysSet.allObjects()) {
-				Object eo = null;
-				String entityName = relKeyInfo.entityName();
-				String relationshipKey = relKeyInfo.relationshipKeyPath();
-				String foreignKey = relKeyInfo.sourceAttributeKeyPath();
-				Object primaryKeyValue = row.objectForKey(foreignKey);
-				if (primaryKeyValue != NSKeyValueCoding.NullValue) {
-					eo = ERXEOControlUtilities.objectWithPrimaryKeyValue(ec, entityName, primaryKeyValue, null, refreshRefetchedObjects);
-					row.setObjectForKey(eo, relationshipKey);
-				}
-				if (removeForeignKeysFromRowValues) {
-					row.removeObjectForKey(foreignKey);
-				}
-			}
+			replaceForeignKeysWithObjects(ec, row, removeForeignKeysFromRowValues);
 			T obj = recordConstructor.constructRecord(ec, row); 
 			records.addObject(obj);
 		}
@@ -831,6 +818,163 @@ public class ERXQuery {
 		return records;
 	}
 	
+	protected static boolean removeForeignKeysFromRowValues() {
+		return ERXProperties.booleanForKeyWithDefault("er.extensions.eof.ERXQuery.removeForeignKeysFromRowValues", true);
+	}
+	
+	/**
+	 * Replaces any foreign keys in the row with their corresponding relationship keys
+	 * and the enterprise object as the value.
+	 * 
+	 * @param ec the editing context to use for the enterprise objects
+	 * @param row the fetched row
+	 * @param removeForeignKeys whether to remove the foreign keys from the row
+	 */
+	protected void replaceForeignKeysWithObjects(EOEditingContext ec, NSMutableDictionary<String, Object> row, boolean removeForeignKeys) {
+		for (RelationshipKeyInfo relKeyInfo : relationshipKeysSet.allObjects()) {
+			Object eo = null;
+			String entityName = relKeyInfo.entityName();
+			String relationshipKey = relKeyInfo.relationshipKeyPath();
+			String foreignKey = relKeyInfo.sourceAttributeKeyPath();
+			Object primaryKeyValue = row.objectForKey(foreignKey);
+			if (primaryKeyValue != NSKeyValueCoding.NullValue) {
+				eo = ERXEOControlUtilities.objectWithPrimaryKeyValue(ec, entityName, primaryKeyValue, null, refreshRefetchedObjects);
+				row.setObjectForKey(eo, relationshipKey);
+			}
+			if (removeForeignKeys) {
+				row.removeObjectForKey(foreignKey);
+			}
+		}
+	}
+	
+	//
+	// Cursor methods
+	//
+	
+	/**
+	 * Returns a cursor over the rows of this query. The rows are read from the
+	 * database while the cursor is iterated instead of being collected into an
+	 * array first, so the memory used does not depend on the size of the result.
+	 * The cursor keeps the editing context and the database context locked until
+	 * it has been read to the end or is closed, so always close it:
+	 * 
+	 * <pre><code>
+	 * try ({@code ERXRowCursor<NSDictionary<String,Object>>} cursor = query.fetchCursor(editingContext)) {
+	 *     while (cursor.hasNext()) {
+	 *         write(cursor.next());
+	 *     }
+	 * }
+	 * </code></pre>
+	 * 
+	 * @param ec the editing context to use for the fetch
+	 * 
+	 * @return cursor over the fetched records
+	 */
+	public ERXRowCursor<NSDictionary<String,Object>> fetchCursor(EOEditingContext ec) {
+		return fetchCursor(ec, NSDictionary.<String,Object>emptyDictionary(), new DefaultRecordConstructor());
+	}
+	
+	/**
+	 * Convenience method to return fetchCursor(ec, NSDictionary.emptyDictionary(), recordConstructor)
+	 * 
+	 * @param ec the editing context to use for the fetch
+	 * @param recordConstructor constructor for record entries
+	 * 
+	 * @return cursor over the fetched records
+	 */
+	public <T> ERXRowCursor<T> fetchCursor(EOEditingContext ec, RecordConstructor<T> recordConstructor) {
+		return fetchCursor(ec, NSDictionary.<String,Object>emptyDictionary(), recordConstructor);
+	}
+	
+	/**
+	 * Returns a cursor that calls the record constructor for each row as it is read
+	 * from the database. The clientFetchLimit is honored, the fetch size of the
+	 * result set is taken from <code>er.extensions.eof.ERXRowCursor.fetchSize</code>.
+	 * 
+	 * @param ec the editing context to use for the fetch
+	 * @param recordInitializationValues values to add as record entries to result
+	 * @param recordConstructor constructor for record entries
+	 * 
+	 * @return cursor over the fetched records
+	 */
+	public <T> ERXRowCursor<T> fetchCursor(final EOEditingContext ec, final NSDictionary<String,Object> recordInitializationValues, final RecordConstructor<T> recordConstructor) {
+		EOSQLExpression expression = getExpression(ec);
+		final NSArray<EOAttribute> fetchAttributes = selectAttributes;
+		final boolean hasInitValues = recordInitializationValues.count() > 0;
+		final boolean removeForeignKeysFromRowValues = removeForeignKeysFromRowValues();
+		ERXRowCursor<T> cursor = new ERXRowCursor<T>(ec, expression.entity().model(), expression, null) {
+			@Override
+			protected void setupAttributesToFetch(EOAdaptorChannel channel) {
+				setupAdaptorChannelEOAttributes(channel, fetchAttributes);
+			}
+			
+			@Override
+			protected T recordForRow(NSMutableDictionary<String, Object> row) {
+				if (hasInitValues) {
+					row.addEntriesFromDictionary(recordInitializationValues);
+				}
+				replaceForeignKeysWithObjects(ec, row, removeForeignKeysFromRowValues);
+				return recordConstructor.constructRecord(ec, row);
+			}
+		};
+		return cursor.setLimit(clientFetchLimit);
+	}
+	
+	/**
+	 * Returns the records of this query as a stream that reads the rows from
+	 * the database as they are consumed. Closing the stream closes the underlying
+	 * {@link ERXRowCursor}, so use it in a try-with-resources block:
+	 * 
+	 * <pre><code>
+	 * try ({@code Stream<Foo>} foos = query.fetchStream(editingContext, (ec, row) -&gt; new Foo(ec, row))) {
+	 *     foos.filter(Foo::isOverdue).forEach(writer::write);
+	 * }
+	 * </code></pre>
+	 * 
+	 * @param ec the editing context to use for the fetch
+	 * @param recordConstructor constructor for record entries
+	 * 
+	 * @return stream of the fetched records
+	 */
+	public <T> Stream<T> fetchStream(EOEditingContext ec, RecordConstructor<T> recordConstructor) {
+		return fetchCursor(ec, recordConstructor).stream();
+	}
+	
+	/**
+	 * Passes each record to the consumer as it is read from the database. The
+	 * cursor is closed when this method returns, also when the consumer throws.
+	 * 
+	 * @param ec the editing context to use for the fetch
+	 * @param recordConstructor constructor for record entries
+	 * @param consumer consumer of the records
+	 * 
+	 * @return number of records passed to the consumer
+	 */
+	public <T> int forEach(EOEditingContext ec, RecordConstructor<T> recordConstructor, Consumer<? super T> consumer) {
+		try (ERXRowCursor<T> cursor = fetchCursor(ec, recordConstructor)) {
+			while (cursor.hasNext()) {
+				consumer.accept(cursor.next());
+			}
+			return cursor.count();
+		}
+	}
+	
+	/**
+	 * Passes the records to the consumer in arrays of up to batchSize records. The next
+	 * batch is only read from the database once the consumer returns, so a consumer that
+	 * writes to a file or a slow stream never has more than one batch in memory.
+	 * 
+	 * @param ec the editing context to use for the fetch
+	 * @param batchSize maximum number of records per batch
+	 * @param recordConstructor constructor for record entries
+	 * @param consumer consumer of the batches
+	 * 
+	 * @return number of records passed to the consumer
+	 */
+	public <T> int forEachBatch(EOEditingContext ec, int batchSize, RecordConstructor<T> recordConstructor, Consumer<? super NSArray<T>> consumer) {
+		return fetchCursor(ec, recordConstructor).forEachBatch(batchSize, consumer);
+	}
+	
 	protected static void setupAdaptorChannelEOAttributes(EOAdaptorChannel adaptorChannel, NSArray<EOAttribute> selectAttributes) {
 		// Have the adaptor provide the attributes to fetch the results.  These attributes
 		// have weird names.  Here we borrow a technique from David Scheck shared on the
@@ -0,0 +1,365 @@
+package er.extensions.eof;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.webobjects.eoaccess.EOAdaptorChannel;
+import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.eoaccess.EODatabaseContext;
+import com.webobjects.eoaccess.EOModel;
+import com.webobjects.eoaccess.EOSQLExpression;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSForwardException;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+
+import er.extensions.foundation.ERXProperties;
+import er.extensions.jdbc.ERXJDBCAdaptor;
+
+/**
+ * Iterates over the rows of a SQL expression as they come in from the database
+ * instead of collecting them into an array first, so the memory used stays the
+ * same regardless of the size of the result. Use this for exports and other jobs
+ * that look at every row of a large result once:
+ * <pre><code>
+ * try (ERXRowCursor&lt;NSDictionary&lt;String, Object&gt;&gt; cursor = query.fetchCursor(ec)) {
+ *     while (cursor.hasNext()) {
+ *         write(cursor.next());
+ *     }
+ * }
+ * </code></pre>
+ * The cursor keeps the editing context, the database context and an adaptor channel
+ * locked until it has been read to the end or is closed, so it must be used and closed
+ * on the thread that opened it and should not be kept around. Reading the last row
+ * closes the cursor, calling {@link #close()} more than once is fine.
+ * <p>
+ * The database context stays locked for the whole iteration, not just while a row is
+ * read. Every other editing context on the same object store coordinator that fetches,
+ * faults or saves waits until the cursor is closed, so an export that writes a large
+ * result to a slow stream holds up the requests that share its coordinator. Run exports
+ * in an editing context of a coordinator of their own:
+ * <pre><code>
+ * EOEditingContext ec = ERXEC.newEditingContext(new ERXObjectStoreCoordinator(true));
+ * </code></pre>
+ * The coordinator opens its own database connection and closes it when it is disposed.
+ * </p>
+ * <p>
+ * The JDBC fetch size of the result set is set so the driver only holds that many rows
+ * at a time. Whether that is enough to stream depends on the driver: PostgreSQL only
+ * uses a server side cursor if the fetch size is set before the statement is executed,
+ * so add <code>defaultRowFetchSize</code> to the connection URL there, and MySQL needs
+ * <code>useCursorFetch=true</code>. While the cursor is open, faulting objects in the
+ * editing context uses a second channel on the same connection, which some drivers
+ * don't allow while a result is being streamed.
+ * </p>
+ *
+ * @param <T> the type of the records returned
+ *
+ * @property er.extensions.eof.ERXRowCursor.fetchSize the JDBC fetch size, defaults to 500
+ */
+public class ERXRowCursor<T> implements Iterator<T>, AutoCloseable {
+	private static final Logger log = LoggerFactory.getLogger(ERXRowCursor.class);
+
+	private final EOEditingContext _editingContext;
+	private final EOModel _model;
+	private final EOSQLExpression _expression;
+	private final NSArray<EOAttribute> _attributes;
+	private final int _fetchSize;
+
+	private EODatabaseContext _databaseContext;
+	private EOAdaptorChannel _channel;
+	private boolean _openedChannel;
+	private boolean _beganTransaction;
+	private boolean _open;
+	private boolean _closed;
+	private T _next;
+	private int _count;
+	private int _limit;
+
+	/**
+	 * Creates a cursor with the default fetch size. The expression is evaluated when
+	 * the first row is asked for.
+	 *
+	 * @param ec the editing context to lock while fetching
+	 * @param model the model to fetch from
+	 * @param expression the expression to evaluate
+	 * @param attributes the attributes to fetch, null to use the ones the adaptor describes
+	 */
+	public ERXRowCursor(EOEditingContext ec, EOModel model, EOSQLExpression expression, NSArray<EOAttribute> attributes) {
+		this(ec, model, expression, attributes, defaultFetchSize());
+	}
+
+	/**
+	 * Creates a cursor. The expression is evaluated when the first row is asked for.
+	 *
+	 * @param ec the editing context to lock while fetching
+	 * @param model the model to fetch from
+	 * @param expression the expression to evaluate
+	 * @param attributes the attributes to fetch, null to use the ones the adaptor describes
+	 * @param fetchSize the number of rows the driver should fetch at a time, 0 to leave it to the driver
+	 */
+	public ERXRowCursor(EOEditingContext ec, EOModel model, EOSQLExpression expression, NSArray<EOAttribute> attributes, int fetchSize) {
+		_editingContext = ec;
+		_model = model;
+		_expression = expression;
+		_attributes = attributes;
+		_fetchSize = fetchSize;
+	}
+
+	/**
+	 * @return the fetch size set by <code>er.extensions.eof.ERXRowCursor.fetchSize</code>
+	 */
+	public static int defaultFetchSize() {
+		return ERXProperties.intForKeyWithDefault("er.extensions.eof.ERXRowCursor.fetchSize", 500);
+	}
+
+	/**
+	 * Stops the cursor after the given number of rows.
+	 *
+	 * @param limit the maximum number of rows to return, 0 for no limit
+	 * @return this cursor
+	 */
+	public ERXRowCursor<T> setLimit(int limit) {
+		_limit = limit;
+		return this;
+	}
+
+	/**
+	 * @return the number of rows returned so far
+	 */
+	public int count() {
+		return _count;
+	}
+
+	/**
+	 * @return true if the cursor has been closed
+	 */
+	public boolean isClosed() {
+		return _closed;
+	}
+
+	/**
+	 * Sets the attributes the channel fetches with after the expression has been
+	 * evaluated. Subclasses can override this to rename or convert the attributes.
+	 *
+	 * @param channel the channel the expression was evaluated in
+	 */
+	protected void setupAttributesToFetch(EOAdaptorChannel channel) {
+		channel.setAttributesToFetch(_attributes != null ? _attributes : channel.describeResults());
+	}
+
+	/**
+	 * Turns a fetched row into the record this cursor returns. Returns the row itself
+	 * by default.
+	 *
+	 * @param row the fetched row
+	 * @return the record for the row
+	 */
+	@SuppressWarnings("unchecked")
+	protected T recordForRow(NSMutableDictionary<String, Object> row) {
+		return (T) row;
+	}
+
+	private void open() {
+		_open = true;
+		_editingContext.lock();
+		try {
+			_databaseContext = EODatabaseContext.registeredDatabaseContextForModel(_model, _editingContext);
+			_databaseContext.lock();
+			try {
+				evaluateExpression();
+			}
+			catch (Exception e) {
+				if (!_databaseContext._isDroppedConnectionException(e)) {
+					throw e;
+				}
+				releaseChannel(false);
+				_databaseContext.database().handleDroppedConnection();
+				evaluateExpression();
+			}
+		}
+		catch (Exception e) {
+			close(false);
+			throw NSForwardException._runtimeExceptionForThrowable(e);
+		}
+	}
+
+	private void evaluateExpression() {
+		_channel = _databaseContext.availableChannel().adaptorChannel();
+		if (!_channel.isOpen()) {
+			_channel.openChannel();
+			_openedChannel = true;
+		}
+		// most drivers only fetch in chunks inside a transaction
+		if (!_channel.adaptorContext().hasOpenTransaction()) {
+			_channel.adaptorContext().beginTransaction();
+			_beganTransaction = true;
+		}
+		_channel.evaluateExpression(_expression);
+		setupAttributesToFetch(_channel);
+		if (_fetchSize > 0 && _channel instanceof ERXJDBCAdaptor.Channel) {
+			((ERXJDBCAdaptor.Channel) _channel).setResultSetFetchSize(_fetchSize);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public boolean hasNext() {
+		if (_next != null) {
+			return true;
+		}
+		if (_closed) {
+			return false;
+		}
+		if (!_open) {
+			open();
+		}
+		if (_limit > 0 && _count >= _limit) {
+			close();
+			return false;
+		}
+		try {
+			NSMutableDictionary<String, Object> row = _channel.fetchRow();
+			if (row == null) {
+				close();
+				return false;
+			}
+			_count++;
+			_next = recordForRow(row);
+		}
+		catch (RuntimeException e) {
+			close(false);
+			throw e;
+		}
+		return true;
+	}
+
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		T next = _next;
+		_next = null;
+		return next;
+	}
+
+	/**
+	 * Returns up to <code>size</code> records. Asking for the next batch only once
+	 * the previous one has been written keeps at most one batch in memory.
+	 *
+	 * @param size the maximum number of records to return
+	 * @return the next records, an empty array once the cursor is exhausted
+	 */
+	public NSArray<T> nextBatch(int size) {
+		NSMutableArray<T> batch = new NSMutableArray<>(size);
+		while (batch.count() < size && hasNext()) {
+			batch.addObject(next());
+		}
+		return batch;
+	}
+
+	/**
+	 * Passes the remaining records to the consumer in batches of the given size
+	 * and closes the cursor.
+	 *
+	 * @param size the number of records per batch
+	 * @param consumer the consumer of the batches
+	 * @return the number of records passed to the consumer
+	 */
+	public int forEachBatch(int size, Consumer<? super NSArray<T>> consumer) {
+		int count = 0;
+		try {
+			NSArray<T> batch;
+			while ((batch = nextBatch(size)).count() > 0) {
+				consumer.accept(batch);
+				count += batch.count();
+			}
+		}
+		finally {
+			close();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a sequential stream over the remaining records. Closing the stream
+	 * closes the cursor, so use it in a try-with-resources block unless the stream
+	 * is always consumed to the end.
+	 *
+	 * @return a stream of the records
+	 */
+	public Stream<T> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(this::close);
+	}
+
+	/**
+	 * Stops fetching, ends the transaction if the cursor began one and unlocks
+	 * the database and editing contexts.
+	 */
+	public void close() {
+		close(true);
+	}
+
+	private void close(boolean commit) {
+		if (_closed) {
+			return;
+		}
+		_closed = true;
+		_next = null;
+		if (!_open) {
+			return;
+		}
+		try {
+			if (_databaseContext != null) {
+				try {
+					releaseChannel(commit);
+				}
+				finally {
+					_databaseContext.unlock();
+				}
+			}
+		}
+		finally {
+			_editingContext.unlock();
+		}
+		log.debug("Closed cursor after {} rows.", _count);
+	}
+
+	private void releaseChannel(boolean commit) {
+		if (_channel == null) {
+			return;
+		}
+		try {
+			if (_channel.isFetchInProgress()) {
+				_channel.cancelFetch();
+			}
+			if (_beganTransaction && _channel.adaptorContext().hasOpenTransaction()) {
+				if (commit) {
+					_channel.adaptorContext().commitTransaction();
+				}
+				else {
+					_channel.adaptorContext().rollbackTransaction();
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			log.warn("Failed to end the fetch of {}.", _expression, e);
+		}
+		finally {
+			if (_openedChannel && _channel.isOpen()) {
+				_channel.closeChannel();
+			}
+			_channel = null;
+			_openedChannel = false;
+			_beganTransaction = false;
+		}
+	}
+}
@@ -0,0 +1,395 @@
+package er.extensions.foundation;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableArray;
+
+/**
+ * ERXConcurrentExpiringCache is a drop-in replacement for ERXExpiringCache for caches that are hit by many request
+ * threads at once. It has the same time and version based expiration semantics, but none of its methods are
+ * synchronized: entries are kept in a ConcurrentHashMap, stale entries are only ever removed if they are still the
+ * entry that was found to be stale, and each cleanup sweeps the whole cache a batch at a time, yielding to other threads
+ * between batches, instead of sweeping it while holding the cache's lock. Threads that add entries never wait for a
+ * sweep.
+ *
+ * Optionally the cache can be bounded with a maximum size. When the cache grows past its maximum size, entries are
+ * evicted in approximate least recently used order: a small sample of entries is inspected and the one that has not
+ * been accessed for the longest time is removed.
+ *
+ * Note that subclasses that override removeEntryForKey or setEntryForKey are called concurrently and must be thread
+ * safe themselves.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ *
+ * @property er.extensions.ERXConcurrentExpiringCache.sweepBatchSize (default 1000) the number of entries that are
+ *           checked for expiration before a cleanup yields to other threads
+ * @property er.extensions.ERXConcurrentExpiringCache.evictionSampleSize (default 8) the number of entries that are
+ *           sampled to find the least recently used entry when a bounded cache is full
+ */
+public class ERXConcurrentExpiringCache<K, V> extends ERXExpiringCache<K, V> {
+	/**
+	 * Designates that the cache has no maximum size.
+	 */
+	public static final int NO_MAXIMUM_SIZE = 0;
+
+	private static class CONSTANTS {
+		final static int SWEEP_BATCH_SIZE = ERXProperties.intForKeyWithDefault("er.extensions.ERXConcurrentExpiringCache.sweepBatchSize", 1000);
+		final static int EVICTION_SAMPLE_SIZE = ERXProperties.intForKeyWithDefault("er.extensions.ERXConcurrentExpiringCache.evictionSampleSize", 8);
+	}
+
+	/**
+	 * An entry that remembers when it was last accessed, so a bounded cache can evict the least recently used entries.
+	 */
+	protected static class ConcurrentEntry<V> extends ERXExpiringCache.Entry<V> {
+		private volatile long _lastAccessTime;
+
+		public ConcurrentEntry(V o, long expiration, Object version) {
+			super(o, expiration, version);
+			_lastAccessTime = System.nanoTime();
+		}
+
+		public void touch() {
+			_lastAccessTime = System.nanoTime();
+		}
+
+		public long lastAccessTime() {
+			return _lastAccessTime;
+		}
+	}
+
+	private final ConcurrentHashMap<K, ERXExpiringCache.Entry<V>> _entries;
+	private final int _maximumSize;
+	private final AtomicLong _lastCleanupTime;
+	private final ReentrantLock _sweepLock;
+	private Iterator<Map.Entry<K, ERXExpiringCache.Entry<V>>> _sweepIterator;
+
+	/**
+	 * Constructs an ERXConcurrentExpiringCache with a 60 second expiration.
+	 */
+	public ERXConcurrentExpiringCache() {
+		this(60);
+	}
+
+	/**
+	 * Constructs an ERXConcurrentExpiringCache with a cleanup time that matches expiryTimeInSeconds.
+	 *
+	 * @param expiryTimeInSeconds
+	 *            the lifetime in seconds of an object in the cache or NO_TIMEOUT
+	 */
+	public ERXConcurrentExpiringCache(long expiryTimeInSeconds) {
+		this(expiryTimeInSeconds, expiryTimeInSeconds);
+	}
+
+	/**
+	 * @param expiryTimeInSeconds
+	 *            the lifetime in seconds of an object in the cache or NO_TIMEOUT
+	 * @param cleanupPauseInSeconds
+	 *            the number of seconds to pause between cleanups
+	 */
+	public ERXConcurrentExpiringCache(long expiryTimeInSeconds, long cleanupPauseInSeconds) {
+		this(expiryTimeInSeconds, cleanupPauseInSeconds, ERXConcurrentExpiringCache.NO_MAXIMUM_SIZE);
+	}
+
+	/**
+	 * @param expiryTimeInSeconds
+	 *            the lifetime in seconds of an object in the cache or NO_TIMEOUT
+	 * @param cleanupPauseInSeconds
+	 *            the number of seconds to pause between cleanups
+	 * @param maximumSize
+	 *            the maximum number of entries in the cache or NO_MAXIMUM_SIZE
+	 */
+	public ERXConcurrentExpiringCache(long expiryTimeInSeconds, long cleanupPauseInSeconds, int maximumSize) {
+		super(expiryTimeInSeconds, cleanupPauseInSeconds);
+		_entries = new ConcurrentHashMap<>();
+		_maximumSize = maximumSize;
+		_lastCleanupTime = new AtomicLong();
+		_sweepLock = new ReentrantLock();
+	}
+
+	/**
+	 * Returns the maximum number of entries in this cache or NO_MAXIMUM_SIZE.
+	 *
+	 * @return the maximum number of entries in this cache
+	 */
+	public int maximumSize() {
+		return _maximumSize;
+	}
+
+	/**
+	 * Returns the number of entries in this cache, including stale entries that have not been reaped yet.
+	 *
+	 * @return the number of entries in this cache
+	 */
+	public int count() {
+		return _entries.size();
+	}
+
+	@Override
+	public void removeAllObjects() {
+		for (Map.Entry<K, ERXExpiringCache.Entry<V>> mapEntry : _entries.entrySet()) {
+			removeEntryForKey(mapEntry.getValue(), mapEntry.getKey());
+		}
+	}
+
+	@Override
+	public void setObjectForKey(V object, K key) {
+		setObjectForKeyWithVersion(object, key, ERXExpiringCache.NO_VERSION);
+	}
+
+	@Override
+	public void setObjectForKeyWithVersion(V object, K key, Object currentVersionKey, long expirationTime) {
+		removeStaleEntries();
+		if (expirationTime != ERXExpiringCache.NO_TIMEOUT) {
+			expirationTime = System.currentTimeMillis() + expirationTime;
+		}
+		setEntryForKey(new ConcurrentEntry<>(object, expirationTime, currentVersionKey), key);
+		if (_maximumSize > 0) {
+			while (_entries.size() > _maximumSize && evictLeastRecentlyUsedEntry()) {
+				// keep evicting
+			}
+		}
+	}
+
+	@Override
+	public void setObjectForKeyWithVersion(V object, K key, Object currentVersionKey) {
+		setObjectForKeyWithVersion(object, key, currentVersionKey, expiryTime());
+	}
+
+	@Override
+	public V objectForKey(K key) {
+		return objectForKeyWithVersion(key, ERXExpiringCache.NO_VERSION);
+	}
+
+	@Override
+	public V objectForKeyWithVersion(K key, Object currentVersionKey) {
+		ERXExpiringCache.Entry<V> entry = entryForKey(key);
+		V value = null;
+		if (entry != null) {
+			if (entry.isStale(System.currentTimeMillis(), currentVersionKey)) {
+				removeEntryForKey(entry, key);
+			}
+			else {
+				if (_maximumSize > 0 && entry instanceof ConcurrentEntry) {
+					((ConcurrentEntry<V>) entry).touch();
+				}
+				value = entry.object();
+			}
+		}
+		return value;
+	}
+
+	@Override
+	public boolean isStale(K key) {
+		return isStaleWithVersion(key, ERXExpiringCache.NO_VERSION);
+	}
+
+	@Override
+	public boolean isStaleWithVersion(K key, Object currentVersionKey) {
+		ERXExpiringCache.Entry<V> entry = entryForKey(key);
+		boolean isStale = true;
+		if (entry != null) {
+			isStale = entry.isStale(System.currentTimeMillis(), currentVersionKey);
+		}
+		return isStale;
+	}
+
+	@Override
+	public V removeObjectForKey(K key) {
+		removeStaleEntries();
+		ERXExpiringCache.Entry<V> entry = entryForKey(key);
+		V value = null;
+		if (entry != null) {
+			removeEntryForKey(entry, key);
+			value = entry.object();
+		}
+		return value;
+	}
+
+	/**
+	 * Removes all stale entries if the cleanup pause has passed since the last call. The whole cache is checked, a
+	 * batch at a time, and the sweep lock is released and the thread yields between batches, so writers that evict
+	 * entries aren't held up. Only one thread sweeps at a time; other threads that call this while a sweep is running
+	 * return immediately.
+	 */
+	@Override
+	public void removeStaleEntries() {
+		if (!_entries.isEmpty()) {
+			long now = System.currentTimeMillis();
+			long lastCleanupTime = _lastCleanupTime.get();
+			if (lastCleanupTime + cleanupPause() < now && _lastCleanupTime.compareAndSet(lastCleanupTime, now)) {
+				for (int remainingCount = _entries.size(); remainingCount > 0; remainingCount -= CONSTANTS.SWEEP_BATCH_SIZE) {
+					_sweepLock.lock();
+					try {
+						sweep(Math.min(remainingCount, CONSTANTS.SWEEP_BATCH_SIZE));
+					}
+					finally {
+						_sweepLock.unlock();
+					}
+					Thread.yield();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks up to the given number of entries for expiration, continuing where the previous sweep stopped. Returns
+	 * right away if another thread is sweeping or evicting.
+	 *
+	 * @param batchSize
+	 *            the maximum number of entries to check
+	 * @return the number of entries that were removed
+	 */
+	public int removeStaleEntries(int batchSize) {
+		int removedCount = 0;
+		if (_sweepLock.tryLock()) {
+			try {
+				removedCount = sweep(batchSize);
+			}
+			finally {
+				_sweepLock.unlock();
+			}
+		}
+		return removedCount;
+	}
+
+	/**
+	 * Checks up to the given number of entries for expiration. Must be called while holding the sweep lock.
+	 */
+	private int sweep(int batchSize) {
+		int removedCount = 0;
+		long now = System.currentTimeMillis();
+		for (int checkedCount = 0; checkedCount < batchSize && !_entries.isEmpty(); checkedCount++) {
+			Map.Entry<K, ERXExpiringCache.Entry<V>> mapEntry = nextSweepEntry();
+			if (mapEntry == null) {
+				break;
+			}
+			ERXExpiringCache.Entry<V> entry = mapEntry.getValue();
+			if (entry.isStale(now, ERXExpiringCache.NO_VERSION)) {
+				removeEntryForKey(entry, mapEntry.getKey());
+				removedCount++;
+			}
+		}
+		return removedCount;
+	}
+
+	/**
+	 * Returns the next entry of the sweep, starting over at the beginning of the cache when the end is reached. Must
+	 * be called while holding the sweep lock.
+	 */
+	private Map.Entry<K, ERXExpiringCache.Entry<V>> nextSweepEntry() {
+		if (_sweepIterator == null || !_sweepIterator.hasNext()) {
+			_sweepIterator = _entries.entrySet().iterator();
+		}
+		return _sweepIterator.hasNext() ? _sweepIterator.next() : null;
+	}
+
+	/**
+	 * Evicts a stale entry or, if none of the sampled entries are stale, the least recently used of the sampled
+	 * entries. Nothing is evicted if another thread is sweeping or evicting, the cache is then trimmed by that thread
+	 * or the next writer.
+	 *
+	 * @return whether an entry was evicted
+	 */
+	protected boolean evictLeastRecentlyUsedEntry() {
+		boolean evicted = false;
+		if (!_sweepLock.tryLock()) {
+			return false;
+		}
+		try {
+			long now = System.currentTimeMillis();
+			K evictKey = null;
+			ERXExpiringCache.Entry<V> evictEntry = null;
+			long evictAccessTime = Long.MAX_VALUE;
+			for (int sampleCount = 0; sampleCount < CONSTANTS.EVICTION_SAMPLE_SIZE; sampleCount++) {
+				Map.Entry<K, ERXExpiringCache.Entry<V>> mapEntry = nextSweepEntry();
+				if (mapEntry == null) {
+					break;
+				}
+				ERXExpiringCache.Entry<V> entry = mapEntry.getValue();
+				if (entry.isStale(now, ERXExpiringCache.NO_VERSION)) {
+					evictKey = mapEntry.getKey();
+					evictEntry = entry;
+					break;
+				}
+				long accessTime = entry instanceof ConcurrentEntry ? ((ConcurrentEntry<V>) entry).lastAccessTime() : Long.MIN_VALUE;
+				if (evictEntry == null || accessTime < evictAccessTime) {
+					evictKey = mapEntry.getKey();
+					evictEntry = entry;
+					evictAccessTime = accessTime;
+				}
+			}
+			if (evictEntry != null) {
+				removeEntryForKey(evictEntry, evictKey);
+				evicted = true;
+			}
+		}
+		finally {
+			_sweepLock.unlock();
+		}
+		return evicted;
+	}
+
+	/**
+	 * Evicts stale and least recently used entries until the cache holds no more than the given number of entries.
+	 *
+	 * @param count
+	 *            the number of entries to keep
+	 * @return the number of entries that were evicted
+	 */
+	public int trimToCount(int count) {
+		int evictedCount = 0;
+		while (_entries.size() > count) {
+			if (evictLeastRecentlyUsedEntry()) {
+				evictedCount++;
+			}
+			else {
+				// another thread is sweeping or evicting
+				Thread.yield();
+			}
+		}
+		return evictedCount;
+	}
+
+	/**
+	 * Removes the given entry for the given key, unless the key has been set to a new entry in the meantime.
+	 */
+	@Override
+	protected void removeEntryForKey(ERXExpiringCache.Entry<V> entry, K key) {
+		_entries.remove(key, entry);
+	}
+
+	@Override
+	protected void setEntryForKey(ERXExpiringCache.Entry<V> entry, K key) {
+		_entries.put(key, entry);
+	}
+
+	@Override
+	protected ERXExpiringCache.Entry<V> entryForKey(K key) {
+		return _entries.get(key);
+	}
+
+	@Override
+	public void stopBackgroundExpiration() {
+		ERXExpiringCache.reaper().stop(this);
+	}
+
+	@Override
+	public NSArray<K> allKeys() {
+		NSMutableArray<K> result = new NSMutableArray<>(_entries.size());
+		for (K key : _entries.keySet()) {
+			result.addObject(key);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getName() + "@" + Integer.toHexString(hashCode()) + " " + _entries;
+	}
+}
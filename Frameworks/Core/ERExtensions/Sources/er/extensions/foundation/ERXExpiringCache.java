@@ -133,10 +133,24 @@ public class ERXExpiringCache<K, V> {
 		}
 	}
 
-	private long expiryTime() {
+	/**
+	 * Returns the lifetime in milliseconds of an object in the cache or NO_TIMEOUT.
+	 * 
+	 * @return the lifetime in milliseconds of an object in the cache
+	 */
+	protected long expiryTime() {
 		return _expiryTime;
 	}
 
+	/**
+	 * Returns the number of milliseconds to pause between cleanups.
+	 * 
+	 * @return the number of milliseconds to pause between cleanups
+	 */
+	protected long cleanupPause() {
+		return _cleanupPause;
+	}
+
 	/**
 	 * Sets the object for the specified key in this cache with no version
 	 * specified.
@@ -0,0 +1,366 @@
+package er.extensions.foundation;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * The values {@link ERXThreadStorage} keeps for a thread when
+ * <code>er.extensions.ERXThreadStorage.useScopedContext</code> is set.
+ * <p>
+ * Instead of cloning the whole storage map into every new thread, the values are
+ * passed on explicitly: {@link ERXThreadStorage#capture()} freezes the values of the
+ * current thread into an immutable {@link Snapshot} without copying them, and
+ * {@link Snapshot#run(Runnable)} binds a fresh context on top of that snapshot in
+ * the executing thread. Values set in that thread go into the new context only, so
+ * neither side sees the other's changes and no locking is needed. This makes
+ * capturing cheap enough to do for every task handed to an executor, including
+ * executors that start a virtual thread per task.
+ * </p>
+ * <pre><code>
+ * executor.execute(ERXThreadStorage.capture().wrap(runnable));
+ * // or
+ * Executor propagating = ERXScopedContext.propagating(executor);
+ * </code></pre>
+ */
+public class ERXScopedContext extends AbstractMap<String, Object> {
+	/** Marks a key that was removed although a snapshot below has a value for it. */
+	private static final Object REMOVED = new Object();
+
+	/** Snapshot chains longer than this get flattened into one map. */
+	private static final int MAX_DEPTH = 8;
+
+	private final Snapshot _inherited;
+	private Snapshot _snapshot;
+	private HashMap<String, Object> _values;
+
+	/**
+	 * Creates an empty context.
+	 */
+	public ERXScopedContext() {
+		this(Snapshot.EMPTY);
+	}
+
+	/**
+	 * Creates a context on top of the given snapshot.
+	 *
+	 * @param snapshot the values that are visible until they are overridden in this context
+	 */
+	public ERXScopedContext(Snapshot snapshot) {
+		_inherited = snapshot;
+		_snapshot = snapshot;
+	}
+
+	/**
+	 * Freezes the current values into a snapshot. Later changes to this context
+	 * are not visible in the snapshot. The values are not copied, so calling this
+	 * costs about as much as creating a small object.
+	 *
+	 * @return the current values
+	 */
+	public Snapshot capture() {
+		if (_values != null && !_values.isEmpty()) {
+			_snapshot = new Snapshot(_values, _snapshot);
+		}
+		_values = null;
+		return _snapshot;
+	}
+
+	/**
+	 * @return true if this context was created on top of values from another thread
+	 */
+	public boolean isInherited() {
+		return _inherited != Snapshot.EMPTY;
+	}
+
+	/**
+	 * Returns whether the value for the given key was set in this context, as
+	 * opposed to being inherited from the snapshot it was created with.
+	 *
+	 * @param key the key to check
+	 * @return true if the key was set in this context
+	 */
+	public boolean isLocalKey(Object key) {
+		if (_values != null && _values.containsKey(key)) {
+			return true;
+		}
+		Snapshot snapshot = _snapshot;
+		for (; snapshot != _inherited && snapshot != null; snapshot = snapshot._parent) {
+			if (snapshot._values.containsKey(key)) {
+				return true;
+			}
+		}
+		if (snapshot == null && isInherited()) {
+			// the inherited snapshot was flattened into a newer one
+			return get(key) != _inherited.lookup(key);
+		}
+		return false;
+	}
+
+	private Object lookup(Object key) {
+		if (_values != null) {
+			Object value = _values.get(key);
+			if (value != null || _values.containsKey(key)) {
+				return value;
+			}
+		}
+		return _snapshot.lookup(key);
+	}
+
+	@Override
+	public Object get(Object key) {
+		Object value = lookup(key);
+		return value == REMOVED ? null : value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (_values != null && _values.containsKey(key)) {
+			return _values.get(key) != REMOVED;
+		}
+		return _snapshot.contains(key);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		Object previous = get(key);
+		if (_values == null) {
+			_values = new HashMap<>();
+		}
+		_values.put(key, value);
+		return previous;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		Object previous = get(key);
+		if (_snapshot.contains(key)) {
+			if (_values == null) {
+				_values = new HashMap<>();
+			}
+			_values.put((String) key, REMOVED);
+		}
+		else if (_values != null) {
+			_values.remove(key);
+		}
+		return previous;
+	}
+
+	/**
+	 * Drops all values, including the inherited ones.
+	 */
+	@Override
+	public void clear() {
+		_values = null;
+		_snapshot = Snapshot.EMPTY;
+	}
+
+	@Override
+	public int size() {
+		return toMap().size();
+	}
+
+	/**
+	 * @return a copy of the visible values
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> map = new HashMap<>();
+		_snapshot.collect(map);
+		if (_values != null) {
+			merge(map, _values);
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the visible values. Removing entries through the set or its iterator
+	 * removes them from this context.
+	 */
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		final Map<String, Object> map = toMap();
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				final Iterator<Map.Entry<String, Object>> iterator = map.entrySet().iterator();
+				return new Iterator<Map.Entry<String, Object>>() {
+					private Map.Entry<String, Object> _current;
+
+					public boolean hasNext() {
+						return iterator.hasNext();
+					}
+
+					public Map.Entry<String, Object> next() {
+						_current = iterator.next();
+						return _current;
+					}
+
+					@Override
+					public void remove() {
+						iterator.remove();
+						ERXScopedContext.this.remove(_current.getKey());
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return map.size();
+			}
+		};
+	}
+
+	private static void merge(Map<String, Object> map, Map<String, Object> values) {
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			if (entry.getValue() == REMOVED) {
+				map.remove(entry.getKey());
+			}
+			else {
+				map.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Returns an executor that runs every task in the context of the thread that
+	 * handed it over.
+	 *
+	 * @param executor the executor to run the tasks
+	 * @return a propagating executor
+	 */
+	public static Executor propagating(final Executor executor) {
+		return new Executor() {
+			public void execute(Runnable command) {
+				executor.execute(ERXThreadStorage.capture().wrap(command));
+			}
+		};
+	}
+
+	/**
+	 * The frozen values of a thread at the time {@link ERXThreadStorage#capture()}
+	 * was called. Snapshots are immutable and can be used from any thread.
+	 */
+	public static final class Snapshot {
+		/** The snapshot of a thread without any values. */
+		public static final Snapshot EMPTY = new Snapshot(Collections.<String, Object>emptyMap(), null);
+
+		private final Map<String, Object> _values;
+		private final Snapshot _parent;
+		private final int _depth;
+
+		Snapshot(Map<String, Object> values, Snapshot parent) {
+			if (parent == EMPTY) {
+				parent = null;
+			}
+			else if (parent != null && parent._depth >= MAX_DEPTH) {
+				Map<String, Object> flattened = new HashMap<>();
+				parent.collect(flattened);
+				merge(flattened, values);
+				values = flattened;
+				parent = null;
+			}
+			_values = values;
+			_parent = parent;
+			_depth = parent == null ? 1 : parent._depth + 1;
+		}
+
+		Object lookup(Object key) {
+			for (Snapshot snapshot = this; snapshot != null; snapshot = snapshot._parent) {
+				Object value = snapshot._values.get(key);
+				if (value != null || snapshot._values.containsKey(key)) {
+					return value;
+				}
+			}
+			return null;
+		}
+
+		boolean contains(Object key) {
+			for (Snapshot snapshot = this; snapshot != null; snapshot = snapshot._parent) {
+				if (snapshot._values.containsKey(key)) {
+					return snapshot._values.get(key) != REMOVED;
+				}
+			}
+			return false;
+		}
+
+		void collect(Map<String, Object> map) {
+			if (_parent != null) {
+				_parent.collect(map);
+			}
+			merge(map, _values);
+		}
+
+		/**
+		 * @return a copy of the values of this snapshot
+		 */
+		public Map<String, Object> toMap() {
+			Map<String, Object> map = new HashMap<>();
+			collect(map);
+			return map;
+		}
+
+		/**
+		 * Runs the given runnable with a context on top of this snapshot bound to
+		 * the current thread. The previous values of the thread are restored afterwards.
+		 *
+		 * @param runnable the runnable to run
+		 */
+		public void run(Runnable runnable) {
+			Object previous = ERXThreadStorage.bind(this);
+			try {
+				runnable.run();
+			}
+			finally {
+				ERXThreadStorage.restore(previous);
+			}
+		}
+
+		/**
+		 * Calls the given callable with a context on top of this snapshot bound to
+		 * the current thread. The previous values of the thread are restored afterwards.
+		 *
+		 * @param callable the callable to call
+		 * @return the result of the callable
+		 * @throws Exception if the callable fails
+		 */
+		public <T> T call(Callable<T> callable) throws Exception {
+			Object previous = ERXThreadStorage.bind(this);
+			try {
+				return callable.call();
+			}
+			finally {
+				ERXThreadStorage.restore(previous);
+			}
+		}
+
+		/**
+		 * @param runnable the runnable to wrap
+		 * @return a runnable that runs the given one in this snapshot
+		 */
+		public Runnable wrap(final Runnable runnable) {
+			return new Runnable() {
+				public void run() {
+					Snapshot.this.run(runnable);
+				}
+			};
+		}
+
+		/**
+		 * @param callable the callable to wrap
+		 * @return a callable that calls the given one in this snapshot
+		 */
+		public <T> Callable<T> wrap(final Callable<T> callable) {
+			return new Callable<T>() {
+				public T call() throws Exception {
+					return Snapshot.this.call(callable);
+				}
+			};
+		}
+	}
+}
@@ -6,7 +6,8 @@
  * included with this distribution in the LICENSE.NPL file.  */
 package er.extensions.foundation;
 
-import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +19,7 @@ import com.webobjects.foundation.NSKeyValueCoding;
 import com.webobjects.foundation.NSKeyValueCodingAdditions;
 import com.webobjects.foundation.NSMutableSet;
 
+import er.extensions.appserver.ERXMemoryMonitor;
 import er.extensions.logging.ERXPatternLayout;
 
 /**
@@ -25,6 +27,15 @@ import er.extensions.logging.ERXPatternLayout;
  * {@literal @}{@literal @}, then a possible template might look like: "Hello, {@literal @}{@literal @}name{@literal @}{@literal @}.  How are
  * you feeling today?",  In this case the object will get asked for the
  * value name. This works with key-paths as well.
+ * <p>
+ * Templates are split into their literal parts and keys once and the result is
+ * cached per delimiter, so parsing the same template again only has to look up
+ * the values of the keys. At most
+ * <code>er.extensions.ERXSimpleTemplateParser.maxCompiledTemplates</code>
+ * templates are cached per delimiter, when the cache is full the least recently
+ * used templates are evicted.
+ * 
+ * @property er.extensions.ERXSimpleTemplateParser.maxCompiledTemplates the number of templates to cache per delimiter, default 1000
  */
 public class ERXSimpleTemplateParser {
 
@@ -40,6 +51,129 @@ public class ERXSimpleTemplateParser {
     /** holds a reference to the shared instance of the parser */
     private static ERXSimpleTemplateParser _sharedInstance;
 
+    /** buffers larger than this are not kept for the next call */
+    private static final int MAX_BUFFER_CAPACITY = 16 * 1024;
+
+    /** the compiled templates per delimiter */
+    private static final Map<String, ERXConcurrentExpiringCache<String, CompiledTemplate>> _compiledTemplates = new ConcurrentHashMap<>();
+
+    /** the buffer of the current thread, null while it is in use */
+    private static final ThreadLocal<StringBuilder> _buffer = new ThreadLocal<>();
+
+    static {
+        ERXMemoryMonitor.register(pressure -> clearCompiledTemplates());
+    }
+
+    /**
+     * A template split at its delimiters. The parts at even indexes are the literal text,
+     * the ones at odd indexes the keys.
+     */
+    protected static final class CompiledTemplate {
+        private final String _template;
+        private final String[] _parts;
+
+        protected CompiledTemplate(String template, String delimiter) {
+            _template = template;
+            _parts = split(template, delimiter);
+        }
+
+        /**
+         * Splits like <code>NSArray.componentsSeparatedByString</code>, which keeps empty
+         * parts and returns no parts at all for a null or empty template.
+         */
+        private static String[] split(String template, String delimiter) {
+            if (template == null || template.length() == 0) {
+                return new String[0];
+            }
+            if (delimiter.length() == 0) {
+                return new String[] { template };
+            }
+            int count = 1;
+            for (int index = template.indexOf(delimiter); index != -1; index = template.indexOf(delimiter, index + delimiter.length())) {
+                count++;
+            }
+            String[] parts = new String[count];
+            int start = 0;
+            for (int i = 0; i < count - 1; i++) {
+                int index = template.indexOf(delimiter, start);
+                parts[i] = template.substring(start, index);
+                start = index + delimiter.length();
+            }
+            parts[count - 1] = template.substring(start);
+            return parts;
+        }
+
+        public String template() {
+            return _template;
+        }
+
+        /**
+         * @return the number of literal parts and keys
+         */
+        public int count() {
+            return _parts.length;
+        }
+
+        /**
+         * @param index the index of the part
+         * @return whether the part is a key
+         */
+        public boolean isKey(int index) {
+            return (index & 1) == 1;
+        }
+
+        /**
+         * @param index the index of the part
+         * @return the literal text or key
+         */
+        public String part(int index) {
+            return _parts[index];
+        }
+    }
+
+    /**
+     * Returns the compiled form of the template, from the cache if it was compiled before.
+     * 
+     * @param template the template
+     * @param delimiter the delimiter of the keys
+     * @return the compiled template
+     */
+    protected static CompiledTemplate compiledTemplate(String template, String delimiter) {
+        ERXConcurrentExpiringCache<String, CompiledTemplate> templates = _compiledTemplates.get(delimiter);
+        if (templates == null) {
+            templates = _compiledTemplates.computeIfAbsent(delimiter, d -> new ERXConcurrentExpiringCache<>(ERXExpiringCache.NO_TIMEOUT, 60, maxCompiledTemplates()));
+        }
+        CompiledTemplate compiledTemplate = templates.objectForKey(template);
+        if (compiledTemplate == null) {
+            compiledTemplate = new CompiledTemplate(template, delimiter);
+            // evicts the least recently used templates when the cache is full
+            templates.setObjectForKey(compiledTemplate, template);
+        }
+        return compiledTemplate;
+    }
+
+    private static int maxCompiledTemplates() {
+        return ERXProperties.intForKeyWithDefault("er.extensions.ERXSimpleTemplateParser.maxCompiledTemplates", 1000);
+    }
+
+    /**
+     * Returns the number of compiled templates in the cache for the given delimiter.
+     * 
+     * @param delimiter the delimiter of the keys
+     * @return the number of cached templates
+     */
+    protected static int compiledTemplateCount(String delimiter) {
+        ERXConcurrentExpiringCache<String, CompiledTemplate> templates = _compiledTemplates.get(delimiter);
+        return templates == null ? 0 : templates.count();
+    }
+
+    /**
+     * Removes all compiled templates from the cache.
+     */
+    public static void clearCompiledTemplates() {
+        _compiledTemplates.clear();
+    }
+
     /**
      * Convenience method to return the shared instance
      * of the template parser.
@@ -106,22 +240,17 @@ public class ERXSimpleTemplateParser {
         if (delimiter == null) {
             delimiter = DEFAULT_DELIMITER;
         }
-        NSArray components = NSArray.componentsSeparatedByString(template, delimiter);
-        if (! isLoggingDisabled) {
-            log.debug("Components: {}", components);
+        if (template == null) {
+            return keys.allObjects();
         }
-        boolean deriveElement = false; // if the template starts with delim, the first component will be a zero-length string
-        for (Enumeration e = components.objectEnumerator(); e.hasMoreElements();) {
-            String element = (String)e.nextElement();
-            if (deriveElement) {
-                if (element.length() == 0) {
-                    throw new IllegalArgumentException("\"\" is not a valid keypath");
-                }
-                keys.addObject(element);
-                deriveElement = false;
-            } else {
-                deriveElement = true;
+        CompiledTemplate compiledTemplate = compiledTemplate(template, delimiter);
+        // if the template starts with delim, the first part will be a zero-length string
+        for (int i = 1; i < compiledTemplate.count(); i += 2) {
+            String key = compiledTemplate.part(i);
+            if (key.length() == 0) {
+                throw new IllegalArgumentException("\"\" is not a valid keypath");
             }
+            keys.addObject(key);
         }
         return keys.allObjects();
     }    
@@ -173,35 +302,50 @@ public class ERXSimpleTemplateParser {
         if (delimiter == null) {
             delimiter = DEFAULT_DELIMITER;
         }
-        if (! isLoggingDisabled) {
+        if (! isLoggingDisabled && log.isDebugEnabled()) {
             log.debug("Parsing template: {} with delimiter: {} object: {}",template, delimiter, object);
             log.debug("Template: {}", template);
             log.debug("Delim: {}", delimiter);
             log.debug("otherObject: {}", otherObject);
         }
-        NSArray components = NSArray.componentsSeparatedByString(template, delimiter);
-        if (! isLoggingDisabled) {
-            log.debug("Components: {}", components);
-        }
-        boolean deriveElement = false; // if the template starts with delim, the first component will be a zero-length string
-        StringBuilder sb = new StringBuilder();
+        CompiledTemplate compiledTemplate = compiledTemplate(template, delimiter);
         Object objects[];
         if (otherObject != null) {
             objects = new Object[] {object, otherObject};
         } else {
             objects = new Object[] {object};
         }
-        for (Enumeration e = components.objectEnumerator(); e.hasMoreElements();) {
-            String element = (String)e.nextElement();
-            if(!isLoggingDisabled) {
-                log.debug("Processing Element: {}", element);
+        // a value might parse a template itself, so the buffer is taken away while it is used
+        StringBuilder sb = _buffer.get();
+        if (sb == null) {
+            sb = new StringBuilder(template.length() + 32);
+        } else {
+            _buffer.set(null);
+        }
+        try {
+            appendTemplate(sb, compiledTemplate, objects);
+            return sb.toString();
+        } finally {
+            if (sb.capacity() <= MAX_BUFFER_CAPACITY) {
+                sb.setLength(0);
+                _buffer.set(sb);
             }
-            if(deriveElement) {
-                if(!isLoggingDisabled) {
-                    log.debug("Deriving value ...");
-                }
+        }
+    }
+
+    /**
+     * Appends the compiled template to the buffer with the keys replaced by their values.
+     * 
+     * @param sb the buffer to append to
+     * @param compiledTemplate the template
+     * @param objects the objects to resolve the keys off of, in the order they are tried
+     */
+    protected void appendTemplate(StringBuilder sb, CompiledTemplate compiledTemplate, Object[] objects) {
+        for (int index = 0; index < compiledTemplate.count(); index++) {
+            String element = compiledTemplate.part(index);
+            if(compiledTemplate.isKey(index)) {
                 if(element.length() == 0) {
-                    throw new IllegalArgumentException("\"\" is not a valid keypath in template: " + template);
+                    throw new IllegalArgumentException("\"\" is not a valid keypath in template: " + compiledTemplate.template());
                 }
                 Object result = _undefinedKeyLabel;
                 for (int i = 0; i < objects.length; i++) {
@@ -222,29 +366,21 @@ public class ERXSimpleTemplateParser {
                         } catch (Throwable t) {
                             throw new NSForwardException(t, "An exception occured while parsing element, "
                                             + element + ", of template, \""
-                                            + template + "\": "
+                                            + compiledTemplate.template() + "\": "
                                             + t.getMessage());
                         }
                     }
                 }
                 if(result == _undefinedKeyLabel) {
                     if (!isLoggingDisabled) {
-                        log.debug("Could not find a value for '{}' of template, '{}' in either the object or extra data.", element, template);
+                        log.debug("Could not find a value for '{}' of template, '{}' in either the object or extra data.", element, compiledTemplate.template());
                     }
                 }
                 sb.append(result.toString());
-                deriveElement = false;
-            } else {
-                if(element.length() > 0) {
-                    sb.append(element);
-                }
-                deriveElement = true;
-            }
-            if(!isLoggingDisabled) {
-                log.debug("Buffer: {}", sb);
+            } else if(element.length() > 0) {
+                sb.append(element);
             }
         }
-        return sb.toString();
     }
     
 	/**
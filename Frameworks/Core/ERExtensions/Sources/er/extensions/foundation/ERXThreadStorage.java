@@ -36,6 +36,12 @@ import er.extensions.eof.ERXEOControlUtilities;
  * The system property <code>er.extensions.ERXThreadStorage.logUsageOfProblematicInheritedValues</code>
  * defines, if potential problems should be logged. This defaults to <code>true</code> when running in development mode
  * and to <code>false</code> when running a deployed application.
+ * </p><p>
+ * When the system property <code>er.extensions.ERXThreadStorage.useScopedContext</code> is <code>true</code>, new threads
+ * start with an empty storage and the values are handed on explicitly with {@link #capture()}, which is cheap enough to do
+ * for every task (see {@link ERXScopedContext}). Tasks submitted to an ERXTaskThreadPoolExecutor are run in the context of
+ * the submitting thread automatically. Use this when running requests or tasks on virtual threads.
+ * </p>
  */
 public class ERXThreadStorage {
 	private static final Logger log = LoggerFactory.getLogger(ERXThreadStorage.class);
@@ -49,10 +55,13 @@ public class ERXThreadStorage {
     private static ThreadLocal threadMap;
     
     private static Boolean _useInheritableThreadLocal;
+    private static Boolean _useScopedContext;
     private static Boolean _logUsageOfProblematicInheritedValues;
 
     static {
-    	if(useInheritableThreadLocal()) {
+    	if(useScopedContext()) {
+    		threadMap = new ThreadLocal();
+    	} else if(useInheritableThreadLocal()) {
     		threadMap = new ERXThreadStorageCloneableThreadLocal();
     	} else {
     		threadMap = new ThreadLocal();
@@ -87,16 +96,29 @@ public class ERXThreadStorage {
     	return _useInheritableThreadLocal.booleanValue();
     }
     
+    /**
+     * Checks the system property <code>er.extensions.ERXThreadStorage.useScopedContext</code> 
+     * to decide whether to keep the values in an {@link ERXScopedContext} that is passed on
+     * explicitly instead of cloning it into every child thread.
+     * @return true if set, defaults to false
+     */
+    public static boolean useScopedContext() {
+    	if (_useScopedContext == null) {
+    		_useScopedContext = Boolean.valueOf(ERXProperties.booleanForKeyWithDefault("er.extensions.ERXThreadStorage.useScopedContext", false));
+    	}
+    	return _useScopedContext.booleanValue();
+    }
+
     /**
      * Checks the system property <code>er.extensions.ERXThreadStorage.logUsageOfProblematicInheritedValues</code> 
      * to decide whether to log potential problems when using certain values inherited by the parent thread.
-     * Only applies if using inheritable thread variables.
+     * Only applies if using inheritable thread variables or scoped contexts.
      * @return true if set (default)
      */
 	private static boolean logUsageOfProblematicInheritedValues() {
 		if (_logUsageOfProblematicInheritedValues == null) {
 			boolean devMode = ERXApplication.isDevelopmentModeSafe();
-			_logUsageOfProblematicInheritedValues = Boolean.valueOf(useInheritableThreadLocal() && ERXProperties.booleanForKeyWithDefault("er.extensions.ERXThreadStorage.logUsageOfProblematicInheritedValues", devMode));
+			_logUsageOfProblematicInheritedValues = Boolean.valueOf((useScopedContext() || useInheritableThreadLocal()) && ERXProperties.booleanForKeyWithDefault("er.extensions.ERXThreadStorage.logUsageOfProblematicInheritedValues", devMode));
 		}
 		return _logUsageOfProblematicInheritedValues.booleanValue();
 	}
@@ -225,6 +247,11 @@ public class ERXThreadStorage {
      * Removes all of the keys from the current Map.
      */
     public static void reset() {
+        if (useScopedContext()) {
+            // drop the context itself, so pooled threads don't keep the snapshots alive
+            threadMap.remove();
+            return;
+        }
         Map map = storageMap(false);
         if (map != null)
             map.clear();
@@ -240,11 +267,65 @@ public class ERXThreadStorage {
     private static Map storageMap(boolean create) {
         Map map = (Map)threadMap.get();
         if (map == null && create) {
-            map = new HashMap(DefaultHashMapSize);
+            map = useScopedContext() ? new ERXScopedContext() : new HashMap(DefaultHashMapSize);
             threadMap.set(map);
         }
         return map;
     }
+
+    /**
+     * Captures the values of the current thread so they can be used in another one,
+     * for example with {@link ERXScopedContext.Snapshot#wrap(Runnable)} before handing
+     * a task to an executor. With <code>er.extensions.ERXThreadStorage.useScopedContext</code>
+     * the values are frozen without copying them, otherwise they are copied.
+     * @return the values of the current thread
+     */
+    public static ERXScopedContext.Snapshot capture() {
+        Map map = storageMap(false);
+        if (map instanceof ERXScopedContext) {
+            return ((ERXScopedContext) map).capture();
+        }
+        if (map == null || map.isEmpty()) {
+            return ERXScopedContext.Snapshot.EMPTY;
+        }
+        Map values = new HashMap(map);
+        values.remove(ERXThreadStorage.WAS_CLONED_MARKER);
+        values.remove(ERXThreadStorage.KEYS_ADDED_IN_CURRENT_THREAD_KEY);
+        return new ERXScopedContext.Snapshot(values, null);
+    }
+
+    /**
+     * Binds the values of the given snapshot to the current thread. Only used by
+     * {@link ERXScopedContext.Snapshot}.
+     * @param snapshot the values to bind
+     * @return the previous storage of the current thread, to be passed to {@link #restore(Object)}
+     */
+    static Object bind(ERXScopedContext.Snapshot snapshot) {
+        Object previous = threadMap.get();
+        Map map;
+        if (useScopedContext()) {
+            map = new ERXScopedContext(snapshot);
+        } else {
+            map = new HashMap(snapshot.toMap());
+            if (snapshot != ERXScopedContext.Snapshot.EMPTY && useInheritableThreadLocal()) {
+                map.put(ERXThreadStorage.WAS_CLONED_MARKER, Boolean.TRUE);
+            }
+        }
+        threadMap.set(map);
+        return previous;
+    }
+
+    /**
+     * Restores the storage of the current thread after {@link #bind(ERXScopedContext.Snapshot)}.
+     * @param previous the previous storage
+     */
+    static void restore(Object previous) {
+        if (previous == null) {
+            threadMap.remove();
+        } else {
+            threadMap.set(previous);
+        }
+    }
     
     /**
      * Registers that a key was added in the current thread.
@@ -252,7 +333,7 @@ public class ERXThreadStorage {
      * @param key to bless
      */
     private static void markKeyAddedInCurrentThread(String key) {
-		if (wasInheritedFromParentThread()) {
+		if (!useScopedContext() && wasInheritedFromParentThread()) {
 			Map map = storageMap(false);
 			Set blessedKeys = (Set<String>) map.get(KEYS_ADDED_IN_CURRENT_THREAD_KEY);
 			if (blessedKeys == null) {
@@ -274,6 +355,9 @@ public class ERXThreadStorage {
     		return true;
     	}
     	Map map = storageMap(false);
+    	if (map instanceof ERXScopedContext) {
+    		return ((ERXScopedContext) map).isLocalKey(key);
+    	}
     	Set blessedKeys = (Set<String>) map.get(KEYS_ADDED_IN_CURRENT_THREAD_KEY);
     	return blessedKeys != null && blessedKeys.contains(key);
     }
@@ -284,7 +368,10 @@ public class ERXThreadStorage {
      */
     public static boolean wasInheritedFromParentThread() {
 		boolean result = false;
-		if (useInheritableThreadLocal()) {
+		if (useScopedContext()) {
+			Map map = storageMap(false);
+			result = map instanceof ERXScopedContext && ((ERXScopedContext) map).isInherited();
+		} else if (useInheritableThreadLocal()) {
 			Map map = storageMap(false);
 			if (map != null) {
 				result = ERXValueUtilities.booleanValue(map.get(ERXThreadStorage.WAS_CLONED_MARKER));
@@ -2,26 +2,39 @@ package er.extensions.jdbc;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.Collection;
 import java.util.Iterator;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.webobjects.eoaccess.EOAdaptor;
 import com.webobjects.eoaccess.EOAdaptorChannel;
 import com.webobjects.eoaccess.EOAdaptorContext;
+import com.webobjects.eoaccess.EOAdaptorOperation;
 import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.eoaccess.EODatabaseOperation;
 import com.webobjects.eoaccess.EOEntity;
 import com.webobjects.eoaccess.EOGeneralAdaptorException;
 import com.webobjects.eoaccess.EOSQLExpression;
+import com.webobjects.eoaccess.EOSQLExpressionFactory;
 import com.webobjects.eoaccess.EOStoredProcedure;
 import com.webobjects.eocontrol.EOFetchSpecification;
 import com.webobjects.eocontrol.EOQualifier;
 import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSData;
 import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSForwardException;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation._NSDelegate;
 import com.webobjects.foundation._NSUtilities;
 import com.webobjects.jdbcadaptor.ERXJDBCColumn;
 import com.webobjects.jdbcadaptor.JDBCAdaptor;
@@ -44,7 +57,23 @@ import er.extensions.foundation.ERXValueUtilities;
  * <code>er.extensions.ERXJDBCAdaptor.className</code> is set to this class's
  * name or another subclass of JDBCAdaptor. The connection pooling will be
  * enabled if the system property
- * <code>er.extensions.ERXJDBCAdaptor.useConnectionBroker</code> is set.
+ * <code>er.extensions.ERXJDBCAdaptor.useConnectionBroker</code> is set. If
+ * <code>er.extensions.ERXJDBCAdaptor.useConnectionPool</code> is set as well,
+ * connections are checked out from an {@link ERXJDBCConnectionPool} instead of
+ * the {@link ERXJDBCConnectionBroker}.
+ * <p>
+ * If <code>er.extensions.ERXJDBCAdaptor.batchSize</code> is larger than 1,
+ * consecutive insert, update and delete operations that result in the same
+ * SQL are sent to the database as JDBC batches of up to that many rows
+ * instead of one statement per row. The order of the operations is kept, so
+ * the ordering of ERXEntityFKConstraintOrder still holds, updates and deletes
+ * still have to affect exactly one row and failures still name the failed
+ * adaptor operation. Batched statements are passed to the adaptor channel
+ * delegate like single ones. Rows with binary values are not batched, as some
+ * plugins write them separately, and updates and deletes are not batched if
+ * the driver doesn't report the row count of each batched statement.
+ * 
+ * @property er.extensions.ERXJDBCAdaptor.batchSize the maximum number of rows per JDBC batch, 0 to turn batching off (defaults to 0)
  * 
  * @author ak
  * 
@@ -59,10 +88,18 @@ public class ERXJDBCAdaptor extends JDBCAdaptor {
 
 	public static final String USE_CONNECTION_BROKER_KEY = "er.extensions.ERXJDBCAdaptor.useConnectionBroker";
 
+	public static final String USE_CONNECTION_POOL_KEY = "er.extensions.ERXJDBCAdaptor.useConnectionPool";
+
 	public static final String CLASS_NAME_KEY = "er.extensions.ERXJDBCAdaptor.className";
 
+	public static final String BATCH_SIZE_KEY = "er.extensions.ERXJDBCAdaptor.batchSize";
+
 	private static Boolean switchReadWrite = null;
 	private static Boolean useConnectionBroker = null;
+	private static Boolean useConnectionPool = null;
+	private static Integer batchSize = null;
+
+	private volatile Boolean _batchReportsUpdateCounts;
 
 	static boolean switchReadWrite() {
 		if (switchReadWrite == null) {
@@ -83,6 +120,40 @@ public class ERXJDBCAdaptor extends JDBCAdaptor {
 		return useConnectionBroker.booleanValue();
 	}
 
+	/**
+	 * Returns whether the connection broker is backed by the {@link ERXJDBCConnectionPool}.
+	 * 
+	 * @return <code>true</code> if the connection pool is used
+	 */
+	public static boolean useConnectionPool() {
+		if (useConnectionPool == null) {
+			useConnectionPool = ERXProperties.booleanForKeyWithDefault(USE_CONNECTION_POOL_KEY, false) ? Boolean.TRUE : Boolean.FALSE;
+		}
+		return useConnectionPool.booleanValue();
+	}
+
+	/**
+	 * Returns the maximum number of rows the channels send in one JDBC batch.
+	 * Values smaller than 2 turn batching off.
+	 * 
+	 * @return the batch size
+	 */
+	public static int batchSize() {
+		if (batchSize == null) {
+			batchSize = Integer.valueOf(ERXProperties.intForKeyWithDefault(BATCH_SIZE_KEY, 0));
+		}
+		return batchSize.intValue();
+	}
+
+	/**
+	 * Sets the maximum number of rows the channels send in one JDBC batch.
+	 * 
+	 * @param size the batch size, 0 to turn batching off
+	 */
+	public static void setBatchSize(int size) {
+		batchSize = Integer.valueOf(size);
+	}
+
 	public static void registerJDBCAdaptor() {
 		String className = ERXProperties.stringForKey(CLASS_NAME_KEY);
 		if (className != null) {
@@ -100,6 +171,7 @@ public class ERXJDBCAdaptor extends JDBCAdaptor {
 	 * @author ak
 	 */
 	public static class Channel extends JDBCChannel {
+		private static final Logger log = LoggerFactory.getLogger(Channel.class);
 
 		public static final String COLUMN_CLASS_NAME_KEY = "er.extensions.ERXJDBCAdaptor.columnClassName";
 
@@ -171,6 +243,23 @@ public class ERXJDBCAdaptor extends JDBCAdaptor {
 			_selectedColumns = new NSArray(columns);
 		}
 
+		/**
+		 * Sets the number of rows the driver fetches at a time for the result
+		 * of the last evaluated expression.
+		 *
+		 * @param fetchSize the fetch size hint for the driver
+		 */
+		public void setResultSetFetchSize(int fetchSize) {
+			if (_resultSet != null) {
+				try {
+					_resultSet.setFetchSize(fetchSize);
+				}
+				catch (SQLException e) {
+					log.debug("Driver did not accept fetch size {}.", fetchSize, e);
+				}
+			}
+		}
+
 		private boolean setReadOnly(boolean mode) {
 			boolean old = false;
 			if (switchReadWrite()) {
@@ -202,14 +291,283 @@ public class ERXJDBCAdaptor extends JDBCAdaptor {
 		}
 
 		/**
-		 * Overridden to post a notification when the operations were performed.
+		 * Overridden to post a notification when the operations were performed
+		 * and to send runs of similar operations as JDBC batches.
 		 */
 		@Override
 		public void performAdaptorOperations(NSArray ops) {
-			super.performAdaptorOperations(ops);
+			if (batchSize() > 1 && ops.count() > 1) {
+				performAdaptorOperationsInBatches(ops);
+			}
+			else {
+				super.performAdaptorOperations(ops);
+			}
 			ERXAdaptorOperationWrapper.adaptorOperationsDidPerform(ops);
 		}
 
+		/**
+		 * Inserts the given rows, as JDBC batches if
+		 * <code>er.extensions.ERXJDBCAdaptor.batchSize</code> is set.
+		 * 
+		 * @param rows
+		 *            the rows to insert
+		 * @param entity
+		 *            the entity of the rows
+		 */
+		public void insertRows(Collection<? extends NSDictionary<String, ?>> rows, EOEntity entity) {
+			if (batchSize() > 1 && rows.size() > 1) {
+				NSMutableArray<EOAdaptorOperation> ops = new NSMutableArray<>(rows.size());
+				for (NSDictionary<String, ?> row : rows) {
+					EOAdaptorOperation op = new EOAdaptorOperation(entity);
+					op.setAdaptorOperator(EODatabaseOperation.AdaptorInsertOperator);
+					op.setChangedValues(row);
+					ops.addObject(op);
+				}
+				performAdaptorOperationsInBatches(ops);
+			}
+			else {
+				for (NSDictionary<String, ?> row : rows) {
+					insertRow(row, entity);
+				}
+			}
+		}
+
+		/**
+		 * Collects consecutive operations with the same SQL into batches and
+		 * hands everything in between to the superclass, in order.
+		 */
+		private void performAdaptorOperationsInBatches(NSArray<EOAdaptorOperation> ops) {
+			EOSQLExpressionFactory factory = adaptorContext().adaptor().expressionFactory();
+			NSMutableArray<EOAdaptorOperation> pending = new NSMutableArray<>();
+			NSMutableArray<EOAdaptorOperation> batch = new NSMutableArray<>();
+			NSMutableArray<EOSQLExpression> expressions = new NSMutableArray<>();
+			for (EOAdaptorOperation op : ops) {
+				EOSQLExpression expression = canBatchAdaptorOperation(op) ? expressionForAdaptorOperation(factory, op) : null;
+				if (expression != null && expressions.count() > 0 && batch.lastObject().adaptorOperator() == op.adaptorOperator() && expressions.lastObject().statement().equals(expression.statement())) {
+					batch.addObject(op);
+					expressions.addObject(expression);
+					continue;
+				}
+				flushAdaptorOperations(pending, batch, expressions);
+				if (expression != null) {
+					batch.addObject(op);
+					expressions.addObject(expression);
+				}
+				else {
+					pending.addObject(op);
+				}
+			}
+			flushAdaptorOperations(pending, batch, expressions);
+			if (pending.count() > 0) {
+				super.performAdaptorOperations(pending);
+			}
+		}
+
+		private void flushAdaptorOperations(NSMutableArray<EOAdaptorOperation> pending, NSMutableArray<EOAdaptorOperation> batch, NSMutableArray<EOSQLExpression> expressions) {
+			if (batch.count() > 1) {
+				if (pending.count() > 0) {
+					super.performAdaptorOperations(pending.immutableClone());
+					pending.removeAllObjects();
+				}
+				executeAdaptorOperationBatch(batch, expressions);
+			}
+			else {
+				pending.addObjectsFromArray(batch);
+			}
+			batch.removeAllObjects();
+			expressions.removeAllObjects();
+		}
+
+		/**
+		 * Returns whether the given operation may be sent as part of a JDBC
+		 * batch. Only inserts, updates and deletes without binary values are,
+		 * and updates and deletes only if the driver reports the row counts of
+		 * batched statements.
+		 * 
+		 * @param op
+		 *            the adaptor operation
+		 * @return <code>true</code> if the operation can be batched
+		 */
+		protected boolean canBatchAdaptorOperation(EOAdaptorOperation op) {
+			int operator = op.adaptorOperator();
+			if (operator != EODatabaseOperation.AdaptorInsertOperator && Boolean.FALSE.equals(((ERXJDBCAdaptor) adaptorContext().adaptor())._batchReportsUpdateCounts)) {
+				return false;
+			}
+			if (operator == EODatabaseOperation.AdaptorDeleteOperator) {
+				return true;
+			}
+			if (operator != EODatabaseOperation.AdaptorInsertOperator && operator != EODatabaseOperation.AdaptorUpdateOperator) {
+				return false;
+			}
+			for (Object value : op.changedValues().allValues()) {
+				if (value instanceof NSData) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private EOSQLExpression expressionForAdaptorOperation(EOSQLExpressionFactory factory, EOAdaptorOperation op) {
+			switch (op.adaptorOperator()) {
+			case EODatabaseOperation.AdaptorInsertOperator:
+				return factory.insertStatementForRow(op.changedValues(), op.entity());
+			case EODatabaseOperation.AdaptorUpdateOperator:
+				return factory.updateStatementForRow(op.changedValues(), op.qualifier(), op.entity());
+			default:
+				return factory.deleteStatementWithQualifier(op.qualifier(), op.entity());
+			}
+		}
+
+		/**
+		 * Binds the variables of the given expressions to a single prepared
+		 * statement and executes it in batches of {@link ERXJDBCAdaptor#batchSize()}
+		 * rows. Every row has to be changed exactly once, just like with
+		 * single operations. The channel delegate is asked before and told
+		 * after every row. A row it refuses ends the current batch and is
+		 * handed to the superclass in its place, so the rows are still changed
+		 * in the order of the operations.
+		 * <p>
+		 * Some drivers don't report the row counts of batched statements, so
+		 * the first batch of updates or deletes is sent within a savepoint. If
+		 * the driver reports {@link Statement#SUCCESS_NO_INFO}, the batch is
+		 * rolled back to the savepoint and updates and deletes are sent one
+		 * at a time from then on.
+		 */
+		private void executeAdaptorOperationBatch(NSArray<EOAdaptorOperation> ops, NSArray<EOSQLExpression> expressions) {
+			ERXJDBCAdaptor adaptor = (ERXJDBCAdaptor) adaptorContext().adaptor();
+			Connection connection = ((JDBCContext) adaptorContext()).connection();
+			boolean checkUpdateCounts = ops.objectAtIndex(0).adaptorOperator() != EODatabaseOperation.AdaptorInsertOperator;
+			_NSDelegate delegate = delegate() != null ? new _NSDelegate(EOAdaptorChannel.Delegate.class, delegate()) : null;
+			String statement = expressions.objectAtIndex(0).statement();
+			int size = batchSize();
+			int index = 0;
+			NSMutableArray<EOAdaptorOperation> batchedOps = new NSMutableArray<>();
+			NSMutableArray<EOSQLExpression> batchedExpressions = new NSMutableArray<>();
+			ERXJDBCColumn column = newERXJDBCColumn(this);
+			try {
+				if (checkUpdateCounts && adaptor._batchReportsUpdateCounts == null && (connection.getAutoCommit() || !connection.getMetaData().supportsSavepoints())) {
+					// without a savepoint, there's no safe way to find out whether the driver reports row counts
+					super.performAdaptorOperations(ops);
+					return;
+				}
+				try (PreparedStatement preparedStatement = connection.prepareStatement(statement)) {
+					column.setStatement(preparedStatement);
+					// the index of the first operation to send one at a time once the driver turns out not to report row counts
+					int unbatchedIndex = -1;
+					for (; index < ops.count() && unbatchedIndex < 0; index++) {
+						EOSQLExpression expression = expressions.objectAtIndex(index);
+						if (delegate != null && delegate.respondsTo("adaptorChannelShouldEvaluateExpression") && !delegate.booleanPerform("adaptorChannelShouldEvaluateExpression", this, expression)) {
+							if (executeBatch(preparedStatement, statement, checkUpdateCounts, batchedOps, batchedExpressions, delegate)) {
+								super.performAdaptorOperations(new NSArray<>(ops.objectAtIndex(index)));
+							}
+							else {
+								unbatchedIndex = index;
+							}
+							continue;
+						}
+						NSArray<NSDictionary<String, Object>> bindings = expression.bindVariableDictionaries();
+						for (int j = 0; j < bindings.count(); j++) {
+							NSDictionary<String, Object> binding = bindings.objectAtIndex(j);
+							column.setAttribute((EOAttribute) binding.objectForKey(EOSQLExpression.BindVariableAttributeKey));
+							column.takeInputValue(binding.objectForKey(EOSQLExpression.BindVariableValueKey), j + 1, false);
+						}
+						preparedStatement.addBatch();
+						batchedOps.addObject(ops.objectAtIndex(index));
+						batchedExpressions.addObject(expression);
+						if (batchedOps.count() == size && !executeBatch(preparedStatement, statement, checkUpdateCounts, batchedOps, batchedExpressions, delegate)) {
+							unbatchedIndex = index + 1;
+						}
+					}
+					if (unbatchedIndex < 0 && !executeBatch(preparedStatement, statement, checkUpdateCounts, batchedOps, batchedExpressions, delegate)) {
+						unbatchedIndex = ops.count();
+					}
+					if (unbatchedIndex >= 0) {
+						NSMutableArray<EOAdaptorOperation> unbatchedOps = new NSMutableArray<>(batchedOps);
+						for (int i = unbatchedIndex; i < ops.count(); i++) {
+							unbatchedOps.addObject(ops.objectAtIndex(i));
+						}
+						batchedOps.removeAllObjects();
+						super.performAdaptorOperations(unbatchedOps);
+					}
+				}
+			}
+			catch (SQLException ex) {
+				cleanup();
+				EOAdaptorOperation failedOp = batchedOps.count() > 0 ? batchedOps.objectAtIndex(0) : ops.objectAtIndex(Math.min(index, ops.count() - 1));
+				if (ex instanceof BatchUpdateException && ((BatchUpdateException) ex).getUpdateCounts() != null) {
+					int[] counts = ((BatchUpdateException) ex).getUpdateCounts();
+					int i = 0;
+					while (i < counts.length && counts[i] != Statement.EXECUTE_FAILED) {
+						i++;
+					}
+					failedOp = batchedOps.objectAtIndex(Math.min(i, batchedOps.count() - 1));
+				}
+				throw failedAdaptorOperationException(failedOp, ex, ex.getMessage(), false);
+			}
+		}
+
+		/**
+		 * Executes the rows added to the given statement and removes their
+		 * operations and expressions from the given arrays. If the first batch
+		 * of updates or deletes shows that the driver doesn't report row
+		 * counts, the rows are rolled back, left in the arrays and
+		 * <code>false</code> is returned.
+		 */
+		private boolean executeBatch(PreparedStatement preparedStatement, String statement, boolean checkUpdateCounts, NSMutableArray<EOAdaptorOperation> batchedOps, NSMutableArray<EOSQLExpression> batchedExpressions, _NSDelegate delegate) throws SQLException {
+			if (batchedOps.count() == 0) {
+				return true;
+			}
+			ERXJDBCAdaptor adaptor = (ERXJDBCAdaptor) adaptorContext().adaptor();
+			Connection connection = ((JDBCContext) adaptorContext()).connection();
+			Savepoint savepoint = checkUpdateCounts && adaptor._batchReportsUpdateCounts == null ? connection.setSavepoint() : null;
+			log.debug("Executing a batch of {} rows: {}", batchedOps.count(), statement);
+			int[] counts = preparedStatement.executeBatch();
+			if (checkUpdateCounts && savepoint != null) {
+				boolean reportsUpdateCounts = true;
+				for (int count : counts) {
+					reportsUpdateCounts &= count != Statement.SUCCESS_NO_INFO;
+				}
+				if (!reportsUpdateCounts) {
+					log.info("The driver does not report the row counts of batched statements, updates and deletes are no longer batched.");
+					connection.rollback(savepoint);
+					adaptor._batchReportsUpdateCounts = Boolean.FALSE;
+					return false;
+				}
+				connection.releaseSavepoint(savepoint);
+				adaptor._batchReportsUpdateCounts = Boolean.TRUE;
+			}
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] != 1 && (checkUpdateCounts || counts[i] != Statement.SUCCESS_NO_INFO)) {
+					EOAdaptorOperation op = batchedOps.objectAtIndex(i);
+					throw failedAdaptorOperationException(op, null, "Batched " + statement + " changed " + counts[i] + " rows, expected 1", checkUpdateCounts);
+				}
+			}
+			if (delegate != null && delegate.respondsTo("adaptorChannelDidEvaluateExpression")) {
+				for (EOSQLExpression expression : batchedExpressions) {
+					delegate.perform("adaptorChannelDidEvaluateExpression", this, expression);
+				}
+			}
+			batchedOps.removeAllObjects();
+			batchedExpressions.removeAllObjects();
+			return true;
+		}
+
+		/**
+		 * Creates the exception EOAdaptorChannel would throw for a single failed
+		 * operation, so the database context and its delegates can handle it the
+		 * same way.
+		 */
+		private EOGeneralAdaptorException failedAdaptorOperationException(EOAdaptorOperation op, SQLException ex, String message, boolean optimisticLockingFailure) {
+			JDBCAdaptorException exception = new JDBCAdaptorException(message, ex);
+			op.setException(exception);
+			NSMutableDictionary<String, Object> userInfo = new NSMutableDictionary<>();
+			userInfo.setObjectForKey(op, EOAdaptorChannel.FailedAdaptorOperationKey);
+			if (optimisticLockingFailure) {
+				userInfo.setObjectForKey(EOAdaptorChannel.AdaptorOptimisticLockingFailure, EOAdaptorChannel.AdaptorFailureKey);
+			}
+			return new EOGeneralAdaptorException(message, userInfo);
+		}
+
 		private JDBCPlugIn _plugIn() {
 			JDBCAdaptor jdbcadaptor = (JDBCAdaptor) adaptorContext().adaptor();
 			return jdbcadaptor.plugIn();
@@ -526,6 +884,9 @@ public class ERXJDBCAdaptor extends JDBCAdaptor {
 	}
 
 	private ConnectionBroker connectionBroker() {
+		if (useConnectionPool()) {
+			return ERXJDBCConnectionPool.connectionPoolForAdaptor(this);
+		}
 		return ERXJDBCConnectionBroker.connectionBrokerForAdaptor(this);
 	}
 
@@ -0,0 +1,642 @@
+package er.extensions.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.webobjects.eoaccess.EOAdaptor;
+import com.webobjects.eoaccess.EOModel;
+import com.webobjects.eoaccess.EOModelGroup;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSForwardException;
+import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.jdbcadaptor.JDBCAdaptor;
+import com.webobjects.jdbcadaptor.JDBCPlugIn;
+
+import er.extensions.foundation.ERXProperties;
+import er.extensions.foundation.ERXValueUtilities;
+
+/**
+ * A JDBC connection pool that can be used instead of {@link ERXJDBCConnectionBroker}, either through the
+ * ERXJDBCAdaptor (set <code>er.extensions.ERXJDBCAdaptor.useConnectionPool</code> in addition to
+ * <code>er.extensions.ERXJDBCAdaptor.useConnectionBroker</code>) or directly for SQL statements that
+ * should not use / block EOF. Maintains one pool per each distinct connection dictionary.
+ * <p>
+ * Unlike the broker, checking out a connection does not scan the pool under a lock: the number of connections in
+ * use is bounded by a semaphore and idle connections are kept in a lock-free deque, most recently used first.
+ * If no connection is available, the caller waits for at most <code>connectionTimeout</code> milliseconds.
+ * Idle connections are validated before they are handed out and are closed after <code>idleTimeout</code>
+ * (down to <code>minConnections</code>) or when they are older than <code>maxLifetime</code>. Connections that
+ * stay checked out longer than <code>leakDetectionThreshold</code> are logged with the stack trace of the
+ * code that checked them out.
+ * <p>
+ * The settings are read from the connection dictionary (as the ERXJDBCConnectionBroker's
+ * <code>minConnections</code> and <code>maxConnections</code>, which {@link er.extensions.foundation.ERXConfigurationManager}
+ * adds to each EOModel's connection dictionary) and fall back to the properties below.
+ * <p>
+ * Usage: check out a connection:
+ * <pre><code>
+ * ERXJDBCConnectionPool pool = ERXJDBCConnectionPool.connectionPoolForModel(myModel);
+ * java.sql.Connection con = pool.getConnection();
+ * try {
+ *     java.sql.Statement s = con.createStatement();
+ *     //now do something with the Statement
+ * } finally {
+ *     pool.freeConnection(con);
+ * }
+ * </code></pre>
+ *
+ * @property er.extensions.ERXJDBCConnectionPool.minConnections the number of connections kept open, default 1
+ * @property er.extensions.ERXJDBCConnectionPool.maxConnections the maximum number of connections, default 10
+ * @property er.extensions.ERXJDBCConnectionPool.connectionTimeout the maximum number of milliseconds to wait for a connection, default 30000
+ * @property er.extensions.ERXJDBCConnectionPool.idleTimeout the number of milliseconds after which an idle connection is closed, default 600000
+ * @property er.extensions.ERXJDBCConnectionPool.maxLifetime the number of milliseconds after which a connection is replaced, default 1800000
+ * @property er.extensions.ERXJDBCConnectionPool.validationTimeout the number of seconds to wait for a connection to validate, default 5
+ * @property er.extensions.ERXJDBCConnectionPool.validationInterval connections used within this number of milliseconds are not validated again, default 500
+ * @property er.extensions.ERXJDBCConnectionPool.connectionTestSQL the SQL used to validate connections, default none (uses Connection.isValid)
+ * @property er.extensions.ERXJDBCConnectionPool.leakDetectionThreshold the number of milliseconds after which a checked out connection is reported as a leak, default 0 (off)
+ * @property er.extensions.ERXJDBCConnectionPool.housekeepingInterval the number of milliseconds between housekeeping runs, default 30000
+ */
+public class ERXJDBCConnectionPool implements ERXJDBCAdaptor.ConnectionBroker {
+	private static final Logger log = LoggerFactory.getLogger(ERXJDBCConnectionPool.class);
+
+	private static final Map<String, ERXJDBCConnectionPool> pools = new ConcurrentHashMap<>();
+
+	private static ScheduledExecutorService housekeeper;
+
+	private final String _dbDriver;
+	private final String _dbServer;
+	private final String _dbLogin;
+	private final String _dbPassword;
+
+	private final int _minimumConnections;
+	private final int _maximumConnections;
+	private final long _connectionTimeout;
+	private final long _idleTimeout;
+	private final long _maxLifetime;
+	private final int _validationTimeout;
+	private final long _validationInterval;
+	private final String _connectionTestSQL;
+	private final long _leakDetectionThreshold;
+
+	private final Semaphore _permits;
+	private final ConcurrentLinkedDeque<PooledConnection> _idleConnections = new ConcurrentLinkedDeque<>();
+	private final Map<Connection, PooledConnection> _activeConnections = new ConcurrentHashMap<>();
+	private final AtomicInteger _idleCount = new AtomicInteger();
+	private final AtomicInteger _totalCount = new AtomicInteger();
+	private volatile boolean _active = true;
+	private ScheduledFuture<?> _housekeeping;
+
+	private final LongAdder _checkouts = new LongAdder();
+	private final LongAdder _timeouts = new LongAdder();
+	private final LongAdder _waitNanos = new LongAdder();
+	private final LongAccumulator _maxWaitNanos = new LongAccumulator(Math::max, 0L);
+	private final LongAdder _createdConnections = new LongAdder();
+	private final LongAdder _closedConnections = new LongAdder();
+	private final LongAdder _leaks = new LongAdder();
+
+	public static ERXJDBCConnectionPool connectionPoolForModelWithName(String modelName) {
+		return connectionPoolForModel(EOModelGroup.defaultGroup().modelNamed(modelName));
+	}
+
+	public static ERXJDBCConnectionPool connectionPoolForModel(EOModel model) {
+		return connectionPoolForConnectionDictionary(model.connectionDictionary());
+	}
+
+	public static ERXJDBCConnectionPool connectionPoolForAdaptor(EOAdaptor adaptor) {
+		return connectionPoolForConnectionDictionary(adaptor.connectionDictionary());
+	}
+
+	public static ERXJDBCConnectionPool connectionPoolForConnectionDictionary(NSDictionary dict) {
+		String key = "";
+		String keys [] = new String[] {"URL", "username", "password", "driver", "plugin"};
+		for (int i = 0; i < keys.length; i++) {
+			key += dict.objectForKey(keys[i]) + "\0";
+		}
+		ERXJDBCConnectionPool pool = pools.get(key);
+		if (pool == null) {
+			pool = pools.computeIfAbsent(key, k -> new ERXJDBCConnectionPool(dict));
+		}
+		return pool;
+	}
+
+	/**
+	 * Returns the statistics of all pools, keyed by their database URL.
+	 *
+	 * @see #statistics()
+	 * @return the statistics of all pools
+	 */
+	public static NSDictionary<String, NSDictionary<String, Object>> allStatistics() {
+		NSMutableDictionary<String, NSDictionary<String, Object>> allStatistics = new NSMutableDictionary<>();
+		for (ERXJDBCConnectionPool pool : pools.values()) {
+			String key = String.valueOf(pool._dbServer);
+			String uniqueKey = key;
+			for (int i = 2; allStatistics.objectForKey(uniqueKey) != null; i++) {
+				uniqueKey = key + " (" + i + ")";
+			}
+			allStatistics.setObjectForKey(pool.statistics(), uniqueKey);
+		}
+		return allStatistics;
+	}
+
+	/**
+	 * Creates a pool for the given connection dictionary. Use one of the static factory methods to share pools.
+	 *
+	 * @param dict
+	 *            the connection dictionary
+	 */
+	protected ERXJDBCConnectionPool(NSDictionary dict) {
+		String dbDriver = (String) dict.objectForKey("driver");
+		if (dbDriver == null || dbDriver.length() == 0) {
+			String plugin = (String) dict.objectForKey("plugin");
+			String url = (String) dict.objectForKey("URL");
+			if ((plugin != null && plugin.length() > 0) || (url != null && url.startsWith("jdbc:"))) {
+				JDBCAdaptor jdbcAdaptor = new JDBCAdaptor("JDBC");
+				jdbcAdaptor.setConnectionDictionary(dict);
+				JDBCPlugIn plugIn = jdbcAdaptor.plugIn();
+				dbDriver = plugIn.defaultDriverName();
+			}
+		}
+		_dbDriver = dbDriver;
+		_dbServer = (String) dict.objectForKey("URL");
+		_dbLogin = (String) dict.objectForKey("username");
+		_dbPassword = (String) dict.objectForKey("password");
+
+		_minimumConnections = ERXValueUtilities.intValueWithDefault(dict.objectForKey("minConnections"), ERXProperties.intForKeyWithDefault("er.extensions.ERXJDBCConnectionPool.minConnections", 1));
+		_maximumConnections = Math.max(1, ERXValueUtilities.intValueWithDefault(dict.objectForKey("maxConnections"), ERXProperties.intForKeyWithDefault("er.extensions.ERXJDBCConnectionPool.maxConnections", 10)));
+		_connectionTimeout = ERXValueUtilities.longValueWithDefault(dict.objectForKey("connectionTimeout"), ERXProperties.longForKeyWithDefault("er.extensions.ERXJDBCConnectionPool.connectionTimeout", 30000L));
+		_idleTimeout = ERXValueUtilities.longValueWithDefault(dict.objectForKey("idleTimeout"), ERXProperties.longForKeyWithDefault("er.extensions.ERXJDBCConnectionPool.idleTimeout", 600000L));
+		_maxLifetime = ERXValueUtilities.longValueWithDefault(dict.objectForKey("maxLifetime"), ERXProperties.longForKeyWithDefault("er.extensions.ERXJDBCConnectionPool.maxLifetime", 1800000L));
+		_validationTimeout = ERXProperties.intForKeyWithDefault("er.extensions.ERXJDBCConnectionPool.validationTimeout", 5);
+		_validationInterval = ERXProperties.longForKeyWithDefault("er.extensions.ERXJDBCConnectionPool.validationInterval", 500L);
+		_connectionTestSQL = ERXProperties.stringForKey("er.extensions.ERXJDBCConnectionPool.connectionTestSQL");
+		_leakDetectionThreshold = ERXValueUtilities.longValueWithDefault(dict.objectForKey("leakDetectionThreshold"), ERXProperties.longForKeyWithDefault("er.extensions.ERXJDBCConnectionPool.leakDetectionThreshold", 0L));
+		_permits = new Semaphore(_maximumConnections, true);
+
+		long housekeepingInterval = ERXProperties.longForKeyWithDefault("er.extensions.ERXJDBCConnectionPool.housekeepingInterval", 30000L);
+		_housekeeping = housekeeper().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					housekeep();
+				}
+				catch (Throwable t) {
+					log.error("Housekeeping failed for {}.", ERXJDBCConnectionPool.this, t);
+				}
+			}
+		}, 0L, housekeepingInterval, TimeUnit.MILLISECONDS);
+		log.info("Started pool: {}", this);
+	}
+
+	private static synchronized ScheduledExecutorService housekeeper() {
+		if (housekeeper == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+				Thread thread = new Thread(runnable, "ERXJDBCConnectionPoolHousekeeper");
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.setRemoveOnCancelPolicy(true);
+			housekeeper = executor;
+		}
+		return housekeeper;
+	}
+
+	@Override
+	public String toString() {
+		return "<" + getClass().getName() +
+		": dbDriver = " + _dbDriver +
+		", dbServer = " + _dbServer +
+		", dbLogin = " + _dbLogin +
+		", activeConnections = " + _activeConnections.size() +
+		", idleConnections = " + _idleCount.get() +
+		", minimumConnections = " + _minimumConnections +
+		", maximumConnections = " + _maximumConnections + ">";
+	}
+
+	/**
+	 * Checks out a connection, waiting at most <code>connectionTimeout</code> milliseconds for one to become
+	 * available. The connection is handed out with autoCommit and readOnly turned off, like the
+	 * ERXJDBCConnectionBroker does.
+	 *
+	 * @return a connection that must be returned with {@link #freeConnection(Connection)}
+	 * @throws IllegalStateException
+	 *             if no connection became available in time
+	 */
+	public Connection getConnection() {
+		if (!_active) {
+			throw new IllegalStateException("Unsuccessful getConnection() request during destroy()");
+		}
+		long startTime = System.nanoTime();
+		boolean acquired;
+		try {
+			acquired = _permits.tryAcquire(_connectionTimeout, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw NSForwardException._runtimeExceptionForThrowable(e);
+		}
+		long waitNanos = System.nanoTime() - startTime;
+		_waitNanos.add(waitNanos);
+		_maxWaitNanos.accumulate(waitNanos);
+		if (!acquired) {
+			_timeouts.increment();
+			throw new IllegalStateException("No connection available after " + _connectionTimeout + "ms: " + this);
+		}
+
+		PooledConnection pooledConnection = null;
+		boolean created = false;
+		try {
+			pooledConnection = checkoutIdleConnection();
+			if (pooledConnection == null) {
+				pooledConnection = newPooledConnection();
+				created = true;
+			}
+			pooledConnection.checkout(_leakDetectionThreshold > 0);
+			_activeConnections.put(pooledConnection.connection(), pooledConnection);
+			_checkouts.increment();
+			return pooledConnection.connection();
+		}
+		catch (SQLException e) {
+			failedCheckout(pooledConnection, created);
+			throw new NSForwardException(e, "Error: Unable to create new connection");
+		}
+		catch (RuntimeException e) {
+			failedCheckout(pooledConnection, created);
+			throw e;
+		}
+	}
+
+	/**
+	 * Cleans up after a checkout failed: a connection that was opened for it is closed, an idle one goes back to
+	 * the idle connections.
+	 */
+	private void failedCheckout(PooledConnection pooledConnection, boolean created) {
+		try {
+			if (pooledConnection != null) {
+				_activeConnections.remove(pooledConnection.connection());
+				if (created) {
+					closeConnection(pooledConnection);
+				}
+				else {
+					_idleConnections.offerFirst(pooledConnection);
+					_idleCount.incrementAndGet();
+				}
+			}
+		}
+		finally {
+			_permits.release();
+		}
+	}
+
+	/**
+	 * Returns the most recently used idle connection that is still usable, or null if there is none.
+	 */
+	private PooledConnection checkoutIdleConnection() {
+		PooledConnection pooledConnection;
+		while ((pooledConnection = _idleConnections.pollFirst()) != null) {
+			_idleCount.decrementAndGet();
+			if (isUsable(pooledConnection, System.currentTimeMillis())) {
+				return pooledConnection;
+			}
+			closeConnection(pooledConnection);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a connection to the pool. Connections that can not be reset are closed.
+	 *
+	 * @param conn
+	 *            the connection to return
+	 */
+	public void freeConnection(Connection conn) {
+		PooledConnection pooledConnection = conn != null ? _activeConnections.remove(conn) : null;
+		if (pooledConnection == null) {
+			log.error("Could not free connection: {}", conn);
+			return;
+		}
+		try {
+			boolean reusable = _active && pooledConnection.checkin();
+			if (reusable && System.currentTimeMillis() - pooledConnection.creationTime() < _maxLifetime) {
+				_idleConnections.offerFirst(pooledConnection);
+				_idleCount.incrementAndGet();
+			}
+			else {
+				closeConnection(pooledConnection);
+			}
+		}
+		finally {
+			_permits.release();
+		}
+	}
+
+	/**
+	 * Creates a new physical connection. Override to customize how connections are opened.
+	 *
+	 * @return a new connection
+	 * @throws SQLException
+	 *             if the connection can not be opened
+	 */
+	protected Connection createConnection() throws SQLException {
+		try {
+			// When dbDriver null or blank, the driver is automatically registered via the SPI.
+			if (_dbDriver != null && !_dbDriver.isEmpty()) {
+				Class.forName(_dbDriver);
+			}
+			return DriverManager.getConnection(_dbServer, _dbLogin, _dbPassword);
+		}
+		catch (ClassNotFoundException e) {
+			throw NSForwardException._runtimeExceptionForThrowable(e);
+		}
+	}
+
+	private PooledConnection newPooledConnection() throws SQLException {
+		PooledConnection pooledConnection = new PooledConnection(createConnection());
+		_totalCount.incrementAndGet();
+		_createdConnections.increment();
+		return pooledConnection;
+	}
+
+	/**
+	 * Returns whether an idle connection can be handed out. Connections that were used within the validation
+	 * interval are trusted, all others are validated.
+	 */
+	private boolean isUsable(PooledConnection pooledConnection, long now) {
+		if (now - pooledConnection.creationTime() >= _maxLifetime) {
+			return false;
+		}
+		if (now - pooledConnection.lastUsedTime() < _validationInterval) {
+			return true;
+		}
+		return isValid(pooledConnection.connection());
+	}
+
+	/**
+	 * Validates a connection with <code>connectionTestSQL</code> or, if it is not set, with
+	 * {@link Connection#isValid(int)}.
+	 *
+	 * @param connection
+	 *            the connection to validate
+	 * @return whether the connection is usable
+	 */
+	protected boolean isValid(Connection connection) {
+		try {
+			if (_connectionTestSQL == null) {
+				return connection.isValid(_validationTimeout);
+			}
+			Statement statement = connection.createStatement();
+			try {
+				statement.setQueryTimeout(_validationTimeout);
+				statement.execute(_connectionTestSQL);
+			}
+			finally {
+				statement.close();
+			}
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+			}
+			return true;
+		}
+		catch (SQLException e) {
+			log.info("Connection failed validation, discarding it: {}", connection, e);
+			return false;
+		}
+	}
+
+	private void closeConnection(PooledConnection pooledConnection) {
+		_totalCount.decrementAndGet();
+		_closedConnections.increment();
+		try {
+			pooledConnection.connection().close();
+		}
+		catch (SQLException e) {
+			log.warn("Cannot close connection: {}", pooledConnection, e);
+		}
+	}
+
+	/**
+	 * Closes idle connections that have been idle for too long (keeping at least <code>minConnections</code>)
+	 * or that are past their maximum lifetime, reports leaked connections and opens connections up to
+	 * <code>minConnections</code>.
+	 */
+	protected void housekeep() {
+		long now = System.currentTimeMillis();
+		for (PooledConnection pooledConnection : _idleConnections) {
+			boolean expired = now - pooledConnection.creationTime() >= _maxLifetime;
+			boolean idle = now - pooledConnection.lastUsedTime() >= _idleTimeout && _totalCount.get() > _minimumConnections;
+			if ((expired || idle) && _idleConnections.removeFirstOccurrence(pooledConnection)) {
+				_idleCount.decrementAndGet();
+				closeConnection(pooledConnection);
+			}
+		}
+
+		if (_leakDetectionThreshold > 0) {
+			for (PooledConnection pooledConnection : _activeConnections.values()) {
+				if (pooledConnection.checkLeak(now, _leakDetectionThreshold)) {
+					_leaks.increment();
+				}
+			}
+		}
+
+		// holding a permit while the connection is created keeps the total number of connections within maxConnections
+		while (_active && _totalCount.get() < _minimumConnections && _permits.tryAcquire()) {
+			try {
+				PooledConnection pooledConnection = newPooledConnection();
+				pooledConnection.checkin();
+				_idleConnections.offerLast(pooledConnection);
+				_idleCount.incrementAndGet();
+			}
+			catch (SQLException e) {
+				log.error("Can't create connection for {}, will retry.", this, e);
+				break;
+			}
+			finally {
+				_permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Returns the statistics of this pool: the number of active, idle and total connections, the number of threads
+	 * waiting for a connection, the number of checkouts, timeouts, created and closed connections and leaks, and the
+	 * average and maximum time in milliseconds that callers waited for a connection.
+	 *
+	 * @return the statistics of this pool
+	 */
+	public NSDictionary<String, Object> statistics() {
+		NSMutableDictionary<String, Object> statistics = new NSMutableDictionary<>();
+		long checkouts = _checkouts.sum();
+		long timeouts = _timeouts.sum();
+		statistics.setObjectForKey(Integer.valueOf(_activeConnections.size()), "activeConnections");
+		statistics.setObjectForKey(Integer.valueOf(_idleCount.get()), "idleConnections");
+		statistics.setObjectForKey(Integer.valueOf(_totalCount.get()), "totalConnections");
+		statistics.setObjectForKey(Integer.valueOf(_maximumConnections), "maximumConnections");
+		statistics.setObjectForKey(Integer.valueOf(_permits.getQueueLength()), "waitingThreads");
+		statistics.setObjectForKey(Long.valueOf(checkouts), "checkouts");
+		statistics.setObjectForKey(Long.valueOf(timeouts), "timeouts");
+		statistics.setObjectForKey(Long.valueOf(_createdConnections.sum()), "createdConnections");
+		statistics.setObjectForKey(Long.valueOf(_closedConnections.sum()), "closedConnections");
+		statistics.setObjectForKey(Long.valueOf(_leaks.sum()), "leaks");
+		statistics.setObjectForKey(Double.valueOf(checkouts + timeouts == 0 ? 0.0 : _waitNanos.sum() / 1000000.0 / (checkouts + timeouts)), "averageWaitMillis");
+		statistics.setObjectForKey(Double.valueOf(_maxWaitNanos.get() / 1000000.0), "maximumWaitMillis");
+		return statistics;
+	}
+
+	public int activeConnectionCount() {
+		return _activeConnections.size();
+	}
+
+	public int idleConnectionCount() {
+		return _idleCount.get();
+	}
+
+	public int totalConnectionCount() {
+		return _totalCount.get();
+	}
+
+	/**
+	 * Stops the pool: closes all idle connections and waits at most millis milliseconds for the active connections to
+	 * be returned before closing them.
+	 *
+	 * @param millis
+	 *            the number of milliseconds to wait for active connections
+	 */
+	public void destroy(long millis) {
+		_active = false;
+		if (_housekeeping != null) {
+			_housekeeping.cancel(false);
+		}
+		pools.values().remove(this);
+		long deadline = System.currentTimeMillis() + millis;
+		while (!_activeConnections.isEmpty() && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(100);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		PooledConnection pooledConnection;
+		while ((pooledConnection = _idleConnections.pollFirst()) != null) {
+			_idleCount.decrementAndGet();
+			closeConnection(pooledConnection);
+		}
+		List<PooledConnection> activeConnections = new ArrayList<>(_activeConnections.values());
+		if (!activeConnections.isEmpty()) {
+			log.warn("Unsafe shutdown: Had to close {} active DB connections after {}ms", activeConnections.size(), millis);
+			for (PooledConnection activeConnection : activeConnections) {
+				if (_activeConnections.remove(activeConnection.connection()) != null) {
+					closeConnection(activeConnection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A physical connection and its bookkeeping.
+	 */
+	private static class PooledConnection {
+		private final Connection _connection;
+		private final long _creationTime;
+		private volatile long _lastUsedTime;
+		private volatile long _checkoutTime;
+		private volatile Throwable _checkoutTrace;
+		private volatile boolean _leakReported;
+
+		public PooledConnection(Connection connection) {
+			_connection = connection;
+			_creationTime = System.currentTimeMillis();
+			_lastUsedTime = _creationTime;
+		}
+
+		public Connection connection() {
+			return _connection;
+		}
+
+		public long creationTime() {
+			return _creationTime;
+		}
+
+		public long lastUsedTime() {
+			return _lastUsedTime;
+		}
+
+		public void checkout(boolean recordTrace) {
+			_checkoutTime = System.currentTimeMillis();
+			_checkoutTrace = recordTrace ? new Throwable("Connection checked out at") : null;
+			_leakReported = false;
+			try {
+				if (_connection.isReadOnly()) {
+					_connection.setReadOnly(false);
+				}
+				if (_connection.getAutoCommit()) {
+					_connection.setAutoCommit(false);
+				}
+			}
+			catch (SQLException e) {
+				throw new NSForwardException(e, "Could not set read only to false for connection: " + this);
+			}
+		}
+
+		/**
+		 * Resets the connection for the next user.
+		 *
+		 * @return whether the connection can be reused
+		 */
+		public boolean checkin() {
+			_lastUsedTime = System.currentTimeMillis();
+			_checkoutTime = 0L;
+			_checkoutTrace = null;
+			try {
+				if (_connection.isClosed()) {
+					return false;
+				}
+				// AK: PG MUST and other probably should have set the autocommit to true on putting back in pool
+				if (!_connection.getAutoCommit()) {
+					_connection.setAutoCommit(true);
+				}
+				_connection.clearWarnings();
+				return true;
+			}
+			catch (SQLException e) {
+				log.error("Database error, discarding connection {}.", this, e);
+				return false;
+			}
+		}
+
+		public boolean checkLeak(long now, long threshold) {
+			long checkoutTime = _checkoutTime;
+			if (!_leakReported && checkoutTime > 0 && now - checkoutTime > threshold) {
+				_leakReported = true;
+				log.warn("Connection {} has been checked out for {}ms, it may have leaked.", this, Long.valueOf(now - checkoutTime), _checkoutTrace);
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return getClass().getName() +
+			": connection = " + _connection +
+			": creationTime = " + _creationTime +
+			": checkoutTime = " + _checkoutTime;
+		}
+	}
+}
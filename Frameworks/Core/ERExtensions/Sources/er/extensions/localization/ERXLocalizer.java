@@ -20,6 +20,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -47,6 +48,7 @@ import com.webobjects.foundation.NSPropertyListSerialization;
 import com.webobjects.foundation.NSSelector;
 import com.webobjects.foundation.NSTimestampFormatter;
 
+import er.extensions.appserver.ERXMemoryMonitor;
 import er.extensions.appserver.ERXWOContext;
 import er.extensions.eof.ERXConstant;
 import er.extensions.formatters.ERXNumberFormatter;
@@ -219,7 +221,11 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 	static NSArray<String> availableLanguages;
 	static String defaultLanguage;
 
-	static NSMutableDictionary<String, ERXLocalizer> localizers = new NSMutableDictionary<>();
+	static volatile Map<String, ERXLocalizer> localizers = new ConcurrentHashMap<>();
+
+	static {
+		ERXMemoryMonitor.register(ERXLocalizer::reclaimMemoryOfAllLocalizers);
+	}
 
 	public static class Observer {
 		public void fileDidChange(NSNotification n) {
@@ -366,13 +372,12 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 	public static void resetCache() {
 		initialize();
 		if (WOApplication.application().isCachingEnabled()) {
-			Enumeration<ERXLocalizer> e = localizers.objectEnumerator();
-			while (e.hasMoreElements()) {
-				e.nextElement().load();
+			for (ERXLocalizer localizer : localizers.values()) {
+				localizer.load();
 			}
 		}
 		else {
-			localizers = new NSMutableDictionary<>();
+			localizers = new ConcurrentHashMap<>();
 		}
 	}
 
@@ -386,13 +391,35 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
    */
 	protected void addToCreatedKeys(Object value, String key) {
 		if (key != null && value != null) {
-			createdKeys.takeValueForKey(value, key);
+			_createdKeys.put(key, value);
 			if (key.indexOf(" ") > 0) {
 				log.info("Value added: {}->{} in {}", key, value, NSPropertyListSerialization.stringFromPropertyList(ERXWOContext.componentPath(ERXWOContext.currentContext())));
 			}
 		}
 	}
 
+	/**
+	 * Called when the application runs short of memory. Every localizer forgets the keys that were
+	 * inserted with their default value. When memory is starved, the localizers of all languages
+	 * but the default language are dropped as well and get loaded again when they are asked for.
+	 * 
+	 * @param pressure the memory pressure
+	 */
+	protected static void reclaimMemoryOfAllLocalizers(ERXMemoryMonitor.Pressure pressure) {
+		Map<String, ERXLocalizer> currentLocalizers = localizers;
+		for (ERXLocalizer localizer : currentLocalizers.values()) {
+			localizer.reclaimMemory(pressure);
+		}
+		if (pressure == ERXMemoryMonitor.Pressure.STARVED) {
+			Map<String, ERXLocalizer> remainingLocalizers = new ConcurrentHashMap<>();
+			ERXLocalizer defaultLocalizer = currentLocalizers.get(defaultLanguage());
+			if (defaultLocalizer != null) {
+				remainingLocalizers.put(defaultLanguage(), defaultLocalizer);
+			}
+			localizers = remainingLocalizers;
+		}
+	}
+
 	/**
 	 * <div class="en">
 	 * Gets the best localizer for a set of languages.
@@ -418,7 +445,7 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 		Enumeration<String> e = languages.objectEnumerator();
 		while (e.hasMoreElements()) {
 			String language = e.nextElement();
-			l = localizers.objectForKey(language);
+			l = localizers.get(language);
 			if (l != null) {
 				return l;
 			}
@@ -463,7 +490,7 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 			language = defaultLanguage();
 		}
 		ERXLocalizer l = null;
-		l = localizers.objectForKey(language);
+		l = localizers.get(language);
 		if (l == null) {
 			if (availableLanguages().containsObject(language)) {
 				if (_languagesWithoutPluralForm.containsObject(language))
@@ -472,16 +499,16 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 					l = createLocalizerForLanguage(language, true);
 			}
 			else {
-				l = localizers.objectForKey(defaultLanguage());
+				l = localizers.get(defaultLanguage());
 				if (l == null) {
 					if (_languagesWithoutPluralForm.containsObject(defaultLanguage()))
 						l = createLocalizerForLanguage(defaultLanguage(), false);
 					else
 						l = createLocalizerForLanguage(defaultLanguage(), true);
-					localizers.setObjectForKey(l, defaultLanguage());
+					localizers.put(defaultLanguage(), l);
 				}
 			}
-			localizers.setObjectForKey(l, language);
+			localizers.put(language, l);
 		}
 		return l;
 	}
@@ -692,27 +719,44 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
    * </div>
    */
 	public static void setLocalizerForLanguage(ERXLocalizer l, String language) {
-		localizers.setObjectForKey(l, language);
+		localizers.put(language, l);
+	}
+
+	/**
+	 * The strings of a localizer. The strings read from the files are never changed once loaded, so
+	 * lookups read them without locking. Values that are looked up at runtime, like keys that are not
+	 * found or fall back to the default language, go into a concurrent map next to them. Loading builds
+	 * a new snapshot and replaces the old one in one go.
+	 */
+	private static class Snapshot {
+		final Map<String, Object> strings;
+		final Map<String, Object> lookups;
+		final Map<Pattern, String> plurifyRules;
+		final Map<Pattern, String> singularifyRules;
+
+		Snapshot(Map<String, Object> strings, Map<String, Object> lookups, Map<Pattern, String> plurifyRules, Map<Pattern, String> singularifyRules) {
+			this.strings = strings;
+			this.lookups = lookups;
+			this.plurifyRules = plurifyRules;
+			this.singularifyRules = singularifyRules;
+		}
+
+		Object valueForKey(String key) {
+			Object value = strings.get(key);
+			return value != null ? value : lookups.get(key);
+		}
 	}
 
-	protected NSMutableDictionary<String, Object> cache;
-	private NSMutableDictionary<String, Object> createdKeys;
+	private volatile Snapshot _snapshot = new Snapshot(new HashMap<>(), new ConcurrentHashMap<>(), new HashMap<>(), new HashMap<>());
+	private final Map<String, Object> _createdKeys = new ConcurrentHashMap<>();
 	private String NOT_FOUND = "**NOT_FOUND**";
 	protected Map<String, Format> _dateFormatters = new Hashtable<>();
 	protected Map<String, Format> _numberFormatters = new Hashtable<>();
 	protected String language;
 	protected Locale locale;
-	
-	private Map<Pattern, String> _plurifyRules;
-	private Map<Pattern, String> _singularifyRules;
 
 	public ERXLocalizer(String aLanguage) {
-		_plurifyRules = new HashMap<>();
-		_singularifyRules = new HashMap<>();
-		
 		language = aLanguage;
-		cache = new NSMutableDictionary<>();
-		createdKeys = new NSMutableDictionary<>();
 
 		// We first check to see if we have a locale register for the language name
 		String shortLanguage = ERXProperties.stringForKey("er.extensions.ERXLocalizer." + aLanguage + ".locale");
@@ -751,13 +795,32 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
    * </div>
    */
 	public NSDictionary<String, Object> cache() {
+		Snapshot snapshot = _snapshot;
+		NSMutableDictionary<String, Object> cache = new NSMutableDictionary<>();
+		for (Map.Entry<String, Object> entry : snapshot.strings.entrySet()) {
+			cache.setObjectForKey(entry.getValue(), entry.getKey());
+		}
+		for (Map.Entry<String, Object> entry : snapshot.lookups.entrySet()) {
+			cache.setObjectForKey(entry.getValue(), entry.getKey());
+		}
 		return cache;
 	}
 
   /** <div class="ja">ローカライザーのロード作業</div> */
-	public void load() {
-		cache.removeAllObjects();
-		createdKeys.removeAllObjects();
+	public synchronized void load() {
+		NSMutableDictionary<String, Object> strings = readStrings();
+		_createdKeys.clear();
+		_snapshot = new Snapshot(new HashMap<>(strings), new ConcurrentHashMap<>(), plurifyRules(), singularifyRules());
+	}
+
+	/**
+	 * Reads the strings files of the language from the frameworks in the search path. The strings
+	 * are only used once this returns, so lookups keep using the strings that were loaded before.
+	 * 
+	 * @return the strings of the language
+	 */
+	protected NSMutableDictionary<String, Object> readStrings() {
+		NSMutableDictionary<String, Object> strings = new NSMutableDictionary<>();
 
 		if (log.isDebugEnabled())
 		  log.debug("Loading templates for language: {} for files: {} with search path: {}", language, fileNamesToWatch().componentsJoinedByString(" / "), frameworkSearchPath().componentsJoinedByString(" / "));
@@ -788,7 +851,7 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 							}
 							dict = newDict;
 						}
-						addEntriesToCache(dict);
+						addEntriesToCache(strings, dict);
 						if (!WOApplication.application().isCachingEnabled()) {
 							synchronized (monitoredFiles) {
 								if (!monitoredFiles.contains(path)) {
@@ -808,9 +871,7 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 				}
 			}
 		}
-		
-		_plurifyRules = plurifyRules();
-		_singularifyRules = singularifyRules();
+		return strings;
 	}
 
 	/**
@@ -1042,10 +1103,17 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 		return defaultSingularifyRules;
 	}
 
-	protected void addEntriesToCache(NSDictionary<String, Object> dict) {
+	/**
+	 * Adds the entries read from a strings file to the strings that are being loaded, merging the
+	 * localizer exceptions.
+	 * 
+	 * @param strings the strings loaded so far
+	 * @param dict the entries of the file
+	 */
+	protected void addEntriesToCache(NSMutableDictionary<String, Object> strings, NSDictionary<String, Object> dict) {
 		try {
 			// try-catch to prevent potential CCE when the value for the key localizerExcepions is not an NSDictionary
-			NSDictionary<String, Object> currentLEs = (NSDictionary<String, Object>) cache.valueForKey(KEY_LOCALIZER_EXCEPTIONS);
+			NSDictionary<String, Object> currentLEs = (NSDictionary<String, Object>) strings.valueForKey(KEY_LOCALIZER_EXCEPTIONS);
 			NSDictionary<String, Object> newLEs = (NSDictionary<String, Object>) dict.valueForKey(KEY_LOCALIZER_EXCEPTIONS);
 			if (currentLEs != null && newLEs != null) {
 				log.debug("Merging localizerExceptions {} with {}", currentLEs, newLEs);
@@ -1061,7 +1129,25 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 			log.error("Error while adding enties to cache.", e);
 		}
 
-		cache.addEntriesFromDictionary(dict);
+		strings.addEntriesFromDictionary(dict);
+	}
+
+	/**
+	 * Adds the entries to the loaded strings.
+	 * 
+	 * @param dict the entries to add
+	 * @deprecated {@link #load()} no longer calls this, it collects the strings with
+	 *             {@link #addEntriesToCache(NSMutableDictionary, NSDictionary)} and replaces them in one go
+	 */
+	@Deprecated
+	protected synchronized void addEntriesToCache(NSDictionary<String, Object> dict) {
+		Snapshot snapshot = _snapshot;
+		NSMutableDictionary<String, Object> strings = new NSMutableDictionary<>();
+		for (Map.Entry<String, Object> entry : snapshot.strings.entrySet()) {
+			strings.setObjectForKey(entry.getValue(), entry.getKey());
+		}
+		addEntriesToCache(strings, dict);
+		_snapshot = new Snapshot(new HashMap<>(strings), snapshot.lookups, snapshot.plurifyRules, snapshot.singularifyRules);
 	}
 
 	protected NSDictionary readPropertyListFromFileInFramework(String fileName, String framework, NSArray<String> languages) {
@@ -1081,10 +1167,27 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 
 	protected void setCacheValueForKey(Object value, String key) {
 		if (key != null && value != null) {
-			cache.setObjectForKey(value, key);
+			Snapshot snapshot = _snapshot;
+			if (snapshot.strings.containsKey(key)) {
+				replaceStringForKey(value, key);
+			}
+			else {
+				snapshot.lookups.put(key, value);
+			}
 		}
 	}
 
+	/**
+	 * Replaces a loaded string with a copy of the strings that has the new value, so lookups never
+	 * see the strings change.
+	 */
+	private synchronized void replaceStringForKey(Object value, String key) {
+		Snapshot snapshot = _snapshot;
+		Map<String, Object> strings = new HashMap<>(snapshot.strings);
+		strings.put(key, value);
+		_snapshot = new Snapshot(strings, snapshot.lookups, snapshot.plurifyRules, snapshot.singularifyRules);
+	}
+
 	public Object valueForKeyPath(String key) {
 		Object result = localizedValueForKey(key);
 		if (result == null) {
@@ -1092,9 +1195,12 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 			if (indexOfDot > 0) {
 				String firstComponent = key.substring(0, indexOfDot);
 				String otherComponents = key.substring(indexOfDot + 1, key.length());
-				result = cache.objectForKey(firstComponent);
+				result = _snapshot.valueForKey(firstComponent);
 				log.debug("Trying {} . {}", firstComponent, otherComponents);
-				if (result != null) {
+				if (result == NOT_FOUND) {
+					result = null;
+				}
+				else if (result != null) {
 					try {
 						result = NSKeyValueCodingAdditions.Utility.valueForKeyPath(result, otherComponents);
 						if (result != null) {
@@ -1141,7 +1247,19 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
    * </div>
    */
 	public NSDictionary<String, Object> createdKeys() {
-		return createdKeys;
+		return new NSDictionary<>(_createdKeys);
+	}
+
+	/**
+	 * Forgets the keys that were not found and the ones that were inserted with their default
+	 * value, so they get looked up again the next time they are asked for, and forgets the
+	 * created keys.
+	 * 
+	 * @param pressure the memory pressure
+	 */
+	protected void reclaimMemory(ERXMemoryMonitor.Pressure pressure) {
+		_createdKeys.clear();
+		_snapshot.lookups.entrySet().removeIf(entry -> entry.getValue() == NOT_FOUND || entry.getKey().equals(entry.getValue()));
 	}
 
   /**
@@ -1218,19 +1336,23 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 			}
 		}
     }
-		Object result = cache.objectForKey(key);
-		if (key == null || result == NOT_FOUND)
+		if (key == null)
+			return null;
+		Snapshot snapshot = _snapshot;
+		Object result = snapshot.valueForKey(key);
+		if (result == NOT_FOUND)
 			return null;
 		if (result != null)
 			return result;
 
+		// remember the miss in the snapshot it was looked up in, so it goes away when the strings are reloaded
 		log.debug("Key not found: '{}'/{}", key, language);
 		if (fallbackToDefaultLanguage() && !defaultLanguage().equals(language)) {
 			Object valueInDefaultLanguage = defaultLocalizer().localizedValueForKey(key);
-			setCacheValueForKey(valueInDefaultLanguage == null ? NOT_FOUND : valueInDefaultLanguage, key);
+			snapshot.lookups.put(key, valueInDefaultLanguage == null ? NOT_FOUND : valueInDefaultLanguage);
 			return valueInDefaultLanguage;
 		}
-		setCacheValueForKey(NOT_FOUND, key);
+		snapshot.lookups.put(key, NOT_FOUND);
 		return null;
 	}
 
@@ -1371,19 +1493,19 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 			plurifiedString = str;
 		}
 		else {
-			plurifiedString = applyRules(str, _plurifyRules);
+			plurifiedString = applyRules(str, _snapshot.plurifyRules);
 		}
 		return plurifiedString;
 	}
 
 	protected String singularify(String str) {
-		return applyRules(str, _singularifyRules);
+		return applyRules(str, _snapshot.singularifyRules);
 	}
 
 	/**
 	 * Apply the set of rules in the given Map to the input String and return
 	 * a modified string that matches the case of the input string.  For instance,
-	 * if the input string is "Person" and the rules are _plurifyRules, then this
+	 * if the input string is "Person" and the rules are the plurify rules, then this
 	 * would return "People".
 	 *   
 	 * @param str the input string
@@ -1639,4 +1761,13 @@ public class ERXLocalizer implements NSKeyValueCoding, NSKeyValueCodingAdditions
 		}
 		return _fallbackToDefaultLanguage.booleanValue();
 	}
+
+	/**
+	 * Sets whether keys that are not found are looked up in the default language.
+	 * 
+	 * @param value <code>true</code> to fall back to the default language
+	 */
+	public static void setFallbackToDefaultLanguage(boolean value) {
+		_fallbackToDefaultLanguage = Boolean.valueOf(value);
+	}
 }
@@ -1,10 +1,24 @@
 package er.extensions.remoteSynchronizer;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,11 +41,27 @@ import er.extensions.foundation.ERXProperties;
 
 /**
  * The superclass of all remote EOF synchronizers.
+ * <p>
+ * Two wire formats are supported. Version 1 writes every cache change on its own with the full entity name
+ * and fixed width keys. Version 2 writes all the changes of a transaction as one batch: entity and
+ * relationship names are written once into a string table, the global IDs are grouped by change type and
+ * entity, single integer primary keys are packed into delta encoded runs of varints and batches larger than
+ * the compression threshold are deflated. Version 2 messages start with the magic number 0xFEED followed by
+ * the version. Instances always read both formats and reject messages with a version they don't know, but
+ * instances from before version 2 misread it, so version 1 is sent by default. Set the wire format version to 2
+ * once every instance in the group has been upgraded.
+ * <p>
+ * If a coalesce window is set, the changes of the transactions committed within the window are sent
+ * together, and repeated updates of the same object are sent only once.
  * 
  * @property er.extensions.remoteSynchronizer.enabled if true, remote synchronization is enabled
  * @property er.extensions.remoteSynchronizer the class name of the remote synchronizer to use (default to ERXSimpleMulticastSynchronizer)
  * @property er.extensions.remoteSynchronizer.includeEntities
  * @property er.extensions.remoteSynchronizer.excludeEntities
+ * @property er.extensions.remoteSynchronizer.wireFormatVersion the wire format version to send, 1 or 2; only set it to 2 once every instance reads version 2 (defaults to 1)
+ * @property er.extensions.remoteSynchronizer.compressionThreshold the size in bytes above which version 2 batches are compressed, 0 to never compress (defaults to 512)
+ * @property er.extensions.remoteSynchronizer.maxBatchSize the size in bytes of the largest version 2 batch that is read, compressed or not; larger batches are rejected (defaults to 16777216)
+ * @property er.extensions.remoteSynchronizer.coalesceWindow the number of milliseconds to collect changes before sending them, 0 to send every transaction immediately (defaults to 0)
  * 
  * @author mschrag
  */
@@ -69,9 +99,28 @@ public abstract class ERXRemoteSynchronizer {
 	private static final int DATA_TYPE = 5;
 	private static final int STRING_TYPE = 6;
 
+	/**
+	 * The first two bytes of every message since wire format version 2. Version 1 messages start with a change
+	 * count or an IPv4 host address, and neither starts with 0xFE.
+	 */
+	protected static final int WIRE_FORMAT_MAGIC = 0xFEED;
+	public static final int WIRE_FORMAT_VERSION_1 = 1;
+	public static final int WIRE_FORMAT_VERSION_2 = 2;
+
+	private static final int COMPRESSED_FLAG = 0x01;
+	private static final int GENERIC_KEYS = 0;
+
 	private IChangeListener _listener;
 	private NSSet<String> _includeEntityNames;
 	private NSSet<String> _excludeEntityNames;
+	private int _wireFormatVersion;
+	private int _compressionThreshold;
+	private int _maxBatchSize;
+	private long _coalesceWindow;
+	private final Object _pendingLock = new Object();
+	private Map<Object, ERXDatabase.CacheChange> _pendingCacheChanges;
+	private int _pendingTransactionID;
+	private ScheduledExecutorService _coalesceExecutor;
 
 	public ERXRemoteSynchronizer(IChangeListener listener) {
 		_listener = listener;
@@ -83,6 +132,24 @@ public abstract class ERXRemoteSynchronizer {
 		if (excludeEntityNames != null) {
 			_excludeEntityNames = new NSSet<>(NSArray.componentsSeparatedByString(excludeEntityNames, ","));
 		}
+		_wireFormatVersion = ERXProperties.intForKeyWithDefault("er.extensions.remoteSynchronizer.wireFormatVersion", ERXRemoteSynchronizer.WIRE_FORMAT_VERSION_1);
+		if (_wireFormatVersion != ERXRemoteSynchronizer.WIRE_FORMAT_VERSION_1 && _wireFormatVersion != ERXRemoteSynchronizer.WIRE_FORMAT_VERSION_2) {
+			throw new IllegalArgumentException("Unknown remote synchronizer wire format version " + _wireFormatVersion + ".");
+		}
+		_compressionThreshold = ERXProperties.intForKeyWithDefault("er.extensions.remoteSynchronizer.compressionThreshold", 512);
+		_maxBatchSize = ERXProperties.intForKeyWithDefault("er.extensions.remoteSynchronizer.maxBatchSize", 16 * 1024 * 1024);
+		_coalesceWindow = ERXProperties.longForKeyWithDefault("er.extensions.remoteSynchronizer.coalesceWindow", 0L);
+		_pendingCacheChanges = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Returns the wire format version this synchronizer sends. Messages of every supported version are read
+	 * regardless.
+	 * 
+	 * @return WIRE_FORMAT_VERSION_1 or WIRE_FORMAT_VERSION_2
+	 */
+	public int wireFormatVersion() {
+		return _wireFormatVersion;
 	}
 
 	protected void _readCacheChange(RemoteChange remoteChange, DataInputStream dis) throws IOException {
@@ -280,6 +347,442 @@ public abstract class ERXRemoteSynchronizer {
 		return obj;
 	}
 
+	/**
+	 * Writes the magic number and the version that start every version 2 message. Nothing is written when
+	 * sending version 1.
+	 * 
+	 * @param dos the stream to write to
+	 * @throws IOException if the stream fails
+	 */
+	protected void writeWireFormatHeader(DataOutputStream dos) throws IOException {
+		if (_wireFormatVersion != ERXRemoteSynchronizer.WIRE_FORMAT_VERSION_1) {
+			dos.writeShort(ERXRemoteSynchronizer.WIRE_FORMAT_MAGIC);
+			dos.writeByte(_wireFormatVersion);
+		}
+	}
+
+	/**
+	 * Reads the header written by writeWireFormatHeader. If the message does not start with the magic number
+	 * it is a version 1 message and the stream is reset to where it was. The stream must support mark/reset,
+	 * which streams on a ByteArrayInputStream do.
+	 * 
+	 * @param dis the stream to read from
+	 * @return the wire format version of the message
+	 * @throws IOException if the message has a version this instance does not understand
+	 */
+	protected int readWireFormatVersion(DataInputStream dis) throws IOException {
+		int version;
+		dis.mark(3);
+		if (dis.available() >= 3 && dis.readUnsignedShort() == ERXRemoteSynchronizer.WIRE_FORMAT_MAGIC) {
+			version = dis.readUnsignedByte();
+			if (version != ERXRemoteSynchronizer.WIRE_FORMAT_VERSION_2) {
+				throw new IOException("Remote synchronizer wire format version " + version + " is not supported by this instance, which reads versions 1 and 2.");
+			}
+		}
+		else {
+			dis.reset();
+			version = ERXRemoteSynchronizer.WIRE_FORMAT_VERSION_1;
+		}
+		return version;
+	}
+
+	/**
+	 * Writes cache changes as a version 2 batch, compressing it if it is larger than the compression threshold.
+	 * 
+	 * @param dos the stream to write to
+	 * @param cacheChanges the changes to write
+	 * @throws IOException if the stream fails
+	 */
+	protected void writeCacheChangeBatch(DataOutputStream dos, NSArray<ERXDatabase.CacheChange> cacheChanges) throws IOException {
+		RefByteArrayOutputStream bodyStream = new RefByteArrayOutputStream();
+		DataOutputStream body = new DataOutputStream(bodyStream);
+		_writeCacheChangeBatchBody(body, cacheChanges);
+		body.flush();
+
+		int flags = 0;
+		RefByteArrayOutputStream payload = bodyStream;
+		if (_compressionThreshold > 0 && bodyStream.size() > _compressionThreshold) {
+			RefByteArrayOutputStream compressedStream = new RefByteArrayOutputStream();
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				DeflaterOutputStream deflaterStream = new DeflaterOutputStream(compressedStream, deflater);
+				deflaterStream.write(bodyStream.buffer(), 0, bodyStream.size());
+				deflaterStream.finish();
+			}
+			finally {
+				deflater.end();
+			}
+			if (compressedStream.size() < bodyStream.size()) {
+				flags |= ERXRemoteSynchronizer.COMPRESSED_FLAG;
+				payload = compressedStream;
+			}
+		}
+		dos.writeByte(flags);
+		writeVarLong(dos, payload.size());
+		dos.write(payload.buffer(), 0, payload.size());
+	}
+
+	/**
+	 * Reads a batch written by writeCacheChangeBatch. The declared length of the batch is checked against the
+	 * bytes left in the message before anything is allocated, so the stream must know how many bytes are
+	 * available, which streams on a ByteArrayInputStream do. Batches that are larger than the max batch size,
+	 * before or after inflating them, are rejected.
+	 * 
+	 * @param dis the stream to read from
+	 * @return the cache changes of the batch
+	 * @throws IOException if the stream fails or the batch is malformed or too large
+	 */
+	protected NSArray<ERXDatabase.CacheChange> readCacheChangeBatch(DataInputStream dis) throws IOException {
+		int flags = dis.readUnsignedByte();
+		if ((flags & ~ERXRemoteSynchronizer.COMPRESSED_FLAG) != 0) {
+			throw new IOException("Unknown remote synchronizer batch flags " + Integer.toHexString(flags) + ".");
+		}
+		int length = readCount(dis);
+		if (length > dis.available()) {
+			throw new IOException("The remote synchronizer batch of " + length + " bytes is longer than the " + dis.available() + " bytes left in the message.");
+		}
+		if (length > _maxBatchSize) {
+			throw new IOException("The remote synchronizer batch of " + length + " bytes is larger than the max batch size of " + _maxBatchSize + " bytes.");
+		}
+		byte[] payload = new byte[length];
+		dis.readFully(payload);
+		InputStream bodyStream = new ByteArrayInputStream(payload);
+		if ((flags & ERXRemoteSynchronizer.COMPRESSED_FLAG) != 0) {
+			bodyStream = new BoundedInputStream(new InflaterInputStream(bodyStream), _maxBatchSize);
+		}
+		try (DataInputStream body = new DataInputStream(bodyStream)) {
+			return _readCacheChangeBatchBody(body);
+		}
+	}
+
+	private void _writeCacheChangeBatchBody(DataOutputStream dos, NSArray<ERXDatabase.CacheChange> cacheChanges) throws IOException {
+		Map<String, Integer> strings = new LinkedHashMap<>();
+		Map<Integer, List<EOGlobalID>> snapshotChanges = new LinkedHashMap<>();
+		List<ERXDatabase.ToManySnapshotUpdated> toManyChanges = new ArrayList<>();
+		for (ERXDatabase.CacheChange cacheChange : cacheChanges) {
+			int messageType;
+			if (cacheChange instanceof ERXDatabase.SnapshotInserted) {
+				messageType = ERXRemoteSynchronizer.INSERT;
+			}
+			else if (cacheChange instanceof ERXDatabase.SnapshotUpdated) {
+				messageType = ERXRemoteSynchronizer.UPDATE;
+			}
+			else if (cacheChange instanceof ERXDatabase.SnapshotDeleted) {
+				messageType = ERXRemoteSynchronizer.DELETE;
+			}
+			else if (cacheChange instanceof ERXDatabase.ToManySnapshotUpdated) {
+				ERXDatabase.ToManySnapshotUpdated toManyChange = (ERXDatabase.ToManySnapshotUpdated) cacheChange;
+				toManyChanges.add(toManyChange);
+				addString(strings, ((EOKeyGlobalID) toManyChange.gid()).entityName());
+				addString(strings, toManyChange.name());
+				addEntityNames(strings, toManyChange.addedGIDs());
+				if (!toManyChange.removeAll()) {
+					addEntityNames(strings, toManyChange.removedGIDs());
+				}
+				continue;
+			}
+			else {
+				continue;
+			}
+			List<EOGlobalID> gids = snapshotChanges.get(Integer.valueOf(messageType));
+			if (gids == null) {
+				gids = new ArrayList<>();
+				snapshotChanges.put(Integer.valueOf(messageType), gids);
+			}
+			gids.add(cacheChange.gid());
+			addString(strings, ((EOKeyGlobalID) cacheChange.gid()).entityName());
+		}
+
+		writeVarLong(dos, strings.size());
+		for (String string : strings.keySet()) {
+			dos.writeUTF(string);
+		}
+		writeVarLong(dos, snapshotChanges.size());
+		for (Map.Entry<Integer, List<EOGlobalID>> entry : snapshotChanges.entrySet()) {
+			dos.writeByte(entry.getKey().intValue());
+			writeGIDList(dos, entry.getValue(), strings);
+		}
+		writeVarLong(dos, toManyChanges.size());
+		for (ERXDatabase.ToManySnapshotUpdated toManyChange : toManyChanges) {
+			writeGIDList(dos, Arrays.asList(toManyChange.gid()), strings);
+			writeVarLong(dos, strings.get(toManyChange.name()).intValue());
+			writeGIDList(dos, toManyChange.addedGIDs(), strings);
+			writeGIDList(dos, toManyChange.removeAll() ? null : toManyChange.removedGIDs(), strings);
+			dos.writeBoolean(toManyChange.removeAll());
+		}
+	}
+
+	private NSArray<ERXDatabase.CacheChange> _readCacheChangeBatchBody(DataInputStream dis) throws IOException {
+		int stringCount = readCount(dis);
+		List<String> strings = new ArrayList<>();
+		for (int stringNum = 0; stringNum < stringCount; stringNum++) {
+			strings.add(dis.readUTF());
+		}
+		NSMutableArray<ERXDatabase.CacheChange> cacheChanges = new NSMutableArray<>();
+		int groupCount = readCount(dis);
+		for (int groupNum = 0; groupNum < groupCount; groupNum++) {
+			int messageType = dis.readByte();
+			for (EOGlobalID gid : readGIDList(dis, strings)) {
+				if (messageType == ERXRemoteSynchronizer.INSERT) {
+					cacheChanges.addObject(new ERXDatabase.SnapshotInserted(gid, NSDictionary.EmptyDictionary));
+				}
+				else if (messageType == ERXRemoteSynchronizer.UPDATE) {
+					cacheChanges.addObject(new ERXDatabase.SnapshotUpdated(gid, NSDictionary.EmptyDictionary));
+				}
+				else if (messageType == ERXRemoteSynchronizer.DELETE) {
+					cacheChanges.addObject(new ERXDatabase.SnapshotDeleted(gid, NSDictionary.EmptyDictionary));
+				}
+				else {
+					throw new IOException("Unknown remote message type #" + messageType + ".");
+				}
+			}
+		}
+		int toManyCount = readCount(dis);
+		for (int toManyNum = 0; toManyNum < toManyCount; toManyNum++) {
+			NSArray<EOGlobalID> sourceGIDs = readGIDList(dis, strings);
+			if (sourceGIDs.count() != 1) {
+				throw new IOException("Expected one source global ID for a to-many update, but got " + sourceGIDs.count() + ".");
+			}
+			String name = string(strings, readCount(dis));
+			NSArray<EOGlobalID> addedGIDs = readGIDList(dis, strings);
+			NSArray<EOGlobalID> removedGIDs = readGIDList(dis, strings);
+			boolean removeAll = dis.readBoolean();
+			cacheChanges.addObject(new ERXDatabase.ToManySnapshotUpdated(sourceGIDs.objectAtIndex(0), name, addedGIDs, removedGIDs, removeAll));
+		}
+		return cacheChanges;
+	}
+
+	private static void addString(Map<String, Integer> strings, String string) {
+		if (!strings.containsKey(string)) {
+			strings.put(string, Integer.valueOf(strings.size()));
+		}
+	}
+
+	private static void addEntityNames(Map<String, Integer> strings, List<EOGlobalID> gids) {
+		if (gids != null) {
+			for (EOGlobalID gid : gids) {
+				addString(strings, ((EOKeyGlobalID) gid).entityName());
+			}
+		}
+	}
+
+	private static String string(List<String> strings, int index) throws IOException {
+		if (index >= strings.size()) {
+			throw new IOException("String #" + index + " is not in the string table.");
+		}
+		return strings.get(index);
+	}
+
+	/**
+	 * Writes global IDs grouped by entity. Every entity is written as its index in the string table, followed
+	 * by the primary keys of its global IDs.
+	 */
+	private void writeGIDList(DataOutputStream dos, List<EOGlobalID> gids, Map<String, Integer> strings) throws IOException {
+		Map<String, List<EOKeyGlobalID>> gidsByEntity = new LinkedHashMap<>();
+		if (gids != null) {
+			for (EOGlobalID gid : gids) {
+				EOKeyGlobalID keyGID = (EOKeyGlobalID) gid;
+				List<EOKeyGlobalID> entityGIDs = gidsByEntity.get(keyGID.entityName());
+				if (entityGIDs == null) {
+					entityGIDs = new ArrayList<>();
+					gidsByEntity.put(keyGID.entityName(), entityGIDs);
+				}
+				entityGIDs.add(keyGID);
+			}
+		}
+		writeVarLong(dos, gidsByEntity.size());
+		for (Map.Entry<String, List<EOKeyGlobalID>> entry : gidsByEntity.entrySet()) {
+			writeVarLong(dos, strings.get(entry.getKey()).intValue());
+			writePackedGIDKeys(dos, entry.getValue());
+		}
+	}
+
+	private NSArray<EOGlobalID> readGIDList(DataInputStream dis, List<String> strings) throws IOException {
+		NSMutableArray<EOGlobalID> gids = new NSMutableArray<>();
+		int entityCount = readCount(dis);
+		for (int entityNum = 0; entityNum < entityCount; entityNum++) {
+			String entityName = string(strings, readCount(dis));
+			EOEntityClassDescription classDescription = (EOEntityClassDescription) EOEntityClassDescription.classDescriptionForEntityName(entityName);
+			if (classDescription == null) {
+				throw new IOException("There is no entity named '" + entityName + "'.");
+			}
+			readPackedGIDKeys(dis, classDescription, entityName, gids);
+		}
+		return gids;
+	}
+
+	/**
+	 * Writes the primary keys of global IDs of one entity. If every global ID has a single Integer or Long key,
+	 * the keys are sorted and written as runs of consecutive values, each run being the varint distance from
+	 * the end of the previous run and the varint length of the run. Any other keys are written one by one with
+	 * writeGIDKeys.
+	 */
+	private void writePackedGIDKeys(DataOutputStream dos, List<EOKeyGlobalID> gids) throws IOException {
+		int keyType = ERXRemoteSynchronizer.GENERIC_KEYS;
+		for (EOKeyGlobalID gid : gids) {
+			Object[] values = gid._keyValuesNoCopy();
+			int gidKeyType = ERXRemoteSynchronizer.GENERIC_KEYS;
+			if (values.length == 1 && values[0] instanceof Integer) {
+				gidKeyType = ERXRemoteSynchronizer.INT_TYPE;
+			}
+			else if (values.length == 1 && values[0] instanceof Long) {
+				gidKeyType = ERXRemoteSynchronizer.LONG_TYPE;
+			}
+			if (gidKeyType == ERXRemoteSynchronizer.GENERIC_KEYS || (keyType != ERXRemoteSynchronizer.GENERIC_KEYS && keyType != gidKeyType)) {
+				keyType = ERXRemoteSynchronizer.GENERIC_KEYS;
+				break;
+			}
+			keyType = gidKeyType;
+		}
+		dos.writeByte(keyType);
+
+		if (keyType == ERXRemoteSynchronizer.GENERIC_KEYS) {
+			writeVarLong(dos, gids.size());
+			for (EOKeyGlobalID gid : gids) {
+				writeGIDKeys(dos, gid);
+			}
+		}
+		else {
+			long[] keys = new long[gids.size()];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = ((Number) gids.get(i)._keyValuesNoCopy()[0]).longValue();
+			}
+			Arrays.sort(keys);
+			List<long[]> runs = new ArrayList<>();
+			long[] run = null;
+			for (long key : keys) {
+				if (run != null && key <= run[0] + run[1]) {
+					run[1] = key - run[0] + 1;
+				}
+				else {
+					run = new long[] { key, 1L };
+					runs.add(run);
+				}
+			}
+			writeVarLong(dos, runs.size());
+			long previousKey = 0L;
+			for (long[] keyRun : runs) {
+				writeVarLong(dos, zigZag(keyRun[0] - previousKey));
+				writeVarLong(dos, keyRun[1] - 1L);
+				previousKey = keyRun[0] + keyRun[1] - 1L;
+			}
+		}
+	}
+
+	private void readPackedGIDKeys(DataInputStream dis, EOEntityClassDescription classDescription, String entityName, NSMutableArray<EOGlobalID> gids) throws IOException {
+		int keyType = dis.readByte();
+		if (keyType == ERXRemoteSynchronizer.GENERIC_KEYS) {
+			int gidCount = readCount(dis);
+			for (int gidNum = 0; gidNum < gidCount; gidNum++) {
+				gids.addObject(_readGID(classDescription, entityName, dis));
+			}
+		}
+		else if (keyType == ERXRemoteSynchronizer.INT_TYPE || keyType == ERXRemoteSynchronizer.LONG_TYPE) {
+			int runCount = readCount(dis);
+			long previousKey = 0L;
+			for (int runNum = 0; runNum < runCount; runNum++) {
+				long firstKey = previousKey + unZigZag(readVarLong(dis));
+				int length = readCount(dis) + 1;
+				for (int keyNum = 0; keyNum < length; keyNum++) {
+					long key = firstKey + keyNum;
+					Object value = (keyType == ERXRemoteSynchronizer.INT_TYPE) ? (Object) Integer.valueOf((int) key) : (Object) Long.valueOf(key);
+					gids.addObject(classDescription._globalIDWithEntityName(entityName, new Object[] { value }));
+				}
+				previousKey = firstKey + length - 1L;
+			}
+		}
+		else {
+			throw new IOException("Unknown key type #" + keyType + ".");
+		}
+	}
+
+	/**
+	 * Writes an unsigned variable length integer, seven bits per byte.
+	 */
+	protected static void writeVarLong(DataOutputStream dos, long value) throws IOException {
+		while ((value & ~0x7FL) != 0L) {
+			dos.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		dos.writeByte((int) value);
+	}
+
+	/**
+	 * Reads an unsigned variable length integer written by writeVarLong.
+	 */
+	protected static long readVarLong(DataInputStream dis) throws IOException {
+		long value = 0L;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = dis.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length integer.");
+	}
+
+	/**
+	 * Fails once more than the given number of bytes have been read from the stream, so a small compressed
+	 * batch can't inflate to an unbounded size.
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+		private long _remaining;
+
+		public BoundedInputStream(InputStream in, long maxBytes) {
+			super(in);
+			_remaining = maxBytes;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				count(read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count(skipped);
+			return skipped;
+		}
+
+		private void count(long bytes) throws IOException {
+			_remaining -= bytes;
+			if (_remaining < 0L) {
+				throw new IOException("The inflated remote synchronizer batch is larger than the max batch size.");
+			}
+		}
+	}
+
+	private static int readCount(DataInputStream dis) throws IOException {
+		long count = readVarLong(dis);
+		if (count < 0L || count > Integer.MAX_VALUE) {
+			throw new IOException("Invalid count " + count + ".");
+		}
+		return (int) count;
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1L);
+	}
+
 	public boolean shouldSynchronizeEntity(String entityName) {
 		boolean shouldSynchronizeEntity = true;
 		if (_includeEntityNames != null) {
@@ -346,7 +849,71 @@ public abstract class ERXRemoteSynchronizer {
 	public abstract void listen() throws Throwable;
 
 	public void writeCacheChanges(int transactionID, NSArray<ERXDatabase.CacheChange> cacheChanges) throws Throwable {
-		_writeCacheChanges(transactionID, filteredCacheChanges(cacheChanges));
+		NSArray<ERXDatabase.CacheChange> filteredCacheChanges = filteredCacheChanges(cacheChanges);
+		if (_coalesceWindow > 0L) {
+			coalesceCacheChanges(transactionID, filteredCacheChanges);
+		}
+		else {
+			_writeCacheChanges(transactionID, filteredCacheChanges);
+		}
+	}
+
+	/**
+	 * Queues cache changes until the coalesce window of the first queued change has passed. An update of an
+	 * object that already has a queued update is dropped.
+	 * 
+	 * @param transactionID the transaction the changes were made in
+	 * @param cacheChanges the changes to queue
+	 */
+	protected void coalesceCacheChanges(int transactionID, NSArray<ERXDatabase.CacheChange> cacheChanges) {
+		boolean scheduleFlush;
+		synchronized (_pendingLock) {
+			boolean wasEmpty = _pendingCacheChanges.isEmpty();
+			for (ERXDatabase.CacheChange cacheChange : cacheChanges) {
+				Object key = (cacheChange instanceof ERXDatabase.SnapshotUpdated) ? cacheChange.gid() : cacheChange;
+				if (!_pendingCacheChanges.containsKey(key)) {
+					_pendingCacheChanges.put(key, cacheChange);
+				}
+			}
+			_pendingTransactionID = transactionID;
+			scheduleFlush = wasEmpty && !_pendingCacheChanges.isEmpty();
+			if (scheduleFlush && _coalesceExecutor == null) {
+				_coalesceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+					Thread thread = new Thread(runnable, "ERXRemoteSynchronizerCoalescer");
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+		}
+		if (scheduleFlush) {
+			_coalesceExecutor.schedule(this::flushCacheChanges, _coalesceWindow, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Sends the cache changes queued by coalesceCacheChanges right away. Subclasses call this before leaving
+	 * the group.
+	 */
+	public void flushCacheChanges() {
+		NSMutableArray<ERXDatabase.CacheChange> cacheChanges;
+		int transactionID;
+		synchronized (_pendingLock) {
+			if (_pendingCacheChanges.isEmpty()) {
+				return;
+			}
+			cacheChanges = new NSMutableArray<>(_pendingCacheChanges.size());
+			for (ERXDatabase.CacheChange cacheChange : _pendingCacheChanges.values()) {
+				cacheChanges.addObject(cacheChange);
+			}
+			transactionID = _pendingTransactionID;
+			_pendingCacheChanges = new LinkedHashMap<>();
+		}
+		try {
+			_writeCacheChanges(transactionID, cacheChanges);
+		}
+		catch (Throwable t) {
+			log.error("Failed to send {} coalesced changes.", cacheChanges.count(), t);
+		}
 	}
 	
 	protected abstract void _writeCacheChanges(int transactionID, NSArray<ERXDatabase.CacheChange> cacheChanges) throws Throwable;
@@ -19,6 +19,7 @@ import org.slf4j.LoggerFactory;
 import com.webobjects.appserver.WOApplication;
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSRange;
 
 import er.extensions.eof.ERXDatabase;
 import er.extensions.eof.ERXDatabase.CacheChange;
@@ -35,6 +36,9 @@ import er.extensions.foundation.ERXStringUtilities;
  * you by in a pinch, but multicast communication is an unreliable protocol
  * by definition, and this implementation provides no facilities to recover from
  * that unreliability.
+ * <p>
+ * With wire format version 2 every transaction is sent as a batch in as few packets as fit into the maximum
+ * packet size, and every packet can be applied on its own, so a lost packet loses only the changes in it.
  * 
  * @property er.extensions.ERXObjectStoreCoordinatorPool.maxCoordinators you should set this property to at least "1" to trigger ERXObjectStoreCoordinatorSynchronizer to turn on
  * @property er.extensions.remoteSynchronizer.enabled if true, remote synchronization is enabled
@@ -47,6 +51,9 @@ import er.extensions.foundation.ERXStringUtilities;
  * @property er.extensions.multicastSynchronizer.identifier the unique identifier for this host (autogenerated by default)
  * @property er.extensions.remoteSynchronizer.includeEntities the list of entities to synchronize (all by default)
  * @property er.extensions.remoteSynchronizer.excludeEntities the list of entities to NOT synchronize (none by default)
+ * @property er.extensions.remoteSynchronizer.wireFormatVersion the wire format version to send, 1 or 2; only set it to 2 once every instance reads version 2 (defaults to 1)
+ * @property er.extensions.remoteSynchronizer.compressionThreshold the size in bytes above which packets are compressed (defaults to 512)
+ * @property er.extensions.remoteSynchronizer.coalesceWindow the number of milliseconds to collect changes before sending them (defaults to 0)
  * 
  * @author mschrag
  */
@@ -132,6 +139,7 @@ public class ERXSimpleMulticastSynchronizer extends ERXRemoteSynchronizer {
 		if (log.isInfoEnabled()) {
 			log.info("Multicast instance {} leaving.", ERXStringUtilities.byteArrayToHexString(_identifier));
 		}
+		flushCacheChanges();
 		try (MulticastByteArrayOutputStream baos = new MulticastByteArrayOutputStream(); DataOutputStream dos = new DataOutputStream(baos)) {
 			dos.write(_identifier);
 			dos.writeInt(0);
@@ -174,9 +182,19 @@ public class ERXSimpleMulticastSynchronizer extends ERXRemoteSynchronizer {
 							String remoteHostAddress = remoteAddress.getHostAddress();
 							processPacket = _whitelist.containsObject(remoteHostAddress);
 						}
+						int wireFormatVersion = readWireFormatVersion(dis);
 						byte[] identifier = new byte[ERXSimpleMulticastSynchronizer.IDENTIFIER_LENGTH];
 						dis.readFully(identifier);
-						if (processPacket && !Arrays.equals(identifier, _identifier)) {
+						if (processPacket && !Arrays.equals(identifier, _identifier) && wireFormatVersion != WIRE_FORMAT_VERSION_1) {
+							int transactionID = dis.readInt();
+							NSArray<ERXDatabase.CacheChange> cacheChanges = readCacheChangeBatch(dis);
+							RemoteChange remoteChange = new RemoteChange(ERXStringUtilities.byteArrayToHexString(identifier), transactionID, cacheChanges.count());
+							for (ERXDatabase.CacheChange cacheChange : cacheChanges) {
+								remoteChange.addRemoteCacheChange(cacheChange);
+							}
+							addChange(remoteChange);
+						}
+						else if (processPacket && !Arrays.equals(identifier, _identifier)) {
 							int transactionID = dis.readInt();
 							short transactionNum = dis.readShort();
 							short transactionSize = dis.readShort();
@@ -215,6 +233,12 @@ public class ERXSimpleMulticastSynchronizer extends ERXRemoteSynchronizer {
 
 	@Override
 	protected void _writeCacheChanges(int transactionID, NSArray<ERXDatabase.CacheChange> cacheChanges) throws IOException {
+		if (wireFormatVersion() != WIRE_FORMAT_VERSION_1) {
+			if (cacheChanges.count() > 0) {
+				writeCacheChangePackets(transactionID, cacheChanges);
+			}
+			return;
+		}
 		short transactionSize = (short) cacheChanges.count();
 		short transactionNum = 0;
 		for (Iterator<ERXDatabase.CacheChange> iter = cacheChanges.iterator(); iter.hasNext(); transactionNum++) {
@@ -239,6 +263,39 @@ public class ERXSimpleMulticastSynchronizer extends ERXRemoteSynchronizer {
 		}
 	}
 
+	/**
+	 * Sends cache changes as a version 2 batch. If the batch does not fit into the maximum packet size, it is
+	 * split in halves until every half does or is down to a single change.
+	 * 
+	 * @param transactionID the transaction the changes were made in
+	 * @param cacheChanges the changes to send
+	 * @throws IOException if sending fails
+	 */
+	public void writeCacheChangePackets(int transactionID, NSArray<ERXDatabase.CacheChange> cacheChanges) throws IOException {
+		try (MulticastByteArrayOutputStream baos = new MulticastByteArrayOutputStream(); DataOutputStream dos = new DataOutputStream(baos)) {
+			writeWireFormatHeader(dos);
+			dos.write(_identifier);
+			dos.writeInt(transactionID);
+			writeCacheChangeBatch(dos, cacheChanges);
+			dos.flush();
+			int count = cacheChanges.count();
+			if (baos.size() > _maxSendPacketSize && count > 1) {
+				int half = count / 2;
+				writeCacheChangePackets(transactionID, cacheChanges.subarrayWithRange(new NSRange(0, half)));
+				writeCacheChangePackets(transactionID, cacheChanges.subarrayWithRange(new NSRange(half, count - half)));
+			}
+			else {
+				if (baos.size() > _maxReceivePacketSize) {
+					log.warn("Multicast instance {}: Sending a packet of {} bytes, which is more than other instances receive: {}", ERXStringUtilities.byteArrayToHexString(_identifier), baos.size(), cacheChanges);
+				}
+				_multicastSocket.send(baos.createDatagramPacket());
+				if (log.isDebugEnabled()) {
+					log.debug("Multicast instance {}: Writing {} ({} bytes)", ERXStringUtilities.byteArrayToHexString(_identifier), cacheChanges, baos.size());
+				}
+			}
+		}
+	}
+
 	protected class MulticastByteArrayOutputStream extends RefByteArrayOutputStream {
 		public DatagramPacket createDatagramPacket() throws SocketException {
 			return new DatagramPacket(buf, 0, count, _multicastGroup);
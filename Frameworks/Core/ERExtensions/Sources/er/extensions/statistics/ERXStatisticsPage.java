@@ -6,8 +6,10 @@ import com.webobjects.appserver.WOActionResults;
 import com.webobjects.appserver.WOContext;
 import com.webobjects.appserver.WOResponse;
 import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
 import com.webobjects.woextensions.WOStatsPage;
 
+import er.extensions.eof.ERXEnterpriseObjectCache;
 import er.extensions.formatters.ERXUnitAwareDecimalFormat;
 import er.extensions.statistics.ERXStats.LogEntry;
 
@@ -24,6 +26,8 @@ public class ERXStatisticsPage extends WOStatsPage {
 
 	private NSArray<ERXStats.LogEntry> _aggregateLogEntries;
 	private ERXStats.LogEntry _aggregateLogEntry;
+	private NSArray<NSDictionary<String, Object>> _cacheStatistics;
+	private NSDictionary<String, Object> _cacheStatistic;
 
 	public ERXStatisticsPage(WOContext context) {
 		super(context);
@@ -33,6 +37,7 @@ public class ERXStatisticsPage extends WOStatsPage {
 	public void appendToResponse(WOResponse response, WOContext context) {
 		super.appendToResponse(response, context);
 		_aggregateLogEntries = null;
+		_cacheStatistics = null;
 	}
 	
 	public Format byteFormat() {
@@ -64,6 +69,22 @@ public class ERXStatisticsPage extends WOStatsPage {
 		return _aggregateLogEntry;
 	}
 	
+	public NSArray<NSDictionary<String, Object>> cacheStatistics() {
+		if (_cacheStatistics == null) {
+			NSDictionary<String, NSDictionary<String, Object>> allStatistics = ERXEnterpriseObjectCache.allStatistics();
+			_cacheStatistics = (NSArray<NSDictionary<String, Object>>) allStatistics.allValues().valueForKeyPath("@sortAsc.entityName");
+		}
+		return _cacheStatistics;
+	}
+
+	public void setCacheStatistic(NSDictionary<String, Object> cacheStatistic) {
+		_cacheStatistic = cacheStatistic;
+	}
+
+	public NSDictionary<String, Object> cacheStatistic() {
+		return _cacheStatistic;
+	}
+
 	public WOActionResults resetStats() {
 		ERXStats.reset();
 		return this;
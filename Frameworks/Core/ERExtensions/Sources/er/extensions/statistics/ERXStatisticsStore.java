@@ -23,9 +23,13 @@ import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
 
+import er.extensions.appserver.ERXWOResponseCache;
 import er.extensions.eof.ERXEC;
+import er.extensions.eof.ERXEnterpriseObjectCache;
+import er.extensions.eof.ERXLongPrimaryKeyFactory;
 import er.extensions.eof.ERXObjectStoreCoordinator;
 import er.extensions.foundation.ERXProperties;
+import er.extensions.jdbc.ERXJDBCConnectionPool;
 import er.extensions.statistics.store.ERXDumbStatisticsStoreListener;
 import er.extensions.statistics.store.ERXEmptyRequestDescription;
 import er.extensions.statistics.store.ERXNormalRequestDescription;
@@ -40,6 +44,11 @@ import er.extensions.statistics.store.IERXStatisticsStoreListener;
  * <li>logs fatal messages that occurred before a request finished processing.</li>
  * <li>fixes an incompatibility with 5.4.</li>
  * <li>fixes wrong computation of average session memory</li>
+ * <li>reports the aggregate ERXStats entries, including their percentiles, under the "ERXStats" key</li>
+ * <li>reports the statistics of the ERXEnterpriseObjectCaches under the "EnterpriseObjectCaches" key</li>
+ * <li>reports the statistics of the ERXJDBCConnectionPools under the "JDBCConnectionPools" key</li>
+ * <li>reports the statistics of the ERXWOResponseCache under the "ResponseCache" key, if it is enabled</li>
+ * <li>reports the key allocation metrics of the ERXLongPrimaryKeyFactory under the "PrimaryKeyFactory" key</li>
  * </ul>
  *
  * <p>In order to turn on this functionality, you must make this call in your Application null constructor:
@@ -357,6 +366,25 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 			Object value = stats.objectForKey(key);
 			fixed.setObjectForKey(fix(value), key);
 		}
+		NSDictionary erxStatistics = ERXStats.aggregateStatistics();
+		if (erxStatistics.count() > 0) {
+			fixed.setObjectForKey(erxStatistics, "ERXStats");
+		}
+		NSDictionary cacheStatistics = ERXEnterpriseObjectCache.allStatistics();
+		if (cacheStatistics.count() > 0) {
+			fixed.setObjectForKey(cacheStatistics, "EnterpriseObjectCaches");
+		}
+		NSDictionary poolStatistics = ERXJDBCConnectionPool.allStatistics();
+		if (poolStatistics.count() > 0) {
+			fixed.setObjectForKey(poolStatistics, "JDBCConnectionPools");
+		}
+		if (ERXWOResponseCache.sharedInstance().isEnabled()) {
+			fixed.setObjectForKey(ERXWOResponseCache.sharedInstance().statistics(), "ResponseCache");
+		}
+		NSDictionary primaryKeyStatistics = ERXLongPrimaryKeyFactory.statistics();
+		if (primaryKeyStatistics.count() > 0) {
+			fixed.setObjectForKey(primaryKeyStatistics, "PrimaryKeyFactory");
+		}
 		stats = fixed;
 		return stats;
 	}
@@ -5,11 +5,17 @@ import java.math.MathContext;
 import java.math.RoundingMode;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.log4j.Logger;
 
 import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSMutableSet;
@@ -25,8 +31,11 @@ import er.extensions.foundation.ERXUtilities;
  * <p>
  * ERXStats provides a simple interface for logging statistics information like
  * WOEvent, but also tracked on a per-thread basis (so you can dump stats just
- * for a particular thread). YOU PROBABLY DO NOT WANT TO TURN THIS ON IN
- * PRODUCTION.
+ * for a particular thread). Every duration is also recorded into an aggregate
+ * entry for its key, which keeps a latency histogram so that percentiles
+ * (p50/p95/p99) are available in addition to count/min/max/sum. Recording is
+ * lock-free, so the overhead with statistics enabled is limited to a few
+ * counter updates per measurement.
  * </p>
  * 
  * <p>
@@ -53,18 +62,23 @@ import er.extensions.foundation.ERXUtilities;
  * @author mschrag
  * 
  * @property er.extensions.erxStats.enabled if true, stats will be initialized on each for each request
+ * @property er.extensions.erxStats.max the maximum number of keys to aggregate (defaults to 1000), durations of further keys are aggregated under {@link #OVERFLOW_KEY}
  * @property er.extensions.erxStats.traceCollectingEnabled defaults to false
- * @property er.extensions.erxStats.max the maximum historical stats to collect (defaults to 1000) 
  */
 public class ERXStats {
 	private static final String STATS_INITIALIZED_KEY = "er.extensions.erxStats.initialized";
 	private static final String STATS_START_TIME_KEY = "er.extensions.erxStats.startTime";
 	private static final String STATS_LAST_TIME_KEY = "er.extensions.erxStats.lastTime";
-	private static final String STATS_MAX_KEY = "er.extensions.erxStats.max";
 	private static final String STATS_KEY = "er.extensions.erxStats.statistics";
 
     public static final String STATS_ENABLED_KEY = "er.extensions.erxStats.enabled";
     public static final String STATS_TRACE_COLLECTING_ENABLED_KEY = "er.extensions.erxStats.traceCollectingEnabled";
+    public static final String STATS_MAX_KEY = "er.extensions.erxStats.max";
+
+    /** The aggregate key of the durations of all keys beyond er.extensions.erxStats.max. */
+    public static final String OVERFLOW_KEY = "(other keys)";
+
+    private static final int MAX_KEYS = ERXProperties.intForKeyWithDefault(ERXStats.STATS_MAX_KEY, 1000);
 
     public static final Logger log = Logger.getLogger(ERXStats.class);
 
@@ -75,9 +89,12 @@ public class ERXStats {
 		public String ComponentTakeValuesFromRequest = "Component (takeValuesFromRequest)";
 		public String ComponentInvokeAction = "Component (invokeAction)";
 		public String Batching = "Batching";
+		public String EnterpriseObjectCache = "EnterpriseObjectCache";
+		public String Adaptor = "Adaptor";
 	}
 	
-	private static NSMutableArray<NSMutableDictionary<String, LogEntry>> _allStatistics = new NSMutableArray<NSMutableDictionary<String, LogEntry>>();
+	/** The aggregate log entries of all threads since the last reset, by key. */
+	private static final Map<String, LogEntry> _aggregateLogEntries = new ConcurrentHashMap<>();
 
 	/**
 	 * Initializes the logging system if the property
@@ -126,24 +143,31 @@ public class ERXStats {
 	}
 
 	/**
-	 * Returns the statistics for the current thread.
+	 * Returns the statistics for the current thread. The returned dictionary is
+	 * a snapshot, changes to it are not reflected in the recorded statistics.
 	 * 
 	 * @return the statistics for the current thread
 	 */
-	@SuppressWarnings("unchecked")
 	public static NSMutableDictionary<String, LogEntry> statistics() {
-		NSMutableDictionary<String, LogEntry> statistics = (NSMutableDictionary<String, LogEntry>) ERXThreadStorage.valueForKey(ERXStats.STATS_KEY);
+		NSMutableDictionary<String, LogEntry> statistics = new NSMutableDictionary<>();
+		for (LogEntry entry : ERXStats.threadStatistics().values()) {
+			statistics.setObjectForKey(entry, entry.key());
+		}
+		return statistics;
+	}
+
+	/**
+	 * Returns the live statistics map of the current thread. Child threads that
+	 * inherit the thread storage share the map, so it has to be concurrent.
+	 * 
+	 * @return the statistics map of the current thread
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, LogEntry> threadStatistics() {
+		Map<String, LogEntry> statistics = (Map<String, LogEntry>) ERXThreadStorage.valueForKey(ERXStats.STATS_KEY);
 		if (statistics == null) {
-			statistics = new NSMutableDictionary<>();
+			statistics = new ConcurrentHashMap<>();
 			ERXThreadStorage.takeValueForKey(statistics, ERXStats.STATS_KEY);
-			synchronized (_allStatistics) {
-				ERXStats._allStatistics.addObject(statistics);
-
-				int maxStatistics = ERXProperties.intForKeyWithDefault(ERXStats.STATS_MAX_KEY, 1000);
-				if (ERXStats._allStatistics.count() > maxStatistics) {
-					ERXStats._allStatistics.removeObjectAtIndex(0);
-				}
-			}
 		}
 		return statistics;
 	}
@@ -156,16 +180,10 @@ public class ERXStats {
 	 * @return the log entry for the given key
 	 */
 	public static LogEntry logEntryForKey(String key) {
-		LogEntry entry = null;
-		NSMutableDictionary<String, LogEntry> statistics = ERXStats.statistics();
-		if (statistics != null) {
-			synchronized (statistics) {
-				entry = statistics.objectForKey(key);
-				if (entry == null) {
-					entry = new LogEntry(key);
-					statistics.setObjectForKey(entry, key);
-				}
-			}
+		Map<String, LogEntry> statistics = ERXStats.threadStatistics();
+		LogEntry entry = statistics.get(key);
+		if (entry == null) {
+			entry = statistics.computeIfAbsent(key, LogEntry::new);
 		}
 		return entry;
 	}
@@ -192,52 +210,64 @@ public class ERXStats {
 	 */
 	public static NSSet<String> aggregateKeys() {
 		NSMutableSet<String> keys = new NSMutableSet<>();
-		for (NSMutableDictionary<String, LogEntry> statistics : ERXStats._allStatistics) {
-			keys.addObjectsFromArray(statistics.allKeys());
+		for (String key : ERXStats._aggregateLogEntries.keySet()) {
+			keys.addObject(key);
 		}
 		return keys;
 	}
 
 	/**
-	 * Returns a LogEntry that represents the aggregate data collected for the
-	 * given key in all of the recorded threads.
+	 * Returns the LogEntry that aggregates the data collected for the given
+	 * key in all of the recorded threads, creating it if needed. Once
+	 * er.extensions.erxStats.max keys are aggregated, the entry of
+	 * {@link #OVERFLOW_KEY} is returned for new keys.
 	 * 
 	 * @param key
 	 *            the key to lookup aggregate stats for
 	 * @return the aggregate log entry for the given key
 	 */
 	private static LogEntry aggregateLogEntryForKey(String key) {
-		LogEntry aggregateLogEntry = new LogEntry(key);
-		if (key != null) {
-			synchronized (ERXStats._allStatistics) {
-				for (NSMutableDictionary<String, LogEntry> statistics : ERXStats._allStatistics) {
-					LogEntry logEntry = statistics.objectForKey(key);
-					if (logEntry != null) {
-						aggregateLogEntry._add(logEntry);
-					}
-				}
+		LogEntry aggregateLogEntry = ERXStats._aggregateLogEntries.get(key);
+		if (aggregateLogEntry == null) {
+			// keys can be built from SQL and the like, so their number has to be bounded
+			if (ERXStats._aggregateLogEntries.size() >= ERXStats.MAX_KEYS) {
+				key = ERXStats.OVERFLOW_KEY;
 			}
+			aggregateLogEntry = ERXStats._aggregateLogEntries.computeIfAbsent(key, k -> new LogEntry(k, true));
 		}
 		return aggregateLogEntry;
 	}
 
 	/**
 	 * Returns an array of LogEntries that represents the aggregate time for
-	 * all of the tracked stats in the queue, uniqued on key.
+	 * all of the tracked stats since the last reset, uniqued on key. The
+	 * aggregate entries also provide the percentiles of the durations.
 	 * 
 	 * @return an aggregate set of log entries
 	 */
 	public static NSArray<LogEntry> aggregateLogEntries() {
 		NSMutableArray<LogEntry> aggregateLogEntries = new NSMutableArray<>();
-		for (String key : aggregateKeys()) {
-			LogEntry logEntry = ERXStats.aggregateLogEntryForKey(key);
-			if (logEntry != null) {
-				aggregateLogEntries.addObject(logEntry);
-			}
+		for (LogEntry logEntry : ERXStats._aggregateLogEntries.values()) {
+			aggregateLogEntries.addObject(logEntry);
 		}
 		return aggregateLogEntries;
 	}
 
+	/**
+	 * Returns the aggregate statistics for all keys as property list friendly
+	 * dictionaries, keyed by the log entry key.
+	 * 
+	 * @see LogEntry#statistics()
+	 * @return the aggregate statistics
+	 */
+	public static NSDictionary<String, NSDictionary<String, Object>> aggregateStatistics() {
+		NSMutableDictionary<String, NSDictionary<String, Object>> aggregateStatistics = new NSMutableDictionary<>();
+		for (LogEntry logEntry : ERXStats._aggregateLogEntries.values()) {
+			aggregateStatistics.setObjectForKey(logEntry.statistics(), logEntry.key());
+		}
+		return aggregateStatistics;
+	}
+
 	/**
 	 * Mark the start of a process, call markEnd when it is over to log the
 	 * duration.
@@ -314,8 +344,8 @@ public class ERXStats {
 	/**
 	 * Resets statistics for this thread AND the global queue.
 	 */
-	public static synchronized void reset() {
-		_allStatistics.removeAllObjects();
+	public static void reset() {
+		_aggregateLogEntries.clear();
 		ERXThreadStorage.removeValueForKey(ERXStats.STATS_KEY);
 	}
 
@@ -332,7 +362,8 @@ public class ERXStats {
 	
 	/**
 	 * Logs the messages since the last call to initStatistics() ordered by some
-	 * key. Note that no log message is output if there aren't any values
+	 * key, followed by the aggregate percentiles of the logged keys. Note that
+	 * no log message is output if there aren't any values
 	 * 
 	 * @param operation
 	 *            operation to sort on ("sum", "count", "min", "max", "avg", "key")
@@ -340,124 +371,182 @@ public class ERXStats {
 	public static void logStatisticsForOperation(Logger statsLog, String operation) {
 		if(statsLog.isDebugEnabled()) {
 			NSMutableDictionary statistics = ERXStats.statistics();
-			if (statistics != null) {
-				synchronized (statistics) {
-					NSArray values = ERXArrayUtilities.sortedArraySortedWithKey(statistics.allValues(), operation);
-					if (values.count() > 0) {
-						Long startTime = (Long) ERXThreadStorage.valueForKey(ERXStats.STATS_START_TIME_KEY);
-						Long lastTime = (Long) ERXThreadStorage.valueForKey(ERXStats.STATS_LAST_TIME_KEY);
-						long currentTime = System.currentTimeMillis();
-						String result = NSPropertyListSerialization.stringFromPropertyList(values);
-						// result = result.replaceAll("\\n\\t", "\n\t\t");
-						// result = result.replaceAll("\\n", "\n\t\t");
-						statsLog.debug(
-								(startTime != null ? "Time since init " + (currentTime - startTime.longValue()) + " ms": "" ) + 
-								(lastTime != null ? ", last log " + (currentTime - lastTime.longValue()) + " ms": "" ) + 
-								", total cnt/sum: " + statistics.allValues().valueForKeyPath("@sum.count") + "/" + statistics.allValues().valueForKeyPath("@sum.sum") +
-								" (cnt/sum : min/max/avg|trace cnt -> key) = " + result);
-						ERXThreadStorage.takeValueForKey(Long.valueOf(currentTime), ERXStats.STATS_LAST_TIME_KEY);
+			NSArray values = ERXArrayUtilities.sortedArraySortedWithKey(statistics.allValues(), operation);
+			if (values.count() > 0) {
+				Long startTime = (Long) ERXThreadStorage.valueForKey(ERXStats.STATS_START_TIME_KEY);
+				Long lastTime = (Long) ERXThreadStorage.valueForKey(ERXStats.STATS_LAST_TIME_KEY);
+				long currentTime = System.currentTimeMillis();
+				String result = NSPropertyListSerialization.stringFromPropertyList(values);
+				NSMutableArray<String> percentiles = new NSMutableArray<>();
+				for (Object value : values) {
+					LogEntry aggregateLogEntry = ERXStats._aggregateLogEntries.get(((LogEntry) value).key());
+					if (aggregateLogEntry != null) {
+						percentiles.addObject(aggregateLogEntry.percentilesDescription());
 					}
 				}
+				// result = result.replaceAll("\\n\\t", "\n\t\t");
+				// result = result.replaceAll("\\n", "\n\t\t");
+				statsLog.debug(
+						(startTime != null ? "Time since init " + (currentTime - startTime.longValue()) + " ms": "" ) + 
+						(lastTime != null ? ", last log " + (currentTime - lastTime.longValue()) + " ms": "" ) + 
+						", total cnt/sum: " + statistics.allValues().valueForKeyPath("@sum.count") + "/" + statistics.allValues().valueForKeyPath("@sum.sum") +
+						" (cnt/sum : min/max/avg|trace cnt -> key) = " + result +
+						", aggregate (p50/p95/p99/max -> key) = " + NSPropertyListSerialization.stringFromPropertyList(percentiles));
+				ERXThreadStorage.takeValueForKey(Long.valueOf(currentTime), ERXStats.STATS_LAST_TIME_KEY);
 			}
 		}
 	}
 
 	/**
-	 * A statistics logging entry.
+	 * A statistics logging entry. All of the recording methods are lock-free:
+	 * the counters are LongAdders and LongAccumulators, and aggregate entries
+	 * keep a {@link LatencyHistogram} for the percentiles.
 	 */
 	public static class LogEntry {
-		private float _avg;
-		private long _count;
-		private long _min;
-		private long _max;
-		private long _sum;
-        private long _latestDuration;
+		private final LongAdder _count;
+		private final LongAdder _sum;
+		private final LongAccumulator _min;
+		private final LongAccumulator _max;
+		private final LatencyHistogram _histogram;
+		private volatile long _latestDuration;
 		private String _key;
 		private Set<String> _traces = Collections.synchronizedSet(new HashSet<String>());
-		private NSArray<String> _traceArray = null;
-		private long _lastMark;
+		private volatile NSArray<String> _traceArray = null;
+		private volatile long _lastMark;
 
 		public LogEntry(String key) {
+			this(key, false);
+		}
+
+		/**
+		 * @param key
+		 *            the key of this entry
+		 * @param recordsHistogram
+		 *            if true, this entry keeps a histogram of the durations for
+		 *            the percentiles
+		 */
+		protected LogEntry(String key, boolean recordsHistogram) {
 			_key = key;
-			_avg = -1.0f;
-			_min = Long.MAX_VALUE;
-            _latestDuration = -1;
+			_count = new LongAdder();
+			_sum = new LongAdder();
+			_min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+			_max = new LongAccumulator(Math::max, 0L);
+			_histogram = recordsHistogram ? new LatencyHistogram() : null;
+			_latestDuration = -1;
 		}
 
-		public synchronized void _add(LogEntry logEntry) {
-			long originalCount = _count;
-			if (logEntry._min < _min) {
-				_min = logEntry._min;
+		public void _add(LogEntry logEntry) {
+			_min.accumulate(logEntry.min());
+			_max.accumulate(logEntry.max());
+			_sum.add(logEntry.sum());
+			_count.add(logEntry.count());
+			if (_histogram != null && logEntry._histogram != null) {
+				_histogram.add(logEntry._histogram);
 			}
-			if (logEntry._max > _max) {
-				_max = logEntry._max;
-			}
-			_sum += logEntry._sum;
-			_count += logEntry._count;
-			_avg = -1.0f;
 			_traces.addAll(logEntry._traces);
 			_traceArray = null;
 		}
 
-		public synchronized long count() {
-			return _count;
+		public long count() {
+			return _count.sum();
 		}
 
-		public synchronized long min() {
-			return _min;
+		public long min() {
+			return _min.get();
 		}
 
-		public synchronized long max() {
-			return _max;
+		public long max() {
+			return _max.get();
 		}
 
-		public synchronized long sum() {
-			return _sum;
+		public long sum() {
+			return _sum.sum();
 		}
 
-        public synchronized long latestDuration() {
-            return _latestDuration;
-        }
+		public long latestDuration() {
+			return _latestDuration;
+		}
 
-		public synchronized void start() {
+		public void start() {
 			_lastMark = System.currentTimeMillis();
 		}
 
-		public synchronized void end() {
-			if (_lastMark > 0) {
-				add(System.currentTimeMillis() - _lastMark);
+		public void end() {
+			long lastMark = _lastMark;
+			if (lastMark > 0) {
 				_lastMark = 0;
+				add(System.currentTimeMillis() - lastMark);
 			}
 			else {
 				log.info("You called ERXStats.end before calling ERXStats.start.");
 			}
 		}
 
-		public synchronized void add(long time) {
-            _latestDuration = time;
-			if (time < _min) {
-				_min = time;
-			}
-			if (time > _max) {
-				_max = time;
-			}
-			_count++;
-			_sum += time;
-			_avg = -1.0f;
+		/**
+		 * Records the given duration in this entry and in the aggregate entry
+		 * for its key.
+		 * 
+		 * @param time the duration in milliseconds
+		 */
+		public void add(long time) {
+			String trace = null;
 			if (traceCollectingEnabled()) {
 				// Throwable t = new RuntimeException();
 				// t.fillInStackTrace();
-				String trace = ERXUtilities.stackTrace(); 
+				trace = ERXUtilities.stackTrace(); 
+			}
+			record(time, trace);
+			if (_histogram == null) {
+				ERXStats.aggregateLogEntryForKey(_key).record(time, trace);
+			}
+		}
+
+		private void record(long time, String trace) {
+			_latestDuration = time;
+			_min.accumulate(time);
+			_max.accumulate(time);
+			_count.increment();
+			_sum.add(time);
+			if (_histogram != null) {
+				_histogram.record(time);
+			}
+			if (trace != null) {
 				_traces.add(trace);
 				_traceArray = null;
 			}
 		}
 
-		public synchronized float avg() {
-			if (_avg < 0.0f) {
-				_avg = (_count == 0 ? 0.0f : (_sum / ((float) _count)));
+		public float avg() {
+			long count = count();
+			return count == 0 ? 0.0f : (sum() / ((float) count));
+		}
+
+		/**
+		 * Returns the duration below which the given percentage of the recorded
+		 * durations fall, or -1 if this entry does not keep a histogram. The
+		 * result is accurate to within about 6%.
+		 * 
+		 * @param percentile
+		 *            the percentile (0-100)
+		 * @return the duration at the given percentile
+		 */
+		public long valueAtPercentile(double percentile) {
+			if (_histogram == null) {
+				return -1;
 			}
-			return _avg;
+			return Math.min(_histogram.valueAtPercentile(percentile), max());
+		}
+
+		public long p50() {
+			return valueAtPercentile(50.0);
+		}
+
+		public long p95() {
+			return valueAtPercentile(95.0);
+		}
+
+		public long p99() {
+			return valueAtPercentile(99.0);
 		}
 
 		public String key() {
@@ -465,18 +554,52 @@ public class ERXStats {
 		}
 
 		public NSArray traces() {
-			if(_traceArray == null) {
+			NSArray<String> traceArray = _traceArray;
+			if(traceArray == null) {
 				NSMutableSet<String> traces =  new NSMutableSet<>();
-				for (String trace : _traces) {
-					trace = trace.replaceAll("at\\s+(com.webobjects|java|er|sun)\\..*?\\n", "...\n");
-					trace = trace.replaceAll("(\\.\\.\\.\\s+)+", "...\n\t");
-					traces.addObject(trace);
+				synchronized (_traces) {
+					for (String trace : _traces) {
+						trace = trace.replaceAll("at\\s+(com.webobjects|java|er|sun)\\..*?\\n", "...\n");
+						trace = trace.replaceAll("(\\.\\.\\.\\s+)+", "...\n\t");
+						traces.addObject(trace);
+					}
 				}
-				_traceArray = traces.allObjects();
+				traceArray = traces.allObjects();
+				_traceArray = traceArray;
+			}
+			return traceArray;
+		}
+
+		/**
+		 * Returns the values of this entry as a property list friendly
+		 * dictionary with the keys count, sum, min, max, avg and, for aggregate
+		 * entries, p50, p95 and p99.
+		 * 
+		 * @return the values of this entry
+		 */
+		public NSDictionary<String, Object> statistics() {
+			NSMutableDictionary<String, Object> statistics = new NSMutableDictionary<>();
+			long count = count();
+			statistics.setObjectForKey(Long.valueOf(count), "count");
+			statistics.setObjectForKey(Long.valueOf(sum()), "sum");
+			statistics.setObjectForKey(Long.valueOf(count == 0 ? 0 : min()), "min");
+			statistics.setObjectForKey(Long.valueOf(max()), "max");
+			statistics.setObjectForKey(Float.valueOf(avg()), "avg");
+			if (_histogram != null) {
+				statistics.setObjectForKey(Long.valueOf(p50()), "p50");
+				statistics.setObjectForKey(Long.valueOf(p95()), "p95");
+				statistics.setObjectForKey(Long.valueOf(p99()), "p99");
 			}
-			return _traceArray;
+			return statistics;
 		}
-		
+
+		/**
+		 * @return "p50/p95/p99/max->key"
+		 */
+		public String percentilesDescription() {
+			return p50() + "/" + p95() + "/" + p99() + "/" + max() + "->" + _key;
+		}
+
 		@Override
 		public String toString() {
 			return count() + "/" + sum() + " : " + min() + "/" + max() + "/" + new BigDecimal(avg(), MathContext.DECIMAL32).setScale(2, RoundingMode.HALF_EVEN) + "|" + _traces.size() + "->" + _key;
@@ -484,4 +607,83 @@ public class ERXStats {
 		}
 	}
 
+	/**
+	 * A fixed size, lock-free histogram in the style of HdrHistogram: values
+	 * below 16 are counted exactly, larger values are counted in 16 linear
+	 * sub-buckets per power of two, which bounds the relative error of a
+	 * percentile to about 6%. Values above 2^41 are counted in the last bucket.
+	 */
+	public static class LatencyHistogram {
+		private static final int SUB_BUCKET_BITS = 4;
+		private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+		private static final int MAX_EXPONENT = 40;
+		private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+		private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT);
+
+		public void record(long value) {
+			_counts.incrementAndGet(bucketIndex(value));
+		}
+
+		public void add(LatencyHistogram histogram) {
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				long count = histogram._counts.get(i);
+				if (count > 0) {
+					_counts.addAndGet(i, count);
+				}
+			}
+		}
+
+		/**
+		 * Returns the highest value that is equivalent to the value at the given
+		 * percentile, or 0 if nothing was recorded.
+		 * 
+		 * @param percentile
+		 *            the percentile (0-100)
+		 * @return the value at the given percentile
+		 */
+		public long valueAtPercentile(double percentile) {
+			long[] counts = new long[BUCKET_COUNT];
+			long totalCount = 0;
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				counts[i] = _counts.get(i);
+				totalCount += counts[i];
+			}
+			if (totalCount == 0) {
+				return 0;
+			}
+			long targetCount = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * totalCount));
+			long cumulativeCount = 0;
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				cumulativeCount += counts[i];
+				if (cumulativeCount >= targetCount) {
+					return highestValueInBucket(i);
+				}
+			}
+			return highestValueInBucket(BUCKET_COUNT - 1);
+		}
+
+		protected static int bucketIndex(long value) {
+			if (value < SUB_BUCKET_COUNT) {
+				return value < 0 ? 0 : (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			if (exponent > MAX_EXPONENT) {
+				return BUCKET_COUNT - 1;
+			}
+			int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+			return SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + subBucket;
+		}
+
+		protected static long highestValueInBucket(int index) {
+			if (index < SUB_BUCKET_COUNT) {
+				return index;
+			}
+			int exponent = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS;
+			int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+			int shift = exponent - SUB_BUCKET_BITS;
+			return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+		}
+	}
+
 }
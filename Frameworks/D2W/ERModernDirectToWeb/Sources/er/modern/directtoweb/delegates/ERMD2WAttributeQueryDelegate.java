@@ -242,11 +242,8 @@ public class ERMD2WAttributeQueryDelegate {
             Enum<?>[] em = klass.getEnumConstants();
             for (int i = 0, length = em.length; i < length; ++i) {
                 Enum<?> anEnum = em[i];
-                // localizing, to make sure the value is in the cache
-                ERXLocalizer.currentLocalizer().localizedStringForKey(anEnum.name());
-                String unlocalizedName = (String) ERXLocalizer.currentLocalizer().cache()
-                        .objectForKey(anEnum.name());
-                if (unlocalizedName.toLowerCase().contains(
+                String unlocalizedName = ERXLocalizer.currentLocalizer().localizedStringForKey(anEnum.name());
+                if (unlocalizedName != null && unlocalizedName.toLowerCase().contains(
                         sender.searchValue().toLowerCase())) {
                     matchingEnums.addObject(anEnum);
                 }
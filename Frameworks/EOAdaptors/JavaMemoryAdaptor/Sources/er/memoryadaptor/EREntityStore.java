@@ -1,8 +1,11 @@
 package er.memoryadaptor;
 
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 import com.webobjects.eoaccess.EOAttribute;
 import com.webobjects.eoaccess.EOEntity;
@@ -47,6 +50,18 @@ public abstract class EREntityStore {
   public int deleteRowsDescribedByQualifier(EOQualifier qualifier, EOEntity entity) {
     try {
       int count = 0;
+      NSArray<NSMutableDictionary<String, Object>> candidateRows = _candidateRows(qualifier, entity);
+      if (candidateRows != null) {
+        NSMutableArray<NSMutableDictionary<String, Object>> deletedRows = new NSMutableArray<>();
+        for (NSMutableDictionary<String, Object> rawRow : candidateRows) {
+          NSMutableDictionary<String, Object> row = rowFromStoredValues(rawRow, entity);
+          if (qualifier.evaluateWithObject(row)) {
+            deletedRows.addObject(rawRow);
+          }
+        }
+        _removeRows(deletedRows);
+        return deletedRows.count();
+      }
       Iterator<NSMutableDictionary<String, Object>> i = iterator();
       while (i.hasNext()) {
         NSMutableDictionary<String, Object> rawRow = i.next();
@@ -109,33 +124,34 @@ public abstract class EREntityStore {
 			}
 		}
 
-		// int count = 0;
-		NSMutableArray<NSMutableDictionary<String, Object>> fetchedRows = new NSMutableArray<NSMutableDictionary<String, Object>>();
-		Iterator<NSMutableDictionary<String, Object>> i = iterator();
-		while (i.hasNext()) {
-			NSMutableDictionary<String, Object> rawRow = i.next();
-			NSMutableDictionary<String, Object> row = rowFromStoredValues(rawRow, entity);
-			for (EORelationship mergeRelationship : mergeRelationships) {
-				NSArray<NSMutableDictionary<String, Object>> found = null;
-				if (mergeRelationship.isFlattened() && mergeRelationship.isToMany()) {
-					found = fetchRelatedManyToManyRows(entity, row, mergeRelationship, context);
-				} else {
-					found = fetchRelatedRows(entity, row, mergeRelationship, context);
-				}
-				if (found != null && !found.isEmpty()) {
-					row.setObjectForKey(found, mergeRelationship.name());
+		NSMutableArray<NSMutableDictionary<String, Object>> fetchedRows = null;
+		if (fetchLimit > 0 && sortOrderings != null && sortOrderings.count() > 0) {
+			// Rows come in groups with the same value for the first sort ordering, so we can stop once we have
+			// enough rows; the rows are sorted by all sort orderings below.
+			Iterator<NSArray<NSMutableDictionary<String, Object>>> orderedRows = _orderedCandidateRows(qualifier, sortOrderings.objectAtIndex(0), entity);
+			if (orderedRows != null) {
+				fetchedRows = new NSMutableArray<>();
+				while (fetchedRows.count() < fetchLimit && orderedRows.hasNext()) {
+					for (NSMutableDictionary<String, Object> rawRow : orderedRows.next()) {
+						NSMutableDictionary<String, Object> row = fetchedRow(rawRow, qualifier, mergeRelationships, entity, context);
+						if (row != null) {
+							fetchedRows.addObject(row);
+						}
+					}
 				}
 			}
-			if (qualifier == null || qualifier.evaluateWithObject(row)) {
-				for (EORelationship mergeRelationship : mergeRelationships) {
-					row.removeObjectForKey(mergeRelationship.name());
+		}
+
+		if (fetchedRows == null) {
+			fetchedRows = new NSMutableArray<>();
+			NSArray<NSMutableDictionary<String, Object>> candidateRows = _candidateRows(qualifier, entity);
+			Iterator<NSMutableDictionary<String, Object>> i = candidateRows != null ? candidateRows.iterator() : iterator();
+			while (i.hasNext()) {
+				NSMutableDictionary<String, Object> row = fetchedRow(i.next(), qualifier, mergeRelationships, entity, context);
+				if (row != null) {
+					fetchedRows.addObject(row);
 				}
-				fetchedRows.addObject(row);
-				// count++;
 			}
-			// if (fetchLimit > 0 && count == fetchLimit) {
-			// 	   break;
-			// }
 		}
 
 		if (sortOrderings != null) {
@@ -148,6 +164,96 @@ public abstract class EREntityStore {
 		return fetchedRows;
 	}
 
+	/**
+	 * Returns the row for the given stored row if it matches the qualifier, or null if it doesn't.
+	 */
+	private NSMutableDictionary<String, Object> fetchedRow(NSMutableDictionary<String, Object> rawRow, EOQualifier qualifier,
+			NSArray<EORelationship> mergeRelationships, EOEntity entity, ERMemoryAdaptorContext context) {
+		NSMutableDictionary<String, Object> row = rowFromStoredValues(rawRow, entity);
+		for (EORelationship mergeRelationship : mergeRelationships) {
+			NSArray<NSMutableDictionary<String, Object>> found = null;
+			if (mergeRelationship.isFlattened() && mergeRelationship.isToMany()) {
+				found = fetchRelatedManyToManyRows(entity, row, mergeRelationship, context);
+			} else {
+				found = fetchRelatedRows(entity, row, mergeRelationship, context);
+			}
+			if (found != null && !found.isEmpty()) {
+				row.setObjectForKey(found, mergeRelationship.name());
+			}
+		}
+		if (qualifier == null || qualifier.evaluateWithObject(row)) {
+			for (EORelationship mergeRelationship : mergeRelationships) {
+				row.removeObjectForKey(mergeRelationship.name());
+			}
+			return row;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the stored rows that can match the given qualifier, or null if every row has to be evaluated.
+	 * The qualifier is still evaluated against each of the returned rows, so stores that maintain indexes
+	 * may return more rows than actually match. The default implementation returns null.
+	 * 
+	 * @param qualifier
+	 *            the qualifier (with stored relationship keys already resolved)
+	 * @param entity
+	 *            the entity that is fetched
+	 * @return the candidate rows in their stored order or null
+	 */
+	protected NSArray<NSMutableDictionary<String, Object>> _candidateRows(EOQualifier qualifier, EOEntity entity) {
+		return null;
+	}
+
+	/**
+	 * Returns the stored rows that can match the given qualifier in groups ordered by the given sort ordering,
+	 * each group containing the rows with the same value for the sort ordering's key, or null if the store
+	 * can't provide the rows in order. Used to stop fetches with a fetch limit early. The default implementation
+	 * returns null.
+	 * 
+	 * @param qualifier
+	 *            the qualifier (with stored relationship keys already resolved)
+	 * @param sortOrdering
+	 *            the first sort ordering of the fetch
+	 * @param entity
+	 *            the entity that is fetched
+	 * @return the candidate rows in groups or null
+	 */
+	protected Iterator<NSArray<NSMutableDictionary<String, Object>>> _orderedCandidateRows(EOQualifier qualifier, EOSortOrdering sortOrdering, EOEntity entity) {
+		return null;
+	}
+
+	/**
+	 * Removes the given stored rows. Called for rows found through {@link #_candidateRows(EOQualifier, EOEntity)}.
+	 * The default implementation removes them with the store's {@link #iterator()}, stores that maintain indexes
+	 * should override it to update them.
+	 * 
+	 * @param rows
+	 *            the stored rows to remove
+	 */
+	protected void _removeRows(NSArray<NSMutableDictionary<String, Object>> rows) {
+		Set<NSMutableDictionary<String, Object>> removedRows = Collections.newSetFromMap(new IdentityHashMap<NSMutableDictionary<String, Object>, Boolean>());
+		removedRows.addAll(rows);
+		Iterator<NSMutableDictionary<String, Object>> i = iterator();
+		while (!removedRows.isEmpty() && i.hasNext()) {
+			if (removedRows.remove(i.next())) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Updates the given stored row with the given values.
+	 * 
+	 * @param rawRow
+	 *            the stored row
+	 * @param values
+	 *            the new values keyed by column name
+	 */
+	protected void _updateRow(NSMutableDictionary<String, Object> rawRow, NSDictionary<String, Object> values) {
+		rawRow.addEntriesFromDictionary(values);
+	}
+
 	/**
 	 * Will fetch related rows for the given row via the passed many-to-many
 	 * relationship. The context will be used to access the needed entity
@@ -284,16 +390,19 @@ public abstract class EREntityStore {
   public int updateValuesInRowsDescribedByQualifier(NSDictionary<String, Object> updatedRow, EOQualifier qualifier, EOEntity entity) {
     try {
       int count = 0;
-      Iterator<NSMutableDictionary<String, Object>> i = iterator();
+      NSMutableDictionary<String, Object> values = new NSMutableDictionary<>(updatedRow.count());
+      for (Map.Entry<String, Object> entry : updatedRow.entrySet()) {
+        EOAttribute attribute = entity.attributeNamed(entry.getKey());
+        values.setObjectForKey(entry.getValue(), attribute.columnName());
+      }
+      NSArray<NSMutableDictionary<String, Object>> candidateRows = _candidateRows(qualifier, entity);
+      Iterator<NSMutableDictionary<String, Object>> i = candidateRows != null ? candidateRows.iterator() : iterator();
       while (i.hasNext()) {
         NSMutableDictionary<String, Object> rawRow = i.next();
         NSMutableDictionary<String, Object> row = rowFromStoredValues(rawRow, entity);
         
         if (qualifier == null || qualifier.evaluateWithObject(row)) {
-          for (Map.Entry<String, Object> entry : updatedRow.entrySet()) {
-            EOAttribute attribute = entity.attributeNamed(entry.getKey());
-            rawRow.setObjectForKey(entry.getValue(), attribute.columnName());
-          }
+          _updateRow(rawRow, values);
           count++;
         }
       }
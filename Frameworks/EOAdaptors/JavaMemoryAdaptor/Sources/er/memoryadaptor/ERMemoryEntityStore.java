@@ -1,58 +1,711 @@
 package er.memoryadaptor;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
 
+import com.webobjects.eoaccess.EOAttribute;
 import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EORelationship;
+import com.webobjects.eocontrol.EOAndQualifier;
+import com.webobjects.eocontrol.EOKeyValueQualifier;
+import com.webobjects.eocontrol.EOOrQualifier;
+import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.eocontrol.EOQualifierVariable;
+import com.webobjects.eocontrol.EOSortOrdering;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSKeyValueCoding;
 import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSSelector;
 
 /**
  * ERMemoryEntityStore is the actual datastore implementation for a single "table"
- * in ERMemoryAdaptor.  It's about as simple as you can get -- each row of the 
+ * in ERMemoryAdaptor.  It's about as simple as you can get -- each row of the
  * "database" is represented by a dictionary that maps attribute names to values.
- * 
+ * <p>
+ * To avoid evaluating the qualifier against every row, the store keeps hash indexes
+ * on the primary and foreign key columns of the entities that use it and sorted indexes
+ * on the attributes that declare one in their userInfo (<code>ERMemoryAdaptor.index = sorted</code>)
+ * or that were added with {@link #addIndex(String, boolean)}. Equality and range comparisons
+ * on indexed columns and AND/OR combinations of them only evaluate the qualifier against the
+ * rows found in the indexes, and fetches with a fetch limit that are sorted by a column with
+ * a sorted index stop as soon as they have enough rows.
+ *
  * @author mschrag
  * @author q
  */
 public class ERMemoryEntityStore extends EREntityStore {
+  public static final String INDEX_USER_INFO_KEY = "ERMemoryAdaptor.index";
+
   protected NSMutableArray<NSMutableDictionary<String, Object>> _rows;
+  private Map<String, Index> _indexes;
+  private Set<String> _indexedEntityNames;
+  private Map<NSMutableDictionary<String, Object>, Long> _rowSequences;
+  private long _nextRowSequence;
 
   public ERMemoryEntityStore() {
     _rows = new NSMutableArray<NSMutableDictionary<String, Object>>();
+    _indexes = new HashMap<>();
+    _indexedEntityNames = new HashSet<>();
+    _rowSequences = new IdentityHashMap<>();
   }
 
   @Override
   public void clear() {
     super.clear();
     _rows.removeAllObjects();
+    _rowSequences.clear();
+    for (Index index : _indexes.values()) {
+      index.clear();
+    }
   }
 
   @Override
   public ERMemoryEntityStore transactionStore() {
     ERMemoryEntityStore cloneStore = new ERMemoryEntityStore() {
       @Override
-      public int nextSequence() { 
-        return ERMemoryEntityStore.this.nextSequence(); 
+      public int nextSequence() {
+        return ERMemoryEntityStore.this.nextSequence();
       }
     };
     for (NSMutableDictionary<String, Object> row : _rows) {
       cloneStore._rows.addObject(row.mutableClone());
     }
+    cloneStore._indexedEntityNames.addAll(_indexedEntityNames);
+    for (Index index : _indexes.values()) {
+      cloneStore._indexes.put(index.columnName(), new Index(index.columnName(), index.isSorted()));
+    }
+    cloneStore.reindex();
     return cloneStore;
   }
 
   @Override
   public void commitFromTransactionStore(EREntityStore store) {
-    _rows = ((ERMemoryEntityStore)store)._rows.mutableClone();
+    ERMemoryEntityStore memoryStore = (ERMemoryEntityStore) store;
+    _rows = memoryStore._rows.mutableClone();
+    _indexedEntityNames.addAll(memoryStore._indexedEntityNames);
+    for (Index index : memoryStore._indexes.values()) {
+      if (!_indexes.containsKey(index.columnName())) {
+        _indexes.put(index.columnName(), new Index(index.columnName(), index.isSorted()));
+      }
+    }
+    reindex();
   }
-  
+
   @Override
   public Iterator<NSMutableDictionary<String, Object>> iterator() {
-    return _rows.iterator();
+    final Iterator<NSMutableDictionary<String, Object>> iterator = _rows.iterator();
+    return new Iterator<NSMutableDictionary<String, Object>>() {
+      private NSMutableDictionary<String, Object> _current;
+
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      public NSMutableDictionary<String, Object> next() {
+        _current = iterator.next();
+        return _current;
+      }
+
+      public void remove() {
+        iterator.remove();
+        unindexRow(_current);
+        _rowSequences.remove(_current);
+      }
+    };
   }
 
   @Override
   protected void _insertRow(NSMutableDictionary<String, Object> row, EOEntity entity) {
+    ensureIndexes(entity);
     _rows.addObject(row);
+    _rowSequences.put(row, Long.valueOf(_nextRowSequence++));
+    for (Index index : _indexes.values()) {
+      index.add(row);
+    }
+  }
+
+  @Override
+  protected void _removeRows(NSArray<NSMutableDictionary<String, Object>> rows) {
+    for (NSMutableDictionary<String, Object> row : rows) {
+      int rowIndex = indexOfRow(row);
+      if (rowIndex >= 0) {
+        _rows.removeObjectAtIndex(rowIndex);
+        unindexRow(row);
+        _rowSequences.remove(row);
+      }
+    }
+  }
+
+  @Override
+  protected void _updateRow(NSMutableDictionary<String, Object> rawRow, NSDictionary<String, Object> values) {
+    List<Index> changedIndexes = new ArrayList<>();
+    for (String columnName : values.allKeys()) {
+      Index index = _indexes.get(columnName);
+      if (index != null) {
+        index.remove(rawRow);
+        changedIndexes.add(index);
+      }
+    }
+    super._updateRow(rawRow, values);
+    for (Index index : changedIndexes) {
+      index.add(rawRow);
+    }
+  }
+
+  @Override
+  protected NSArray<NSMutableDictionary<String, Object>> _candidateRows(EOQualifier qualifier, EOEntity entity) {
+    ensureIndexes(entity);
+    Candidates candidates = candidates(qualifier, entity);
+    if (candidates == null) {
+      return null;
+    }
+    return candidates.rowsInStoredOrder();
+  }
+
+  @Override
+  protected Iterator<NSArray<NSMutableDictionary<String, Object>>> _orderedCandidateRows(EOQualifier qualifier, EOSortOrdering sortOrdering, EOEntity entity) {
+    ensureIndexes(entity);
+    NSSelector selector = sortOrdering.selector();
+    boolean ascending = EOSortOrdering.CompareAscending.equals(selector);
+    if (!ascending && !EOSortOrdering.CompareDescending.equals(selector)) {
+      return null;
+    }
+    Index index = indexForKey(sortOrdering.key(), entity);
+    // we don't know where EOSortOrdering puts nulls, so we only use indexes without them
+    if (index == null || !index.isSorted() || !index.isUsable() || index.nullCount() > 0) {
+      return null;
+    }
+    // an index that finds a small number of rows beats walking the sorted index
+    Candidates candidates = candidates(qualifier, entity);
+    if (candidates != null && candidates.size() < _rows.count() / 2) {
+      return null;
+    }
+    NavigableMap<Object, List<NSMutableDictionary<String, Object>>> buckets = index.sortedBuckets();
+    final Iterator<List<NSMutableDictionary<String, Object>>> iterator = (ascending ? buckets : buckets.descendingMap()).values().iterator();
+    return new Iterator<NSArray<NSMutableDictionary<String, Object>>>() {
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      public NSArray<NSMutableDictionary<String, Object>> next() {
+        return new NSArray<>(iterator.next());
+      }
+    };
+  }
+
+  /**
+   * Adds an index on the given column. Hash indexes are used for equality comparisons, sorted indexes
+   * additionally for range comparisons and for fetches with a fetch limit that are sorted by the column.
+   *
+   * @param columnName the column to index
+   * @param sorted whether the index is sorted
+   */
+  public void addIndex(String columnName, boolean sorted) {
+    Index index = _indexes.get(columnName);
+    if (index == null || sorted && !index.isSorted()) {
+      index = new Index(columnName, sorted);
+      for (NSMutableDictionary<String, Object> row : _rows) {
+        index.add(row);
+      }
+      _indexes.put(columnName, index);
+    }
+  }
+
+  /**
+   * Returns the names of the indexed columns.
+   *
+   * @return the names of the indexed columns
+   */
+  public NSArray<String> indexedColumnNames() {
+    return new NSArray<>(_indexes.keySet().toArray(new String[_indexes.size()]));
+  }
+
+  /**
+   * Adds hash indexes for the primary and foreign key attributes of the given entity and the indexes declared
+   * in the userInfo of its attributes, the first time the store is used with the entity.
+   *
+   * @param entity the entity that uses this store
+   */
+  protected void ensureIndexes(EOEntity entity) {
+    if (entity == null || _indexedEntityNames.contains(entity.name())) {
+      return;
+    }
+    _indexedEntityNames.add(entity.name());
+    for (EOAttribute attribute : entity.primaryKeyAttributes()) {
+      addIndex(attribute, false);
+    }
+    for (EORelationship relationship : entity.relationships()) {
+      if (!relationship.isFlattened() && !relationship.isToMany()) {
+        for (EOAttribute attribute : relationship.sourceAttributes()) {
+          addIndex(attribute, false);
+        }
+      }
+    }
+    for (EOAttribute attribute : entity.attributes()) {
+      NSDictionary userInfo = attribute.userInfo();
+      Object indexType = userInfo != null ? userInfo.objectForKey(INDEX_USER_INFO_KEY) : null;
+      if (indexType != null) {
+        addIndex(attribute, "sorted".equals(indexType));
+      }
+    }
+  }
+
+  private void addIndex(EOAttribute attribute, boolean sorted) {
+    if (!attribute.isDerived() && !attribute.isFlattened() && attribute.columnName() != null) {
+      addIndex(attribute.columnName(), sorted);
+    }
+  }
+
+  private Index indexForKey(String key, EOEntity entity) {
+    EOAttribute attribute = entity.attributeNamed(key);
+    if (attribute == null || attribute.isDerived() || attribute.isFlattened()) {
+      return null;
+    }
+    return _indexes.get(attribute.columnName());
+  }
+
+  private void reindex() {
+    _rowSequences.clear();
+    _nextRowSequence = 0;
+    for (Index index : _indexes.values()) {
+      index.clear();
+    }
+    for (NSMutableDictionary<String, Object> row : _rows) {
+      _rowSequences.put(row, Long.valueOf(_nextRowSequence++));
+      for (Index index : _indexes.values()) {
+        index.add(row);
+      }
+    }
+  }
+
+  private void unindexRow(NSMutableDictionary<String, Object> row) {
+    for (Index index : _indexes.values()) {
+      index.remove(row);
+    }
+  }
+
+  private long sequenceOfRow(NSMutableDictionary<String, Object> row) {
+    Long sequence = _rowSequences.get(row);
+    return sequence != null ? sequence.longValue() : Long.MAX_VALUE;
+  }
+
+  /**
+   * Rows are appended with increasing sequence numbers, so the rows are ordered by them.
+   */
+  private int indexOfRow(NSMutableDictionary<String, Object> row) {
+    Long sequence = _rowSequences.get(row);
+    if (sequence == null) {
+      return -1;
+    }
+    int low = 0;
+    int high = _rows.count() - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      long middleSequence = sequenceOfRow(_rows.objectAtIndex(middle));
+      if (middleSequence < sequence.longValue()) {
+        low = middle + 1;
+      }
+      else if (middleSequence > sequence.longValue()) {
+        high = middle - 1;
+      }
+      else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the rows that can match the given qualifier according to the indexes, or null if the indexes
+   * can't narrow down the rows.
+   */
+  private Candidates candidates(EOQualifier qualifier, EOEntity entity) {
+    if (qualifier instanceof EOKeyValueQualifier) {
+      return candidates((EOKeyValueQualifier) qualifier, entity);
+    }
+    if (qualifier instanceof EOAndQualifier) {
+      Candidates smallest = null;
+      Map<Index, Range> ranges = new HashMap<>();
+      for (EOQualifier child : ((EOAndQualifier) qualifier).qualifiers()) {
+        Candidates candidates;
+        if (isRangeQualifier(child, entity)) {
+          // combine the lower and upper bounds for the same column
+          EOKeyValueQualifier keyValueQualifier = (EOKeyValueQualifier) child;
+          Index index = indexForKey(keyValueQualifier.key(), entity);
+          Range range = ranges.get(index);
+          if (range == null) {
+            range = new Range();
+            ranges.put(index, range);
+          }
+          candidates = range.restrict(keyValueQualifier) ? index.rowsInRange(range) : null;
+        }
+        else {
+          candidates = candidates(child, entity);
+        }
+        if (candidates != null && (smallest == null || candidates.size() < smallest.size())) {
+          smallest = candidates;
+        }
+      }
+      return smallest;
+    }
+    if (qualifier instanceof EOOrQualifier) {
+      Candidates union = new Candidates();
+      for (EOQualifier child : ((EOOrQualifier) qualifier).qualifiers()) {
+        Candidates candidates = candidates(child, entity);
+        if (candidates == null) {
+          return null;
+        }
+        union.addAll(candidates);
+      }
+      return union;
+    }
+    return null;
+  }
+
+  private Candidates candidates(EOKeyValueQualifier qualifier, EOEntity entity) {
+    if (qualifier.value() instanceof EOQualifierVariable) {
+      return null;
+    }
+    NSSelector selector = qualifier.selector();
+    if (EOQualifier.QualifierOperatorEqual.equals(selector)) {
+      Index index = indexForKey(qualifier.key(), entity);
+      return index != null ? index.rowsEqualTo(qualifier.value()) : null;
+    }
+    if (isRangeQualifier(qualifier, entity)) {
+      Range range = new Range();
+      return range.restrict(qualifier) ? indexForKey(qualifier.key(), entity).rowsInRange(range) : null;
+    }
+    return null;
+  }
+
+  private boolean isRangeQualifier(EOQualifier qualifier, EOEntity entity) {
+    if (!(qualifier instanceof EOKeyValueQualifier)) {
+      return false;
+    }
+    EOKeyValueQualifier keyValueQualifier = (EOKeyValueQualifier) qualifier;
+    NSSelector selector = keyValueQualifier.selector();
+    boolean isRange = EOQualifier.QualifierOperatorLessThan.equals(selector) || EOQualifier.QualifierOperatorLessThanOrEqualTo.equals(selector) || EOQualifier.QualifierOperatorGreaterThan.equals(selector) || EOQualifier.QualifierOperatorGreaterThanOrEqualTo.equals(selector);
+    if (!isRange || keyValueQualifier.value() instanceof EOQualifierVariable) {
+      return false;
+    }
+    Index index = indexForKey(keyValueQualifier.key(), entity);
+    return index != null && index.isSorted();
+  }
+
+  /**
+   * Returns the value used as the key in the indexes. Numbers of different classes that EOF considers
+   * equal have the same key.
+   */
+  static Object indexValue(Object value) {
+    if (value == null) {
+      return NSKeyValueCoding.NullValue;
+    }
+    if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      return Long.valueOf(((Number) value).longValue());
+    }
+    if (value instanceof Number) {
+      BigDecimal decimal;
+      if (value instanceof BigDecimal) {
+        decimal = (BigDecimal) value;
+      }
+      else if (value instanceof BigInteger) {
+        decimal = new BigDecimal((BigInteger) value);
+      }
+      else {
+        double doubleValue = ((Number) value).doubleValue();
+        if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+          return value;
+        }
+        decimal = new BigDecimal(value.toString());
+      }
+      decimal = decimal.stripTrailingZeros();
+      if (decimal.scale() <= 0 && decimal.precision() - decimal.scale() <= 18) {
+        return Long.valueOf(decimal.longValueExact());
+      }
+      return decimal;
+    }
+    return value;
+  }
+
+  static Class<?> valueFamily(Object value) {
+    return value instanceof Number ? Number.class : value.getClass();
+  }
+
+  static final Comparator<Object> VALUE_COMPARATOR = new Comparator<Object>() {
+    @SuppressWarnings("unchecked")
+    public int compare(Object value1, Object value2) {
+      if (value1 instanceof Long && value2 instanceof Long) {
+        return ((Long) value1).compareTo((Long) value2);
+      }
+      if (value1 instanceof Number && value2 instanceof Number) {
+        return decimalValue((Number) value1).compareTo(decimalValue((Number) value2));
+      }
+      return ((Comparable<Object>) value1).compareTo(value2);
+    }
+
+    private BigDecimal decimalValue(Number number) {
+      return number instanceof BigDecimal ? (BigDecimal) number : new BigDecimal(number.toString());
+    }
+  };
+
+  /**
+   * The lower and upper bounds of a range comparison.
+   */
+  private static class Range {
+    Object lower;
+    boolean lowerInclusive;
+    Object upper;
+    boolean upperInclusive;
+    boolean unusable;
+
+    /**
+     * Restricts the range with the given comparison.
+     *
+     * @return false if the comparison can't be used
+     */
+    public boolean restrict(EOKeyValueQualifier qualifier) {
+      unusable = unusable || !_restrict(qualifier);
+      return !unusable;
+    }
+
+    private boolean _restrict(EOKeyValueQualifier qualifier) {
+      Object value = qualifier.value();
+      if (value == null || value == NSKeyValueCoding.NullValue) {
+        return false;
+      }
+      value = indexValue(value);
+      if (!(value instanceof Comparable)) {
+        return false;
+      }
+      NSSelector selector = qualifier.selector();
+      if (EOQualifier.QualifierOperatorGreaterThan.equals(selector) || EOQualifier.QualifierOperatorGreaterThanOrEqualTo.equals(selector)) {
+        boolean inclusive = EOQualifier.QualifierOperatorGreaterThanOrEqualTo.equals(selector);
+        if (lower != null && valueFamily(lower) != valueFamily(value)) {
+          return false;
+        }
+        int comparison = lower == null ? 1 : VALUE_COMPARATOR.compare(value, lower);
+        if (comparison > 0 || comparison == 0 && !inclusive) {
+          lower = value;
+          lowerInclusive = inclusive;
+        }
+      }
+      else {
+        boolean inclusive = EOQualifier.QualifierOperatorLessThanOrEqualTo.equals(selector);
+        if (upper != null && valueFamily(upper) != valueFamily(value)) {
+          return false;
+        }
+        int comparison = upper == null ? -1 : VALUE_COMPARATOR.compare(value, upper);
+        if (comparison < 0 || comparison == 0 && !inclusive) {
+          upper = value;
+          upperInclusive = inclusive;
+        }
+      }
+      return lower == null || upper == null || valueFamily(lower) == valueFamily(upper);
+    }
+  }
+
+  /**
+   * The rows that can match a qualifier.
+   */
+  private class Candidates {
+    private final List<NSMutableDictionary<String, Object>> _candidateRows = new ArrayList<>();
+    private Set<NSMutableDictionary<String, Object>> _identities;
+
+    public void addAll(List<NSMutableDictionary<String, Object>> rows) {
+      if (_identities == null && _candidateRows.isEmpty()) {
+        _candidateRows.addAll(rows);
+        return;
+      }
+      if (_identities == null) {
+        _identities = Collections.newSetFromMap(new IdentityHashMap<NSMutableDictionary<String, Object>, Boolean>());
+        _identities.addAll(_candidateRows);
+      }
+      for (NSMutableDictionary<String, Object> row : rows) {
+        if (_identities.add(row)) {
+          _candidateRows.add(row);
+        }
+      }
+    }
+
+    public void addAll(Candidates candidates) {
+      addAll(candidates._candidateRows);
+    }
+
+    public int size() {
+      return _candidateRows.size();
+    }
+
+    public NSArray<NSMutableDictionary<String, Object>> rowsInStoredOrder() {
+      if (_candidateRows.size() > 1) {
+        Collections.sort(_candidateRows, new Comparator<NSMutableDictionary<String, Object>>() {
+          public int compare(NSMutableDictionary<String, Object> row1, NSMutableDictionary<String, Object> row2) {
+            return Long.compare(sequenceOfRow(row1), sequenceOfRow(row2));
+          }
+        });
+      }
+      return new NSArray<>(_candidateRows);
+    }
+  }
+
+  /**
+   * An index on a single column that maps the values of the column to the rows with that value.
+   */
+  protected class Index {
+    private final String _columnName;
+    private final boolean _sorted;
+    private final Map<Object, List<NSMutableDictionary<String, Object>>> _buckets;
+    private final List<NSMutableDictionary<String, Object>> _nullRows = new ArrayList<>();
+    private Class<?> _valueFamily;
+    private boolean _usable = true;
+
+    public Index(String columnName, boolean sorted) {
+      _columnName = columnName;
+      _sorted = sorted;
+      _buckets = sorted ? new TreeMap<Object, List<NSMutableDictionary<String, Object>>>(VALUE_COMPARATOR) : new HashMap<Object, List<NSMutableDictionary<String, Object>>>();
+    }
+
+    public String columnName() {
+      return _columnName;
+    }
+
+    public boolean isSorted() {
+      return _sorted;
+    }
+
+    /**
+     * Returns false if the column contains values of different types (or values that can't be sorted
+     * in a sorted index), which we leave to EOF to compare.
+     */
+    public boolean isUsable() {
+      return _usable;
+    }
+
+    public int nullCount() {
+      return _nullRows.size();
+    }
+
+    public void clear() {
+      _buckets.clear();
+      _nullRows.clear();
+      _valueFamily = null;
+      _usable = true;
+    }
+
+    public void add(NSMutableDictionary<String, Object> row) {
+      Object value = indexValue(row.objectForKey(_columnName));
+      if (value == NSKeyValueCoding.NullValue) {
+        _nullRows.add(row);
+        return;
+      }
+      if (!_usable) {
+        return;
+      }
+      Class<?> valueFamily = valueFamily(value);
+      if (_valueFamily == null) {
+        _valueFamily = valueFamily;
+      }
+      if (_valueFamily != valueFamily || _sorted && !(value instanceof Comparable)) {
+        _usable = false;
+        _buckets.clear();
+        return;
+      }
+      List<NSMutableDictionary<String, Object>> bucket = _buckets.get(value);
+      if (bucket == null) {
+        bucket = new ArrayList<>(1);
+        _buckets.put(value, bucket);
+      }
+      bucket.add(row);
+    }
+
+    public void remove(NSMutableDictionary<String, Object> row) {
+      Object value = indexValue(row.objectForKey(_columnName));
+      if (value == NSKeyValueCoding.NullValue) {
+        removeIdentical(_nullRows, row);
+        return;
+      }
+      if (!_usable) {
+        return;
+      }
+      List<NSMutableDictionary<String, Object>> bucket = _buckets.get(value);
+      if (bucket != null) {
+        removeIdentical(bucket, row);
+        if (bucket.isEmpty()) {
+          _buckets.remove(value);
+        }
+      }
+    }
+
+    private void removeIdentical(List<NSMutableDictionary<String, Object>> rows, NSMutableDictionary<String, Object> row) {
+      for (int i = rows.size() - 1; i >= 0; i--) {
+        if (rows.get(i) == row) {
+          rows.remove(i);
+          return;
+        }
+      }
+    }
+
+    public Candidates rowsEqualTo(Object value) {
+      value = indexValue(value);
+      Candidates candidates = new Candidates();
+      if (value == NSKeyValueCoding.NullValue) {
+        candidates.addAll(_nullRows);
+        return candidates;
+      }
+      if (!_usable || _valueFamily != null && _valueFamily != valueFamily(value) || _sorted && !(value instanceof Comparable)) {
+        return null;
+      }
+      List<NSMutableDictionary<String, Object>> bucket = _buckets.get(value);
+      if (bucket != null) {
+        candidates.addAll(bucket);
+      }
+      return candidates;
+    }
+
+    public Candidates rowsInRange(Range range) {
+      Object bound = range.lower != null ? range.lower : range.upper;
+      if (!_usable || !_sorted || _valueFamily != null && _valueFamily != valueFamily(bound)) {
+        return null;
+      }
+      NavigableMap<Object, List<NSMutableDictionary<String, Object>>> buckets = sortedBuckets();
+      if (range.lower != null && range.upper != null) {
+        if (VALUE_COMPARATOR.compare(range.lower, range.upper) > 0) {
+          buckets = Collections.emptyNavigableMap();
+        }
+        else {
+          buckets = buckets.subMap(range.lower, range.lowerInclusive, range.upper, range.upperInclusive);
+        }
+      }
+      else if (range.lower != null) {
+        buckets = buckets.tailMap(range.lower, range.lowerInclusive);
+      }
+      else {
+        buckets = buckets.headMap(range.upper, range.upperInclusive);
+      }
+      Candidates candidates = new Candidates();
+      for (List<NSMutableDictionary<String, Object>> bucket : buckets.values()) {
+        candidates.addAll(bucket);
+      }
+      // EOF decides how nulls compare, so rows with nulls are always candidates
+      candidates.addAll(_nullRows);
+      return candidates;
+    }
+
+    public NavigableMap<Object, List<NSMutableDictionary<String, Object>>> sortedBuckets() {
+      return (NavigableMap<Object, List<NSMutableDictionary<String, Object>>>) _buckets;
+    }
   }
 }
@@ -50,6 +50,9 @@ import er.extensions.remoteSynchronizer.ERXRemoteSynchronizer;
  * @property er.extensions.remoteSynchronizer.enabled if true, remote synchronization is enabled
  * @property er.extensions.remoteSynchronizer.excludeEntities the list of entities to NOT synchronize (none by default)
  * @property er.extensions.remoteSynchronizer.includeEntities the list of entities to synchronize (all by default)
+ * @property er.extensions.remoteSynchronizer.wireFormatVersion the wire format version to send, 1 or 2; only set it to 2 once every instance reads version 2 (defaults to 1)
+ * @property er.extensions.remoteSynchronizer.compressionThreshold the size in bytes above which messages are compressed (defaults to 512)
+ * @property er.extensions.remoteSynchronizer.coalesceWindow the number of milliseconds to collect changes before sending them (defaults to 0)
  *
  * @author mschrag
  */
@@ -83,6 +86,7 @@ public class ERJGroupsSynchronizer extends ERXRemoteSynchronizer {
 
 	@Override
 	public void leave() {
+		flushCacheChanges();
 		_channel.disconnect();
 	}
 
@@ -95,10 +99,22 @@ public class ERJGroupsSynchronizer extends ERXRemoteSynchronizer {
 					byte[] buffer = message.getBuffer();
 					ByteArrayInputStream bais = new ByteArrayInputStream(buffer);
 					DataInputStream dis = new DataInputStream(bais);
-					int transactionCount = dis.readInt();
-					RemoteChange remoteChange = new RemoteChange("AnotherInstance", -1, transactionCount);
-					for (int transactionNum = 0; transactionNum < transactionCount; transactionNum++) {
-						_readCacheChange(remoteChange, dis);
+					RemoteChange remoteChange;
+					int transactionCount;
+					if (readWireFormatVersion(dis) == WIRE_FORMAT_VERSION_1) {
+						transactionCount = dis.readInt();
+						remoteChange = new RemoteChange("AnotherInstance", -1, transactionCount);
+						for (int transactionNum = 0; transactionNum < transactionCount; transactionNum++) {
+							_readCacheChange(remoteChange, dis);
+						}
+					}
+					else {
+						NSArray<ERXDatabase.CacheChange> cacheChanges = readCacheChangeBatch(dis);
+						transactionCount = cacheChanges.count();
+						remoteChange = new RemoteChange("AnotherInstance", -1, transactionCount);
+						for (ERXDatabase.CacheChange cacheChange : cacheChanges) {
+							remoteChange.addRemoteCacheChange(cacheChange);
+						}
 					}
 					addChange(remoteChange);
 					log.info("Received {} changes from {}", transactionCount, message.getSrc());
@@ -130,14 +146,20 @@ public class ERJGroupsSynchronizer extends ERXRemoteSynchronizer {
 		}
 		RefByteArrayOutputStream baos = new RefByteArrayOutputStream();
 		DataOutputStream dos = new DataOutputStream(baos);
-		dos.writeInt(cacheChanges.count());
-		for (Enumeration cacheChangesEnum = cacheChanges.objectEnumerator(); cacheChangesEnum.hasMoreElements();) {
-			ERXDatabase.CacheChange cacheChange = (ERXDatabase.CacheChange) cacheChangesEnum.nextElement();
-			_writeCacheChange(dos, cacheChange);
+		if (wireFormatVersion() == WIRE_FORMAT_VERSION_1) {
+			dos.writeInt(cacheChanges.count());
+			for (Enumeration cacheChangesEnum = cacheChanges.objectEnumerator(); cacheChangesEnum.hasMoreElements();) {
+				ERXDatabase.CacheChange cacheChange = (ERXDatabase.CacheChange) cacheChangesEnum.nextElement();
+				_writeCacheChange(dos, cacheChange);
+			}
+		}
+		else {
+			writeWireFormatHeader(dos);
+			writeCacheChangeBatch(dos, cacheChanges);
 		}
 		dos.flush();
 		dos.close();
-		log.info("Sending {} changes.", cacheChanges.count());
+		log.info("Sending {} changes ({} bytes).", cacheChanges.count(), baos.size());
 		log.debug("  Changes = {}", cacheChanges);
 		Message message = new Message(null, null, baos.buffer(), 0, baos.size());
 		_channel.send(message);
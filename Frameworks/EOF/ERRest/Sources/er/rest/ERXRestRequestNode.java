@@ -1477,6 +1477,54 @@ public class ERXRestRequestNode implements NSKeyValueCoding, NSKeyValueCodingAdd
 		return requestNode;
 	}
 
+	/**
+	 * Converts the elements of an array of objects one at a time into the Java objects that
+	 * {@link #toJavaCollection(ERXRestFormat.Delegate)} creates for them as children of the array node of
+	 * {@link #requestNodeWithObjectAndFilter(EOClassDescription, List, ERXKeyFilter, ERXRestContext)}. This allows
+	 * writers to process large arrays one element at a time without building the request node tree of the whole
+	 * array. The visited objects and their converted values are shared by all elements, just like in the tree, so
+	 * repeated objects render the same, but this also means they are kept until the whole array has been converted.
+	 */
+	public static class ArrayElements {
+		private final EOClassDescription _classDescription;
+		private final ERXKeyFilter _keyFilter;
+		private final ERXRestFormat.Delegate _delegate;
+		private final ERXRestContext _context;
+		private final Set<Object> _visitedObjects = new HashSet<>();
+		private final Map<Object, Object> _associatedObjects = new HashMap<>();
+
+		/**
+		 * @param classDescription
+		 *            the entity type of the objects in the array
+		 * @param keyFilter
+		 *            the filter to use
+		 * @param delegate
+		 *            the format delegate to notify during rendering
+		 * @param context
+		 *            the REST context
+		 */
+		public ArrayElements(EOClassDescription classDescription, ERXKeyFilter keyFilter, ERXRestFormat.Delegate delegate, ERXRestContext context) {
+			_classDescription = classDescription;
+			_keyFilter = keyFilter;
+			_delegate = delegate;
+			_context = context;
+		}
+
+		/**
+		 * Returns the Java object for the next element of the array.
+		 * 
+		 * @param obj
+		 *            the array element
+		 * @return the Java object that corresponds to the element
+		 */
+		public Object toJavaCollection(Object obj) {
+			ERXRestRequestNode elementNode = new ERXRestRequestNode(null, false);
+			elementNode._fillInWithObjectAndFilter(obj, _classDescription, _keyFilter, _context, _visitedObjects);
+			elementNode._removeRedundantTypes();
+			return elementNode.toJavaCollection(_delegate, null, _associatedObjects);
+		}
+	}
+
 	/**
 	 * Creates a hierarchy of ERXRestRequestNodes based off of the given object.
 	 * 
@@ -7,6 +7,11 @@ import er.extensions.localization.ERXLocalizer;
 import er.rest.ERXRestRequestNode;
 
 public class ERXEmberRestWriter extends ERXJSONRestWriter {
+	@Override
+	public boolean canStreamObjects() {
+		return false;
+	}
+
 	@Override
 	protected ERXRestRequestNode processNode(ERXRestRequestNode node) {
 		ERXRestRequestNode rootNode = new ERXRestRequestNode(null, true);
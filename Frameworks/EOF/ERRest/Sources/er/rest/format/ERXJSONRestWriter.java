@@ -1,8 +1,21 @@
 package er.rest.format;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
 import net.sf.json.JSON;
 import net.sf.json.JSONSerializer;
 import net.sf.json.JsonConfig;
+
+import com.webobjects.eocontrol.EOClassDescription;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.foundation.NSArray;
+
+import er.extensions.eof.ERXKeyFilter;
 import er.extensions.foundation.ERXProperties;
 import er.rest.ERXRestContext;
 import er.rest.ERXRestRequestNode;
@@ -11,13 +24,15 @@ import er.rest.ERXRestUtils;
 /**
  * @property <code>er.rest.format.ERXJSONRestWriter.shouldPrettyPrint</code> Boolean property to enable pretty-printing of JSON response. Defaults to false.
  * @property <code>er.rest.format.ERXJSONRestWriter.prettyPrintIndent</code> Integer property to set the pretty print indentation space count. Defaults to <code>2</code>.
+ * @property <code>er.rest.format.ERXJSONRestWriter.streamingChunkSize</code> Integer property to set the number of characters that are rendered at a time when streaming arrays. Defaults to <code>8192</code>.
  */
-public class ERXJSONRestWriter extends ERXRestWriter {
+public class ERXJSONRestWriter extends ERXRestWriter implements IERXStreamingRestWriter {
 
 	// Lazily initialized static constants
 	private static class CONSTANTS {
 		final static boolean SHOULD_PRETTY_PRINT = ERXProperties.booleanForKeyWithDefault("er.rest.format.ERXJSONRestWriter.shouldPrettyPrint", false);
 		final static int PRETTY_PRINT_INDENT = ERXProperties.intForKeyWithDefault("er.rest.format.ERXJSONRestWriter.prettyPrintIndent", 2);
+		final static int STREAMING_CHUNK_SIZE = ERXProperties.intForKeyWithDefault("er.rest.format.ERXJSONRestWriter.streamingChunkSize", 8192);
 	}
 
 	public ERXJSONRestWriter() {
@@ -55,8 +70,163 @@ public class ERXJSONRestWriter extends ERXRestWriter {
 		response.appendContentString("\n");
 	}
 
+	/**
+	 * Returns true if arrays can be streamed, which is the case unless the response is pretty printed. Subclasses that
+	 * override {@link #processNode(ERXRestRequestNode)} need the complete tree and should return false.
+	 */
+	@Override
+	public boolean canStreamObjects() {
+		return !CONSTANTS.SHOULD_PRETTY_PRINT;
+	}
+
+	/**
+	 * Renders the array one element at a time. Each element is turned into its own request node, converted and
+	 * serialized, so neither the request node tree nor the complete JSON string for the array are ever held in
+	 * memory. The output is the same as rendering the tree of the whole array.
+	 */
+	@Override
+	public void appendObjectsToResponse(EOClassDescription classDescription, List<?> objects, ERXKeyFilter filter, IERXRestResponse response, ERXRestFormat.Delegate delegate, ERXRestContext context) {
+		StreamedArray array = streamedArray(classDescription, objects, filter, response, delegate, context);
+		String chunk;
+		while ((chunk = array.nextChunk()) != null) {
+			response.appendContentString(chunk);
+		}
+	}
+
+	@Override
+	public InputStream contentStreamForObjects(EOClassDescription classDescription, List<?> objects, ERXKeyFilter filter, IERXRestResponse response, ERXRestFormat.Delegate delegate, ERXRestContext context) {
+		return new StreamedArrayInputStream(streamedArray(classDescription, objects, filter, response, delegate, context), Charset.forName(contentEncoding()));
+	}
+
+	protected StreamedArray streamedArray(EOClassDescription classDescription, List<?> objects, ERXKeyFilter filter, IERXRestResponse response, ERXRestFormat.Delegate delegate, ERXRestContext context) {
+		ERXRestRequestNode node = ERXRestRequestNode.requestNodeWithObjectAndFilter(classDescription, NSArray.emptyArray(), filter, context);
+		node._removeRedundantTypes();
+
+		appendHeadersToResponse(node, response, context);
+		response.setContentEncoding(contentEncoding());
+		if (delegate != null) {
+			delegate.nodeWillWrite(node);
+		}
+		return new StreamedArray(classDescription, objects, filter, delegate, context, configWithContext(context));
+	}
+
 	@Override
 	public String contentType() {
 		return "application/json";
 	}
+
+	/**
+	 * Renders an array of objects into JSON, a chunk of elements at a time.
+	 */
+	protected static class StreamedArray {
+		private final Iterator<?> _objects;
+		private final ERXRestRequestNode.ArrayElements _elements;
+		private final ERXRestContext _context;
+		private final JsonConfig _config;
+		private boolean _started;
+		private boolean _finished;
+
+		public StreamedArray(EOClassDescription classDescription, List<?> objects, ERXKeyFilter filter, ERXRestFormat.Delegate delegate, ERXRestContext context, JsonConfig config) {
+			_objects = objects.iterator();
+			_elements = new ERXRestRequestNode.ArrayElements(classDescription, filter, delegate, context);
+			_context = context;
+			_config = config;
+		}
+
+		/**
+		 * Renders the next elements of the array until at least <code>er.rest.format.ERXJSONRestWriter.streamingChunkSize</code>
+		 * characters are rendered or the array ends.
+		 * 
+		 * @return the next part of the JSON or null when the array has been rendered completely
+		 */
+		public String nextChunk() {
+			if (_finished) {
+				return null;
+			}
+			StringBuilder chunk = new StringBuilder();
+			if (!_started) {
+				chunk.append('[');
+			}
+			EOEditingContext editingContext = _context.editingContext();
+			if (editingContext != null) {
+				editingContext.lock();
+			}
+			try {
+				while (chunk.length() < CONSTANTS.STREAMING_CHUNK_SIZE && _objects.hasNext()) {
+					if (_started) {
+						chunk.append(',');
+					}
+					_started = true;
+					Object obj = _objects.next();
+					Object element = _elements.toJavaCollection(obj);
+					// render the element as JSONArray would render it inside of the whole array
+					String json = JSONSerializer.toJSON(Collections.singletonList(element), _config).toString();
+					chunk.append(json, 1, json.length() - 1);
+				}
+			}
+			finally {
+				if (editingContext != null) {
+					editingContext.unlock();
+				}
+			}
+			_started = true;
+			if (!_objects.hasNext()) {
+				chunk.append(']');
+				chunk.append('\n');
+				_finished = true;
+			}
+			return chunk.toString();
+		}
+	}
+
+	/**
+	 * Renders a StreamedArray as it is read.
+	 */
+	protected static class StreamedArrayInputStream extends InputStream {
+		private final StreamedArray _array;
+		private final Charset _charset;
+		private byte[] _chunk = new byte[0];
+		private int _position;
+
+		public StreamedArrayInputStream(StreamedArray array, Charset charset) {
+			_array = array;
+			_charset = charset;
+		}
+
+		private boolean fill() {
+			while (_position == _chunk.length) {
+				String chunk = _array.nextChunk();
+				if (chunk == null) {
+					return false;
+				}
+				_chunk = chunk.getBytes(_charset);
+				_position = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return fill() ? _chunk[_position++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int count = Math.min(len, _chunk.length - _position);
+			System.arraycopy(_chunk, _position, b, off, count);
+			_position += count;
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return _chunk.length - _position;
+		}
+	}
 }
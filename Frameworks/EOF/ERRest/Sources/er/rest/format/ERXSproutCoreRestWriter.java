@@ -3,6 +3,11 @@ package er.rest.format;
 import er.rest.ERXRestRequestNode;
 
 public class ERXSproutCoreRestWriter extends ERXJSONRestWriter {
+	@Override
+	public boolean canStreamObjects() {
+		return false;
+	}
+
 	@Override
 	protected ERXRestRequestNode processNode(ERXRestRequestNode node) {
 		ERXRestRequestNode rootNode = new ERXRestRequestNode(null, true);
@@ -0,0 +1,66 @@
+package er.rest.format;
+
+import java.io.InputStream;
+import java.util.List;
+
+import com.webobjects.eocontrol.EOClassDescription;
+
+import er.extensions.eof.ERXKeyFilter;
+import er.rest.ERXRestContext;
+
+/**
+ * IERXStreamingRestWriter is implemented by writers that can render an array of objects one element at a time,
+ * without first building the complete ERXRestRequestNode tree for the array. The output must be the same as the tree
+ * returned by
+ * {@link er.rest.ERXRestRequestNode#requestNodeWithObjectAndFilter(EOClassDescription, List, ERXKeyFilter, ERXRestContext)}
+ * would render; {@link er.rest.ERXRestRequestNode.ArrayElements} converts the elements that way.
+ */
+public interface IERXStreamingRestWriter extends IERXRestWriter {
+	/**
+	 * Returns whether or not this writer is currently able to stream arrays. Writers that need to post-process the
+	 * complete request node tree (or pretty print it) should return false.
+	 *
+	 * @return whether or not this writer can stream arrays
+	 */
+	public boolean canStreamObjects();
+
+	/**
+	 * Called at the end of a request to render the given array of objects to the user.
+	 *
+	 * @param classDescription
+	 *            the entity type of the objects in the array
+	 * @param objects
+	 *            the objects to render
+	 * @param filter
+	 *            the filter to apply to the objects
+	 * @param response
+	 *            the response to write into
+	 * @param delegate
+	 *            the REST delegate
+	 * @param context
+	 *            the REST context
+	 */
+	public void appendObjectsToResponse(EOClassDescription classDescription, List<?> objects, ERXKeyFilter filter, IERXRestResponse response, ERXRestFormat.Delegate delegate, ERXRestContext context);
+
+	/**
+	 * Appends the headers for the given array of objects to the response and returns a stream that renders the
+	 * objects while it is read. The stream locks the editing context of the REST context while it renders, so it can
+	 * be read by the adaptor after the request has been handled, but the editing context must not be disposed before
+	 * the stream is closed.
+	 *
+	 * @param classDescription
+	 *            the entity type of the objects in the array
+	 * @param objects
+	 *            the objects to render
+	 * @param filter
+	 *            the filter to apply to the objects
+	 * @param response
+	 *            the response to append the headers to
+	 * @param delegate
+	 *            the REST delegate
+	 * @param context
+	 *            the REST context
+	 * @return the stream of the rendered objects
+	 */
+	public InputStream contentStreamForObjects(EOClassDescription classDescription, List<?> objects, ERXKeyFilter filter, IERXRestResponse response, ERXRestFormat.Delegate delegate, ERXRestContext context);
+}
@@ -30,6 +30,7 @@ public class ERXRoute {
 	public static final ERXRoute.Key ActionKey = new ERXRoute.Key("action");
 
 	private final String _entityName;
+	private final String _urlPattern;
 	private final Pattern _routePattern;
 	private ERXRoute.Method _method;
 	private final NSMutableArray<ERXRoute.Key> _keys;
@@ -192,6 +193,7 @@ public class ERXRoute {
 	 */
 	public ERXRoute(String entityName, String urlPattern, ERXRoute.Method method, Class<? extends ERXRouteController> controller, String action) {
 		_entityName = entityName;
+		_urlPattern = urlPattern;
 		_method = method;
 		_controller = controller;
 		_action = action;
@@ -268,6 +270,15 @@ public class ERXRoute {
 		return _action;
 	}
 	
+	/**
+	 * Returns the URL pattern this route was constructed with.
+	 * 
+	 * @return the URL pattern this route was constructed with
+	 */
+	public String urlPattern() {
+		return _urlPattern;
+	}
+	
 	/**
 	 * Returns the Pattern used to match this route.
 	 * 
@@ -61,6 +61,8 @@ import er.rest.format.ERXRestFormat;
 import er.rest.format.ERXWORestRequest;
 import er.rest.format.ERXWORestResponse;
 import er.rest.format.IERXRestParser;
+import er.rest.format.IERXRestWriter;
+import er.rest.format.IERXStreamingRestWriter;
 import er.rest.routes.jsr311.CookieParam;
 import er.rest.routes.jsr311.HeaderParam;
 import er.rest.routes.jsr311.Path;
@@ -83,6 +85,7 @@ import er.rest.util.ERXRestTransactionRequestAdaptor;
  * @property ERXRest.allowWindowNameCrossDomainTransport
  * @property ERXRest.accessControlMaxAge (default 1728000) This header indicates how long the results of a preflight request can be cached. See https://developer.mozilla.org/En/HTTP_access_control#Access-Control-Max-Age
  * @property ERXRest.accessControlAllowOrigin Set the value to '*' to enable all origins. See https://developer.mozilla.org/En/HTTP_access_control#Access-Control-Allow-Origin
+ * @property ERXRest.streamingResponses (default "false") If set to true, arrays are rendered one element at a time by formats with a streaming writer (like JSON) instead of building a complete request node tree first. See ERXRest.chunkedStreamingResponses in ERXRouteResults to also render them while the adaptor writes the response
  *
  * @author mschrag
  */
@@ -101,6 +104,7 @@ public class ERXRouteController extends WODirectAction {
 	private NSSet<String> _prefetchingKeyPaths;
 	private boolean _shouldDisposeEditingContext;
 	private ERXRestContext _restContext;
+	private ERXRouteResults _streamingResults;
 
 	/**
 	 * Constructs a new ERXRouteController.
@@ -1004,6 +1008,10 @@ public class ERXRouteController extends WODirectAction {
 	 * @return a WOResponse in the given format
 	 */
 	public WOActionResults response(ERXRestFormat format, EOClassDescription entity, NSArray<?> values, ERXKeyFilter filter) {
+		if (values != null && shouldStreamResponseInFormat(format)) {
+			_streamingResults = new ERXRouteResults(context(), restContext(), format, entity, values, filter);
+			return _streamingResults;
+		}
 		ERXRestRequestNode responseNode;
 		try {
 			responseNode = ERXRestRequestNode.requestNodeWithObjectAndFilter(entity, values, filter, restContext());
@@ -1020,6 +1028,21 @@ public class ERXRouteController extends WODirectAction {
 		return response(format, responseNode);
 	}
 
+	/**
+	 * Returns whether arrays should be streamed into the response by the writer of the given format instead of
+	 * rendering a complete ERXRestRequestNode tree first. The objects are rendered while the adaptor writes the
+	 * response, which needs an adaptor that sends content streams without a length in chunks (like WONettyAdaptor).
+	 * Note that a streamed response can not turn an exception that is thrown while rendering into an error response.
+	 * 
+	 * @param format
+	 *            the format of the response
+	 * @return whether arrays should be streamed in the given format
+	 */
+	protected boolean shouldStreamResponseInFormat(ERXRestFormat format) {
+		IERXRestWriter writer = format.writer();
+		return ERXProperties.booleanForKeyWithDefault("ERXRest.streamingResponses", false) && writer instanceof IERXStreamingRestWriter && ((IERXStreamingRestWriter) writer).canStreamObjects();
+	}
+
 	/**
 	 * Returns the given ERXRestRequestNode as a response in the given format.
 	 * 
@@ -1352,7 +1375,7 @@ public class ERXRouteController extends WODirectAction {
 	 * @return the response node
 	 */
 	public ERXRestRequestNode responseNodeForActionNamed(String actionName) {
-		String contentString = performActionNamed(actionName, true).generateResponse().contentString();
+		String contentString = bufferedResponse(performActionNamed(actionName, true)).contentString();
 		return format().parse(contentString);
 	}
 
@@ -1363,7 +1386,17 @@ public class ERXRouteController extends WODirectAction {
 	 * @return the response content
 	 */
 	public String responseContentForActionNamed(String actionName) {
-		return performActionNamed(actionName, true).generateResponse().contentString();
+		return bufferedResponse(performActionNamed(actionName, true)).contentString();
+	}
+
+	/**
+	 * Generates the response for the given results with its content in the response, even if it would be streamed.
+	 */
+	private static WOResponse bufferedResponse(WOActionResults results) {
+		if (results instanceof ERXRouteResults) {
+			return ((ERXRouteResults) results).generateBufferedResponse();
+		}
+		return results.generateResponse();
 	}
 
 	/**
@@ -1638,7 +1671,7 @@ public class ERXRouteController extends WODirectAction {
 		if (allowWindowNameCrossDomainTransport()) {
 			String windowNameCrossDomainTransport = request().stringFormValueForKey("windowname");
 			if ("true".equals(windowNameCrossDomainTransport)) {
-				WOResponse response = results.generateResponse();
+				WOResponse response = bufferedResponse(results);
 				String content = response.contentString();
 				if (content != null) {
 					content = content.replaceAll("\n", "");
@@ -1653,7 +1686,7 @@ public class ERXRouteController extends WODirectAction {
 			if (format().equals(ERXRestFormat.json())) {
 				String callbackMethodName = request().stringFormValueForKey("callback");
 				if (callbackMethodName != null) {
-					WOResponse response = results.generateResponse();
+					WOResponse response = bufferedResponse(results);
 					String content = response.contentString();
 					if (content != null) {
 						content = content.replaceAll("\n", "");
@@ -1832,8 +1865,16 @@ public class ERXRouteController extends WODirectAction {
 				_editingContext.unlock();
 			}
 
-			_editingContext.dispose();
+			EOEditingContext editingContext = _editingContext;
 			_editingContext = null;
+			if (_streamingResults != null) {
+				// a streamed response renders its objects while the adaptor writes it
+				_streamingResults.runWhenContentClosed(editingContext::dispose);
+				_streamingResults = null;
+			}
+			else {
+				editingContext.dispose();
+			}
 		}
 	}
 	
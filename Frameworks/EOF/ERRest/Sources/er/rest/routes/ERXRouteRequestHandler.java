@@ -2,6 +2,7 @@ package er.rest.routes;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 
 import org.apache.commons.lang3.ObjectUtils;
 import org.slf4j.Logger;
@@ -120,6 +121,7 @@ import er.rest.routes.jsr311.Paths;
  * @property ERXRest.pluralEntityNames
  * @property ERXRest.routeCase
  * @property ERXRest.lowercaseEntityNames
+ * @property ERXRest.routeTrie (default "true") If set to "false", routes are matched with a linear scan over every route's pattern instead of through an {@link ERXRouteTrie}
  *
  * @author mschrag
  */
@@ -290,6 +292,8 @@ public class ERXRouteRequestHandler extends WODirectActionRequestHandler {
 	private final NameFormat _entityNameFormat;
 	private final NSMutableArray<ERXRoute> _routes;
 	private final boolean _parseUnknownExtensions; 
+	private final boolean _useRouteTrie;
+	private volatile ERXRouteTrie _routeTrie;
 
 	/**
 	 * Constructs a new ERXRouteRequestHandler with the default entity name format.
@@ -308,6 +312,7 @@ public class ERXRouteRequestHandler extends WODirectActionRequestHandler {
 		_entityNameFormat = entityNameFormat;
 		_routes = new NSMutableArray<>();
 		_parseUnknownExtensions = ERXProperties.booleanForKeyWithDefault("ERXRest.parseUnknownExtensions", true);
+		_useRouteTrie = ERXProperties.booleanForKeyWithDefault("ERXRest.routeTrie", true);
 	}
 
 	/**
@@ -319,6 +324,7 @@ public class ERXRouteRequestHandler extends WODirectActionRequestHandler {
 	public void insertRoute(ERXRoute route) {
 		verifyRoute(route);
 		_routes.insertObjectAtIndex(route, 0);
+		_routeTrie = null;
 	}
 
 	/**
@@ -331,6 +337,7 @@ public class ERXRouteRequestHandler extends WODirectActionRequestHandler {
 		log.debug("adding route {}", route);
 		verifyRoute(route);
 		_routes.addObject(route);
+		_routeTrie = null;
 	}
 
 	/**
@@ -341,6 +348,7 @@ public class ERXRouteRequestHandler extends WODirectActionRequestHandler {
 	 */
 	public void removeRoute(ERXRoute route) {
 		_routes.removeObject(route);
+		_routeTrie = null;
 	}
 
 	/**
@@ -350,6 +358,27 @@ public class ERXRouteRequestHandler extends WODirectActionRequestHandler {
 		for (ERXRoute route : _routes) {
 			route._clearCaches();
 		}
+		_routeTrie = null;
+	}
+
+	/**
+	 * Returns the compiled route trie for the current routes, building it if the routes have changed since it was
+	 * last used.
+	 * 
+	 * @return the route trie for the current routes
+	 */
+	protected ERXRouteTrie routeTrie() {
+		ERXRouteTrie routeTrie = _routeTrie;
+		if (routeTrie == null) {
+			synchronized (_routes) {
+				routeTrie = _routeTrie;
+				if (routeTrie == null) {
+					routeTrie = new ERXRouteTrie(_routes);
+					_routeTrie = routeTrie;
+				}
+			}
+		}
+		return routeTrie;
 	}
 	
 	/**
@@ -697,7 +726,8 @@ public class ERXRouteRequestHandler extends WODirectActionRequestHandler {
 		ERXRoute.Method routeMethod = ERXRoute.Method.valueOf(ERXStringUtilities.capitalize(method.toLowerCase()));
 		ERXRoute matchingRoute = null;
 		NSDictionary<ERXRoute.Key, String> keys = null;
-		for (ERXRoute route : _routes) {
+		Iterable<ERXRoute> candidateRoutes = _useRouteTrie ? Arrays.asList(routeTrie().candidateRoutesForPath(path)) : _routes;
+		for (ERXRoute route : candidateRoutes) {
 			keys = route.keys(path, routeMethod);
 			if (keys != null) {
 				matchingRoute = route;
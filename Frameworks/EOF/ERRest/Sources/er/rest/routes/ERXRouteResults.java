@@ -1,25 +1,35 @@
 package er.rest.routes;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
 import com.webobjects.appserver.WOActionResults;
 import com.webobjects.appserver.WOApplication;
 import com.webobjects.appserver.WOContext;
 import com.webobjects.appserver.WOResponse;
 import com.webobjects.appserver.WOSession;
+import com.webobjects.eocontrol.EOClassDescription;
 import com.webobjects.foundation.NSMutableDictionary;
 
 import er.extensions.appserver.ERXHttpStatusCodes;
+import er.extensions.eof.ERXKeyFilter;
 import er.extensions.foundation.ERXProperties;
 import er.rest.ERXRestContext;
 import er.rest.ERXRestRequestNode;
 import er.rest.format.ERXRestFormat;
 import er.rest.format.ERXWORestResponse;
 import er.rest.format.IERXRestWriter;
+import er.rest.format.IERXStreamingRestWriter;
 
 /**
  * ERXRouteResults encapsulates the data necessary to produce a RESTful response. This object exists to defer the
  * generation of the response (so you can chain together rest responders).
  * 
  * @property ERXRest.strictMode (default "true") If set to true, creating a ressource will return status code 201 Created, if set to false, will return 200 OK
+ * @property ERXRest.chunkedStreamingResponses (default "false") If set to true, streamed arrays are rendered while the adaptor writes the response, from a content stream without a length. Only enable it with an adaptor that sends such streams in chunks, like WONettyAdaptor; other adaptors send an empty body
  * 
  * @author mschrag
  */
@@ -28,6 +38,10 @@ public class ERXRouteResults implements WOActionResults {
 	private ERXRestContext _restContext;
 	private ERXRestFormat _format;
 	private ERXRestRequestNode _responseNode;
+	private EOClassDescription _classDescription;
+	private List<?> _objects;
+	private ERXKeyFilter _filter;
+	private StreamedContent _contentStream;
 	private NSMutableDictionary<String, String> _headers;
 
 	/**
@@ -49,6 +63,30 @@ public class ERXRouteResults implements WOActionResults {
 		_responseNode = responseNode;
 		_headers = new NSMutableDictionary<>();
 	}
+
+	/**
+	 * Constructs an ERXRouteResults that streams the given array of objects with the format's
+	 * {@link IERXStreamingRestWriter} instead of rendering a complete ERXRestRequestNode tree.
+	 * 
+	 * @param context
+	 *            the current context
+	 * @param restContext
+	 *            the REST context
+	 * @param format
+	 *            the intended format of this response, which must have a streaming writer
+	 * @param classDescription
+	 *            the entity type of the objects
+	 * @param objects
+	 *            the objects to render
+	 * @param filter
+	 *            the filter to apply to the objects
+	 */
+	public ERXRouteResults(WOContext context, ERXRestContext restContext, ERXRestFormat format, EOClassDescription classDescription, List<?> objects, ERXKeyFilter filter) {
+		this(context, restContext, format, null);
+		_classDescription = classDescription;
+		_objects = objects;
+		_filter = filter;
+	}
 	
 	/**
 	 * Adds a header for the resulting WOResponse.
@@ -75,16 +113,58 @@ public class ERXRouteResults implements WOActionResults {
 	 * @return the ERXRestRequestNode to render
 	 */
 	public ERXRestRequestNode responseNode() {
+		if (_responseNode == null && _objects != null) {
+			_responseNode = ERXRestRequestNode.requestNodeWithObjectAndFilter(_classDescription, _objects, _filter, _restContext);
+		}
 		return _responseNode;
 	}
 
 	/**
-	 * Generates a WOResponse out of this ERXRouteResults.
+	 * Returns whether this response will be streamed rather than rendered from a request node tree.
+	 * 
+	 * @return whether this response will be streamed
+	 */
+	public boolean isStreaming() {
+		return _responseNode == null && _objects != null;
+	}
+
+	/**
+	 * Runs the given action once the streamed content of the generated response has been written and closed, or right
+	 * away if the response isn't streamed or its content has been closed already.
+	 * 
+	 * @param action
+	 *            the action to run
+	 */
+	public void runWhenContentClosed(Runnable action) {
+		StreamedContent contentStream = _contentStream;
+		if (contentStream == null || !contentStream.runWhenClosed(action)) {
+			action.run();
+		}
+	}
+
+	/**
+	 * Generates a WOResponse out of this ERXRouteResults. A streaming response is rendered into the response one
+	 * element at a time, unless ERXRest.chunkedStreamingResponses is set, in which case it gets a content stream
+	 * without a length that renders the objects while the adaptor writes it with chunked transfer encoding.
 	 * 
 	 * @return a generated WOResponse
 	 */
 	@Override
 	public WOResponse generateResponse() {
+		return generateResponse(ERXProperties.booleanForKeyWithDefault("ERXRest.chunkedStreamingResponses", false));
+	}
+
+	/**
+	 * Generates a WOResponse out of this ERXRouteResults with the content rendered into the response, even if
+	 * chunked streaming responses are enabled.
+	 * 
+	 * @return a generated WOResponse
+	 */
+	public WOResponse generateBufferedResponse() {
+		return generateResponse(false);
+	}
+
+	protected WOResponse generateResponse(boolean streamContent) {
 		boolean isStrictMode = ERXProperties.booleanForKeyWithDefault("ERXRest.strictMode", true);
 		
 		WOResponse response = WOApplication.application().createResponseInContext(_context);
@@ -92,7 +172,19 @@ public class ERXRouteResults implements WOActionResults {
 		if (writer == null) {
 			throw new IllegalStateException("There is no writer for the format '" + _format.name() + "'.");
 		}
-		writer.appendToResponse(_responseNode, new ERXWORestResponse(response), _format.delegate(), _restContext);
+		if (isStreaming()) {
+			IERXStreamingRestWriter streamingWriter = (IERXStreamingRestWriter) writer;
+			if (streamContent) {
+				_contentStream = new StreamedContent(streamingWriter.contentStreamForObjects(_classDescription, _objects, _filter, new ERXWORestResponse(response), _format.delegate(), _restContext));
+				response.setContentStream(_contentStream, 8192, 0L);
+			}
+			else {
+				streamingWriter.appendObjectsToResponse(_classDescription, _objects, _filter, new ERXWORestResponse(response), _format.delegate(), _restContext);
+			}
+		}
+		else {
+			writer.appendToResponse(_responseNode, new ERXWORestResponse(response), _format.delegate(), _restContext);
+		}
 		if (_headers.count() > 0) {
 			for (String key : _headers.keySet()) {
 				response.setHeader(_headers.objectForKey(key), key);
@@ -109,4 +201,44 @@ public class ERXRouteResults implements WOActionResults {
 		return response;
 	}
 
+	/**
+	 * The content of a streaming response, which runs the actions that wait for it once it is closed.
+	 */
+	private static class StreamedContent extends FilterInputStream {
+		private final List<Runnable> _closeActions = new ArrayList<>();
+		private boolean _closed;
+
+		public StreamedContent(InputStream in) {
+			super(in);
+		}
+
+		public synchronized boolean runWhenClosed(Runnable action) {
+			if (_closed) {
+				return false;
+			}
+			_closeActions.add(action);
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			List<Runnable> closeActions;
+			synchronized (this) {
+				if (_closed) {
+					return;
+				}
+				_closed = true;
+				closeActions = new ArrayList<>(_closeActions);
+				_closeActions.clear();
+			}
+			try {
+				super.close();
+			}
+			finally {
+				for (Runnable action : closeActions) {
+					action.run();
+				}
+			}
+		}
+	}
 }
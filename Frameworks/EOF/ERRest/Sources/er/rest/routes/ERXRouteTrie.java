@@ -0,0 +1,204 @@
+package er.rest.routes;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ERXRouteTrie is a compiled, immutable dispatch structure over an ordered list of routes. Each route is indexed by
+ * the literal path segments that lead its URL pattern (for instance "/people/{person:Person}/edit" is indexed under
+ * "people"), and a lookup walks the request path through the trie to collect only the routes whose literal prefix
+ * matches. The candidates are returned in their original registration order so that the caller can keep the
+ * first-match semantics of a linear scan, and each candidate still has to be verified with its own regular expression.
+ *
+ * Routes that cannot be indexed (raw regular expressions starting with "^", patterns whose first segment is dynamic,
+ * or patterns with a top-level alternation like "/people|/persons") are stored on the root node and are candidates
+ * for every path.
+ */
+public class ERXRouteTrie {
+	private static final int[] NO_ROUTES = new int[0];
+
+	private final ERXRoute[] _routes;
+	private final Node _root;
+
+	/**
+	 * Compiles a trie for the given routes.
+	 *
+	 * @param routes
+	 *            the routes in match order
+	 */
+	public ERXRouteTrie(List<ERXRoute> routes) {
+		_routes = routes.toArray(new ERXRoute[routes.size()]);
+		_root = new Node();
+		for (int routeNum = 0; routeNum < _routes.length; routeNum++) {
+			Node node = _root;
+			for (String segment : ERXRouteTrie.literalSegments(_routes[routeNum])) {
+				node = node.childForSegment(segment);
+			}
+			node.addRoute(routeNum);
+		}
+	}
+
+	/**
+	 * Returns the routes that could match the given path, in their original order.
+	 *
+	 * @param path
+	 *            the request path (starting with "/" and without its format extension)
+	 * @return the candidate routes
+	 */
+	public ERXRoute[] candidateRoutesForPath(String path) {
+		int[] candidates = _root._routes;
+		int candidateCount = _root._routeCount;
+		boolean merged = false;
+
+		Node node = _root;
+		int length = path.length();
+		int segmentStart = path.startsWith("/") ? 1 : 0;
+		while (node._children != null && segmentStart <= length) {
+			int segmentEnd = path.indexOf('/', segmentStart);
+			if (segmentEnd == -1) {
+				segmentEnd = length;
+			}
+			int dotIndex = path.indexOf('.', segmentStart);
+			int keyEnd = (dotIndex == -1 || dotIndex > segmentEnd) ? segmentEnd : dotIndex;
+			node = node._children.get(path.substring(segmentStart, keyEnd));
+			if (node == null) {
+				break;
+			}
+			if (node._routeCount > 0) {
+				if (!merged) {
+					int[] copy = new int[candidateCount + node._routeCount];
+					System.arraycopy(candidates, 0, copy, 0, candidateCount);
+					candidates = copy;
+					merged = true;
+				}
+				else if (candidates.length < candidateCount + node._routeCount) {
+					candidates = Arrays.copyOf(candidates, candidateCount + node._routeCount);
+				}
+				System.arraycopy(node._routes, 0, candidates, candidateCount, node._routeCount);
+				candidateCount += node._routeCount;
+			}
+			segmentStart = segmentEnd + 1;
+		}
+
+		if (merged) {
+			Arrays.sort(candidates, 0, candidateCount);
+		}
+		ERXRoute[] routes = new ERXRoute[candidateCount];
+		for (int candidateNum = 0; candidateNum < candidateCount; candidateNum++) {
+			routes[candidateNum] = _routes[candidates[candidateNum]];
+		}
+		return routes;
+	}
+
+	/**
+	 * Returns the literal segments that lead the URL pattern of the given route. A segment is only considered literal
+	 * if it can not be interpreted as anything but itself by the route's regular expression and is followed by
+	 * another segment, so the returned prefix is always safe to match against.
+	 *
+	 * @param route
+	 *            the route to inspect
+	 * @return the leading literal segments of the route
+	 */
+	protected static String[] literalSegments(ERXRoute route) {
+		String pattern = route.urlPattern();
+		if (pattern == null || !pattern.startsWith("/") || ERXRouteTrie.hasTopLevelAlternation(pattern)) {
+			return new String[0];
+		}
+		int dynamicIndex = pattern.indexOf('{');
+		String literalPrefix = dynamicIndex == -1 ? pattern : pattern.substring(0, dynamicIndex);
+		String[] segments = literalPrefix.substring(1).split("/", -1);
+		int segmentCount = segments.length;
+		if (dynamicIndex != -1) {
+			// the last segment is either empty or shares its text with a dynamic key
+			segmentCount--;
+		}
+		int literalCount = 0;
+		while (literalCount < segmentCount && ERXRouteTrie.isLiteralSegment(segments[literalCount]) && !ERXRouteTrie.quantifiesSeparator(segments, literalCount + 1)) {
+			literalCount++;
+		}
+		return Arrays.copyOf(segments, literalCount);
+	}
+
+	/**
+	 * Returns whether the pattern has a "|" outside of any group, character class or key, which would let the route
+	 * match paths that don't start with its first segment.
+	 */
+	private static boolean hasTopLevelAlternation(String pattern) {
+		int depth = 0;
+		boolean inCharacterClass = false;
+		for (int i = 0; i < pattern.length(); i++) {
+			char ch = pattern.charAt(i);
+			if (ch == '\\') {
+				i++;
+			}
+			else if (inCharacterClass) {
+				inCharacterClass = ch != ']';
+			}
+			else if (ch == '[') {
+				inCharacterClass = true;
+			}
+			else if (ch == '(' || ch == '{') {
+				depth++;
+			}
+			else if ((ch == ')' || ch == '}') && depth > 0) {
+				depth--;
+			}
+			else if (ch == '|' && depth == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether the segment at the given index starts with a quantifier, which would apply to the "/" in front
+	 * of it and make the preceding segment boundary optional.
+	 */
+	private static boolean quantifiesSeparator(String[] segments, int segmentNum) {
+		return segmentNum < segments.length && segments[segmentNum].length() > 0 && "?*+".indexOf(segments[segmentNum].charAt(0)) != -1;
+	}
+
+	private static boolean isLiteralSegment(String segment) {
+		if (segment.length() == 0) {
+			return false;
+		}
+		for (int i = 0; i < segment.length(); i++) {
+			if ("\\.[]{}()*+?^$|".indexOf(segment.charAt(i)) != -1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "[ERXRouteTrie: routes=" + _routes.length + "]";
+	}
+
+	private static class Node {
+		protected Map<String, Node> _children;
+		protected int[] _routes = NO_ROUTES;
+		protected int _routeCount;
+
+		public Node childForSegment(String segment) {
+			if (_children == null) {
+				_children = new HashMap<>();
+			}
+			Node child = _children.get(segment);
+			if (child == null) {
+				child = new Node();
+				_children.put(segment, child);
+			}
+			return child;
+		}
+
+		public void addRoute(int routeNum) {
+			if (_routeCount == _routes.length) {
+				_routes = Arrays.copyOf(_routes, Math.max(4, _routeCount * 2));
+			}
+			_routes[_routeCount++] = routeNum;
+		}
+	}
+}
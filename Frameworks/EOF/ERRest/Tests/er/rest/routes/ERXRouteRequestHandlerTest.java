@@ -1,6 +1,7 @@
 package er.rest.routes;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -9,6 +10,8 @@ import org.junit.Test;
 import com.webobjects.appserver.WOActionResults;
 import com.webobjects.appserver.WORequest;
 import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
 
 import er.rest.routes.jsr311.DELETE;
 import er.rest.routes.jsr311.GET;
@@ -150,6 +153,59 @@ public class ERXRouteRequestHandlerTest {
 		}
 	}
 	
+	// The trie must return the same first match as a linear scan over every route
+	@Test
+	public void testRouteTrieMatchesLinearScan() {
+		NSMutableArray<ERXRoute> routes = new NSMutableArray<>();
+		routes.add(new ERXRoute("Person", "/people"));
+		routes.add(new ERXRoute("Person", "/people/{action:identifier}"));
+		routes.add(new ERXRoute("Person", "/people/{person:Person}"));
+		routes.add(new ERXRoute("Person", "/people/{person:Person}/{action:identifier}"));
+		routes.add(new ERXRoute("Person", "/people/new"));
+		routes.add(new ERXRoute("Person", "/companies/{company:Company}/people/{person:Person}"));
+		routes.add(new ERXRoute("Thing", "/a/?b"));
+		routes.add(new ERXRoute("Thing", "^/raw/.*"));
+		routes.add(new ERXRoute("Thing", "/files/{path:String:.*}"));
+		routes.add(new ERXRoute("Thing", "/{any}/tail"));
+		routes.add(new ERXRoute("Thing", "/things/all|/everything"));
+		ERXRouteTrie routeTrie = new ERXRouteTrie(routes);
+
+		String[] paths = { "/", "/people", "/people/", "/people/new", "/people/5", "/people/5/edit", "/people/5/edit/more", "/people.json/5", "/companies/1/people/2", "/ab", "/a/b", "/raw/anything", "/files/a/b/c.txt", "/x/tail", "/peoplex", "/things/all", "/everything" };
+		for (String path : paths) {
+			ERXRoute linearRoute = null;
+			for (ERXRoute route : routes) {
+				if (route.routePattern().matcher(path).matches()) {
+					linearRoute = route;
+					break;
+				}
+			}
+			ERXRoute trieRoute = null;
+			for (ERXRoute route : routeTrie.candidateRoutesForPath(path)) {
+				if (route.routePattern().matcher(path).matches()) {
+					trieRoute = route;
+					break;
+				}
+			}
+			assertSame(path, linearRoute, trieRoute);
+		}
+	}
+
+	// Inserted routes take precedence even after the trie has been compiled
+	@Test
+	public void testRouteTrieRebuiltOnInsert() {
+		ERXRouteRequestHandler handler = new ERXRouteRequestHandler();
+		ERXRoute route1 = new ERXRoute("SomeEntity", "/somethings/{action:identifier}", SomeController.class);
+		handler.addRoute(route1);
+		assertSame(route1, handler.routeForMethodAndPath("GET", "/somethings/thing1", new NSMutableDictionary<String, Object>()));
+
+		ERXRoute route2 = new ERXRoute("SomeEntity", "/somethings/thing1", SomeController.class, "some");
+		handler.insertRoute(route2);
+		assertSame(route2, handler.routeForMethodAndPath("GET", "/somethings/thing1", new NSMutableDictionary<String, Object>()));
+
+		handler.removeRoute(route2);
+		assertSame(route1, handler.routeForMethodAndPath("GET", "/somethings/thing1", new NSMutableDictionary<String, Object>()));
+	}
+
 	// A dummy controller for testing with valid declarations
 	private static class SomeController extends ERXRouteController {
 		public SomeController(WORequest request) {
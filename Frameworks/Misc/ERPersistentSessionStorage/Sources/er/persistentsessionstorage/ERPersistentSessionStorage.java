@@ -11,6 +11,7 @@ import com.webobjects.foundation.NSNotificationCenter;
 import com.webobjects.foundation.NSSelector;
 
 import er.extensions.ERXFrameworkPrincipal;
+import er.extensions.foundation.ERXProperties;
 
 public class ERPersistentSessionStorage extends ERXFrameworkPrincipal {
 
@@ -40,7 +41,7 @@ public class ERPersistentSessionStorage extends ERXFrameworkPrincipal {
 	@Override
 	public void finishInitialization() {
 		log.info("Initializing persistent session store.");
-		WOSessionStore store = new ERPersistentSessionStore();
+		WOSessionStore store = ERXProperties.booleanForKeyWithDefault("er.persistentsessionstorage.writeBehind", false) ? new ERWriteBehindSessionStore() : new ERPersistentSessionStore();
 		
 		//Create the persistent session store
 		WOApplication.application().setSessionStore(store);
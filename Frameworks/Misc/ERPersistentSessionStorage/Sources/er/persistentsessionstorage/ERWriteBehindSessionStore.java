@@ -0,0 +1,513 @@
+package er.persistentsessionstorage;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.webobjects.appserver.WOContext;
+import com.webobjects.appserver.WORequest;
+import com.webobjects.appserver.WOSession;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSData;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSSelector;
+import com.webobjects.foundation.NSTimestamp;
+
+import er.extensions.appserver.ERXApplication;
+import er.extensions.eof.ERXEC;
+import er.extensions.eof.ERXEOAccessUtilities;
+import er.extensions.eof.ERXFetchSpecification;
+import er.extensions.eof.qualifiers.ERXInQualifier;
+import er.extensions.foundation.ERXProperties;
+import er.persistentsessionstorage.model.ERSessionInfo;
+
+/**
+ * <p>
+ * A persistent session store that avoids a database round trip on every
+ * request. Recently used sessions are kept in a local near-cache, so restoring
+ * a session that was saved by this instance doesn't fetch and deserialize it.
+ * When a session is saved, it is still archived on the request thread, but the
+ * write is skipped if the archive didn't change and the stored expiration date
+ * is still far enough away. All other writes are queued and coalesced per
+ * session, and a background thread saves them in batches at most
+ * <code>flushDelay</code> milliseconds later. A write that fails is retried
+ * once with the next flush. The archives are gzipped, and expired rows are
+ * deleted by a background sweep in batches.
+ * </p>
+ * <p>
+ * The near-cache assumes that requests of a session usually reach the same
+ * instance. Entries are trusted for <code>nearCacheTimeout</code> milliseconds
+ * only, after that the session is fetched again in case another instance
+ * changed it.
+ * </p>
+ *
+ * @property er.persistentsessionstorage.writeBehind if true, ERPersistentSessionStorage installs this store instead of ERPersistentSessionStore. Defaults to false.
+ * @property er.persistentsessionstorage.ERWriteBehindSessionStore.flushDelay the maximum delay in milliseconds before a session is written. Defaults to 1000.
+ * @property er.persistentsessionstorage.ERWriteBehindSessionStore.maxPendingWrites the number of queued writes that triggers an immediate flush. Defaults to 1000.
+ * @property er.persistentsessionstorage.ERWriteBehindSessionStore.nearCacheSize the maximum number of sessions in the near-cache. Defaults to 1000.
+ * @property er.persistentsessionstorage.ERWriteBehindSessionStore.nearCacheTimeout the milliseconds a near-cache entry is trusted. Defaults to 60000.
+ * @property er.persistentsessionstorage.ERWriteBehindSessionStore.compress if true, archived sessions are gzipped. Defaults to true.
+ * @property er.persistentsessionstorage.ERWriteBehindSessionStore.sweepInterval the seconds between sweeps of expired sessions, 0 disables the sweep. Defaults to 300.
+ * @property er.persistentsessionstorage.ERWriteBehindSessionStore.batchSize the number of rows per flush and sweep batch. Defaults to 500.
+ */
+public class ERWriteBehindSessionStore extends ERPersistentSessionStore {
+	private static final Logger log = LoggerFactory.getLogger(ERWriteBehindSessionStore.class);
+
+	private static final String PREFIX = "er.persistentsessionstorage.ERWriteBehindSessionStore.";
+
+	private final long flushDelay = ERXProperties.longForKeyWithDefault(PREFIX + "flushDelay", 1000L);
+	private final int maxPendingWrites = ERXProperties.intForKeyWithDefault(PREFIX + "maxPendingWrites", 1000);
+	private final int nearCacheSize = ERXProperties.intForKeyWithDefault(PREFIX + "nearCacheSize", 1000);
+	private final long nearCacheTimeout = ERXProperties.longForKeyWithDefault(PREFIX + "nearCacheTimeout", 60000L);
+	private final boolean compress = ERXProperties.booleanForKeyWithDefault(PREFIX + "compress", true);
+	private final long sweepInterval = ERXProperties.longForKeyWithDefault(PREFIX + "sweepInterval", 300L);
+	private final int batchSize = Math.max(1, ERXProperties.intForKeyWithDefault(PREFIX + "batchSize", 500));
+
+	/** The recently used sessions by session ID, in access order, guarded by itself. */
+	private final Map<String, CachedSession> nearCache = new LinkedHashMap<String, CachedSession>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedSession> eldest) {
+			return size() > nearCacheSize;
+		}
+	};
+	/** The writes that are not flushed yet, by session ID. */
+	private final Map<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+	/** The writes of the batch that is being flushed, by session ID. */
+	private final Map<String, PendingWrite> flushingWrites = new ConcurrentHashMap<>();
+	/** The IDs of the sessions removed while a write of them may be in flight. */
+	private final Set<String> removedSessionIDs = ConcurrentHashMap.newKeySet();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final ScheduledExecutorService executor;
+
+	private final LongAdder nearCacheHits = new LongAdder();
+	private final LongAdder nearCacheMisses = new LongAdder();
+	private final LongAdder skippedWrites = new LongAdder();
+	private final LongAdder coalescedWrites = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+	private final LongAdder failedWrites = new LongAdder();
+	private final LongAdder flushes = new LongAdder();
+	private final LongAdder sweptSessions = new LongAdder();
+
+	public ERWriteBehindSessionStore() {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "ERWriteBehindSessionStore");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.executor = executor;
+		executor.scheduleWithFixedDelay(this::flushPendingWritesSafely, flushDelay, flushDelay, TimeUnit.MILLISECONDS);
+		if (sweepInterval > 0) {
+			executor.scheduleWithFixedDelay(this::sweepExpiredSessionsSafely, sweepInterval, sweepInterval, TimeUnit.SECONDS);
+		}
+		NSNotificationCenter.defaultCenter().addObserver(this, new NSSelector<Void>("applicationWillTerminate", new Class[] { NSNotification.class }), ERXApplication.ApplicationWillTerminateNotification, null);
+	}
+
+	@Override
+	public WOSession restoreSessionWithID(String sessionID, WORequest request) {
+		long now = System.currentTimeMillis();
+		CachedSession cachedSession;
+		synchronized (nearCache) {
+			cachedSession = nearCache.get(sessionID);
+		}
+		if (cachedSession != null) {
+			if (cachedSession.expirationTime < now) {
+				removeFromNearCache(sessionID);
+				return null;
+			}
+			if (now - cachedSession.cacheTime <= nearCacheTimeout) {
+				nearCacheHits.increment();
+				return cachedSession.session;
+			}
+		}
+		nearCacheMisses.increment();
+
+		// a write that is still queued is newer than the row
+		PendingWrite pendingWrite = pendingWrites.get(sessionID);
+		if (pendingWrite == null || pendingWrite.data == null) {
+			pendingWrite = removedSessionIDs.contains(sessionID) ? null : flushingWrites.get(sessionID);
+		}
+		if (pendingWrite != null && pendingWrite.data != null) {
+			return pendingWrite.expirationTime < now ? null : cacheSession(sessionID, pendingWrite.data, pendingWrite.expirationTime, now);
+		}
+
+		EOEditingContext ec = ERXEC.newEditingContext();
+		ec.lock();
+		try {
+			ERSessionInfo info = ERSessionInfo.clazz.objectMatchingKeyAndValue(ec, ERSessionInfo.SESSION_ID_KEY, sessionID);
+			if (info == null || info.expirationDate().getTime() < now) {
+				removeFromNearCache(sessionID);
+				return null;
+			}
+			return cacheSession(sessionID, info.sessionData().bytes(), info.expirationDate().getTime(), now);
+		} finally {
+			ec.unlock();
+			ec.dispose();
+		}
+	}
+
+	private WOSession cacheSession(String sessionID, byte[] data, long expirationTime, long now) {
+		byte[] bytes;
+		try {
+			bytes = ERSessionInfo.uncompressedBytes(data);
+		} catch (Exception e) {
+			log.warn("Failed to inflate session {}.", sessionID, e);
+			return null;
+		}
+		WOSession session = ERSessionInfo.sessionFromArchivedBytes(bytes);
+		if (session != null) {
+			CachedSession cachedSession = new CachedSession(session, digest(bytes), expirationTime, now);
+			synchronized (nearCache) {
+				nearCache.put(sessionID, cachedSession);
+			}
+		}
+		return session;
+	}
+
+	@Override
+	public void saveSessionForContext(WOContext context) {
+		WOSession session = context.session();
+		String sessionID = session.sessionID();
+		long now = System.currentTimeMillis();
+		long expirationTime = now + session.timeOutMillis();
+		byte[] bytes;
+		try {
+			/*
+			 * The session has to be archived here, on the request thread,
+			 * before the next request of the session can change it.
+			 */
+			bytes = ERSessionInfo.archivedBytesForSession(session);
+		} catch (Exception e) {
+			log.error("Error archiving session! Deleting session.");
+			ERXApplication app = ERXApplication.erxApplication();
+			NSMutableDictionary extraInfo = app.extraInformationForExceptionInContext(e, context);
+			app.reportException(e, context, extraInfo);
+			removeSessionWithID(sessionID);
+			return;
+		}
+
+		byte[] digest = digest(bytes);
+		CachedSession cachedSession;
+		synchronized (nearCache) {
+			cachedSession = nearCache.get(sessionID);
+		}
+		boolean changed = cachedSession == null || !Arrays.equals(cachedSession.digest, digest);
+		// refresh the stored expiration date before half of the timeout has passed, so the sweep can't delete an active session
+		boolean expiring = cachedSession == null || cachedSession.storedExpirationTime - now < session.timeOutMillis() / 2;
+		long storedExpirationTime = changed || expiring ? expirationTime : cachedSession.storedExpirationTime;
+		CachedSession updatedSession = new CachedSession(session, digest, expirationTime, now);
+		updatedSession.storedExpirationTime = storedExpirationTime;
+		synchronized (nearCache) {
+			nearCache.put(sessionID, updatedSession);
+		}
+
+		if (!changed && !expiring) {
+			skippedWrites.increment();
+			return;
+		}
+		byte[] data = changed ? (compress ? ERSessionInfo.compressedBytes(bytes) : bytes) : null;
+		PendingWrite write = new PendingWrite(data, expirationTime);
+		pendingWrites.compute(sessionID, (id, previousWrite) -> {
+			if (previousWrite == null) {
+				return write;
+			}
+			coalescedWrites.increment();
+			// an expiration-only write must not lose the data of the write it replaces
+			return write.data == null && previousWrite.data != null ? new PendingWrite(previousWrite.data, write.expirationTime) : write;
+		});
+		if (pendingWrites.size() >= maxPendingWrites && flushScheduled.compareAndSet(false, true)) {
+			executor.execute(this::flushPendingWritesSafely);
+		}
+	}
+
+	@Override
+	public WOSession removeSessionWithID(String sessionID) {
+		CachedSession cachedSession = removeFromNearCache(sessionID);
+		// mark the session first, so a batch that is being flushed doesn't insert it again
+		removedSessionIDs.add(sessionID);
+		pendingWrites.remove(sessionID);
+		WOSession session = super.removeSessionWithID(sessionID);
+		if (!flushingWrites.containsKey(sessionID)) {
+			removedSessionIDs.remove(sessionID);
+		}
+		return session != null || cachedSession == null ? session : cachedSession.session;
+	}
+
+	private CachedSession removeFromNearCache(String sessionID) {
+		synchronized (nearCache) {
+			return nearCache.remove(sessionID);
+		}
+	}
+
+	private void flushPendingWritesSafely() {
+		flushScheduled.set(false);
+		try {
+			flushPendingWrites();
+		} catch (Throwable t) {
+			log.error("Failed to flush sessions.", t);
+		}
+	}
+
+	/**
+	 * Saves the queued session writes in batches of <code>batchSize</code>.
+	 * Writes that fail are queued again for the next flush, unless they have
+	 * been retried already.
+	 */
+	public void flushPendingWrites() {
+		NSMutableDictionary<String, PendingWrite> retries = new NSMutableDictionary<>();
+		while (!pendingWrites.isEmpty()) {
+			NSMutableDictionary<String, PendingWrite> batch = new NSMutableDictionary<>();
+			for (Iterator<Map.Entry<String, PendingWrite>> iterator = pendingWrites.entrySet().iterator(); iterator.hasNext() && batch.count() < batchSize;) {
+				Map.Entry<String, PendingWrite> entry = iterator.next();
+				String sessionID = entry.getKey();
+				PendingWrite write = entry.getValue();
+				// publish the write as in flight before taking it, so removeSessionWithID can't miss it
+				flushingWrites.put(sessionID, write);
+				if (pendingWrites.remove(sessionID, write)) {
+					batch.setObjectForKey(write, sessionID);
+				} else {
+					flushingWrites.remove(sessionID, write);
+				}
+			}
+			if (batch.count() == 0) {
+				break;
+			}
+			flushes.increment();
+			try {
+				writeSessions(batch);
+			} catch (RuntimeException e) {
+				log.warn("Failed to write {} sessions in one batch, writing them one by one.", batch.count(), e);
+				for (String sessionID : batch.allKeys()) {
+					PendingWrite write = batch.objectForKey(sessionID);
+					try {
+						writeSessions(new NSDictionary<>(write, sessionID));
+					} catch (RuntimeException ex) {
+						if (write.retried || removedSessionIDs.contains(sessionID)) {
+							failedWrites.increment();
+							log.error("Failed to write session {}, dropping the write.", sessionID, ex);
+						} else {
+							log.warn("Failed to write session {}, retrying with the next flush.", sessionID, ex);
+							retries.setObjectForKey(new PendingWrite(write.data, write.expirationTime, true), sessionID);
+						}
+					}
+				}
+			} finally {
+				NSMutableArray<String> removedIDs = new NSMutableArray<>();
+				for (String sessionID : batch.allKeys()) {
+					if (removedSessionIDs.contains(sessionID)) {
+						removedIDs.addObject(sessionID);
+					}
+				}
+				if (removedIDs.count() > 0) {
+					// the session may have been removed after its row was written
+					try {
+						deleteSessionRows(removedIDs);
+					} catch (RuntimeException e) {
+						log.error("Failed to delete the removed sessions {}.", removedIDs, e);
+					}
+				}
+				for (String sessionID : batch.allKeys()) {
+					flushingWrites.remove(sessionID, batch.objectForKey(sessionID));
+					removedSessionIDs.remove(sessionID);
+				}
+			}
+		}
+		for (String sessionID : retries.allKeys()) {
+			PendingWrite retry = retries.objectForKey(sessionID);
+			// a newer write replaces the retry, but an expiration-only write must not lose its data
+			pendingWrites.merge(sessionID, retry, (newerWrite, failedWrite) -> newerWrite.data == null && failedWrite.data != null ? new PendingWrite(failedWrite.data, newerWrite.expirationTime) : newerWrite);
+		}
+	}
+
+	private void deleteSessionRows(NSArray<String> sessionIDs) {
+		EOEditingContext ec = ERXEC.newEditingContext();
+		ec.lock();
+		try {
+			ERXEOAccessUtilities.deleteRowsDescribedByQualifier(ec, ERSessionInfo.ENTITY_NAME, new ERXInQualifier(ERSessionInfo.SESSION_ID_KEY, sessionIDs));
+		} finally {
+			ec.unlock();
+			ec.dispose();
+		}
+	}
+
+	/**
+	 * Writes the given sessions in one transaction.
+	 *
+	 * @param batch the writes by session ID
+	 */
+	protected void writeSessions(NSDictionary<String, PendingWrite> batch) {
+		EOEditingContext ec = ERXEC.newEditingContext();
+		ec.lock();
+		try {
+			NSArray<ERSessionInfo> infos = ERSessionInfo.clazz.objectsMatchingQualifier(ec, new ERXInQualifier(ERSessionInfo.SESSION_ID_KEY, batch.allKeys()));
+			NSMutableDictionary<String, ERSessionInfo> infosByID = new NSMutableDictionary<>();
+			for (ERSessionInfo info : infos) {
+				infosByID.setObjectForKey(info, info.sessionID());
+			}
+			int count = 0;
+			for (String sessionID : batch.allKeys()) {
+				if (removedSessionIDs.contains(sessionID)) {
+					// terminated while the batch was being flushed
+					continue;
+				}
+				PendingWrite write = batch.objectForKey(sessionID);
+				ERSessionInfo info = infosByID.objectForKey(sessionID);
+				if (info == null) {
+					if (write.data == null) {
+						// the row has been removed in the meantime, there is nothing to extend
+						continue;
+					}
+					info = ERSessionInfo.clazz.createAndInsertObject(ec);
+					info.setSessionID(sessionID);
+				}
+				info.setExpirationDate(new NSTimestamp(write.expirationTime));
+				if (write.data != null) {
+					info.setSessionData(new NSData(write.data));
+				}
+				count++;
+			}
+			ec.saveChanges();
+			writes.add(count);
+		} finally {
+			ec.unlock();
+			ec.dispose();
+		}
+	}
+
+	private void sweepExpiredSessionsSafely() {
+		try {
+			sweepExpiredSessions();
+		} catch (Throwable t) {
+			log.error("Failed to sweep expired sessions.", t);
+		}
+	}
+
+	/**
+	 * Deletes the expired session rows in batches of <code>batchSize</code>.
+	 *
+	 * @return the number of deleted rows
+	 */
+	public int sweepExpiredSessions() {
+		int deleted = 0;
+		EOEditingContext ec = ERXEC.newEditingContext();
+		ec.lock();
+		try {
+			ERXFetchSpecification<ERSessionInfo> fetchSpec = new ERXFetchSpecification<>(ERSessionInfo.ENTITY_NAME, ERSessionInfo.EXPIRATION_DATE.before(new NSTimestamp()), null);
+			fetchSpec.setRawRowKeyPaths(ERSessionInfo.SESSION_ID_KEY);
+			fetchSpec.setFetchLimit(batchSize);
+			NSArray<NSDictionary<String, Object>> rows;
+			do {
+				rows = fetchSpec.fetchRawRows(ec);
+				if (rows.count() > 0) {
+					NSArray<Object> sessionIDs = (NSArray<Object>) rows.valueForKey(ERSessionInfo.SESSION_ID_KEY);
+					// the expiration date is checked again in case a session has been extended since the fetch
+					deleted += ERXEOAccessUtilities.deleteRowsDescribedByQualifier(ec, ERSessionInfo.ENTITY_NAME, ERSessionInfo.EXPIRATION_DATE.before(new NSTimestamp()).and(new ERXInQualifier(ERSessionInfo.SESSION_ID_KEY, sessionIDs)));
+				}
+			} while (rows.count() == batchSize);
+		} finally {
+			ec.unlock();
+			ec.dispose();
+		}
+		sweptSessions.add(deleted);
+		if (deleted > 0) {
+			log.debug("Deleted {} expired sessions.", deleted);
+		}
+		return deleted;
+	}
+
+	/**
+	 * Writes the queued sessions before the application terminates.
+	 *
+	 * @param notification the ApplicationWillTerminateNotification
+	 */
+	public void applicationWillTerminate(NSNotification notification) {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flushPendingWrites();
+	}
+
+	/**
+	 * @return the counters of the near-cache, the writes and the sweeps
+	 */
+	public NSDictionary<String, Object> statistics() {
+		NSMutableDictionary<String, Object> statistics = new NSMutableDictionary<>();
+		synchronized (nearCache) {
+			statistics.setObjectForKey(Integer.valueOf(nearCache.size()), "nearCacheSize");
+		}
+		statistics.setObjectForKey(Long.valueOf(nearCacheHits.sum()), "nearCacheHits");
+		statistics.setObjectForKey(Long.valueOf(nearCacheMisses.sum()), "nearCacheMisses");
+		statistics.setObjectForKey(Integer.valueOf(pendingWrites.size()), "pendingWrites");
+		statistics.setObjectForKey(Long.valueOf(skippedWrites.sum()), "skippedWrites");
+		statistics.setObjectForKey(Long.valueOf(coalescedWrites.sum()), "coalescedWrites");
+		statistics.setObjectForKey(Long.valueOf(writes.sum()), "writes");
+		statistics.setObjectForKey(Long.valueOf(failedWrites.sum()), "failedWrites");
+		statistics.setObjectForKey(Long.valueOf(flushes.sum()), "flushes");
+		statistics.setObjectForKey(Long.valueOf(sweptSessions.sum()), "sweptSessions");
+		return statistics;
+	}
+
+	private static byte[] digest(byte[] bytes) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available.", e);
+		}
+	}
+
+	private static class CachedSession {
+		final WOSession session;
+		final byte[] digest;
+		final long expirationTime;
+		final long cacheTime;
+		long storedExpirationTime;
+
+		CachedSession(WOSession session, byte[] digest, long expirationTime, long cacheTime) {
+			this.session = session;
+			this.digest = digest;
+			this.expirationTime = expirationTime;
+			this.cacheTime = cacheTime;
+			this.storedExpirationTime = expirationTime;
+		}
+	}
+
+	/**
+	 * A queued write, the data is null if only the expiration date changed.
+	 */
+	protected static class PendingWrite {
+		final byte[] data;
+		final long expirationTime;
+		final boolean retried;
+
+		PendingWrite(byte[] data, long expirationTime) {
+			this(data, expirationTime, false);
+		}
+
+		PendingWrite(byte[] data, long expirationTime, boolean retried) {
+			this.data = data;
+			this.expirationTime = expirationTime;
+			this.retried = retried;
+		}
+	}
+}
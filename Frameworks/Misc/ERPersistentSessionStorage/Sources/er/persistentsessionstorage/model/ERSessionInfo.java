@@ -5,6 +5,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,16 +55,27 @@ public class ERSessionInfo extends er.persistentsessionstorage.model.eogen._ERSe
 	}
 
 	public void archiveDataFromSession(WOSession session) {
+		setSessionData(new NSData(archivedBytesForSession(session)));
+	}
+
+	public WOSession sessionFromArchivedData(NSData data) {
+		return sessionFromArchivedBytes(data.bytes());
+	}
+
+	/**
+	 * Serializes the session.
+	 * 
+	 * @param session the session to archive
+	 * @return the serialized session
+	 */
+	public static byte[] archivedBytesForSession(WOSession session) {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		ObjectOutputStream oos = null;
-		NSData data = null;
 
 		try {
 			oos = new ObjectOutputStream(baos);
 			oos.writeObject(session);
 			oos.flush();
-			byte[] bytes = baos.toByteArray();
-			data = new NSData(bytes);
 		} catch (IOException e) {
 			throw NSForwardException._runtimeExceptionForThrowable(e);
 		} finally {
@@ -74,16 +87,21 @@ public class ERSessionInfo extends er.persistentsessionstorage.model.eogen._ERSe
 				}
 			}
 		}
-
-		setSessionData(data);
+		return baos.toByteArray();
 	}
 
-	public WOSession sessionFromArchivedData(NSData data) {
+	/**
+	 * Deserializes a session archived by {@link #archivedBytesForSession(WOSession)}.
+	 * Compressed archives are recognized by their gzip header and are inflated first.
+	 * 
+	 * @param bytes the archived session
+	 * @return the session or null if it could not be deserialized
+	 */
+	public static WOSession sessionFromArchivedBytes(byte[] bytes) {
 		Object object = null;
-		byte[] bytes = data.bytes();
 		ObjectInputStream ois = null;
 		try {
-			ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			ois = new ObjectInputStream(new ByteArrayInputStream(uncompressedBytes(bytes)));
 			object = ois.readObject();
 		} catch (IOException e) {
 			log.warn("Failed to deserialize session", e);
@@ -102,4 +120,38 @@ public class ERSessionInfo extends er.persistentsessionstorage.model.eogen._ERSe
 		}
 		return (WOSession) object;
 	}
+
+	/**
+	 * @param bytes the bytes to compress
+	 * @return the gzipped bytes
+	 */
+	public static byte[] compressedBytes(byte[] bytes) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 4 + 64);
+		try (GZIPOutputStream gzos = new GZIPOutputStream(baos)) {
+			gzos.write(bytes);
+		} catch (IOException e) {
+			throw NSForwardException._runtimeExceptionForThrowable(e);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @param bytes possibly gzipped bytes
+	 * @return the inflated bytes if they are gzipped, the bytes otherwise
+	 * @throws IOException if the bytes can't be inflated
+	 */
+	public static byte[] uncompressedBytes(byte[] bytes) throws IOException {
+		// serialized objects start with 0xACED, so the gzip magic can't be mistaken for one
+		if (bytes.length < 2 || (bytes[0] & 0xff) != (GZIPInputStream.GZIP_MAGIC & 0xff) || (bytes[1] & 0xff) != (GZIPInputStream.GZIP_MAGIC >> 8)) {
+			return bytes;
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length * 4);
+		try (GZIPInputStream gzis = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+			byte[] buffer = new byte[8192];
+			for (int read; (read = gzis.read(buffer)) != -1;) {
+				baos.write(buffer, 0, read);
+			}
+		}
+		return baos.toByteArray();
+	}
 }
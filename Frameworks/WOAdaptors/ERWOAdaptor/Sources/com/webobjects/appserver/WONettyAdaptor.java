@@ -3,13 +3,31 @@ package com.webobjects.appserver;
 import static org.jboss.netty.channel.Channels.pipeline;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.isKeepAlive;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelFuture;
@@ -18,17 +36,26 @@ import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.DefaultFileRegion;
 import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.FileRegion;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
-import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders.Names;
 import org.jboss.netty.handler.codec.http.HttpHeaders.Values;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import org.jboss.netty.handler.stream.ChunkedStream;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
 import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.PongWebSocketFrame;
@@ -43,7 +70,9 @@ import com.webobjects.foundation.NSDelayedCallbackCenter;
 import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSNotificationCenter;
 
+import er.extensions.statistics.ERXStats;
 import er.woadaptor.ERWOAdaptorUtilities;
+import er.woadaptor.ERWOSpoolingChunkAggregator;
 import er.woadaptor.websockets.WebSocket;
 import er.woadaptor.websockets.WebSocketFactory;
 import er.woadaptor.websockets.WebSocketStore;
@@ -68,6 +97,24 @@ import er.woadaptor.websockets.WebSocketStore;
  *  AND (maybe) 
  *   
  *   -WOAllowRapidTurnaround false
+ *
+ * Requests are not dispatched on the Netty I/O threads but on a separate dispatch
+ * executor with a bounded admission queue. When the executor is saturated the
+ * adaptor answers with a 503 and a Retry-After header right away instead of
+ * queueing an unbounded number of requests. The time a request waited for a
+ * dispatch thread, the time spent in the application and the time it took to
+ * write the response are recorded in {@link ERXStats} under the
+ * {@link ERXStats.Group#Adaptor} group as <code>queueWait</code>,
+ * <code>dispatch</code> and <code>write</code>.
+ * 
+ * @property WONettyAdaptor.dispatchThreads	the number of dispatch threads, defaults to
+ * 											WOWorkerThreadCountMax or 256. 0 dispatches on the I/O threads.
+ * @property WONettyAdaptor.dispatchQueueSize	the number of requests that may wait for a dispatch
+ * 											thread before requests are rejected, defaults to WOListenQueueSize or 128
+ * @property WONettyAdaptor.virtualThreads	if true and the JVM supports it, each request is dispatched
+ * 											on its own virtual thread, admission is still bounded by
+ * 											dispatchThreads + dispatchQueueSize. Defaults to false.
+ * @property WONettyAdaptor.retryAfter		the Retry-After seconds of the 503 response, defaults to 1
  * 
  * @author ravim
  * @author ramsey (WebSocket support)
@@ -82,6 +129,7 @@ public class WONettyAdaptor extends WOAdaptor {
     
     private ChannelFactory channelFactory;
     private Channel channel;
+    private ExecutorService dispatchService;
     
     private String hostname() {
     	if (_hostname == null) {
@@ -117,7 +165,7 @@ public class WONettyAdaptor extends WOAdaptor {
 		ServerBootstrap bootstrap = new ServerBootstrap(channelFactory);
 
 		// Set up the event pipeline factory.
-		bootstrap.setPipelineFactory(new PipelineFactory());
+		bootstrap.setPipelineFactory(new PipelineFactory(dispatchExecutor()));
 
 		// Bind and start to accept incoming connections.
 		channel = bootstrap.bind(new InetSocketAddress(hostname(), _port));
@@ -131,8 +179,99 @@ public class WONettyAdaptor extends WOAdaptor {
 	public void unregisterForEvents() {
 		ChannelFuture future = channel.close();
 		future.awaitUninterruptibly();
+		if (dispatchService != null) {
+			// give the requests in progress a chance to write their responses
+			dispatchService.shutdown();
+			try {
+				dispatchService.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			dispatchService = null;
+		}
 		channelFactory.releaseExternalResources();
 	}
+
+	/**
+	 * Creates the executor the requests are dispatched on.
+	 * 
+	 * @return the dispatch executor or null to dispatch on the I/O threads
+	 */
+	protected Executor dispatchExecutor() {
+		int threads = Integer.getInteger("WONettyAdaptor.dispatchThreads", Integer.getInteger("WOWorkerThreadCountMax", 256));
+		int queueSize = Math.max(0, Integer.getInteger("WONettyAdaptor.dispatchQueueSize", Integer.getInteger("WOListenQueueSize", 128)));
+		if (threads <= 0) {
+			return null;
+		}
+		if (Boolean.getBoolean("WONettyAdaptor.virtualThreads")) {
+			dispatchService = virtualThreadExecutor();
+			if (dispatchService != null) {
+				log.info("Dispatching requests on virtual threads with at most {} requests admitted.", threads + queueSize);
+				return new AdmissionExecutor(dispatchService, threads + queueSize);
+			}
+			log.warn("Virtual threads are not supported by this JVM, dispatching requests on {} threads.", threads);
+		}
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				queueSize > 0 ? new ArrayBlockingQueue<Runnable>(queueSize) : new SynchronousQueue<Runnable>(),
+				new DispatchThreadFactory());
+		executor.allowCoreThreadTimeOut(true);
+		dispatchService = executor;
+		return executor;
+	}
+
+	private static ExecutorService virtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Creates named daemon threads for the dispatch thread pool.
+	 */
+	private static class DispatchThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "WONettyAdaptor-dispatch-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Bounds the number of tasks admitted to an executor that does not queue
+	 * by itself, like a virtual thread per task executor.
+	 */
+	protected static class AdmissionExecutor implements Executor {
+		private final Executor executor;
+		private final Semaphore permits;
+
+		public AdmissionExecutor(Executor executor, int maxTasks) {
+			this.executor = executor;
+			this.permits = new Semaphore(maxTasks);
+		}
+
+		public void execute(final Runnable task) {
+			if (!permits.tryAcquire()) {
+				throw new RejectedExecutionException("More than the permitted number of tasks are in progress.");
+			}
+			try {
+				executor.execute(() -> {
+					try {
+						task.run();
+					} finally {
+						permits.release();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				permits.release();
+				throw e;
+			}
+		}
+	}
 		
 	@Override
 	public int port() {
@@ -159,21 +298,39 @@ public class WONettyAdaptor extends WOAdaptor {
 	  * 									@see <a href="http://docs.jboss.org/netty/3.2/xref/org/jboss/netty/handler/codec/http/HttpMessageDecoder.html">HttpMessageDecoder</a>
 	  * 
 	  * @property WOFileUpload.sizeLimit	Max file upload size permitted
+	  * 
+	  * @property WONettyAdaptor.spoolThreshold	Request content above this size in bytes is spooled to a
+	  * 									temporary file instead of being kept in memory. Defaults to 1 MB
 	  */
 	protected static class PipelineFactory implements ChannelPipelineFactory {
 		
 		// TODO ravi: CHECKME Netty default is 8192; WO default is 8196(!?)
 		public final Integer maxChunkSize = Integer.getInteger("WOMaxIOBufferSize", 8196);
 		public final Integer maxFileSize = Integer.getInteger("WOFileUpload.sizeLimit", 1024*1024*100);
+		public final Integer spoolThreshold = Integer.getInteger("WONettyAdaptor.spoolThreshold", 1024*1024);
+		
+		private final Executor dispatchExecutor;
+		
+		public PipelineFactory() {
+			this(null);
+		}
+		
+		/**
+		 * @param dispatchExecutor the executor to dispatch the requests on or null to dispatch on the I/O threads
+		 */
+		public PipelineFactory(Executor dispatchExecutor) {
+			this.dispatchExecutor = dispatchExecutor;
+		}
 		
 		public ChannelPipeline getPipeline() throws Exception {
 			// Create a default pipeline implementation.
 			ChannelPipeline pipeline = pipeline();
 
 			pipeline.addLast("decoder", new HttpRequestDecoder(4096, 8192, maxChunkSize));
-			pipeline.addLast("aggregator", new HttpChunkAggregator(maxFileSize));
+			pipeline.addLast("aggregator", new ERWOSpoolingChunkAggregator(maxFileSize, spoolThreshold));
 			pipeline.addLast("encoder", new HttpResponseEncoder());
-			pipeline.addLast("handler", new RequestHandler());
+			pipeline.addLast("streamer", new ChunkedWriteHandler());
+			pipeline.addLast("handler", new RequestHandler(dispatchExecutor));
 			return pipeline;
 		}
 	}
@@ -191,8 +348,33 @@ public class WONettyAdaptor extends WOAdaptor {
 	 */
 	protected static class RequestHandler extends SimpleChannelUpstreamHandler {
 		private static final Logger log = LoggerFactory.getLogger(RequestHandler.class);
+		private static final LongAdder rejectedRequests = new LongAdder();
 		
 		private WebSocketServerHandshaker handshaker;
+		private final Executor dispatchExecutor;
+		private static final int retryAfter = Integer.getInteger("WONettyAdaptor.retryAfter", 1);
+		// pipelined requests of this channel wait here so the responses are written in order
+		private final Queue<HttpRequest> pendingRequests = new ArrayDeque<HttpRequest>();
+		private boolean dispatching;
+		private boolean suspended;
+
+		public RequestHandler() {
+			this(null);
+		}
+
+		/**
+		 * @param dispatchExecutor the executor to dispatch the requests on or null to dispatch on the I/O threads
+		 */
+		public RequestHandler(Executor dispatchExecutor) {
+			this.dispatchExecutor = dispatchExecutor;
+		}
+
+		/**
+		 * @return the number of requests that were answered with a 503 because the dispatch executor was saturated
+		 */
+		public static long rejectedRequestCount() {
+			return rejectedRequests.sum();
+		}
 
 		@Override
 		public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
@@ -232,29 +414,182 @@ public class WONettyAdaptor extends WOAdaptor {
 					) {
 				
 				handleUpgradeRequest(ctx, _request);
+			} else if (dispatchExecutor == null) {
+				dispatchRequest(e.getChannel(), _request);
 			} else {
-				
+				synchronized (pendingRequests) {
+					if (dispatching) {
+						pendingRequests.add(_request);
+						if (!suspended) {
+							suspended = true;
+							e.getChannel().setReadable(false);
+						}
+						return;
+					}
+					dispatching = true;
+				}
+				submitRequest(e.getChannel(), _request);
+			}
+		}
+		
+		/**
+		 * Hands the request to the dispatch executor or answers it with a 503 if
+		 * the executor is saturated.
+		 */
+		protected void submitRequest(final Channel channel, final HttpRequest request) {
+			final long submitTime = System.nanoTime();
+			try {
+				dispatchExecutor.execute(() -> {
+					ERXStats.addDurationForKey(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submitTime), ERXStats.Group.Adaptor, "queueWait");
+					try {
+						dispatchRequest(channel, request);
+					} catch (Throwable t) {
+						log.warn("Failed to dispatch request " + request.getUri() + ".", t);
+						channel.close();
+					} finally {
+						submitNextRequest(channel);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				disposeRequest(request);
+				rejectRequest(channel);
+			}
+		}
+		
+		private void submitNextRequest(Channel channel) {
+			HttpRequest request;
+			boolean resume = false;
+			synchronized (pendingRequests) {
+				request = pendingRequests.poll();
+				if (request == null) {
+					dispatching = false;
+					resume = suspended;
+					suspended = false;
+				}
+			}
+			if (request != null) {
+				submitRequest(channel, request);
+			} else if (resume && channel.isOpen()) {
+				channel.setReadable(true);
+			}
+		}
+		
+		/**
+		 * Answers with a 503 and a Retry-After header and closes the connection,
+		 * dropping any requests that were pipelined behind the rejected one.
+		 */
+		protected void rejectRequest(Channel channel) {
+			rejectedRequests.increment();
+			synchronized (pendingRequests) {
+				for (HttpRequest request : pendingRequests) {
+					disposeRequest(request);
+				}
+				pendingRequests.clear();
+				dispatching = false;
+				suspended = false;
+			}
+			log.debug("Dispatch executor is saturated, rejecting request.");
+			HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE);
+			response.setHeader(Names.RETRY_AFTER, Integer.toString(retryAfter));
+			response.setHeader(Names.CONTENT_LENGTH, "0");
+			response.setHeader(Names.CONNECTION, Values.CLOSE);
+			channel.write(response).addListener(ChannelFutureListener.CLOSE);
+		}
+		
+		protected void dispatchRequest(Channel channel, HttpRequest _request) throws IOException {
+			long dispatchTime = System.nanoTime();
+			WOResponse woresponse;
+			try {
 				WORequest worequest = ERWOAdaptorUtilities.asWORequest(_request);
-				worequest._setOriginatingAddress(((InetSocketAddress) ctx.getChannel().getRemoteAddress()).getAddress());
-				WOResponse woresponse = WOApplication.application().dispatchRequest(worequest);
-	
-				// send a response
-				NSDelayedCallbackCenter.defaultCenter().eventEnded();
-	
-				// Decide whether to close the connection or not.
-				boolean keepAlive = isKeepAlive(_request);
-	
-				//For reasons that escape me, empty responses fail to close properly.
-				boolean close = !(woresponse._contentLength() > 0 || woresponse.contentInputStream() != null);
+				worequest._setOriginatingAddress(((InetSocketAddress) channel.getRemoteAddress()).getAddress());
+				woresponse = WOApplication.application().dispatchRequest(worequest);
+			} finally {
+				disposeRequest(_request);
+			}
 
-				// Write the response.
-				HttpResponse response = ERWOAdaptorUtilities.asHttpResponse(woresponse);
-				ChannelFuture future = e.getChannel().write(response);
-	
-				// Close the non-keep-alive connection after the write operation is done.
-				if (close || !keepAlive) {
-					future.addListener(ChannelFutureListener.CLOSE);
+			// send a response
+			NSDelayedCallbackCenter.defaultCenter().eventEnded();
+
+			// Decide whether to close the connection or not.
+			boolean keepAlive = isKeepAlive(_request);
+
+			//For reasons that escape me, empty responses fail to close properly.
+			boolean close = !(woresponse._contentLength() > 0 || woresponse.contentInputStream() != null);
+
+			// Write the response, streamed content follows the response headers.
+			final long writeTime = System.nanoTime();
+			ERXStats.addDurationForKey(TimeUnit.NANOSECONDS.toMillis(writeTime - dispatchTime), ERXStats.Group.Adaptor, "dispatch");
+			ChannelFuture future;
+			final InputStream contentStream = woresponse._contentLength() > 0 ? null : woresponse.contentInputStream();
+			if (contentStream == null) {
+				future = channel.write(ERWOAdaptorUtilities.asHttpResponse(woresponse));
+			} else {
+				long length = woresponse.contentInputStreamLength();
+				if (length <= 0 && !HttpVersion.HTTP_1_1.equals(_request.getProtocolVersion())) {
+					// without a length or chunked encoding the end of the content is the end of the connection
+					close = true;
 				}
+				future = writeStreamedResponse(channel, woresponse, contentStream, length);
+			}
+			future.addListener(new ChannelFutureListener() {
+				public void operationComplete(ChannelFuture f) {
+					ERXStats.addDurationForKey(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - writeTime), ERXStats.Group.Adaptor, "write");
+				}
+			});
+
+			// Close the non-keep-alive connection after the write operation is done.
+			if (close || !keepAlive) {
+				future.addListener(ChannelFutureListener.CLOSE);
+			}
+		}
+		
+		/**
+		 * Writes a response whose content is an input stream without reading the
+		 * stream into memory. Content of a FileInputStream is transferred with a
+		 * zero-copy FileRegion, other streams are written in chunks as the channel
+		 * becomes writable. Streams without a length use chunked transfer encoding.
+		 */
+		protected ChannelFuture writeStreamedResponse(Channel channel, WOResponse woresponse, final InputStream contentStream, long length) throws IOException {
+			int bufferSize = Math.max(woresponse.contentInputStreamBufferSize(), 8192);
+			woresponse.setContentStream(null, 0, 0L);
+			HttpResponse response = ERWOAdaptorUtilities.asHttpResponse(woresponse);
+			final Object content;
+			if (length > 0) {
+				response.setHeader(Names.CONTENT_LENGTH, Long.toString(length));
+				if (contentStream instanceof FileInputStream) {
+					FileChannel fileChannel = ((FileInputStream) contentStream).getChannel();
+					content = new DefaultFileRegion(fileChannel, fileChannel.position(), length);
+				} else {
+					content = new ChunkedStream(contentStream, bufferSize);
+				}
+			} else if (HttpVersion.HTTP_1_1.equals(response.getProtocolVersion())) {
+				response.removeHeader(Names.CONTENT_LENGTH);
+				response.setChunked(true);
+				content = new HttpChunkedInput(new ChunkedStream(contentStream, bufferSize));
+			} else {
+				response.removeHeader(Names.CONTENT_LENGTH);
+				content = new ChunkedStream(contentStream, bufferSize);
+			}
+			channel.write(response);
+			ChannelFuture future = channel.write(content);
+			future.addListener(new ChannelFutureListener() {
+				public void operationComplete(ChannelFuture f) {
+					if (content instanceof FileRegion) {
+						((FileRegion) content).releaseExternalResources();
+					}
+					try {
+						contentStream.close();
+					} catch (IOException e) {
+						log.warn("Failed to close response content stream.", e);
+					}
+				}
+			});
+			return future;
+		}
+		
+		private static void disposeRequest(HttpRequest request) {
+			if (request instanceof ERWOSpoolingChunkAggregator.SpooledRequest) {
+				((ERWOSpoolingChunkAggregator.SpooledRequest) request).dispose();
 			}
 		}
 		
@@ -295,4 +630,43 @@ public class WONettyAdaptor extends WOAdaptor {
 			e.getChannel().close();
 		}
 	}
+
+	/**
+	 * Wraps the chunks of a ChunkedInput in HttpChunks and ends them with the
+	 * last chunk for responses with chunked transfer encoding.
+	 */
+	protected static class HttpChunkedInput implements ChunkedInput {
+		private final ChunkedInput input;
+		private boolean lastChunkSent;
+
+		public HttpChunkedInput(ChunkedInput input) {
+			this.input = input;
+		}
+
+		public boolean hasNextChunk() throws Exception {
+			return !lastChunkSent;
+		}
+
+		public Object nextChunk() throws Exception {
+			if (lastChunkSent) {
+				return null;
+			}
+			if (input.hasNextChunk()) {
+				Object chunk = input.nextChunk();
+				if (chunk != null) {
+					return new DefaultHttpChunk((ChannelBuffer) chunk);
+				}
+			}
+			lastChunkSent = true;
+			return HttpChunk.LAST_CHUNK;
+		}
+
+		public boolean isEndOfInput() throws Exception {
+			return lastChunkSent;
+		}
+
+		public void close() throws Exception {
+			input.close();
+		}
+	}
 }
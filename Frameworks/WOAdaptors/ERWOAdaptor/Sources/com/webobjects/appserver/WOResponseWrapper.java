@@ -35,6 +35,7 @@ public class WOResponseWrapper implements HttpResponse {
 
 	private WOResponse wrapping;
 	private ChannelBuffer _content;
+	private boolean _chunked;
 	
 	/**
 	 * Converts a WOCookie to a Netty cookie
@@ -161,7 +162,7 @@ public class WOResponseWrapper implements HttpResponse {
 	}
 
 	public boolean isChunked() {
-		return false;
+		return _chunked;
 	}
 
 	public boolean isKeepAlive() {
@@ -173,9 +174,12 @@ public class WOResponseWrapper implements HttpResponse {
 		wrapping.removeHeadersForKey(name);
 	}
 
+	/**
+	 * Marks the response as chunked, the content then has to be written as
+	 * HttpChunks after the response.
+	 */
 	public void setChunked(boolean chunked) {
-		// TODO Checkme - irrelevant for http response
-		log.error("Trying to set http response content");
+		_chunked = chunked;
 	}
 
 	public void setContent(ChannelBuffer content) {
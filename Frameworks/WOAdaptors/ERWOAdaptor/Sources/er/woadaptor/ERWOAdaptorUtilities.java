@@ -41,8 +41,15 @@ public class ERWOAdaptorUtilities {
         }
         
         // content
-        ChannelBuffer _content = request.getContent();
-		NSData contentData = (_content.readable()) ? new WOInputStreamData(new NSData(new ChannelBufferInputStream(_content), 4096)) : NSData.EmptyData;	        
+		NSData contentData;
+		if (request instanceof ERWOSpoolingChunkAggregator.SpooledRequest) {
+			// read spooled content from its file instead of loading it into memory
+			ERWOSpoolingChunkAggregator.SpooledRequest spooledRequest = (ERWOSpoolingChunkAggregator.SpooledRequest) request;
+			contentData = new WOInputStreamData(spooledRequest.contentInputStream(), (int) spooledRequest.contentLength());
+		} else {
+			ChannelBuffer _content = request.getContent();
+			contentData = (_content.readable()) ? new WOInputStreamData(new NSData(new ChannelBufferInputStream(_content), 4096)) : NSData.EmptyData;
+		}
 		
 		// create request
 		WORequest _worequest = WOApplication.application().createRequest(
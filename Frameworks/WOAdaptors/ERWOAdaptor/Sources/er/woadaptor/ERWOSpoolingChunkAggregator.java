@@ -0,0 +1,223 @@
+package er.woadaptor;
+
+import static org.jboss.netty.handler.codec.http.HttpHeaders.is100ContinueExpected;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunkTrailer;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replacement for Netty's HttpChunkAggregator that keeps small request bodies
+ * in memory but spools everything above a threshold to a temporary file, so
+ * large uploads don't have to fit into the heap. A spooled request is passed
+ * upstream as a {@link SpooledRequest}, whose content is read back from the
+ * file when the WORequest is created. The file is deleted by calling
+ * {@link SpooledRequest#dispose()} once the request has been dispatched.
+ * Content longer than the maximum raises a TooLongFrameException, and the
+ * remaining chunks of that request are ignored.
+ */
+public class ERWOSpoolingChunkAggregator extends SimpleChannelUpstreamHandler {
+	private static final Logger log = LoggerFactory.getLogger(ERWOSpoolingChunkAggregator.class);
+
+	private static final ChannelBuffer CONTINUE = ChannelBuffers.copiedBuffer("HTTP/1.1 100 Continue\r\n\r\n", CharsetUtil.US_ASCII);
+
+	private final long maxContentLength;
+	private final int spoolThreshold;
+
+	private HttpRequest currentRequest;
+	private ChannelBuffer content;
+	private File spoolFile;
+	private OutputStream spoolStream;
+	private long contentLength;
+	private boolean discardingChunks;
+
+	/**
+	 * @param maxContentLength the maximum length of the request content
+	 * @param spoolThreshold the length above which the content is spooled to a file
+	 */
+	public ERWOSpoolingChunkAggregator(long maxContentLength, int spoolThreshold) {
+		this.maxContentLength = maxContentLength;
+		this.spoolThreshold = spoolThreshold;
+	}
+
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		Object msg = e.getMessage();
+		if (msg instanceof HttpRequest) {
+			HttpRequest request = (HttpRequest) msg;
+			discardingChunks = false;
+			if (is100ContinueExpected(request)) {
+				Channels.write(ctx, Channels.succeededFuture(ctx.getChannel()), CONTINUE.duplicate());
+			}
+			if (request.isChunked()) {
+				// wait for the chunks, the content is merged below
+				List<String> encodings = request.getHeaders(HttpHeaders.Names.TRANSFER_ENCODING);
+				encodings.remove(HttpHeaders.Values.CHUNKED);
+				if (encodings.isEmpty()) {
+					request.removeHeader(HttpHeaders.Names.TRANSFER_ENCODING);
+				}
+				request.setChunked(false);
+				discardContent();
+				currentRequest = request;
+				content = ChannelBuffers.dynamicBuffer(e.getChannel().getConfig().getBufferFactory());
+				contentLength = 0;
+			} else {
+				currentRequest = null;
+				ctx.sendUpstream(e);
+			}
+		} else if (msg instanceof HttpChunk) {
+			HttpChunk chunk = (HttpChunk) msg;
+			if (discardingChunks) {
+				// the rest of a request that was too long
+				discardingChunks = !chunk.isLast();
+				return;
+			}
+			if (currentRequest == null) {
+				throw new IllegalStateException("Received a chunk without a request.");
+			}
+			ChannelBuffer chunkContent = chunk.getContent();
+			if (contentLength > maxContentLength - chunkContent.readableBytes()) {
+				discardContent();
+				discardingChunks = !chunk.isLast();
+				throw new TooLongFrameException("HTTP content length exceeded " + maxContentLength + " bytes.");
+			}
+			appendContent(chunkContent);
+			if (chunk.isLast()) {
+				HttpRequest request = currentRequest;
+				currentRequest = null;
+				if (chunk instanceof HttpChunkTrailer) {
+					for (Map.Entry<String, String> header : ((HttpChunkTrailer) chunk).getHeaders()) {
+						request.setHeader(header.getKey(), header.getValue());
+					}
+				}
+				request.setHeader(HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(contentLength));
+				if (spoolFile != null) {
+					spoolStream.close();
+					request = new SpooledRequest(request, spoolFile, contentLength);
+					spoolStream = null;
+					spoolFile = null;
+				} else {
+					request.setContent(content);
+				}
+				content = null;
+				Channels.fireMessageReceived(ctx, request, e.getRemoteAddress());
+			}
+		} else {
+			ctx.sendUpstream(e);
+		}
+	}
+
+	private void appendContent(ChannelBuffer chunkContent) throws IOException {
+		int length = chunkContent.readableBytes();
+		if (spoolFile == null && contentLength + length > spoolThreshold) {
+			spoolFile = File.createTempFile("WONettyAdaptor", ".request");
+			spoolStream = new FileOutputStream(spoolFile);
+			content.readBytes(spoolStream, content.readableBytes());
+			content = null;
+			log.debug("Spooling request content to {}.", spoolFile);
+		}
+		if (spoolFile != null) {
+			chunkContent.readBytes(spoolStream, length);
+		} else {
+			content.writeBytes(chunkContent);
+		}
+		contentLength += length;
+	}
+
+	private void discardContent() {
+		currentRequest = null;
+		contentLength = 0;
+		content = null;
+		if (spoolStream != null) {
+			try {
+				spoolStream.close();
+			} catch (IOException e) {
+				log.warn("Failed to close spool file {}.", spoolFile, e);
+			}
+			spoolStream = null;
+		}
+		if (spoolFile != null) {
+			spoolFile.delete();
+			spoolFile = null;
+		}
+	}
+
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		discardContent();
+		super.channelClosed(ctx, e);
+	}
+
+	/**
+	 * A request whose content has been spooled to a temporary file.
+	 */
+	public static class SpooledRequest extends DefaultHttpRequest {
+		private final File file;
+		private final long contentLength;
+		private InputStream contentInputStream;
+
+		public SpooledRequest(HttpRequest request, File file, long contentLength) {
+			super(request.getProtocolVersion(), request.getMethod(), request.getUri());
+			for (Map.Entry<String, String> header : request.getHeaders()) {
+				addHeader(header.getKey(), header.getValue());
+			}
+			this.file = file;
+			this.contentLength = contentLength;
+		}
+
+		public long contentLength() {
+			return contentLength;
+		}
+
+		/**
+		 * @return a stream on the spooled content, it is closed by {@link #dispose()}
+		 * @throws IOException if the spool file can't be opened
+		 */
+		public synchronized InputStream contentInputStream() throws IOException {
+			if (contentInputStream == null) {
+				contentInputStream = new BufferedInputStream(new FileInputStream(file));
+			}
+			return contentInputStream;
+		}
+
+		/**
+		 * Closes the content stream and deletes the spool file.
+		 */
+		public synchronized void dispose() {
+			if (contentInputStream != null) {
+				try {
+					contentInputStream.close();
+				} catch (IOException e) {
+					log.warn("Failed to close spool file {}.", file, e);
+				}
+				contentInputStream = null;
+			}
+			if (!file.delete() && file.exists()) {
+				log.warn("Failed to delete spool file {}.", file);
+			}
+		}
+	}
+}
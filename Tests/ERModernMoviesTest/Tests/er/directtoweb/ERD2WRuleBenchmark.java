@@ -0,0 +1,190 @@
+package er.directtoweb;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.directtoweb.D2WContext;
+import com.webobjects.directtoweb.ERD2WContext;
+import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EOModel;
+import com.webobjects.eoaccess.EOModelGroup;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+
+/**
+ * Fires the rules of a model the way pages do and compares how long the rules take
+ * with D2W's scan over the rules of a key, with a {@link ERD2WRuleIndex} and with the
+ * model's cache. For every entity and task a page context is set up and every rhs key
+ * of the model is fired in it, then the same is done with the <code>propertyKey</code>
+ * set to each of the page's <code>displayPropertyKeys</code>. Keys that throw in a
+ * context are left out.
+ * <pre><code>
+ * ERD2WRuleBenchmark benchmark = new ERD2WRuleBenchmark(ERD2WModel.erDefaultModel(), null, null);
+ * NSDictionary result = benchmark.run(10);
+ * </code></pre>
+ * The result lists every key for which the index fired a different value than the scan.
+ * It is test code in the package of the model, as it fires the rules without the index
+ * through a package private method. RuleBenchmarkIT runs it against the rules of this
+ * application; copy it into the tests of your own application to check the rule index
+ * against your rules before turning on <code>er.directtoweb.ERD2WModel.useCompiledRules</code>.
+ */
+public class ERD2WRuleBenchmark {
+
+    private static final Logger log = Logger.getLogger(ERD2WRuleBenchmark.class);
+
+    public static final NSArray<String> DEFAULT_TASKS = new NSArray<>(new String[] { "query", "list", "inspect", "edit" });
+
+    private static final Object NO_VALUE = new Object();
+
+    private final ERD2WModel _model;
+    private final ERD2WRuleIndex _index;
+    private final List<D2WContext> _contexts = new ArrayList<>();
+    private final List<String> _keys = new ArrayList<>();
+    private final NSMutableArray<String> _mismatches = new NSMutableArray<>();
+    private int _contextCount;
+
+    /**
+     * Sets up the contexts to fire the rules in.
+     * @param model the model to fire the rules of
+     * @param entityNames the entities to create page contexts for, null for all entities in the default model group
+     * @param tasks the tasks to create page contexts for, null for {@link #DEFAULT_TASKS}
+     */
+    public ERD2WRuleBenchmark(ERD2WModel model, NSArray<String> entityNames, NSArray<String> tasks) {
+        _model = model;
+        _index = model.compileRuleIndex();
+        NSArray<String> keys = new NSArray<>(new TreeSet<>(_index.keys()).toArray(new String[0]));
+        for (EOEntity entity : entities(entityNames)) {
+            for (String task : tasks != null ? tasks : DEFAULT_TASKS) {
+                D2WContext pageContext = ERD2WContext.newContext();
+                pageContext.setTask(task);
+                pageContext.setEntity(entity);
+                addLookups(pageContext, keys);
+                NSMutableArray<String> propertyKeys = new NSMutableArray<>();
+                addPropertyKeys(fireWithoutIndex("displayPropertyKeys", pageContext), propertyKeys);
+                for (String propertyKey : propertyKeys) {
+                    D2WContext propertyContext = ERD2WContext.newContext(pageContext);
+                    propertyContext.setPropertyKey(propertyKey);
+                    addLookups(propertyContext, keys);
+                }
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Prepared " + _keys.size() + " lookups in " + _contextCount + " contexts for " + _index);
+        }
+    }
+
+    private static NSArray<EOEntity> entities(NSArray<String> entityNames) {
+        NSMutableArray<EOEntity> entities = new NSMutableArray<>();
+        if (entityNames != null) {
+            for (String entityName : entityNames) {
+                EOEntity entity = EOModelGroup.defaultGroup().entityNamed(entityName);
+                if (entity != null) {
+                    entities.addObject(entity);
+                }
+            }
+        } else {
+            for (Enumeration e = EOModelGroup.defaultGroup().models().objectEnumerator(); e.hasMoreElements();) {
+                entities.addObjectsFromArray(((EOModel) e.nextElement()).entities());
+            }
+        }
+        return entities;
+    }
+
+    private static void addPropertyKeys(Object value, NSMutableArray<String> propertyKeys) {
+        // tabs and sections nest the keys in arrays
+        if (value instanceof NSArray) {
+            for (Enumeration e = ((NSArray) value).objectEnumerator(); e.hasMoreElements();) {
+                addPropertyKeys(e.nextElement(), propertyKeys);
+            }
+        } else if (value instanceof String && !propertyKeys.containsObject(value)) {
+            propertyKeys.addObject((String) value);
+        }
+    }
+
+    private void addLookups(D2WContext context, NSArray<String> keys) {
+        _contextCount++;
+        for (String key : keys) {
+            if (fireWithoutIndex(key, context) != NO_VALUE) {
+                _contexts.add(context);
+                _keys.add(key);
+            }
+        }
+    }
+
+    private Object fireWithoutIndex(String key, D2WContext context) {
+        try {
+            return _model._fireRuleForKeyPathInContextWithoutIndex(key, context);
+        } catch (RuntimeException e) {
+            log.debug("Skipping " + key + " for " + context, e);
+            return NO_VALUE;
+        }
+    }
+
+    /**
+     * Fires every lookup the given number of times with each of the three methods.
+     * @param iterations number of times to fire the lookups
+     * @return the number of <code>contexts</code>, <code>lookups</code> and <code>mismatches</code>
+     * and the time spent in milliseconds for <code>scan</code>, <code>index</code> and <code>cache</code>
+     */
+    public NSDictionary<String, Object> run(int iterations) {
+        _mismatches.removeAllObjects();
+        int count = _keys.size();
+        for (int i = 0; i < count; i++) {
+            String key = _keys.get(i);
+            D2WContext context = _contexts.get(i);
+            Object expected = _model._fireRuleForKeyPathInContextWithoutIndex(key, context);
+            Object result = _index.fireRuleForKeyPathInContext(key, context);
+            if (!Objects.equals(expected, result)) {
+                _mismatches.addObject(key + " in " + context + ": " + result + " instead of " + expected);
+            }
+        }
+        long scan = System.nanoTime();
+        for (int n = 0; n < iterations; n++) {
+            for (int i = 0; i < count; i++) {
+                _model._fireRuleForKeyPathInContextWithoutIndex(_keys.get(i), _contexts.get(i));
+            }
+        }
+        scan = System.nanoTime() - scan;
+        long index = System.nanoTime();
+        for (int n = 0; n < iterations; n++) {
+            for (int i = 0; i < count; i++) {
+                _index.fireRuleForKeyPathInContext(_keys.get(i), _contexts.get(i));
+            }
+        }
+        index = System.nanoTime() - index;
+        long cache = System.nanoTime();
+        for (int n = 0; n < iterations; n++) {
+            for (int i = 0; i < count; i++) {
+                _model.fireRuleForKeyPathInContext(_keys.get(i), _contexts.get(i));
+            }
+        }
+        cache = System.nanoTime() - cache;
+
+        NSMutableDictionary<String, Object> result = new NSMutableDictionary<>();
+        result.setObjectForKey(Integer.valueOf(_contextCount), "contexts");
+        result.setObjectForKey(Integer.valueOf(count * iterations), "lookups");
+        result.setObjectForKey(Integer.valueOf(_mismatches.count()), "mismatches");
+        result.setObjectForKey(Long.valueOf(scan / 1000000), "scan");
+        result.setObjectForKey(Long.valueOf(index / 1000000), "index");
+        result.setObjectForKey(Long.valueOf(cache / 1000000), "cache");
+        if (_mismatches.count() > 0) {
+            log.warn("Rule index differs from the rules for " + _mismatches.count() + " lookups:\n" + _mismatches.componentsJoinedByString("\n"));
+        }
+        log.info("Rule benchmark: " + result);
+        return result;
+    }
+
+    /**
+     * @return the lookups for which the rule index fired a different value in the last run
+     */
+    public NSArray<String> mismatches() {
+        return _mismatches.immutableClone();
+    }
+}
@@ -0,0 +1,36 @@
+package er.modern.movies.test;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.webobjects.foundation.NSDictionary;
+
+import er.directtoweb.ERD2WModel;
+import er.directtoweb.ERD2WRuleBenchmark;
+import er.extensions.ERXExtensions;
+
+/**
+ * Fires the ERModernLook rules of the app with the compiled rule index and
+ * without it, checks that both give the same results and logs the times.
+ */
+public class RuleBenchmarkIT {
+
+    private static final Logger log = Logger.getLogger(RuleBenchmarkIT.class);
+
+    @BeforeClass
+    public static void initApp() {
+        ERXExtensions.initApp(Application.class, new String[0]);
+    }
+
+    @Test
+    public void compiledRulesMatchTest() {
+        ERD2WRuleBenchmark benchmark = new ERD2WRuleBenchmark(ERD2WModel.erDefaultModel(), null, null);
+        NSDictionary<String, Object> result = benchmark.run(5);
+        log.info("Rule benchmark: " + result);
+        assertEquals(benchmark.mismatches().toString(), Integer.valueOf(0), result.objectForKey("mismatches"));
+    }
+
+}
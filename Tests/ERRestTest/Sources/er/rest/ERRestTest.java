@@ -1,5 +1,8 @@
 package er.rest;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
@@ -19,18 +22,23 @@ import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSBundle;
 import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSKeyValueCoding;
+import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSNotificationCenter;
 import com.webobjects.foundation.NSTimeZone;
 import com.webobjects.foundation.NSTimestamp;
 
+import er.extensions.appserver.ERXResponse;
 import er.extensions.eof.ERXEC;
 import er.extensions.eof.ERXKeyFilter;
+import er.extensions.foundation.ERXFileUtilities;
 import er.memoryadaptor.EREntityStoreFactory;
 import er.rest.format.ERXRestFormat;
 import er.rest.format.ERXRestFormatDelegate;
+import er.rest.format.ERXWORestResponse;
 import er.rest.format.ERXXmlRestParser;
 import er.rest.format.ERXXmlRestWriter;
+import er.rest.format.IERXStreamingRestWriter;
 import er.rest.model.Car;
 import er.rest.model.Company;
 import er.rest.model.Manufacturer;
@@ -640,6 +648,54 @@ public class ERRestTest extends TestCase {
         }
     }
 
+    public void testStreamingJSONMatchesTree() throws IOException {
+        EOEditingContext editingContext = ERXEC.newEditingContext(_osc);
+        editingContext.lock();
+        try {
+            Company c1 = Company.createCompany(editingContext, "Company 1");
+            Company c2 = Company.createCompany(editingContext, "Company 2");
+            NSMutableArray<Person> ps = new NSMutableArray<>();
+            for (int i = 0; i < 6; i++) {
+                Person p = Person.createPerson(editingContext, "Person " + i);
+                p.setAge(Integer.valueOf(20 + i));
+                p.setCompanyRelationship(i % 2 == 0 ? c1 : c2);
+                ps.addObject(p);
+            }
+            NSMutableArray<Person> psWithDuplicate = ps.mutableClone();
+            psWithDuplicate.addObject(ps.objectAtIndex(0));
+            NSArray<Company> cs = new NSArray<>(c1, c2, c1);
+
+            ERXRestContext context = new ERXRestContext(editingContext);
+            EOClassDescription personClassDescription = EOClassDescription.classDescriptionForEntityName(Person.ENTITY_NAME);
+            EOClassDescription companyClassDescription = EOClassDescription.classDescriptionForEntityName(Company.ENTITY_NAME);
+            ERXRestFormat format = ERXRestFormat.json();
+            assertEquals(format.toString(personClassDescription, ps, ERXKeyFilter.filterWithAttributes(), context), streamedJSON(personClassDescription, ps, ERXKeyFilter.filterWithAttributes(), context));
+            assertEquals(format.toString(personClassDescription, new NSArray<Person>(), ERXKeyFilter.filterWithAttributes(), context), streamedJSON(personClassDescription, new NSArray<Person>(), ERXKeyFilter.filterWithAttributes(), context));
+            assertEquals(format.toString(personClassDescription, psWithDuplicate, ERXKeyFilter.filterWithAttributes(), context), streamedJSON(personClassDescription, psWithDuplicate, ERXKeyFilter.filterWithAttributes(), context));
+            assertEquals(format.toString(personClassDescription, psWithDuplicate, ERXKeyFilter.filterWithAllRecursive(), context), streamedJSON(personClassDescription, psWithDuplicate, ERXKeyFilter.filterWithAllRecursive(), context));
+            assertEquals(format.toString(companyClassDescription, cs, ERXKeyFilter.filterWithAllRecursive(), context), streamedJSON(companyClassDescription, cs, ERXKeyFilter.filterWithAllRecursive(), context));
+            ERXKeyFilter withoutDeduplication = ERXKeyFilter.filterWithAttributesAndToOneRelationships();
+            withoutDeduplication.setDeduplicationEnabled(false);
+            assertEquals(format.toString(personClassDescription, psWithDuplicate, withoutDeduplication, context), streamedJSON(personClassDescription, psWithDuplicate, withoutDeduplication, context));
+        }
+        finally {
+            editingContext.unlock();
+            editingContext.dispose();
+        }
+    }
+
+    private String streamedJSON(EOClassDescription classDescription, NSArray<?> objects, ERXKeyFilter filter, ERXRestContext context) throws IOException {
+        ERXRestFormat format = ERXRestFormat.json();
+        IERXStreamingRestWriter writer = (IERXStreamingRestWriter) format.writer();
+        ERXResponse response = new ERXResponse();
+        writer.appendObjectsToResponse(classDescription, objects, filter, new ERXWORestResponse(response), format.delegate(), context);
+        ERXResponse streamedResponse = new ERXResponse();
+        try (InputStream contentStream = writer.contentStreamForObjects(classDescription, objects, filter, new ERXWORestResponse(streamedResponse), format.delegate(), context)) {
+            assertEquals(response.contentString(), new String(ERXFileUtilities.bytesFromInputStream(contentStream), StandardCharsets.UTF_8));
+        }
+        return response.contentString();
+    }
+
     public void testSimpleEOAndXML() {
         EOEditingContext editingContext = ERXEC.newEditingContext(_osc);
         editingContext.lock();
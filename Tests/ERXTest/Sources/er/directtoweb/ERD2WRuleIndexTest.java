@@ -0,0 +1,160 @@
+package er.directtoweb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.webobjects.directtoweb.Assignment;
+import com.webobjects.directtoweb.D2WContext;
+import com.webobjects.directtoweb.D2WModel;
+import com.webobjects.directtoweb.ERD2WContext;
+import com.webobjects.directtoweb.Rule;
+import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.foundation.NSArray;
+
+import er.erxtest.ERXTestCase;
+import er.extensions.foundation.ERXProperties;
+import er.extensions.qualifiers.ERXKeyValueQualifier;
+
+/**
+ * Fires small rule sets with the compiled rule index and checks the results
+ * against the rules themselves.
+ */
+public class ERD2WRuleIndexTest extends ERXTestCase {
+  private static final String USE_COMPILED_RULES_KEY = "er.directtoweb.ERD2WModel.useCompiledRules";
+
+  private D2WModel defaultModel;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ERXProperties.setStringForKey("true", USE_COMPILED_RULES_KEY);
+    defaultModel = D2WModel.defaultModel();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    D2WModel.setDefaultModel(defaultModel);
+    ERXProperties.removeKey(USE_COMPILED_RULES_KEY);
+    super.tearDown();
+  }
+
+  public void testWildcardBranch() {
+    ERD2WModel model = model(sectionRules(10), rule(20, "look = 'modern'", "color", "modern"));
+    assertTrue(model.ruleIndex().nodeCount() > 1);
+
+    assertFired(model, "section3", context("section", "section3"));
+    assertFired(model, "modern", context("section", "section3", "look", "modern"));
+    assertFired(model, "modern", context("section", "other", "look", "modern"));
+    assertFired(model, null, context("section", "other"));
+    assertFired(model, null, context());
+  }
+
+  public void testContextKeyWithoutLocalValue() {
+    List<Rule> rules = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      rules.add(rule(10, "task = 'task" + i + "'", "color", "task" + i));
+    }
+    rules.add(rule(10, "look = 'modern'", "task", "task5"));
+    ERD2WModel model = model(rules, rule(5, "section = 'other'", "color", "other"));
+    assertTrue(model.ruleIndex().nodeCount() > 1);
+    // the task is inferred while the rules are evaluated
+    D2WModel.setDefaultModel(model);
+
+    assertFired(model, "task5", context("look", "modern"));
+    assertFired(model, "task5", context("look", "modern", "section", "other"));
+    assertFired(model, "other", context("look", "classic", "section", "other"));
+    assertFired(model, null, context("look", "classic"));
+  }
+
+  public void testPriorityAcrossBranches() {
+    ERD2WModel model = model(sectionRules(10),
+        rule(5, "look = 'modern'", "color", "lowWildcard"),
+        rule(20, "section = 'section1' and look = 'modern'", "color", "highBranch"),
+        rule(30, "look = 'classic'", "color", "highWildcard"));
+    assertTrue(model.ruleIndex().nodeCount() > 1);
+
+    assertFired(model, "highBranch", context("section", "section1", "look", "modern"));
+    assertFired(model, "highWildcard", context("section", "section1", "look", "classic"));
+    assertFired(model, "section2", context("section", "section2", "look", "modern"));
+    assertFired(model, "lowWildcard", context("section", "other", "look", "modern"));
+  }
+
+  public void testRulesWithOtherQualifiers() {
+    ERD2WModel model = model(sectionRules(10),
+        rule(20, "section = 'section1' or section = 'section2'", "color", "or"),
+        new Rule(25, new ERXKeyValueQualifier("section", EOQualifier.QualifierOperatorEqual, "section3"), new Assignment("color", "subclass")),
+        rule(30, "section like 'section5*'", "color", "like"),
+        rule(35, "section <> 'section6' and look = 'modern'", "color", "notEqual"));
+    assertTrue(model.ruleIndex().nodeCount() > 1);
+
+    assertFired(model, "or", context("section", "section1"));
+    assertFired(model, "or", context("section", "section2"));
+    assertFired(model, "subclass", context("section", "section3"));
+    assertFired(model, "section4", context("section", "section4"));
+    assertFired(model, "like", context("section", "section5"));
+    assertFired(model, "like", context("section", "section50"));
+    assertFired(model, "notEqual", context("section", "section7", "look", "modern"));
+    assertFired(model, "section6", context("section", "section6", "look", "modern"));
+  }
+
+  public void testIndexIsRebuiltWithRules() {
+    ERD2WModel model = model(sectionRules(10));
+    ERD2WRuleIndex index = model.ruleIndex();
+    assertNotNull(index);
+    assertFired(model, "section1", context("section", "section1"));
+
+    model.invalidateCaches();
+    assertNull(model.ruleIndex());
+    model.addRule(rule(20, "section = 'section1'", "color", "added"));
+    model.sortRules();
+    assertNotNull(model.ruleIndex());
+    assertNotSame(index, model.ruleIndex());
+    assertFired(model, "added", context("section", "section1"));
+
+    index = model.ruleIndex();
+    model.addRule(rule(30, "section = 'section2'", "color", "addedLater"));
+    model.clearD2WRuleCache();
+    assertNotSame(index, model.ruleIndex());
+    assertFired(model, "addedLater", context("section", "section2"));
+    assertFired(model, "added", context("section", "section1"));
+  }
+
+  private static List<Rule> sectionRules(int priority) {
+    List<Rule> rules = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      rules.add(rule(priority, "section = 'section" + i + "'", "color", "section" + i));
+    }
+    return rules;
+  }
+
+  private static ERD2WModel model(List<Rule> rules, Rule... moreRules) {
+    List<Rule> allRules = new ArrayList<>(rules);
+    allRules.addAll(Arrays.asList(moreRules));
+    ERD2WModel model = new ERD2WModel(new NSArray<>(allRules.toArray(new Rule[allRules.size()])));
+    model.clearD2WRuleCache();
+    assertNotNull(model.ruleIndex());
+    return model;
+  }
+
+  private static Rule rule(int priority, String lhs, String key, Object value) {
+    return new Rule(priority, EOQualifier.qualifierWithQualifierFormat(lhs, null), new Assignment(key, value));
+  }
+
+  private static D2WContext context(String... keysAndValues) {
+    D2WContext context = ERD2WContext.newContext();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      context.takeValueForKey(keysAndValues[i + 1], keysAndValues[i]);
+    }
+    return context;
+  }
+
+  /**
+   * Checks that the index fires the expected value and the same value as the rules
+   * fire without it.
+   */
+  private static void assertFired(ERD2WModel model, Object expected, D2WContext context) {
+    assertEquals(String.valueOf(context), expected, model._fireRuleForKeyPathInContextWithoutIndex("color", context));
+    assertEquals(String.valueOf(context), expected, model.ruleIndex().fireRuleForKeyPathInContext("color", context));
+  }
+}
@@ -52,21 +52,32 @@ public class ERXTestSuite {
 
     suite.addTestSuite(er.extensions.formatters.ERXOrdinalFormatterTests.class);
     suite.addTestSuite(er.extensions.formatters.ERXOrdinalDateFormatterTests.class);
+
+    suite.addTestSuite(er.extensions.localization.ERXLocalizerTest.class);
+
+    suite.addTestSuite(er.extensions.statistics.ERXStatsTest.class);
     
     suite.addTestSuite(er.javamail.ERMailUtilsTest.class);
 
     suite.addTestSuite(er.extensions.jdbc.MicrosoftSQLHelperTest.class);
+    suite.addTestSuite(er.extensions.jdbc.ERXJDBCConnectionPoolTest.class);
+    suite.addTestSuite(er.extensions.remoteSynchronizer.ERXRemoteSynchronizerTest.class);
 
     suite.addTestSuite(er.extensions.net.ERXEmailValidatorTest.class);
 
     if (ERXTestCase.adaptorName().equals("Memory")) {
         suite.addTestSuite(er.memoryadaptor.ERMemoryAdaptorTest.class);
+        suite.addTestSuite(er.memoryadaptor.ERMemoryEntityStoreTest.class);
     }
 
     suite.addTestSuite(er.extensions.appserver.ERXApplicationTest.class);
     suite.addTestSuite(er.extensions.appserver.ERXRequestTest.class);
+    suite.addTestSuite(er.extensions.appserver.ERXWOResponseCacheTest.class);
+    suite.addTestSuite(er.extensions.appserver.ERXStaticResourceRequestHandlerTest.class);
+    suite.addTestSuite(er.extensions.appserver.ERXMemoryMonitorTest.class);
     
     suite.addTestSuite(er.directtoweb.ERD2WModelTest.class);
+    suite.addTestSuite(er.directtoweb.ERD2WRuleIndexTest.class);
 
     suite.addTestSuite(er.erxtest.tests.ERXECLockingTestCase.class);
 
@@ -81,6 +92,7 @@ public class ERXTestSuite {
     // TODO - How long is this supposed to take to run? Is it hanging?
     //
     //suite.addTestSuite(ERXExpiringCacheTestCase.class);
+    suite.addTestSuite(er.erxtest.tests.ERXConcurrentExpiringCacheTestCase.class);
 
     suite.addTestSuite(er.extensions.excel.EGSimpleWorkbookHelperTest.class);
 
@@ -0,0 +1,105 @@
+package er.erxtest.tests;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import er.erxtest.ERXTestCase;
+import er.extensions.foundation.ERXConcurrentExpiringCache;
+import er.extensions.foundation.ERXExpiringCache;
+
+public class ERXConcurrentExpiringCacheTestCase extends ERXTestCase {
+  public void testThatItWorksAtAll() {
+    ERXConcurrentExpiringCache<String, String> cache = new ERXConcurrentExpiringCache<>(100);
+    cache.setObjectForKey("Krank", "Anjo");
+    cache.setObjectForKey("Schrag", "Mike");
+    assertEquals("Schrag", cache.objectForKey("Mike"));
+    assertEquals("Krank", cache.objectForKey("Anjo"));
+    assertEquals(null, cache.objectForKey("Chuck"));
+    assertEquals("Schrag", cache.removeObjectForKey("Mike"));
+    assertEquals(null, cache.objectForKey("Mike"));
+  }
+
+  public void testVersionsWithNewVersionGetMakeSureItIsStillGone() {
+    ERXConcurrentExpiringCache<String, String> cache = new ERXConcurrentExpiringCache<>(ERXExpiringCache.NO_TIMEOUT);
+    cache.setObjectForKeyWithVersion("Krank", "Anjo", Integer.valueOf(1));
+    cache.setObjectForKeyWithVersion("Schrag", "Mike", Integer.valueOf(1));
+    assertEquals("Schrag", cache.objectForKey("Mike"));
+    assertEquals(null, cache.objectForKeyWithVersion("Mike", Integer.valueOf(2)));
+    assertEquals("Krank", cache.objectForKeyWithVersion("Anjo", Integer.valueOf(1)));
+    assertEquals(null, cache.objectForKeyWithVersion("Mike", Integer.valueOf(1)));
+    assertTrue(cache.isStale("Mike"));
+  }
+
+  public void testTimeExpiration() throws InterruptedException {
+    ERXConcurrentExpiringCache<String, String> cache = new ERXConcurrentExpiringCache<>(ERXExpiringCache.NO_TIMEOUT);
+    cache.setObjectForKeyWithVersion("Krank", "Anjo", ERXExpiringCache.NO_VERSION, 50);
+    cache.setObjectForKey("Schrag", "Mike");
+    Thread.sleep(100);
+    assertEquals(2, cache.count());
+    assertEquals(1, cache.removeStaleEntries(10));
+    assertEquals(null, cache.objectForKey("Anjo"));
+    assertEquals("Schrag", cache.objectForKey("Mike"));
+  }
+
+  public void testCleanupSweepsWholeCache() throws InterruptedException {
+    ERXConcurrentExpiringCache<Integer, Integer> cache = new ERXConcurrentExpiringCache<>(ERXExpiringCache.NO_TIMEOUT, 1);
+    for (int i = 0; i < 3500; i++) {
+      cache.setObjectForKeyWithVersion(Integer.valueOf(i), Integer.valueOf(i), ERXExpiringCache.NO_VERSION, 50);
+    }
+    Thread.sleep(1100);
+    cache.setObjectForKey(Integer.valueOf(-1), Integer.valueOf(-1));
+    assertEquals(1, cache.count());
+    assertEquals(Integer.valueOf(-1), cache.objectForKey(Integer.valueOf(-1)));
+  }
+
+  public void testMaximumSizeEvictsLeastRecentlyUsed() {
+    ERXConcurrentExpiringCache<Integer, Integer> cache = new ERXConcurrentExpiringCache<>(ERXExpiringCache.NO_TIMEOUT, 60, 100);
+    cache.setObjectForKey(Integer.valueOf(-1), Integer.valueOf(-1));
+    for (int i = 0; i < 1000; i++) {
+      cache.setObjectForKey(Integer.valueOf(i), Integer.valueOf(i));
+      assertEquals(Integer.valueOf(-1), cache.objectForKey(Integer.valueOf(-1)));
+    }
+    assertEquals(100, cache.count());
+  }
+
+  public void testTrimToCount() {
+    ERXConcurrentExpiringCache<Integer, Integer> cache = new ERXConcurrentExpiringCache<>(ERXExpiringCache.NO_TIMEOUT);
+    for (int i = 0; i < 100; i++) {
+      cache.setObjectForKey(Integer.valueOf(i), Integer.valueOf(i));
+    }
+    assertEquals(75, cache.trimToCount(25));
+    assertEquals(25, cache.count());
+    assertEquals(0, cache.trimToCount(50));
+    assertEquals(25, cache.trimToCount(0));
+    assertEquals(0, cache.count());
+  }
+
+  public void testConcurrentAccess() throws InterruptedException {
+    final ERXConcurrentExpiringCache<Integer, Integer> cache = new ERXConcurrentExpiringCache<>(ERXExpiringCache.NO_TIMEOUT, 60, 500);
+    final AtomicInteger mismatches = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(8);
+    for (int t = 0; t < 8; t++) {
+      final int threadNum = t;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 10000; i++) {
+              Integer key = Integer.valueOf((i * 31 + threadNum) % 1000);
+              Integer value = cache.objectForKeyWithVersion(key, key);
+              if (value != null && !value.equals(key)) {
+                mismatches.incrementAndGet();
+              }
+              cache.setObjectForKeyWithVersion(key, key, key);
+            }
+          }
+          finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    done.await();
+    assertEquals(0, mismatches.get());
+    assertTrue(cache.count() <= 500 + 8);
+  }
+}
@@ -4,6 +4,7 @@ import java.util.UUID;
 
 import com.webobjects.eocontrol.EOEditingContext;
 import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
 
 import er.erxtest.ERXTestCase;
 import er.erxtest.model.Company;
@@ -158,7 +159,41 @@ public class ERXEnterpriseObjectCacheTestCase extends ERXTestCase {
       
       cache.stop();
     }
-  
+
+  public void testMaximumSize() {
+    ERXEnterpriseObjectCache<Company> cache = new ERXEnterpriseObjectCache<>(Company.ENTITY_NAME, Company.NAME_KEY, null, 0);
+    cache.setMaximumSize(1);
+    assertSame(c1, cache.objectForKey(editingContext, c1.name()));
+    assertSame(c2, cache.objectForKey(editingContext, c2.name()));
+    assertSame(c1, cache.objectForKey(editingContext, c1.name()));
+
+    NSDictionary<String, Object> statistics = cache.statistics();
+    assertTrue(((Integer) statistics.objectForKey("count")).intValue() <= 1);
+    assertTrue(((Long) statistics.objectForKey("evictions")).longValue() >= 1);
+    assertTrue(((Long) statistics.objectForKey("loads")).longValue() >= 2);
+    cache.stop();
+  }
+
+  public void testStatistics() {
+    ERXEnterpriseObjectCache<Company> cache = new ERXEnterpriseObjectCache<>(Company.ENTITY_NAME, Company.NAME_KEY, null, 0);
+    cache.setFetchInitialValues(false);
+    String name = c1.name();
+    cache.objectForKey(editingContext, name);
+    cache.objectForKey(editingContext, name);
+
+    NSDictionary<String, Object> statistics = cache.statistics();
+    assertEquals(Long.valueOf(1), statistics.objectForKey("misses"));
+    assertEquals(Long.valueOf(1), statistics.objectForKey("loads"));
+    assertEquals(Long.valueOf(1), statistics.objectForKey("hits"));
+    assertNotNull(ERXEnterpriseObjectCache.allStatistics().objectForKey(Company.ENTITY_NAME + "." + Company.NAME_KEY));
+
+    c1.delete();
+    editingContext.saveChanges();
+    c1 = null;
+    assertNull(cache.objectForKey(editingContext, name));
+    cache.stop();
+  }
+
   @Override
   protected void setUp() throws Exception {
       String name1 = "Company " + UUID.randomUUID().toString();
@@ -0,0 +1,43 @@
+package er.extensions.appserver;
+
+import java.math.BigDecimal;
+
+import er.erxtest.ERXTestCase;
+
+public class ERXMemoryMonitorTest extends ERXTestCase {
+	private static final long MB = 1024 * 1024;
+
+	public void testBytesForFractionThreshold() {
+		assertEquals(750L, ERXMemoryMonitor.bytesForThreshold(new BigDecimal("0.75"), 1000L));
+		assertEquals(0L, ERXMemoryMonitor.bytesForThreshold(new BigDecimal("0"), 1000L));
+	}
+
+	public void testBytesForMBThreshold() {
+		assertEquals(900 * MB, ERXMemoryMonitor.bytesForThreshold(new BigDecimal("100"), 1000 * MB));
+		assertEquals(999 * MB, ERXMemoryMonitor.bytesForThreshold(new BigDecimal("1"), 1000 * MB));
+	}
+
+	public void testPressureForFractionThresholds() {
+		ERXMemoryMonitor monitor = new ERXMemoryMonitor(new BigDecimal("0.5"), new BigDecimal("0.75"), new BigDecimal("0.9"), 1000L);
+		assertEquals(ERXMemoryMonitor.Pressure.NONE, monitor.pressureForUsage(400L, 1000L));
+		assertEquals(ERXMemoryMonitor.Pressure.NONE, monitor.pressureForUsage(500L, 1000L));
+		assertEquals(ERXMemoryMonitor.Pressure.ELEVATED, monitor.pressureForUsage(600L, 1000L));
+		assertEquals(ERXMemoryMonitor.Pressure.LOW, monitor.pressureForUsage(800L, 1000L));
+		assertEquals(ERXMemoryMonitor.Pressure.STARVED, monitor.pressureForUsage(950L, 1000L));
+	}
+
+	public void testPressureForMBThresholds() {
+		ERXMemoryMonitor monitor = new ERXMemoryMonitor(new BigDecimal("300"), new BigDecimal("200"), new BigDecimal("100"), 1000L);
+		assertEquals(ERXMemoryMonitor.Pressure.NONE, monitor.pressureForUsage(650 * MB, 1000 * MB));
+		assertEquals(ERXMemoryMonitor.Pressure.ELEVATED, monitor.pressureForUsage(750 * MB, 1000 * MB));
+		assertEquals(ERXMemoryMonitor.Pressure.LOW, monitor.pressureForUsage(850 * MB, 1000 * MB));
+		assertEquals(ERXMemoryMonitor.Pressure.STARVED, monitor.pressureForUsage(950 * MB, 1000 * MB));
+	}
+
+	public void testPressureSkipsMissingThresholds() {
+		ERXMemoryMonitor monitor = new ERXMemoryMonitor(null, new BigDecimal("0.75"), null, 1000L);
+		assertEquals(ERXMemoryMonitor.Pressure.NONE, monitor.pressureForUsage(700L, 1000L));
+		assertEquals(ERXMemoryMonitor.Pressure.LOW, monitor.pressureForUsage(800L, 1000L));
+		assertEquals(ERXMemoryMonitor.Pressure.LOW, monitor.pressureForUsage(1000L, 1000L));
+	}
+}
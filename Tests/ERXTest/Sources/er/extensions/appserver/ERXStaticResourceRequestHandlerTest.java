@@ -0,0 +1,208 @@
+package er.extensions.appserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import com.webobjects.appserver.WORequest;
+import com.webobjects.appserver.WOResponse;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSNotification;
+
+import er.erxtest.ERXTestCase;
+import er.extensions.foundation.ERXFileNotificationCenter;
+import er.extensions.foundation.ERXProperties;
+
+public class ERXStaticResourceRequestHandlerTest extends ERXTestCase {
+	private static final String CACHE_ENABLED_KEY = "er.extensions.ERXStaticResourceRequestHandler.cacheEnabled";
+	private static final String MAPPED_THRESHOLD_KEY = "er.extensions.ERXStaticResourceRequestHandler.mappedThreshold";
+	private static final String MAX_BYTES_KEY = "er.extensions.ERXStaticResourceRequestHandler.maxBytes";
+
+	private File documentRoot;
+	private ERXStaticResourceRequestHandler handler;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		documentRoot = Files.createTempDirectory("ERXStaticResourceRequestHandlerTest").toFile();
+		ERXProperties.setStringForKey("true", CACHE_ENABLED_KEY);
+		handler = new ERXStaticResourceRequestHandler(documentRoot);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ERXProperties.setStringForKey("false", CACHE_ENABLED_KEY);
+		ERXProperties.setStringForKey(String.valueOf(1024 * 1024), MAPPED_THRESHOLD_KEY);
+		ERXProperties.setStringForKey(String.valueOf(32 * 1024 * 1024), MAX_BYTES_KEY);
+		for (File file : documentRoot.listFiles()) {
+			file.delete();
+		}
+		documentRoot.delete();
+		super.tearDown();
+	}
+
+	public void testConditionalRequests() throws IOException {
+		write("test.css", "body { color: red; }");
+		WOResponse response = handler.handleRequest(request("/test.css", null));
+		assertEquals(200, response.status());
+		assertEquals("body { color: red; }", response.contentString());
+		String eTag = response.headerForKey("etag");
+		assertNotNull(eTag);
+		assertNotNull(response.headerForKey("last-modified"));
+
+		NSMutableDictionary<String, NSArray<String>> headers = new NSMutableDictionary<>();
+		headers.setObjectForKey(new NSArray<>(eTag), "if-none-match");
+		assertEquals(304, handler.handleRequest(request("/test.css", headers)).status());
+
+		headers.removeObjectForKey("if-none-match");
+		headers.setObjectForKey(new NSArray<>(response.headerForKey("last-modified")), "if-modified-since");
+		assertEquals(304, handler.handleRequest(request("/test.css?v=2", headers)).status());
+
+		assertEquals(Long.valueOf(2), handler.statistics().objectForKey("hits"));
+		assertEquals(Long.valueOf(1), handler.statistics().objectForKey("misses"));
+		assertEquals(Long.valueOf(2), handler.statistics().objectForKey("notModified"));
+	}
+
+	public void testGzippedVariant() throws IOException {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			content.append(".rule").append(i % 10).append(" { margin: 0; }\n");
+		}
+		write("test.css", content.toString());
+
+		NSMutableDictionary<String, NSArray<String>> headers = new NSMutableDictionary<>();
+		headers.setObjectForKey(new NSArray<>("gzip, deflate"), "accept-encoding");
+		WOResponse gzippedResponse = handler.handleRequest(request("/test.css", headers));
+		assertEquals("gzip", gzippedResponse.headerForKey("content-encoding"));
+		assertEquals(content.toString(), new String(read(new GZIPInputStream(new ByteArrayInputStream(gzippedResponse.content().bytes()))), StandardCharsets.UTF_8));
+
+		WOResponse plainResponse = handler.handleRequest(request("/test.css", null));
+		assertNull(plainResponse.headerForKey("content-encoding"));
+		assertEquals(content.toString(), plainResponse.contentString());
+		assertFalse(plainResponse.headerForKey("etag").equals(gzippedResponse.headerForKey("etag")));
+	}
+
+	public void testByteRanges() throws IOException {
+		write("test.bin", "0123456789");
+		assertEquals("2345", rangeResponse("bytes=2-5", 206, "bytes 2-5/10").contentString());
+		assertEquals("789", rangeResponse("bytes=-3", 206, "bytes 7-9/10").contentString());
+		assertEquals("89", rangeResponse("bytes=8-100", 206, "bytes 8-9/10").contentString());
+		rangeResponse("bytes=10-", 416, "bytes */10");
+		assertEquals("0123456789", rangeResponse("bytes=5-2", 200, null).contentString());
+
+		NSMutableDictionary<String, NSArray<String>> headers = new NSMutableDictionary<>();
+		headers.setObjectForKey(new NSArray<>("bytes=2-5"), "range");
+		headers.setObjectForKey(new NSArray<>("\"other\""), "if-range");
+		assertEquals(200, handler.handleRequest(request("/test.bin", headers)).status());
+	}
+
+	public void testMappedFile() throws IOException {
+		ERXProperties.setStringForKey("16", MAPPED_THRESHOLD_KEY);
+		handler = new ERXStaticResourceRequestHandler(documentRoot);
+		write("test.bin", "0123456789abcdefghijklmnopqrstuvwxyz");
+
+		WOResponse response = handler.handleRequest(request("/test.bin", null));
+		assertEquals("0123456789abcdefghijklmnopqrstuvwxyz", new String(read(response.contentInputStream()), StandardCharsets.UTF_8));
+		assertEquals(Long.valueOf(36), handler.statistics().objectForKey("mappedBytes"));
+
+		WOResponse rangeResponse = rangeResponse("bytes=10-15", 206, "bytes 10-15/36");
+		assertEquals("abcdef", new String(read(rangeResponse.contentInputStream()), StandardCharsets.UTF_8));
+	}
+
+	public void testMappedFileIsGzipped() throws IOException {
+		ERXProperties.setStringForKey("16", MAPPED_THRESHOLD_KEY);
+		handler = new ERXStaticResourceRequestHandler(documentRoot);
+		String content = compressibleContent();
+		write("test.css", content);
+
+		NSMutableDictionary<String, NSArray<String>> headers = new NSMutableDictionary<>();
+		headers.setObjectForKey(new NSArray<>("gzip, deflate"), "accept-encoding");
+		for (int i = 0; i < 2; i++) {
+			WOResponse response = handler.handleRequest(request("/test.css", headers));
+			assertEquals("gzip", response.headerForKey("content-encoding"));
+			byte[] gzipped = response.content().bytes();
+			assertEquals(content, new String(read(new GZIPInputStream(new ByteArrayInputStream(gzipped))), StandardCharsets.UTF_8));
+			assertEquals(Long.valueOf(gzipped.length), handler.statistics().objectForKey("bytes"));
+		}
+		assertEquals(Long.valueOf(content.length()), handler.statistics().objectForKey("mappedBytes"));
+		assertEquals(Long.valueOf(1), handler.statistics().objectForKey("hits"));
+
+		WOResponse plainResponse = handler.handleRequest(request("/test.css", null));
+		assertNull(plainResponse.headerForKey("content-encoding"));
+		assertEquals(content, new String(read(plainResponse.contentInputStream()), StandardCharsets.UTF_8));
+	}
+
+	public void testMappedFileIsNotGzippedBeyondMaxBytes() throws IOException {
+		ERXProperties.setStringForKey("16", MAPPED_THRESHOLD_KEY);
+		ERXProperties.setStringForKey("16", MAX_BYTES_KEY);
+		handler = new ERXStaticResourceRequestHandler(documentRoot);
+		String content = compressibleContent();
+		write("test.css", content);
+
+		NSMutableDictionary<String, NSArray<String>> headers = new NSMutableDictionary<>();
+		headers.setObjectForKey(new NSArray<>("gzip, deflate"), "accept-encoding");
+		WOResponse response = handler.handleRequest(request("/test.css", headers));
+		assertNull(response.headerForKey("content-encoding"));
+		assertEquals(content, new String(read(response.contentInputStream()), StandardCharsets.UTF_8));
+		assertEquals(Long.valueOf(0), handler.statistics().objectForKey("bytes"));
+		assertEquals(Long.valueOf(content.length()), handler.statistics().objectForKey("mappedBytes"));
+	}
+
+	public void testChangedFileIsReloaded() throws IOException {
+		File file = write("test.css", "body { color: red; }");
+		String eTag = handler.handleRequest(request("/test.css", null)).headerForKey("etag");
+
+		write("test.css", "body { color: blue; }");
+		assertEquals("body { color: red; }", handler.handleRequest(request("/test.css", null)).contentString());
+
+		handler.resourceDidChange(new NSNotification(ERXFileNotificationCenter.FileDidChange, file));
+		WOResponse response = handler.handleRequest(request("/test.css", null));
+		assertEquals("body { color: blue; }", response.contentString());
+		assertFalse(eTag.equals(response.headerForKey("etag")));
+		assertEquals(Long.valueOf(1), handler.statistics().objectForKey("invalidations"));
+	}
+
+	private WOResponse rangeResponse(String range, int status, String contentRange) {
+		NSMutableDictionary<String, NSArray<String>> headers = new NSMutableDictionary<>();
+		headers.setObjectForKey(new NSArray<>(range), "range");
+		WOResponse response = handler.handleRequest(request("/test.bin", headers));
+		assertEquals(status, response.status());
+		assertEquals(contentRange, response.headerForKey("content-range"));
+		return response;
+	}
+
+	private static String compressibleContent() {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			content.append(".rule").append(i % 10).append(" { margin: 0; padding: 0; }\n");
+		}
+		return content.toString();
+	}
+
+	private File write(String name, String content) throws IOException {
+		File file = new File(documentRoot, name);
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		try (InputStream is = in) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			for (int read; (read = is.read(buffer)) != -1;) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	private static WORequest request(String uri, NSMutableDictionary<String, NSArray<String>> headers) {
+		return new ERXRequest("GET", uri, "HTTP/1.1", headers, null, null);
+	}
+}
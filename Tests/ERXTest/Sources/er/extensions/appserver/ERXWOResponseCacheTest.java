@@ -0,0 +1,157 @@
+package er.extensions.appserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import com.webobjects.appserver.WORequest;
+import com.webobjects.appserver.WOResponse;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableDictionary;
+
+import er.erxtest.ERXTestCase;
+import er.extensions.foundation.ERXMultiKey;
+
+public class ERXWOResponseCacheTest extends ERXTestCase {
+	private ERXWOResponseCache cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		cache = new ERXWOResponseCache();
+		cache.setPolicy(new TestPolicy());
+	}
+
+	public void testCachedResponseIsACopy() {
+		WOResponse response = response("Hello World");
+		cache.cacheResponseForRequest(getClass(), "test", request("1", null), response);
+		assertNotNull(response.headerForKey("etag"));
+		assertNotNull(response.headerForKey("last-modified"));
+
+		WOResponse cachedResponse = cache.cachedResponseForRequest(getClass(), "test", request("1", null));
+		assertNotSame(response, cachedResponse);
+		assertEquals("Hello World", cachedResponse.contentString());
+		assertEquals(response.headerForKey("etag"), cachedResponse.headerForKey("etag"));
+
+		response.setContent("Changed");
+		assertEquals("Hello World", cache.cachedResponseForRequest(getClass(), "test", request("1", null)).contentString());
+		assertNull(cache.cachedResponseForRequest(getClass(), "test", request("2", null)));
+
+		NSDictionary<String, Object> statistics = cache.statistics();
+		assertEquals(Long.valueOf(2), statistics.objectForKey("hits"));
+		assertEquals(Long.valueOf(1), statistics.objectForKey("misses"));
+	}
+
+	public void testConditionalRequests() {
+		WOResponse response = response("Hello World");
+		cache.cacheResponseForRequest(getClass(), "test", request("1", null), response);
+		String eTag = response.headerForKey("etag");
+
+		NSMutableDictionary<String, NSArray<String>> headers = new NSMutableDictionary<>();
+		headers.setObjectForKey(new NSArray<>("\"other\", " + eTag), "if-none-match");
+		WOResponse notModifiedResponse = cache.cachedResponseForRequest(getClass(), "test", request("1", headers));
+		assertEquals(304, notModifiedResponse.status());
+		assertEquals(eTag, notModifiedResponse.headerForKey("etag"));
+		assertEquals(0, notModifiedResponse.content().length());
+
+		headers.setObjectForKey(new NSArray<>("\"other\""), "if-none-match");
+		assertEquals(200, cache.cachedResponseForRequest(getClass(), "test", request("1", headers)).status());
+
+		headers.removeObjectForKey("if-none-match");
+		headers.setObjectForKey(new NSArray<>(response.headerForKey("last-modified")), "if-modified-since");
+		assertEquals(304, cache.cachedResponseForRequest(getClass(), "test", request("1", headers)).status());
+		assertEquals(Long.valueOf(2), cache.statistics().objectForKey("notModified"));
+	}
+
+	public void testGzippedContent() throws IOException {
+		cache.setStoreGzippedContent(true);
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			content.append("Hello World ").append(i % 10).append('\n');
+		}
+		cache.cacheResponseForRequest(getClass(), "test", request("1", null), response(content.toString()));
+
+		NSMutableDictionary<String, NSArray<String>> headers = new NSMutableDictionary<>();
+		headers.setObjectForKey(new NSArray<>("gzip, deflate"), "accept-encoding");
+		WOResponse gzippedResponse = cache.cachedResponseForRequest(getClass(), "test", request("1", headers));
+		assertEquals("gzip", gzippedResponse.headerForKey("content-encoding"));
+		assertTrue(gzippedResponse.content().length() < content.length());
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzippedResponse.content().bytes()))) {
+			byte[] buffer = new byte[content.length() + 1];
+			int length = 0;
+			for (int read; (read = in.read(buffer, length, buffer.length - length)) > 0;) {
+				length += read;
+			}
+			assertEquals(content.toString(), new String(buffer, 0, length, "UTF-8"));
+		}
+
+		WOResponse plainResponse = cache.cachedResponseForRequest(getClass(), "test", request("1", null));
+		assertNull(plainResponse.headerForKey("content-encoding"));
+		assertEquals(content.toString(), plainResponse.contentString());
+		assertFalse(plainResponse.headerForKey("etag").equals(gzippedResponse.headerForKey("etag")));
+	}
+
+	public void testLeastRecentlyUsedEviction() {
+		cache.cacheResponseForRequest(getClass(), "test", request("1", null), response(content(1000)));
+		long entrySize = cache.bytes();
+		cache.setMaxBytes(entrySize * 2 + entrySize / 2);
+		cache.cacheResponseForRequest(getClass(), "test", request("2", null), response(content(1000)));
+		assertNotNull(cache.cachedResponseForRequest(getClass(), "test", request("1", null)));
+
+		cache.cacheResponseForRequest(getClass(), "test", request("3", null), response(content(1000)));
+		assertNotNull(cache.cachedResponseForRequest(getClass(), "test", request("1", null)));
+		assertNull(cache.cachedResponseForRequest(getClass(), "test", request("2", null)));
+		assertNotNull(cache.cachedResponseForRequest(getClass(), "test", request("3", null)));
+		assertTrue(cache.bytes() <= cache.maxBytes());
+		assertEquals(Long.valueOf(1), cache.statistics().objectForKey("evictions"));
+
+		cache.cacheResponseForRequest(getClass(), "test", request("4", null), response(content(10000)));
+		assertNull(cache.cachedResponseForRequest(getClass(), "test", request("4", null)));
+	}
+
+	public void testTimeToLive() throws InterruptedException {
+		WOResponse response = response("Hello World");
+		response.setHeader("1", ERXWOResponseCache.TIME_TO_LIVE_KEY);
+		cache.cacheResponseForRequest(getClass(), "test", request("1", null), response);
+		assertNull(response.headerForKey(ERXWOResponseCache.TIME_TO_LIVE_KEY));
+		assertNotNull(cache.cachedResponseForRequest(getClass(), "test", request("1", null)));
+
+		Thread.sleep(1100L);
+		assertNull(cache.cachedResponseForRequest(getClass(), "test", request("1", null)));
+		assertEquals(Long.valueOf(1), cache.statistics().objectForKey("expirations"));
+		assertEquals(0L, cache.bytes());
+	}
+
+	private static String content(int length) {
+		StringBuilder content = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			content.append((char) ('a' + i % 26));
+		}
+		return content.toString();
+	}
+
+	private static WOResponse response(String content) {
+		WOResponse response = new ERXResponse(content);
+		response.setHeader("text/plain; charset=UTF-8", "content-type");
+		return response;
+	}
+
+	private static WORequest request(String id, NSDictionary<String, NSArray<String>> headers) {
+		return new ERXRequest("GET", "/cgi-bin/WebObjects/Test.woa/wa/test?id=" + id, "HTTP/1.1", headers, null, null);
+	}
+
+	private static class TestPolicy implements ERXWOResponseCache.Policy {
+		public boolean actionNameIsCachableForClass(Class actionClass, String actionName) {
+			return true;
+		}
+
+		public ERXMultiKey cacheKeyForRequest(Class actionClass, String actionName, WORequest request) {
+			return new ERXMultiKey(actionClass, actionName, request.formValueForKey("id"));
+		}
+
+		public boolean shouldResetCache() {
+			return false;
+		}
+	}
+}
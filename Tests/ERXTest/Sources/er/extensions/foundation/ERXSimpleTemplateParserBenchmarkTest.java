@@ -0,0 +1,77 @@
+package er.extensions.foundation;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.foundation.NSMutableDictionary;
+
+import er.erxtest.ERXTestCase;
+
+/**
+ * Compares the time it takes to parse templates with the compiled templates
+ * and by splitting the template on each call like the parser did before. It is
+ * not part of the ERXTestSuite, run it on its own with a JUnit runner when you
+ * change the parser, for example from Eclipse or with
+ * <code>java junit.textui.TestRunner er.extensions.foundation.ERXSimpleTemplateParserBenchmarkTest</code>.
+ */
+public class ERXSimpleTemplateParserBenchmarkTest extends ERXTestCase {
+	private static final Logger log = Logger.getLogger(ERXSimpleTemplateParserBenchmarkTest.class);
+
+	private static final int WARMUP_ITERATIONS = 20000;
+
+	private static final int ITERATIONS = 200000;
+
+	private static final String[] TEMPLATES = {
+			"Hello, @@name@@. How are you feeling today?",
+			"@@firstName@@ @@lastName@@ <@@email@@>",
+			"Dear @@firstName@@, your order @@order.number@@ of @@order.total@@ has been shipped to @@order.address@@ on @@order.date@@.",
+			"No keys in this one" };
+
+	public void testParseThroughput() {
+		NSMutableDictionary<String, Object> variables = new NSMutableDictionary<>();
+		variables.setObjectForKey("Jane", "name");
+		variables.setObjectForKey("Jane", "firstName");
+		variables.setObjectForKey("Doe", "lastName");
+		variables.setObjectForKey("jane@example.com", "email");
+		variables.setObjectForKey("4711", "order.number");
+		variables.setObjectForKey("12.50", "order.total");
+		variables.setObjectForKey("Main Street 1", "order.address");
+		variables.setObjectForKey("2026-10-17", "order.date");
+		ERXSimpleTemplateParser parser = new ERXSimpleTemplateParser();
+		for (String template : TEMPLATES) {
+			assertEquals(ERXSimpleTemplateParserTest.parseBySplitting(parser, ERXSimpleTemplateParser.DEFAULT_UNDEFINED_KEY_LABEL, template, null, variables, null),
+					parser.parseTemplateWithObject(template, null, variables));
+		}
+
+		timeSplitting(parser, variables, WARMUP_ITERATIONS);
+		timeCompiled(parser, variables, WARMUP_ITERATIONS);
+		long splittingTime = timeSplitting(parser, variables, ITERATIONS);
+		long compiledTime = timeCompiled(parser, variables, ITERATIONS);
+		log.info("splitting: " + parsesPerSecond(splittingTime) + " parses/s, compiled: " + parsesPerSecond(compiledTime) + " parses/s");
+	}
+
+	private static long timeSplitting(ERXSimpleTemplateParser parser, Object object, int iterations) {
+		long length = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			length += ERXSimpleTemplateParserTest.parseBySplitting(parser, ERXSimpleTemplateParser.DEFAULT_UNDEFINED_KEY_LABEL, TEMPLATES[i % TEMPLATES.length], null, object, null).length();
+		}
+		long time = System.nanoTime() - start;
+		assertTrue(length > 0);
+		return time;
+	}
+
+	private static long timeCompiled(ERXSimpleTemplateParser parser, Object object, int iterations) {
+		long length = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			length += parser.parseTemplateWithObject(TEMPLATES[i % TEMPLATES.length], null, object).length();
+		}
+		long time = System.nanoTime() - start;
+		assertTrue(length > 0);
+		return time;
+	}
+
+	private static long parsesPerSecond(long nanos) {
+		return ITERATIONS * 1000000000L / Math.max(nanos, 1);
+	}
+}
@@ -1,7 +1,9 @@
 package er.extensions.foundation;
 
+import java.util.Enumeration;
 import java.util.Properties;
 
+import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSKeyValueCoding;
 import com.webobjects.foundation.NSKeyValueCodingAdditions;
 import com.webobjects.foundation.NSMutableDictionary;
@@ -51,6 +53,139 @@ public class ERXSimpleTemplateParserTest extends ERXTestCase {
 		assertEquals("The LAZY brown FOX jumped over the fence", result);
 	}
 	
+	public void testUndefinedKeyLabel() {
+		NSMutableDictionary<String, String> variables = new NSMutableDictionary<>();
+		variables.setObjectForKey("FOX", "type");
+		NSMutableDictionary<String, String> otherVariables = new NSMutableDictionary<>();
+		otherVariables.setObjectForKey("LAZY", "description");
+
+		ERXSimpleTemplateParser parser = new ERXSimpleTemplateParser("-");
+		assertEquals("The - brown FOX", parser.parseTemplateWithObject("The @@description@@ brown @@type@@", null, variables));
+		assertEquals("The LAZY brown FOX", parser.parseTemplateWithObject("The @@description@@ brown @@type@@", null, variables, otherVariables));
+		assertEquals("The - brown FOX", parser.parseTemplateWithObject("The @@color@@ brown @@type@@", null, variables, otherVariables));
+	}
+
+	public void testEmptyKeyPath() {
+		try {
+			new ERXSimpleTemplateParser().parseTemplateWithObject("The @@@@ fox", null, new NSMutableDictionary<String, String>());
+			fail("An empty key path should not be accepted.");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testKeysInTemplate() {
+		NSArray keys = new ERXSimpleTemplateParser().keysInTemplate("The @@animal.description@@ brown @@animal.type@@ and @@animal.type@@", null);
+		assertEquals(2, keys.count());
+		assertTrue(keys.containsObject("animal.description"));
+		assertTrue(keys.containsObject("animal.type"));
+	}
+
+	/**
+	 * The compiled templates have to render exactly like splitting the template on each call did.
+	 */
+	public void testCompiledTemplatesMatchSplitting() {
+		NSMutableDictionary<String, Object> variables = new NSMutableDictionary<>();
+		variables.setObjectForKey("A", "a");
+		variables.setObjectForKey(Integer.valueOf(17), "x");
+		variables.setObjectForKey("AB", "a.b");
+		NSMutableDictionary<String, String> otherVariables = new NSMutableDictionary<>();
+		otherVariables.setObjectForKey("O", "o");
+		otherVariables.setObjectForKey("otherA", "a");
+
+		String[] templates = { "", "a", "@@a@@", "@@a@@@@x@@", "text @@a@@ text", "@@a@@ trailing @@", "@@", "@@@", "@@@@@@a@@",
+				"@@zz@@ and @@o@@", "@@a.b@@", "un@@closed", "#a# @@x@@ #o#", "##x##", "@ @a@ @" };
+		String[] delimiters = { null, "@@", "@", "#", "##" };
+		String label = "?";
+		ERXSimpleTemplateParser parser = new ERXSimpleTemplateParser(label);
+		for (String template : templates) {
+			for (String delimiter : delimiters) {
+				for (Object otherObject : new Object[] { null, otherVariables }) {
+					String expected = resultOf(() -> parseBySplitting(parser, label, template, delimiter, variables, otherObject));
+					String actual = resultOf(() -> parser.parseTemplateWithObject(template, delimiter, variables, otherObject));
+					String cached = resultOf(() -> parser.parseTemplateWithObject(template, delimiter, variables, otherObject));
+					assertEquals("template '" + template + "' delimiter '" + delimiter + "'", expected, actual);
+					assertEquals("template '" + template + "' delimiter '" + delimiter + "'", expected, cached);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A full cache has to keep caching the templates that are used now and must not grow past its maximum size.
+	 */
+	public void testCompiledTemplatesAreCachedWhenFull() {
+		String usedTemplate = "used @@a@@";
+		Object usedCompiledTemplate = ERXSimpleTemplateParser.compiledTemplate(usedTemplate, ERXSimpleTemplateParser.DEFAULT_DELIMITER);
+		for (int i = 0; i < 5000; i++) {
+			ERXSimpleTemplateParser.compiledTemplate("template " + i + " @@a@@", ERXSimpleTemplateParser.DEFAULT_DELIMITER);
+			assertSame(usedCompiledTemplate, ERXSimpleTemplateParser.compiledTemplate(usedTemplate, ERXSimpleTemplateParser.DEFAULT_DELIMITER));
+		}
+		assertTrue(ERXSimpleTemplateParser.compiledTemplateCount(ERXSimpleTemplateParser.DEFAULT_DELIMITER) <= 1000);
+		String template = "recent @@a@@";
+		assertSame(ERXSimpleTemplateParser.compiledTemplate(template, ERXSimpleTemplateParser.DEFAULT_DELIMITER), ERXSimpleTemplateParser.compiledTemplate(template, ERXSimpleTemplateParser.DEFAULT_DELIMITER));
+		ERXSimpleTemplateParser.clearCompiledTemplates();
+		assertEquals(0, ERXSimpleTemplateParser.compiledTemplateCount(ERXSimpleTemplateParser.DEFAULT_DELIMITER));
+	}
+
+	private interface Parse {
+		String parse();
+	}
+
+	private static String resultOf(Parse parse) {
+		try {
+			return parse.parse();
+		}
+		catch (RuntimeException e) {
+			return e.getClass().getName() + ": " + e.getMessage();
+		}
+	}
+
+	/**
+	 * The way the parser worked before it compiled the templates.
+	 */
+	static String parseBySplitting(ERXSimpleTemplateParser parser, String undefinedKeyLabel, String template, String delimiter, Object object, Object otherObject) {
+		if (delimiter == null) {
+			delimiter = ERXSimpleTemplateParser.DEFAULT_DELIMITER;
+		}
+		NSArray components = NSArray.componentsSeparatedByString(template, delimiter);
+		boolean deriveElement = false;
+		StringBuilder sb = new StringBuilder();
+		Object objects[] = otherObject != null ? new Object[] { object, otherObject } : new Object[] { object };
+		for (Enumeration e = components.objectEnumerator(); e.hasMoreElements();) {
+			String element = (String) e.nextElement();
+			if (deriveElement) {
+				if (element.length() == 0) {
+					throw new IllegalArgumentException("\"\" is not a valid keypath in template: " + template);
+				}
+				Object result = undefinedKeyLabel;
+				for (Object o : objects) {
+					if (o != null && result == undefinedKeyLabel) {
+						try {
+							result = parser.doGetValue(element, o);
+							if (result == null) {
+								result = undefinedKeyLabel;
+							}
+						}
+						catch (NSKeyValueCoding.UnknownKeyException t) {
+							result = undefinedKeyLabel;
+						}
+					}
+				}
+				sb.append(result.toString());
+				deriveElement = false;
+			}
+			else {
+				if (element.length() > 0) {
+					sb.append(element);
+				}
+				deriveElement = true;
+			}
+		}
+		return sb.toString();
+	}
+
 	public static class Animal implements NSKeyValueCodingAdditions {
 		
 		public Animal() { }
@@ -3,6 +3,8 @@ package er.extensions.foundation;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -35,6 +37,179 @@ public class ERXThreadStorageTest extends ERXTestCase {
 		return exceptions.containsKey(test);
 	}
 
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		ERXThreadStorage.reset();
+		executor = Executors.newSingleThreadExecutor();
+		// start the thread before any values are set, so it doesn't inherit them
+		inOtherThread(() -> null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		ERXThreadStorage.reset();
+		super.tearDown();
+	}
+
+	/**
+	 * Runs the given callable in the thread of the executor and rethrows its failures.
+	 */
+	private <T> T inOtherThread(Callable<T> callable) throws Exception {
+		try {
+			return executor.submit(callable).get(10, TimeUnit.SECONDS);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw (Exception) e.getCause();
+		}
+	}
+
+	public void testCaptureAndBindAreIsolatedBetweenThreads() throws Exception {
+		ERXThreadStorage.takeValueForKey("captured", "key");
+		ERXScopedContext.Snapshot snapshot = ERXThreadStorage.capture();
+		ERXThreadStorage.takeValueForKey("changed", "key");
+
+		assertEquals("captured", inOtherThread(snapshot.wrap(() -> {
+			Object value = ERXThreadStorage.valueForKey("key");
+			ERXThreadStorage.takeValueForKey("other", "key");
+			ERXThreadStorage.takeValueForKey("other", "otherKey");
+			return value;
+		})));
+		assertEquals("changed", ERXThreadStorage.valueForKey("key"));
+		assertNull(ERXThreadStorage.valueForKey("otherKey"));
+		assertEquals("captured", snapshot.toMap().get("key"));
+		assertFalse(snapshot.toMap().containsKey("otherKey"));
+
+		// the values of the task are gone once it is done
+		assertNull(inOtherThread(() -> ERXThreadStorage.valueForKey("key")));
+		assertNull(inOtherThread(() -> ERXThreadStorage.valueForKey("otherKey")));
+		// the same snapshot can be used again
+		assertEquals("captured", inOtherThread(snapshot.wrap(() -> ERXThreadStorage.valueForKey("key"))));
+	}
+
+	public void testRemoveOverCapturedSnapshot() throws Exception {
+		ERXThreadStorage.takeValueForKey("captured", "key");
+		ERXThreadStorage.takeValueForKey("kept", "otherKey");
+		ERXScopedContext.Snapshot snapshot = ERXThreadStorage.capture();
+
+		assertEquals("captured", ERXThreadStorage.removeValueForKey("key"));
+		assertNull(ERXThreadStorage.valueForKey("key"));
+		assertEquals("kept", ERXThreadStorage.valueForKey("otherKey"));
+		assertEquals("captured", snapshot.toMap().get("key"));
+
+		assertNull(inOtherThread(snapshot.wrap(() -> {
+			ERXThreadStorage.removeValueForKey("key");
+			return ERXThreadStorage.valueForKey("key");
+		})));
+		assertEquals("captured", inOtherThread(snapshot.wrap(() -> ERXThreadStorage.valueForKey("key"))));
+
+		ERXScopedContext context = new ERXScopedContext(snapshot);
+		assertEquals("captured", context.remove("key"));
+		assertFalse(context.containsKey("key"));
+		assertNull(context.get("key"));
+		assertEquals(1, context.size());
+		assertFalse(context.capture().toMap().containsKey("key"));
+		context.put("key", "again");
+		assertEquals("again", context.get("key"));
+		assertEquals("captured", snapshot.toMap().get("key"));
+	}
+
+	public void testRestoreAfterBind() throws Exception {
+		ERXThreadStorage.takeValueForKey("outer", "key");
+		ERXScopedContext.Snapshot outer = ERXThreadStorage.capture();
+		ERXThreadStorage.takeValueForKey("inner", "key");
+		ERXScopedContext.Snapshot inner = ERXThreadStorage.capture();
+		ERXThreadStorage.takeValueForKey("current", "key");
+		Map map = ERXThreadStorage.map();
+
+		outer.run(() -> {
+			assertEquals("outer", ERXThreadStorage.valueForKey("key"));
+			ERXThreadStorage.takeValueForKey("bound", "boundKey");
+			inner.run(() -> {
+				assertEquals("inner", ERXThreadStorage.valueForKey("key"));
+				assertNull(ERXThreadStorage.valueForKey("boundKey"));
+			});
+			assertEquals("outer", ERXThreadStorage.valueForKey("key"));
+			assertEquals("bound", ERXThreadStorage.valueForKey("boundKey"));
+		});
+		assertSame(map, ERXThreadStorage.map());
+		assertEquals("current", ERXThreadStorage.valueForKey("key"));
+		assertNull(ERXThreadStorage.valueForKey("boundKey"));
+
+		try {
+			outer.call(() -> {
+				throw new IllegalStateException("failed");
+			});
+			fail("The exception of the callable was not thrown");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		assertSame(map, ERXThreadStorage.map());
+		assertEquals("current", ERXThreadStorage.valueForKey("key"));
+	}
+
+	public void testResetDropsMap() {
+		ERXThreadStorage.takeValueForKey("value", "key");
+		ERXScopedContext.Snapshot snapshot = ERXThreadStorage.capture();
+		Map map = ERXThreadStorage.map();
+		ERXThreadStorage.reset();
+
+		assertNull(ERXThreadStorage.valueForKey("key"));
+		assertTrue(ERXThreadStorage.map().isEmpty());
+		if (ERXThreadStorage.useScopedContext()) {
+			assertNotSame(map, ERXThreadStorage.map());
+		}
+		assertEquals("value", snapshot.toMap().get("key"));
+		assertSame(ERXScopedContext.Snapshot.EMPTY, new ERXScopedContext().capture());
+	}
+
+	public void testLockCountsOfNestedLocksAcrossThreads() throws Exception {
+		EOEditingContext ec = ERXEC.newEditingContext();
+		EOEditingContext otherEC = ERXEC.newEditingContext();
+		ec.lock();
+		ec.lock();
+		otherEC.lock();
+		try {
+			assertEquals(2, ERXEC.lockCountForCurrentThread(ec));
+			assertEquals(1, ERXEC.lockCountForCurrentThread(otherEC));
+			assertEquals(Integer.valueOf(0), inOtherThread(() -> ERXEC.lockCountForCurrentThread(ec)));
+			ec.unlock();
+			assertEquals(1, ERXEC.lockCountForCurrentThread(ec));
+		}
+		finally {
+			otherEC.unlock();
+			ec.unlock();
+		}
+		assertEquals(0, ERXEC.lockCountForCurrentThread(ec));
+		assertEquals(0, ERXEC.lockCountForCurrentThread(otherEC));
+
+		assertEquals(Integer.valueOf(1), inOtherThread(() -> {
+			ec.lock();
+			ec.lock();
+			ec.unlock();
+			return ERXEC.lockCountForCurrentThread(ec);
+		}));
+		assertEquals(0, ERXEC.lockCountForCurrentThread(ec));
+		assertEquals(Integer.valueOf(0), inOtherThread(() -> {
+			ec.unlock();
+			return ERXEC.lockCountForCurrentThread(ec);
+		}));
+		ec.lock();
+		try {
+			assertEquals(1, ERXEC.lockCountForCurrentThread(ec));
+		}
+		finally {
+			ec.unlock();
+		}
+	}
+
 	public void testConstructor() {
 		ExecutorService pool = Executors.newFixedThreadPool(3);
 		RunnableStorageTester t1 = new RunnableStorageTester(7, "testConstructor", null, null); pool.submit(t1);
@@ -0,0 +1,357 @@
+package er.extensions.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSForwardException;
+import com.webobjects.foundation.NSMutableDictionary;
+
+import er.erxtest.ERXTestCase;
+
+public class ERXJDBCConnectionPoolTest extends ERXTestCase {
+
+	private TestPool pool;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		pool = new TestPool(connectionDictionary(1, 4, 200L));
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		pool.destroy(0L);
+		pool = null;
+
+		super.tearDown();
+	}
+
+	public void testCheckoutResetsConnection() throws Exception
+	{
+		Connection connection = pool.getConnection();
+
+		assertFalse( connection.getAutoCommit() );
+		assertFalse( connection.isReadOnly() );
+		assertEquals( 1, pool.activeConnectionCount() );
+
+		pool.freeConnection( connection );
+
+		assertTrue( connection.getAutoCommit() );
+		assertEquals( 0, pool.activeConnectionCount() );
+		assertTrue( pool.idleConnectionCount() >= 1 );
+	}
+
+	public void testConnectionsAreReused() throws Exception
+	{
+		Connection first = pool.getConnection();
+		pool.freeConnection( first );
+		Connection second = pool.getConnection();
+
+		assertSame( first, second );
+
+		pool.freeConnection( second );
+	}
+
+	public void testMaximumConnections() throws Exception
+	{
+		Connection[] connections = new Connection[4];
+		for (int i = 0; i < connections.length; i++) {
+			connections[i] = pool.getConnection();
+		}
+
+		try {
+			pool.getConnection();
+			fail( "Expected the pool to be exhausted" );
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+
+		NSDictionary<String, Object> statistics = pool.statistics();
+		assertEquals( Long.valueOf(1), statistics.objectForKey( "timeouts" ) );
+		assertEquals( Integer.valueOf(4), statistics.objectForKey( "activeConnections" ) );
+
+		for (Connection connection : connections) {
+			pool.freeConnection( connection );
+		}
+		pool.freeConnection( pool.getConnection() );
+	}
+
+	public void testClosedConnectionIsDiscarded() throws Exception
+	{
+		Connection connection = pool.getConnection();
+		connection.close();
+		pool.freeConnection( connection );
+
+		Connection other = pool.getConnection();
+
+		assertNotSame( connection, other );
+		assertFalse( other.isClosed() );
+
+		pool.freeConnection( other );
+	}
+
+	public void testInvalidIdleConnectionIsDiscarded() throws Exception
+	{
+		TestPool validatingPool = new TestPool(connectionDictionary(0, 2, 200L));
+		try {
+			Connection connection = validatingPool.getConnection();
+			validatingPool.freeConnection( connection );
+			validatingPool.valid = false;
+			Thread.sleep( 600L );
+
+			Connection other = validatingPool.getConnection();
+
+			assertNotSame( connection, other );
+			assertTrue( connection.isClosed() );
+
+			validatingPool.freeConnection( other );
+		}
+		finally {
+			validatingPool.destroy( 0L );
+		}
+	}
+
+	public void testHousekeepingClosesIdleConnectionsAndReportsLeaks() throws Exception
+	{
+		NSMutableDictionary<String, Object> dictionary = connectionDictionary(0, 4, 200L);
+		dictionary.setObjectForKey( Long.valueOf(1L), "idleTimeout" );
+		dictionary.setObjectForKey( Long.valueOf(1L), "leakDetectionThreshold" );
+		TestPool housekeptPool = new TestPool(dictionary);
+		try {
+			Connection leaked = housekeptPool.getConnection();
+			Connection idle = housekeptPool.getConnection();
+			housekeptPool.freeConnection( idle );
+			Thread.sleep( 20L );
+
+			housekeptPool.housekeep();
+
+			assertEquals( 0, housekeptPool.idleConnectionCount() );
+			assertEquals( 1, housekeptPool.totalConnectionCount() );
+			assertTrue( idle.isClosed() );
+			assertEquals( Long.valueOf(1), housekeptPool.statistics().objectForKey( "leaks" ) );
+
+			housekeptPool.freeConnection( leaked );
+		}
+		finally {
+			housekeptPool.destroy( 0L );
+		}
+	}
+
+	/**
+	 * Checks out connections from many threads at once and verifies that the pool never hands out more
+	 * than maxConnections.
+	 */
+	public void testConcurrentCheckout() throws Exception
+	{
+		final int threadCount = 16;
+		final int iterations = 2000;
+		final TestPool concurrentPool = new TestPool(connectionDictionary(2, 4, 10000L));
+		final AtomicInteger inUse = new AtomicInteger();
+		final AtomicInteger maxInUse = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threadCount);
+		try {
+			for (int i = 0; i < threadCount; i++) {
+				new Thread(new Runnable() {
+					public void run() {
+						try {
+							start.await();
+							for (int j = 0; j < iterations; j++) {
+								Connection connection = concurrentPool.getConnection();
+								try {
+									int current = inUse.incrementAndGet();
+									maxInUse.accumulateAndGet(current, Math::max);
+									if (j % 64 == 0) {
+										Thread.yield();
+									}
+								}
+								finally {
+									inUse.decrementAndGet();
+									concurrentPool.freeConnection(connection);
+								}
+							}
+						}
+						catch (Throwable t) {
+							failure.compareAndSet(null, t);
+						}
+						finally {
+							done.countDown();
+						}
+					}
+				}, "ERXJDBCConnectionPoolTest-" + i).start();
+			}
+			start.countDown();
+			done.await();
+
+			if (failure.get() != null) {
+				throw new AssertionError(failure.get());
+			}
+			NSDictionary<String, Object> statistics = concurrentPool.statistics();
+			long checkouts = ((Long) statistics.objectForKey( "checkouts" )).longValue();
+			assertEquals( threadCount * iterations, checkouts );
+			assertTrue( maxInUse.get() <= 4 );
+			assertTrue( concurrentPool.totalConnectionCount() <= 4 );
+			assertEquals( 0, concurrentPool.activeConnectionCount() );
+		}
+		finally {
+			concurrentPool.destroy( 0L );
+		}
+	}
+
+	public void testFailedCheckoutClosesNewConnection() throws Exception
+	{
+		TestPool failingPool = new TestPool(connectionDictionary(0, 2, 200L));
+		try {
+			failingPool.failCheckout = true;
+			try {
+				failingPool.getConnection();
+				fail( "The checkout should have failed." );
+			}
+			catch (NSForwardException e) {
+				// expected
+			}
+			assertTrue( failingPool.lastConnection.isClosed() );
+			assertEquals( 0, failingPool.totalConnectionCount() );
+			assertEquals( 0, failingPool.activeConnectionCount() );
+
+			failingPool.failCheckout = false;
+			Connection first = failingPool.getConnection();
+			Connection second = failingPool.getConnection();
+			failingPool.freeConnection( first );
+			failingPool.freeConnection( second );
+			assertEquals( 2, failingPool.totalConnectionCount() );
+		}
+		finally {
+			failingPool.destroy( 0L );
+		}
+	}
+
+	public void testFailedCheckoutKeepsIdleConnection() throws Exception
+	{
+		TestPool failingPool = new TestPool(connectionDictionary(0, 1, 200L));
+		try {
+			Connection connection = failingPool.getConnection();
+			failingPool.freeConnection( connection );
+
+			failingPool.failCheckout = true;
+			try {
+				failingPool.getConnection();
+				fail( "The checkout should have failed." );
+			}
+			catch (NSForwardException e) {
+				// expected
+			}
+			assertFalse( connection.isClosed() );
+			assertEquals( 1, failingPool.totalConnectionCount() );
+			assertEquals( 1, failingPool.idleConnectionCount() );
+
+			failingPool.failCheckout = false;
+			assertSame( connection, failingPool.getConnection() );
+			failingPool.freeConnection( connection );
+		}
+		finally {
+			failingPool.destroy( 0L );
+		}
+	}
+
+	private static NSMutableDictionary<String, Object> connectionDictionary(int minConnections, int maxConnections, long connectionTimeout)
+	{
+		NSMutableDictionary<String, Object> dictionary = new NSMutableDictionary<>();
+		dictionary.setObjectForKey( "jdbc:test:" + System.nanoTime(), "URL" );
+		dictionary.setObjectForKey( "test", "driver" );
+		dictionary.setObjectForKey( Integer.valueOf(minConnections), "minConnections" );
+		dictionary.setObjectForKey( Integer.valueOf(maxConnections), "maxConnections" );
+		dictionary.setObjectForKey( Long.valueOf(connectionTimeout), "connectionTimeout" );
+		return dictionary;
+	}
+
+	private static class TestPool extends ERXJDBCConnectionPool {
+		volatile boolean valid = true;
+		volatile boolean failCheckout;
+		volatile Connection lastConnection;
+
+		TestPool(NSDictionary dictionary)
+		{
+			super(dictionary);
+		}
+
+		@Override
+		protected Connection createConnection()
+		{
+			lastConnection = (Connection) Proxy.newProxyInstance( Connection.class.getClassLoader(), new Class[] { Connection.class }, new FakeConnection(this) );
+			return lastConnection;
+		}
+
+		@Override
+		protected boolean isValid(Connection connection)
+		{
+			return valid;
+		}
+	}
+
+	private static class FakeConnection implements InvocationHandler {
+		private final TestPool pool;
+		private boolean autoCommit = true;
+		private boolean readOnly;
+		private boolean closed;
+
+		FakeConnection(TestPool pool)
+		{
+			this.pool = pool;
+		}
+
+		public synchronized Object invoke(Object proxy, Method method, Object[] args) throws SQLException
+		{
+			String name = method.getName();
+			if ("getAutoCommit".equals(name)) {
+				return Boolean.valueOf(autoCommit);
+			}
+			if ("setAutoCommit".equals(name)) {
+				if (pool.failCheckout && !((Boolean) args[0]).booleanValue()) {
+					throw new SQLException("Checkout failed");
+				}
+				autoCommit = ((Boolean) args[0]).booleanValue();
+				return null;
+			}
+			if ("isReadOnly".equals(name)) {
+				return Boolean.valueOf(readOnly);
+			}
+			if ("setReadOnly".equals(name)) {
+				readOnly = ((Boolean) args[0]).booleanValue();
+				return null;
+			}
+			if ("isClosed".equals(name)) {
+				return Boolean.valueOf(closed);
+			}
+			if ("close".equals(name)) {
+				closed = true;
+				return null;
+			}
+			if ("isValid".equals(name)) {
+				return Boolean.valueOf(!closed);
+			}
+			if ("hashCode".equals(name)) {
+				return Integer.valueOf(System.identityHashCode(proxy));
+			}
+			if ("equals".equals(name)) {
+				return Boolean.valueOf(proxy == args[0]);
+			}
+			if ("toString".equals(name)) {
+				return "FakeConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+			}
+			return null;
+		}
+	}
+}
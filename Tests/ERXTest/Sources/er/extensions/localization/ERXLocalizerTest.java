@@ -0,0 +1,196 @@
+package er.extensions.localization;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableDictionary;
+
+import er.erxtest.ERXTestCase;
+
+public class ERXLocalizerTest extends ERXTestCase {
+	private static final String OTHER_LANGUAGE = "TestLanguage";
+
+	private Map<String, ERXLocalizer> localizers;
+	private boolean fallbackToDefaultLanguage;
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		localizers = ERXLocalizer.localizers;
+		ERXLocalizer.localizers = new ConcurrentHashMap<>();
+		fallbackToDefaultLanguage = ERXLocalizer.fallbackToDefaultLanguage();
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		ERXLocalizer.localizers = localizers;
+		ERXLocalizer.setFallbackToDefaultLanguage(fallbackToDefaultLanguage);
+		super.tearDown();
+	}
+
+	public void testLookupDuringLoad() throws Exception {
+		TestLocalizer localizer = new TestLocalizer(ERXLocalizer.defaultLanguage());
+		localizer.load(strings("title", "Title", "subtitle", "Subtitle"));
+
+		localizer.readStarted = new CountDownLatch(1);
+		localizer.finishRead = new CountDownLatch(1);
+		localizer.strings = strings("title", "New Title", "subtitle", "New Subtitle", "added", "Added");
+		Future<?> load = executor.submit(() -> localizer.load());
+		assertTrue(localizer.readStarted.await(10, TimeUnit.SECONDS));
+
+		// the old strings are used until all of the new ones are read
+		assertEquals("Title", localizer.localizedStringForKey("title"));
+		assertEquals("Subtitle", localizer.localizedStringForKey("subtitle"));
+		assertNull(localizer.localizedStringForKey("added"));
+		assertEquals("Title", executor.submit(() -> localizer.localizedStringForKey("title")).get());
+
+		localizer.finishRead.countDown();
+		load.get(10, TimeUnit.SECONDS);
+		assertEquals("New Title", localizer.localizedStringForKey("title"));
+		assertEquals("New Subtitle", localizer.localizedStringForKey("subtitle"));
+		assertEquals("Added", localizer.localizedStringForKey("added"));
+	}
+
+	public void testMissIsForgottenOnReload() {
+		TestLocalizer localizer = new TestLocalizer(ERXLocalizer.defaultLanguage());
+		localizer.load(strings("title", "Title"));
+		assertNull(localizer.localizedValueForKey("added"));
+		assertEquals("**NOT_FOUND**", localizer.cache().objectForKey("added"));
+		assertNull(localizer.localizedValueForKey("added"));
+
+		localizer.load(strings("title", "Title", "added", "Added"));
+		assertEquals("Added", localizer.localizedValueForKey("added"));
+		assertEquals("Added", localizer.cache().objectForKey("added"));
+	}
+
+	public void testFallbackToDefaultLanguage() {
+		TestLocalizer defaultLocalizer = new TestLocalizer(ERXLocalizer.defaultLanguage());
+		defaultLocalizer.load(strings("title", "Title", "subtitle", "Subtitle"));
+		ERXLocalizer.setLocalizerForLanguage(defaultLocalizer, ERXLocalizer.defaultLanguage());
+		TestLocalizer localizer = new TestLocalizer(OTHER_LANGUAGE);
+		localizer.load(strings("title", "Titel"));
+
+		ERXLocalizer.setFallbackToDefaultLanguage(false);
+		assertNull(localizer.localizedStringForKey("subtitle"));
+
+		ERXLocalizer.setFallbackToDefaultLanguage(true);
+		localizer.load();
+		assertEquals("Titel", localizer.localizedStringForKey("title"));
+		assertEquals("Subtitle", localizer.localizedStringForKey("subtitle"));
+		assertNull(localizer.localizedStringForKey("missing"));
+		assertNull(defaultLocalizer.localizedStringForKey("missing"));
+
+		// the value of the default language is remembered until the strings are reloaded
+		defaultLocalizer.load(strings("title", "Title", "subtitle", "New Subtitle"));
+		assertEquals("Subtitle", localizer.localizedStringForKey("subtitle"));
+		localizer.load();
+		assertEquals("New Subtitle", localizer.localizedStringForKey("subtitle"));
+	}
+
+	public void testSetCacheValueForKeyCopiesStrings() throws Exception {
+		NSMutableDictionary<String, Object> strings = new NSMutableDictionary<>();
+		for (int i = 0; i < 100; i++) {
+			strings.setObjectForKey("value" + i, "key" + i);
+		}
+		TestLocalizer localizer = new TestLocalizer(ERXLocalizer.defaultLanguage());
+		localizer.load(strings);
+
+		// reading the strings while they are replaced fails if they are changed in place
+		CountDownLatch done = new CountDownLatch(1);
+		Future<?> reader = executor.submit(() -> {
+			while (done.getCount() > 0) {
+				assertEquals(100, localizer.cache().count());
+			}
+			return null;
+		});
+		for (int i = 0; i < 10000; i++) {
+			localizer.setCacheValueForKey("replaced" + i, "key" + (i % 100));
+		}
+		done.countDown();
+		reader.get(10, TimeUnit.SECONDS);
+		assertEquals("replaced9999", localizer.localizedStringForKey("key99"));
+
+		localizer.setCacheValueForKey("Runtime", "runtime");
+		assertEquals("Runtime", localizer.localizedStringForKey("runtime"));
+		localizer.load();
+		assertEquals("value99", localizer.localizedStringForKey("key99"));
+		assertNull(localizer.localizedStringForKey("runtime"));
+	}
+
+	@SuppressWarnings("deprecation")
+	public void testPlurifiedStrings() {
+		TestLocalizer localizer = new TestLocalizer(ERXLocalizer.defaultLanguage());
+		localizer.load(strings(ERXLocalizer.KEY_LOCALIZER_EXCEPTIONS, strings("Cactus", "Cacti", "Cactus.1", "Cactus")));
+		assertEquals("People", localizer.plurifiedString("Person", 2));
+		assertEquals("Person", localizer.plurifiedString("Person", 1));
+		assertEquals("Cacti", localizer.plurifiedString("Cactus", 2));
+		assertEquals("Cactus", localizer.plurifiedString("Cactus", 1));
+
+		// the exceptions of the added entries are merged into the loaded ones
+		localizer.addEntriesToCache(strings(ERXLocalizer.KEY_LOCALIZER_EXCEPTIONS, strings("Person", "Persons")));
+		assertEquals("Persons", localizer.plurifiedString("Person", 2));
+		assertEquals("Cacti", localizer.plurifiedString("Cactus", 2));
+	}
+
+	public void testTemplateStrings() {
+		TestLocalizer localizer = new TestLocalizer(ERXLocalizer.defaultLanguage());
+		localizer.load(strings("greeting", "Hello @@name@@", "count", "@@pluralCount@@ @@pluralString@@"));
+		assertEquals("Hello World", localizer.localizedTemplateStringForKeyWithObject("greeting", strings("name", "World")));
+		assertEquals("2 People", localizer.plurifiedStringWithTemplateForKey("count", "Person", 2, null));
+		assertEquals("1 Person", localizer.plurifiedStringWithTemplateForKey("count", "Person", 1, null));
+		assertEquals("missing", localizer.localizedTemplateStringForKeyWithObject("missing", strings("name", "World")));
+	}
+
+	private static NSMutableDictionary<String, Object> strings(Object... keysAndValues) {
+		NSMutableDictionary<String, Object> strings = new NSMutableDictionary<>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			strings.setObjectForKey(keysAndValues[i + 1], (String) keysAndValues[i]);
+		}
+		return strings;
+	}
+
+	/**
+	 * A localizer that loads the given strings instead of the strings files.
+	 */
+	private static class TestLocalizer extends ERXLocalizer {
+		volatile NSDictionary<String, Object> strings;
+		volatile CountDownLatch readStarted;
+		volatile CountDownLatch finishRead;
+
+		TestLocalizer(String language) {
+			super(language);
+		}
+
+		void load(NSDictionary<String, Object> value) {
+			strings = value;
+			load();
+		}
+
+		@Override
+		protected NSMutableDictionary<String, Object> readStrings() {
+			NSMutableDictionary<String, Object> result = new NSMutableDictionary<>();
+			if (strings != null) {
+				addEntriesToCache(result, strings);
+			}
+			if (readStarted != null) {
+				readStarted.countDown();
+				try {
+					finishRead.await(10, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return result;
+		}
+	}
+}
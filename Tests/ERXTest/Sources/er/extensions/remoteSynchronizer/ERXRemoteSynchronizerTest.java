@@ -0,0 +1,253 @@
+package er.extensions.remoteSynchronizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.eocontrol.EOKeyGlobalID;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableArray;
+
+import er.erxtest.ERXTestCase;
+import er.erxtest.model.Company;
+import er.erxtest.model.Employee;
+import er.extensions.eof.ERXDatabase;
+import er.extensions.eof.ERXObjectStoreCoordinatorSynchronizer.Change;
+import er.extensions.eof.ERXObjectStoreCoordinatorSynchronizer.IChangeListener;
+import er.extensions.foundation.ERXProperties;
+
+public class ERXRemoteSynchronizerTest extends ERXTestCase {
+	private static final String COMPRESSION_THRESHOLD_KEY = "er.extensions.remoteSynchronizer.compressionThreshold";
+	private static final String COALESCE_WINDOW_KEY = "er.extensions.remoteSynchronizer.coalesceWindow";
+	private static final String WIRE_FORMAT_VERSION_KEY = "er.extensions.remoteSynchronizer.wireFormatVersion";
+	private static final String MAX_BATCH_SIZE_KEY = "er.extensions.remoteSynchronizer.maxBatchSize";
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		ERXProperties.setStringForKey("2", WIRE_FORMAT_VERSION_KEY);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ERXProperties.setStringForKey("1", WIRE_FORMAT_VERSION_KEY);
+		ERXProperties.setStringForKey("512", COMPRESSION_THRESHOLD_KEY);
+		ERXProperties.setStringForKey("0", COALESCE_WINDOW_KEY);
+		ERXProperties.setStringForKey(String.valueOf(16 * 1024 * 1024), MAX_BATCH_SIZE_KEY);
+		super.tearDown();
+	}
+
+	public void testBatchRoundTrip() throws IOException {
+		TestSynchronizer synchronizer = new TestSynchronizer();
+		NSMutableArray<ERXDatabase.CacheChange> cacheChanges = new NSMutableArray<>();
+		NSMutableArray<EOGlobalID> employeeGIDs = new NSMutableArray<>();
+		for (int i = 0; i < 300; i++) {
+			cacheChanges.addObject(new ERXDatabase.SnapshotUpdated(companyGID(1000 + i * (i % 3 == 0 ? 1 : 7)), null));
+			employeeGIDs.addObject(EOKeyGlobalID.globalIDWithEntityName(Employee.ENTITY_NAME, new Object[] { Integer.valueOf(i) }));
+		}
+		cacheChanges.addObject(new ERXDatabase.SnapshotInserted(companyGID(-5), null));
+		cacheChanges.addObject(new ERXDatabase.SnapshotDeleted(companyGID(Integer.MAX_VALUE), null));
+		cacheChanges.addObject(new ERXDatabase.ToManySnapshotUpdated(companyGID(1), Company.EMPLOYEES_KEY, employeeGIDs, null, true));
+
+		NSArray<ERXDatabase.CacheChange> decodedChanges = roundTrip(synchronizer, cacheChanges);
+
+		assertEquals(cacheChanges.count(), decodedChanges.count());
+		for (int i = 0; i < 300; i++) {
+			assertTrue(decodedChanges.objectAtIndex(i) instanceof ERXDatabase.SnapshotUpdated);
+		}
+		NSMutableArray<EOGlobalID> sentGIDs = new NSMutableArray<>();
+		NSMutableArray<EOGlobalID> receivedGIDs = new NSMutableArray<>();
+		for (int i = 0; i < 302; i++) {
+			sentGIDs.addObject(cacheChanges.objectAtIndex(i).gid());
+			receivedGIDs.addObject(decodedChanges.objectAtIndex(i).gid());
+		}
+		assertEquals(new java.util.HashSet<>(sentGIDs), new java.util.HashSet<>(receivedGIDs));
+
+		ERXDatabase.ToManySnapshotUpdated toManyChange = (ERXDatabase.ToManySnapshotUpdated) decodedChanges.lastObject();
+		assertEquals(companyGID(1), toManyChange.gid());
+		assertEquals(Company.EMPLOYEES_KEY, toManyChange.name());
+		assertEquals(employeeGIDs, toManyChange.addedGIDs());
+		assertEquals(0, toManyChange.removedGIDs().count());
+		assertTrue(toManyChange.removeAll());
+	}
+
+	public void testBatchIsSmallerThanVersion1() throws IOException {
+		ERXProperties.setStringForKey("1", COMPRESSION_THRESHOLD_KEY);
+		TestSynchronizer synchronizer = new TestSynchronizer();
+		NSMutableArray<ERXDatabase.CacheChange> cacheChanges = new NSMutableArray<>();
+		for (int i = 0; i < 1000; i++) {
+			cacheChanges.addObject(new ERXDatabase.SnapshotUpdated(EOKeyGlobalID.globalIDWithEntityName(Company.ENTITY_NAME, new Object[] { "Company " + i }), null));
+		}
+		ERXRemoteSynchronizer.RefByteArrayOutputStream version1 = new ERXRemoteSynchronizer.RefByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(version1);
+		for (ERXDatabase.CacheChange cacheChange : cacheChanges) {
+			synchronizer._writeCacheChange(dos, cacheChange);
+		}
+		dos.flush();
+
+		byte[] version2 = encode(synchronizer, cacheChanges);
+		assertTrue(version2.length * 4 < version1.size());
+		assertEquals(cacheChanges.count(), decode(synchronizer, version2).count());
+	}
+
+	public void testVersionDetection() throws IOException {
+		TestSynchronizer synchronizer = new TestSynchronizer();
+		DataInputStream version1 = new DataInputStream(new ByteArrayInputStream(new byte[] { 0, 0, 0, 1, 3 }));
+		assertEquals(ERXRemoteSynchronizer.WIRE_FORMAT_VERSION_1, synchronizer.readWireFormatVersion(version1));
+		assertEquals(1, version1.readInt());
+
+		DataInputStream version3 = new DataInputStream(new ByteArrayInputStream(new byte[] { (byte) 0xFE, (byte) 0xED, 3, 0 }));
+		try {
+			synchronizer.readWireFormatVersion(version3);
+			fail("Expected version 3 to be rejected");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testBatchLongerThanMessageIsRejected() throws IOException {
+		TestSynchronizer synchronizer = new TestSynchronizer();
+		ERXRemoteSynchronizer.RefByteArrayOutputStream baos = new ERXRemoteSynchronizer.RefByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		synchronizer.writeWireFormatHeader(dos);
+		dos.writeByte(0);
+		ERXRemoteSynchronizer.writeVarLong(dos, Integer.MAX_VALUE);
+		dos.writeInt(0);
+		dos.flush();
+		try {
+			decode(synchronizer, baos.toByteArray());
+			fail("Expected a batch longer than the message to be rejected");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testBatchLargerThanMaxBatchSizeIsRejected() throws IOException {
+		ERXProperties.setStringForKey("0", COMPRESSION_THRESHOLD_KEY);
+		NSMutableArray<ERXDatabase.CacheChange> cacheChanges = new NSMutableArray<>();
+		for (int i = 0; i < 100; i++) {
+			cacheChanges.addObject(new ERXDatabase.SnapshotUpdated(EOKeyGlobalID.globalIDWithEntityName(Company.ENTITY_NAME, new Object[] { "Company " + i }), null));
+		}
+		byte[] bytes = encode(new TestSynchronizer(), cacheChanges);
+
+		ERXProperties.setStringForKey(String.valueOf(bytes.length / 2), MAX_BATCH_SIZE_KEY);
+		try {
+			decode(new TestSynchronizer(), bytes);
+			fail("Expected a batch larger than the max batch size to be rejected");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testInflatedBatchLargerThanMaxBatchSizeIsRejected() throws IOException {
+		ERXProperties.setStringForKey("1", COMPRESSION_THRESHOLD_KEY);
+		StringBuilder prefix = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			prefix.append('x');
+		}
+		NSMutableArray<ERXDatabase.CacheChange> cacheChanges = new NSMutableArray<>();
+		for (int i = 0; i < 1000; i++) {
+			cacheChanges.addObject(new ERXDatabase.SnapshotUpdated(EOKeyGlobalID.globalIDWithEntityName(Company.ENTITY_NAME, new Object[] { prefix.toString() + i }), null));
+		}
+		byte[] bytes = encode(new TestSynchronizer(), cacheChanges);
+		assertTrue(bytes.length < 50000);
+		assertEquals(cacheChanges.count(), decode(new TestSynchronizer(), bytes).count());
+
+		ERXProperties.setStringForKey("50000", MAX_BATCH_SIZE_KEY);
+		try {
+			decode(new TestSynchronizer(), bytes);
+			fail("Expected a batch that inflates beyond the max batch size to be rejected");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testVersion1WritesNoHeader() throws IOException {
+		ERXProperties.setStringForKey("1", WIRE_FORMAT_VERSION_KEY);
+		TestSynchronizer synchronizer = new TestSynchronizer();
+		assertEquals(ERXRemoteSynchronizer.WIRE_FORMAT_VERSION_1, synchronizer.wireFormatVersion());
+		ERXRemoteSynchronizer.RefByteArrayOutputStream baos = new ERXRemoteSynchronizer.RefByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		synchronizer.writeWireFormatHeader(dos);
+		dos.flush();
+		assertEquals(0, baos.size());
+	}
+
+	public void testCoalescing() throws Throwable {
+		ERXProperties.setStringForKey("60000", COALESCE_WINDOW_KEY);
+		TestSynchronizer synchronizer = new TestSynchronizer();
+		synchronizer.writeCacheChanges(1, new NSArray<ERXDatabase.CacheChange>(new ERXDatabase.CacheChange[] { new ERXDatabase.SnapshotUpdated(companyGID(1), null), new ERXDatabase.SnapshotInserted(companyGID(2), null) }));
+		synchronizer.writeCacheChanges(2, new NSArray<ERXDatabase.CacheChange>(new ERXDatabase.CacheChange[] { new ERXDatabase.SnapshotUpdated(companyGID(1), null), new ERXDatabase.SnapshotUpdated(companyGID(3), null) }));
+		assertEquals(0, synchronizer.writtenCacheChanges.count());
+
+		synchronizer.flushCacheChanges();
+		assertEquals(1, synchronizer.writtenCacheChanges.count());
+		NSArray<ERXDatabase.CacheChange> cacheChanges = synchronizer.writtenCacheChanges.objectAtIndex(0);
+		assertEquals(3, cacheChanges.count());
+		assertEquals(companyGID(1), cacheChanges.objectAtIndex(0).gid());
+		assertEquals(companyGID(3), cacheChanges.objectAtIndex(2).gid());
+	}
+
+	private static EOKeyGlobalID companyGID(int id) {
+		return EOKeyGlobalID.globalIDWithEntityName(Company.ENTITY_NAME, new Object[] { Integer.valueOf(id) });
+	}
+
+	private static NSArray<ERXDatabase.CacheChange> roundTrip(TestSynchronizer synchronizer, NSArray<ERXDatabase.CacheChange> cacheChanges) throws IOException {
+		return decode(synchronizer, encode(synchronizer, cacheChanges));
+	}
+
+	private static byte[] encode(TestSynchronizer synchronizer, NSArray<ERXDatabase.CacheChange> cacheChanges) throws IOException {
+		ERXRemoteSynchronizer.RefByteArrayOutputStream baos = new ERXRemoteSynchronizer.RefByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		synchronizer.writeWireFormatHeader(dos);
+		synchronizer.writeCacheChangeBatch(dos, cacheChanges);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	private static NSArray<ERXDatabase.CacheChange> decode(TestSynchronizer synchronizer, byte[] bytes) throws IOException {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+		assertEquals(ERXRemoteSynchronizer.WIRE_FORMAT_VERSION_2, synchronizer.readWireFormatVersion(dis));
+		NSArray<ERXDatabase.CacheChange> cacheChanges = synchronizer.readCacheChangeBatch(dis);
+		assertEquals(-1, dis.read());
+		return cacheChanges;
+	}
+
+	private static class TestSynchronizer extends ERXRemoteSynchronizer {
+		NSMutableArray<NSArray<ERXDatabase.CacheChange>> writtenCacheChanges = new NSMutableArray<>();
+
+		TestSynchronizer() {
+			super(new IChangeListener() {
+				public void addChange(Change changes) {
+					// ignored
+				}
+			});
+		}
+
+		@Override
+		public void join() {
+			// nothing to join
+		}
+
+		@Override
+		public void leave() {
+			// nothing to leave
+		}
+
+		@Override
+		public void listen() {
+			// nothing to listen to
+		}
+
+		@Override
+		protected void _writeCacheChanges(int transactionID, NSArray<ERXDatabase.CacheChange> cacheChanges) {
+			writtenCacheChanges.addObject(cacheChanges);
+		}
+	}
+}
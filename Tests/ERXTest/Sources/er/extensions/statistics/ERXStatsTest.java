@@ -0,0 +1,168 @@
+package er.extensions.statistics;
+
+import er.erxtest.ERXTestCase;
+import er.extensions.foundation.ERXProperties;
+import er.extensions.statistics.ERXStats.LatencyHistogram;
+import er.extensions.statistics.ERXStats.LogEntry;
+
+public class ERXStatsTest extends ERXTestCase {
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		ERXStats.reset();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ERXStats.reset();
+		super.tearDown();
+	}
+
+	public void testBucketIndex() {
+		assertEquals(0, LatencyHistogram.bucketIndex(-1));
+		for (int value = 0; value < 16; value++) {
+			assertEquals(value, LatencyHistogram.bucketIndex(value));
+			assertEquals(value, LatencyHistogram.highestValueInBucket(value));
+		}
+		// each power of two starts 16 sub-buckets of the same width
+		for (int exponent = 4; exponent <= 40; exponent++) {
+			long powerOfTwo = 1L << exponent;
+			int firstIndex = 16 * (exponent - 3);
+			assertEquals(firstIndex - 1, LatencyHistogram.bucketIndex(powerOfTwo - 1));
+			for (int subBucket = 0; subBucket < 16; subBucket++) {
+				long lowestValue = powerOfTwo + subBucket * (powerOfTwo >> 4);
+				assertEquals(firstIndex + subBucket, LatencyHistogram.bucketIndex(lowestValue));
+				assertEquals(lowestValue + (powerOfTwo >> 4) - 1, LatencyHistogram.highestValueInBucket(firstIndex + subBucket));
+			}
+		}
+		int lastIndex = 16 * 38 - 1;
+		assertEquals(lastIndex, LatencyHistogram.bucketIndex(1L << 41));
+		assertEquals(lastIndex, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+	}
+
+	public void testBucketError() {
+		for (long value = 16; value < 1L << 40; value = value * 3 / 2 + 1) {
+			long highestValue = LatencyHistogram.highestValueInBucket(LatencyHistogram.bucketIndex(value));
+			assertTrue(value + " -> " + highestValue, highestValue >= value && highestValue - value <= value / 16);
+		}
+	}
+
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.valueAtPercentile(50.0));
+		for (long value = 1; value <= 10000; value++) {
+			histogram.record(value);
+		}
+		assertPercentile(5000, histogram.valueAtPercentile(50.0));
+		assertPercentile(9500, histogram.valueAtPercentile(95.0));
+		assertPercentile(9900, histogram.valueAtPercentile(99.0));
+		assertPercentile(10000, histogram.valueAtPercentile(100.0));
+		assertPercentile(1, histogram.valueAtPercentile(0.0));
+
+		// a few slow values only show up in the highest percentiles
+		LatencyHistogram skewed = new LatencyHistogram();
+		for (int i = 0; i < 990; i++) {
+			skewed.record(10);
+		}
+		for (int i = 0; i < 10; i++) {
+			skewed.record(1000);
+		}
+		assertEquals(10, skewed.valueAtPercentile(50.0));
+		assertEquals(10, skewed.valueAtPercentile(99.0));
+		assertPercentile(1000, skewed.valueAtPercentile(99.9));
+
+		// merging gives the same percentiles as recording all of the values in one histogram
+		LatencyHistogram merged = new LatencyHistogram();
+		merged.add(histogram);
+		merged.add(skewed);
+		LatencyHistogram expected = new LatencyHistogram();
+		for (long value = 1; value <= 10000; value++) {
+			expected.record(value);
+		}
+		for (int i = 0; i < 990; i++) {
+			expected.record(10);
+		}
+		for (int i = 0; i < 10; i++) {
+			expected.record(1000);
+		}
+		for (double percentile : new double[] { 10.0, 50.0, 95.0, 99.0 }) {
+			assertEquals(expected.valueAtPercentile(percentile), merged.valueAtPercentile(percentile));
+		}
+	}
+
+	public void testAggregatePercentiles() {
+		for (long duration = 1; duration <= 1000; duration++) {
+			ERXStats.addDurationForKey(duration, "query");
+		}
+		LogEntry entry = aggregateLogEntry(" .query");
+		assertEquals(1000, entry.count());
+		assertEquals(1000, entry.max());
+		assertPercentile(500, entry.p50());
+		assertPercentile(950, entry.p95());
+		assertPercentile(990, entry.p99());
+		// capped at the highest duration, which is below the end of its bucket
+		assertEquals(1000, entry.valueAtPercentile(100.0));
+		assertEquals(Long.valueOf(entry.p99()), entry.statistics().objectForKey("p99"));
+
+		// the entries of the thread don't keep a histogram
+		assertEquals(-1, ERXStats.logEntryForKey(ERXStats.Group.Default, "query").p50());
+	}
+
+	public void testReset() {
+		ERXStats.addDurationForKey(1000, "query");
+		assertEquals(1, ERXStats.aggregateKeys().count());
+		assertEquals(1, ERXStats.statistics().count());
+
+		ERXStats.reset();
+		assertEquals(0, ERXStats.aggregateKeys().count());
+		assertEquals(0, ERXStats.aggregateLogEntries().count());
+		assertEquals(0, ERXStats.statistics().count());
+
+		ERXStats.addDurationForKey(7, "query");
+		LogEntry entry = aggregateLogEntry(" .query");
+		assertEquals(1, entry.count());
+		assertEquals(7, entry.max());
+		assertEquals(7, entry.p99());
+		assertEquals(1, ERXStats.logEntryForKey(" .query").count());
+	}
+
+	public void testOverflowKey() {
+		int maxKeys = ERXProperties.intForKeyWithDefault(ERXStats.STATS_MAX_KEY, 1000);
+		for (int i = 0; i < maxKeys + 10; i++) {
+			ERXStats.addDurationForKey(i, "key" + i);
+		}
+		assertEquals(maxKeys + 1, ERXStats.aggregateKeys().count());
+		assertTrue(ERXStats.aggregateKeys().containsObject(ERXStats.OVERFLOW_KEY));
+		assertFalse(ERXStats.aggregateKeys().containsObject(" .key" + maxKeys));
+		LogEntry overflow = aggregateLogEntry(ERXStats.OVERFLOW_KEY);
+		assertEquals(10, overflow.count());
+		assertEquals(maxKeys + 9, overflow.max());
+
+		// the keys that were aggregated before the limit keep their entries
+		ERXStats.addDurationForKey(5, "key0");
+		assertEquals(2, aggregateLogEntry(" .key0").count());
+		assertEquals(10, overflow.count());
+		ERXStats.addDurationForKey(5, "key" + (maxKeys + 20));
+		assertEquals(11, overflow.count());
+		assertEquals(maxKeys + 1, ERXStats.aggregateKeys().count());
+	}
+
+	/**
+	 * The histogram reports the highest value of the bucket, which is at most
+	 * a sixteenth above the exact percentile.
+	 */
+	private static void assertPercentile(long expected, long actual) {
+		assertTrue(expected + " -> " + actual, actual >= expected && actual - expected <= expected / 16);
+	}
+
+	private static LogEntry aggregateLogEntry(String key) {
+		for (LogEntry entry : ERXStats.aggregateLogEntries()) {
+			if (entry.key().equals(key)) {
+				return entry;
+			}
+		}
+		fail("No aggregate entry for " + key);
+		return null;
+	}
+}
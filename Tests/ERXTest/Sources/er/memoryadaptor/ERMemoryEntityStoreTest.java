@@ -0,0 +1,116 @@
+package er.memoryadaptor;
+
+import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EOModelGroup;
+import com.webobjects.eocontrol.EOFetchSpecification;
+import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+
+import er.erxtest.ERXTestCase;
+import er.erxtest.model.Employee;
+import er.extensions.eof.ERXQ;
+
+public class ERMemoryEntityStoreTest extends ERXTestCase {
+	private static final String COMPANY_ID_KEY = "companyID";
+
+	private EOEntity entity;
+	private ERMemoryEntityStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		entity = EOModelGroup.defaultGroup().entityNamed(Employee.ENTITY_NAME);
+		store = new ERMemoryEntityStore();
+		for (int i = 0; i < 100; i++) {
+			NSMutableDictionary<String, Object> row = new NSMutableDictionary<>();
+			row.setObjectForKey(Integer.valueOf(i), "id");
+			row.setObjectForKey(Integer.valueOf(i % 10), COMPANY_ID_KEY);
+			row.setObjectForKey("First " + i, Employee.FIRST_NAME_KEY);
+			row.setObjectForKey("Last " + (1000 + i), Employee.LAST_NAME_KEY);
+			store.insertRow(row, entity);
+		}
+	}
+
+	public void testPrimaryKeyUsesIndex() {
+		EOQualifier qualifier = ERXQ.is("id", Integer.valueOf(42));
+		assertEquals(1, store._candidateRows(qualifier, entity).count());
+
+		NSArray<NSMutableDictionary<String, Object>> rows = fetch(qualifier, null, 0);
+		assertEquals(1, rows.count());
+		assertEquals("First 42", rows.objectAtIndex(0).objectForKey(Employee.FIRST_NAME_KEY));
+	}
+
+	public void testForeignKeyAndRange() {
+		store.addIndex(entity.attributeNamed(Employee.LAST_NAME_KEY).columnName(), true);
+		EOQualifier qualifier = ERXQ.and(ERXQ.is(COMPANY_ID_KEY, Integer.valueOf(3)), ERXQ.greaterThanOrEqualTo(Employee.LAST_NAME_KEY, "Last 1050"));
+		assertEquals(10, store._candidateRows(qualifier, entity).count());
+
+		NSArray<NSMutableDictionary<String, Object>> rows = fetch(qualifier, null, 0);
+		assertEquals(5, rows.count());
+		for (NSMutableDictionary<String, Object> row : rows) {
+			assertTrue(qualifier.evaluateWithObject(row));
+		}
+
+		EOQualifier rangeQualifier = ERXQ.and(ERXQ.greaterThan(Employee.LAST_NAME_KEY, "Last 1010"), ERXQ.lessThanOrEqualTo(Employee.LAST_NAME_KEY, "Last 1020"));
+		assertEquals(10, store._candidateRows(rangeQualifier, entity).count());
+		assertEquals(10, fetch(rangeQualifier, null, 0).count());
+	}
+
+	public void testOrAndIn() {
+		EOQualifier qualifier = ERXQ.in("id", new NSArray<>(new Integer[] { Integer.valueOf(1), Integer.valueOf(2), Integer.valueOf(200) }));
+		assertEquals(2, store._candidateRows(qualifier, entity).count());
+		assertEquals(2, fetch(qualifier, null, 0).count());
+
+		EOQualifier unindexedQualifier = ERXQ.or(ERXQ.is("id", Integer.valueOf(1)), ERXQ.is(Employee.FIRST_NAME_KEY, "First 2"));
+		assertNull(store._candidateRows(unindexedQualifier, entity));
+		assertEquals(2, fetch(unindexedQualifier, null, 0).count());
+	}
+
+	public void testUpdateAndDeleteMaintainIndexes() {
+		NSDictionary<String, Object> updatedRow = new NSDictionary<>(Integer.valueOf(99), COMPANY_ID_KEY);
+		assertEquals(10, store.updateValuesInRowsDescribedByQualifier(updatedRow, ERXQ.is(COMPANY_ID_KEY, Integer.valueOf(3)), entity));
+		assertEquals(0, fetch(ERXQ.is(COMPANY_ID_KEY, Integer.valueOf(3)), null, 0).count());
+		assertEquals(10, fetch(ERXQ.is(COMPANY_ID_KEY, Integer.valueOf(99)), null, 0).count());
+
+		assertEquals(1, store.deleteRowsDescribedByQualifier(ERXQ.is("id", Integer.valueOf(13)), entity));
+		assertEquals(0, store._candidateRows(ERXQ.is("id", Integer.valueOf(13)), entity).count());
+		assertEquals(9, fetch(ERXQ.is(COMPANY_ID_KEY, Integer.valueOf(99)), null, 0).count());
+		assertEquals(99, fetch(null, null, 0).count());
+	}
+
+	public void testTransactionStore() {
+		ERMemoryEntityStore transactionStore = store.transactionStore();
+		NSDictionary<String, Object> updatedRow = new NSDictionary<>(Integer.valueOf(99), COMPANY_ID_KEY);
+		transactionStore.updateValuesInRowsDescribedByQualifier(updatedRow, ERXQ.is("id", Integer.valueOf(7)), entity);
+		transactionStore.deleteRowsDescribedByQualifier(ERXQ.is("id", Integer.valueOf(8)), entity);
+		assertEquals(0, fetch(ERXQ.is(COMPANY_ID_KEY, Integer.valueOf(99)), null, 0).count());
+		assertEquals(1, fetch(ERXQ.is("id", Integer.valueOf(8)), null, 0).count());
+
+		store.commitFromTransactionStore(transactionStore);
+		assertEquals(1, fetch(ERXQ.is(COMPANY_ID_KEY, Integer.valueOf(99)), null, 0).count());
+		assertEquals(0, fetch(ERXQ.is("id", Integer.valueOf(8)), null, 0).count());
+	}
+
+	public void testSortedFetchLimit() {
+		store.addIndex(entity.attributeNamed(Employee.LAST_NAME_KEY).columnName(), true);
+		NSArray<NSMutableDictionary<String, Object>> rows = fetch(ERXQ.is(COMPANY_ID_KEY, Integer.valueOf(4)), Employee.LAST_NAME.descs(), 2);
+		assertEquals(2, rows.count());
+		assertEquals("Last 1094", rows.objectAtIndex(0).objectForKey(Employee.LAST_NAME_KEY));
+		assertEquals("Last 1084", rows.objectAtIndex(1).objectForKey(Employee.LAST_NAME_KEY));
+
+		rows = fetch(null, Employee.LAST_NAME.ascs(), 3);
+		assertEquals(3, rows.count());
+		assertEquals("Last 1000", rows.objectAtIndex(0).objectForKey(Employee.LAST_NAME_KEY));
+		assertEquals("Last 1002", rows.objectAtIndex(2).objectForKey(Employee.LAST_NAME_KEY));
+	}
+
+	private NSArray<NSMutableDictionary<String, Object>> fetch(EOQualifier qualifier, NSArray sortOrderings, int fetchLimit) {
+		EOFetchSpecification fetchSpec = new EOFetchSpecification(Employee.ENTITY_NAME, qualifier, sortOrderings);
+		fetchSpec.setFetchLimit(fetchLimit);
+		NSMutableArray<NSMutableDictionary<String, Object>> rows = store.fetch(entity.attributesToFetch(), fetchSpec, false, entity, null);
+		return rows;
+	}
+}
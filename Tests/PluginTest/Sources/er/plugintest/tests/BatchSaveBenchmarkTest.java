@@ -0,0 +1,88 @@
+package er.plugintest.tests;
+
+import com.webobjects.foundation.NSMutableArray;
+
+import er.extensions.eof.ERXEC;
+import er.extensions.eof.ERXEOControlUtilities;
+import er.extensions.jdbc.ERXJDBCAdaptor;
+import er.plugintest.model.City;
+
+/**
+ * Measures the save throughput of inserts, updates and deletes with different
+ * values of <code>er.extensions.ERXJDBCAdaptor.batchSize</code>. Run it against
+ * H2 or Derby by configuring the plugin as described in the README and turn
+ * <code>er.transaction.adaptor.EOAdaptorDebugEnabled</code> off, otherwise
+ * the logging of the single statements dominates the numbers.
+ */
+public class BatchSaveBenchmarkTest extends PluginTest {
+
+	private static final int ROWS = 5000;
+
+	private static final int[] BATCH_SIZES = { 0, 10, 100, 1000 };
+
+	private int batchSize;
+
+	public BatchSaveBenchmarkTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		batchSize = ERXJDBCAdaptor.batchSize();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ERXJDBCAdaptor.setBatchSize(batchSize);
+		super.tearDown();
+	}
+
+	public void testSaveThroughput() {
+		for (int size : BATCH_SIZES) {
+			ERXJDBCAdaptor.setBatchSize(size);
+			ERXEC ec = (ERXEC) ERXEC.newEditingContext();
+			ec.lock();
+			try {
+				NSMutableArray<City> cities = new NSMutableArray<>();
+				for (int i = 0; i < ROWS; i++) {
+					City city = City.createCity(ec, "Batch City " + i);
+					city.setDistict("Batch");
+					city.setPopulation(i);
+					cities.addObject(city);
+				}
+				long insertTime = timeSaveChanges(ec);
+				assertEquals(Integer.valueOf(ROWS), ERXEOControlUtilities.objectCountWithQualifier(ec, City.ENTITY_NAME, City.DISTICT.eq("Batch")));
+
+				for (City city : cities) {
+					city.setPopulation(city.population().intValue() + 1);
+				}
+				long updateTime = timeSaveChanges(ec);
+
+				for (City city : cities.immutableClone()) {
+					city.delete();
+				}
+				long deleteTime = timeSaveChanges(ec);
+				assertEquals(Integer.valueOf(0), ERXEOControlUtilities.objectCountWithQualifier(ec, City.ENTITY_NAME, City.DISTICT.eq("Batch")));
+
+				log.info(adaptorName() + " batchSize=" + size + ": " + rowsPerSecond(insertTime) + " inserts/s, " + rowsPerSecond(updateTime) + " updates/s, " + rowsPerSecond(deleteTime) + " deletes/s");
+			} finally {
+				ec.unlock();
+			}
+		}
+	}
+
+	private String adaptorName() {
+		return model.adaptorName() + " " + model.connectionDictionary().objectForKey("URL");
+	}
+
+	private static long timeSaveChanges(ERXEC ec) {
+		long start = System.nanoTime();
+		ec.saveChanges();
+		return System.nanoTime() - start;
+	}
+
+	private static long rowsPerSecond(long nanos) {
+		return ROWS * 1000000000L / Math.max(1L, nanos);
+	}
+}
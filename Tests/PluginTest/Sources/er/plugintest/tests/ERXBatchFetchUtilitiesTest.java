@@ -0,0 +1,233 @@
+package er.plugintest.tests;
+
+import com.webobjects.eoaccess.EOAdaptorChannel;
+import com.webobjects.eoaccess.EODatabase;
+import com.webobjects.eoaccess.EODatabaseContext;
+import com.webobjects.eoaccess.EOSQLExpression;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOFaultHandler;
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.eocontrol.EOSortOrdering;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSSet;
+
+import er.extensions.eof.ERXBatchFetchUtilities;
+import er.extensions.eof.ERXEC;
+import er.extensions.eof.ERXObjectStoreCoordinator;
+import er.plugintest.model.City;
+import er.plugintest.model.Country;
+
+/**
+ * Batch fetches the keypaths of the countries in parallel and one after the other and
+ * compares the objects and snapshots both leave in the calling coordinator. Each editing
+ * context gets a coordinator of its own, so it starts without snapshots.
+ */
+public class ERXBatchFetchUtilitiesTest extends PluginTest {
+
+	private static final NSArray<String> KEY_PATHS = new NSArray<>(new String[] { "capital", "cities.country", "countryLanguages" });
+
+	private int parallelism;
+	private NSMutableArray<EOEditingContext> editingContexts;
+	private NSMutableArray<ERXObjectStoreCoordinator> coordinators;
+
+	public ERXBatchFetchUtilitiesTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		createTables();
+		resetData();
+		executeUpdateScript("update country set capitalID = 5000 where id = 9998");
+		parallelism = ERXBatchFetchUtilities.parallelism();
+		editingContexts = new NSMutableArray<>();
+		coordinators = new NSMutableArray<>();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ERXBatchFetchUtilities.setParallelism(parallelism);
+		for (EOEditingContext ec : editingContexts) {
+			ec.unlock();
+			ec.dispose();
+		}
+		for (ERXObjectStoreCoordinator osc : coordinators) {
+			osc.dispose();
+		}
+		super.tearDown();
+	}
+
+	public void testParallelFetchMatchesSerialFetch() {
+		ERXBatchFetchUtilities.setParallelism(1);
+		EOEditingContext serialEC = newEditingContext();
+		NSArray<Country> serialCountries = countries(serialEC);
+		ERXBatchFetchUtilities.batchFetch(serialCountries, KEY_PATHS, true);
+
+		ERXBatchFetchUtilities.setParallelism(4);
+		EOEditingContext parallelEC = newEditingContext();
+		NSArray<Country> parallelCountries = countries(parallelEC);
+		ExpressionCounter counter = ExpressionCounter.install(databaseContext(parallelEC));
+		ERXBatchFetchUtilities.batchFetch(parallelCountries, KEY_PATHS, true);
+		// everything was fetched on the coordinators of the parallel fetcher
+		assertEquals(0, counter.count);
+
+		assertEquals(globalIDs(serialEC, serialCountries), globalIDs(parallelEC, parallelCountries));
+		for (int i = 0; i < serialCountries.count(); i++) {
+			assertFaulted(serialCountries.objectAtIndex(i));
+			assertFaulted(parallelCountries.objectAtIndex(i));
+			assertSameGraph(serialCountries.objectAtIndex(i), parallelCountries.objectAtIndex(i));
+		}
+		// the countries, their cities and their languages
+		assertEquals(33, serialEC.registeredObjects().count());
+
+		NSSet<EOGlobalID> serialGlobalIDs = registeredGlobalIDs(serialEC);
+		assertEquals(serialGlobalIDs, registeredGlobalIDs(parallelEC));
+		EODatabase serialDatabase = databaseContext(serialEC).database();
+		EODatabase parallelDatabase = databaseContext(parallelEC).database();
+		for (EOGlobalID gid : serialGlobalIDs) {
+			assertNotNull(serialDatabase.snapshotForGlobalID(gid));
+			assertEquals(serialDatabase.snapshotForGlobalID(gid), parallelDatabase.snapshotForGlobalID(gid));
+		}
+		for (EOGlobalID gid : globalIDs(serialEC, serialCountries)) {
+			for (String relationshipName : new String[] { Country.CITIES_KEY, Country.COUNTRY_LANGUAGES_KEY }) {
+				NSArray serialSnapshot = serialDatabase.snapshotForSourceGlobalID(gid, relationshipName);
+				assertNotNull(serialSnapshot);
+				assertEquals(new NSSet<>(serialSnapshot), new NSSet<>(parallelDatabase.snapshotForSourceGlobalID(gid, relationshipName)));
+			}
+		}
+	}
+
+	public void testChangedObjectsAreFetchedInCallingThread() {
+		ERXBatchFetchUtilities.setParallelism(4);
+		EOEditingContext ec = newEditingContext();
+		NSArray<Country> countries = countries(ec);
+		Country netherlands = countries.objectAtIndex(0);
+		netherlands.setHeadOfState("Willem-Alexander");
+		ExpressionCounter counter = ExpressionCounter.install(databaseContext(ec));
+		ERXBatchFetchUtilities.batchFetch(countries, KEY_PATHS, true);
+
+		assertTrue(counter.count > 0);
+		for (Country country : countries) {
+			assertFaulted(country);
+		}
+		assertEquals("Amsterdam", netherlands.capital().name());
+		assertEquals(28, netherlands.cities().count());
+		assertEquals(3, netherlands.countryLanguages().count());
+		assertEquals("Willem-Alexander", netherlands.headOfState());
+		assertTrue(ec.hasChanges());
+	}
+
+	public void testFetchTimestampOfCallingEditingContext() throws Exception {
+		ERXBatchFetchUtilities.setParallelism(1);
+		EOEditingContext staleEC = newEditingContext();
+		ERXBatchFetchUtilities.batchFetch(countries(staleEC), KEY_PATHS, true);
+		executeUpdateScript("update city set name = 'Mokum' where id = 5000;\n"
+				+ "insert into city (id, name, countryID, distict, population) values (33000, 'Hilversum', 9998, 'Noord-Holland', 85000);");
+		Thread.sleep(10);
+
+		// the snapshots of the other editing context are too old for this one
+		ERXBatchFetchUtilities.setParallelism(4);
+		EOEditingContext ec = ERXEC.newEditingContext(staleEC.rootObjectStore());
+		ec.lock();
+		editingContexts.addObject(ec);
+		ec.setFetchTimestamp(System.currentTimeMillis());
+		NSArray<Country> countries = countries(ec);
+		ExpressionCounter counter = ExpressionCounter.install(databaseContext(ec));
+		ERXBatchFetchUtilities.batchFetch(countries, KEY_PATHS, true);
+
+		// the fresh snapshots of the workers replaced the old ones, so nothing was refetched
+		assertEquals(0, counter.count);
+		Country netherlands = countries.objectAtIndex(0);
+		assertEquals("Mokum", netherlands.capital().name());
+		assertEquals(29, netherlands.cities().count());
+		EOGlobalID amsterdam = ec.globalIDForObject(netherlands.capital());
+		assertEquals("Mokum", databaseContext(ec).database().snapshotForGlobalID(amsterdam).objectForKey(City.NAME_KEY));
+		assertTrue(databaseContext(ec).database().timestampForGlobalID(amsterdam) >= ec.fetchTimestamp());
+	}
+
+	private EOEditingContext newEditingContext() {
+		ERXObjectStoreCoordinator osc = new ERXObjectStoreCoordinator(true);
+		coordinators.addObject(osc);
+		EOEditingContext ec = ERXEC.newEditingContext(osc);
+		ec.lock();
+		editingContexts.addObject(ec);
+		return ec;
+	}
+
+	private EODatabaseContext databaseContext(EOEditingContext ec) {
+		return EODatabaseContext.registeredDatabaseContextForModel(model, ec);
+	}
+
+	private static NSArray<Country> countries(EOEditingContext ec) {
+		NSArray<Country> countries = Country.fetchAllCountries(ec, new NSArray<>(EOSortOrdering.sortOrderingWithKey("id", EOSortOrdering.CompareAscending)));
+		assertEquals(2, countries.count());
+		return countries;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void assertFaulted(Country country) {
+		EOEnterpriseObject capital = (EOEnterpriseObject) country.storedValueForKey(Country.CAPITAL_KEY);
+		assertTrue(capital == null || !capital.isFault());
+		for (String relationshipName : new String[] { Country.CITIES_KEY, Country.COUNTRY_LANGUAGES_KEY }) {
+			NSArray<EOEnterpriseObject> objects = (NSArray<EOEnterpriseObject>) country.storedValueForKey(relationshipName);
+			assertFalse(relationshipName, EOFaultHandler.isFault(objects));
+			for (EOEnterpriseObject object : objects) {
+				assertFalse(relationshipName, object.isFault());
+			}
+		}
+	}
+
+	private static void assertSameGraph(Country serialCountry, Country parallelCountry) {
+		EOEditingContext serialEC = serialCountry.editingContext();
+		EOEditingContext parallelEC = parallelCountry.editingContext();
+		City serialCapital = serialCountry.capital();
+		City parallelCapital = parallelCountry.capital();
+		assertEquals(serialCapital == null, parallelCapital == null);
+		if (serialCapital != null) {
+			assertEquals(serialEC.globalIDForObject(serialCapital), parallelEC.globalIDForObject(parallelCapital));
+		}
+		assertEquals(new NSSet<>(globalIDs(serialEC, serialCountry.cities())), new NSSet<>(globalIDs(parallelEC, parallelCountry.cities())));
+		assertEquals(new NSSet<>(globalIDs(serialEC, serialCountry.countryLanguages())), new NSSet<>(globalIDs(parallelEC, parallelCountry.countryLanguages())));
+		for (City city : parallelCountry.cities()) {
+			assertSame(parallelCountry, city.storedValueForKey(City.COUNTRY_KEY));
+		}
+	}
+
+	private static NSArray<EOGlobalID> globalIDs(EOEditingContext ec, NSArray<? extends EOEnterpriseObject> objects) {
+		NSMutableArray<EOGlobalID> globalIDs = new NSMutableArray<>();
+		for (EOEnterpriseObject object : objects) {
+			globalIDs.addObject(ec.globalIDForObject(object));
+		}
+		return globalIDs;
+	}
+
+	private static NSSet<EOGlobalID> registeredGlobalIDs(EOEditingContext ec) {
+		return new NSSet<>(globalIDs(ec, ec.registeredObjects()));
+	}
+
+	/**
+	 * Counts the expressions evaluated by the channel of a database context.
+	 */
+	public static class ExpressionCounter {
+		int count;
+
+		static ExpressionCounter install(EODatabaseContext dbc) {
+			ExpressionCounter counter = new ExpressionCounter();
+			dbc.lock();
+			try {
+				dbc.availableChannel().adaptorChannel().setDelegate(counter);
+			}
+			finally {
+				dbc.unlock();
+			}
+			return counter;
+		}
+
+		public void adaptorChannelDidEvaluateExpression(EOAdaptorChannel channel, EOSQLExpression expression) {
+			count++;
+		}
+	}
+}
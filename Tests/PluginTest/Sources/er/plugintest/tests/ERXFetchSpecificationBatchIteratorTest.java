@@ -0,0 +1,170 @@
+package er.plugintest.tests;
+
+import junit.framework.AssertionFailedError;
+
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOFetchSpecification;
+import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.eocontrol.EOSortOrdering;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSRange;
+
+import er.extensions.eof.ERXEC;
+import er.extensions.eof.ERXFetchSpecificationBatchIterator;
+import er.plugintest.model.City;
+
+/**
+ * Iterates over the cities in keyset mode and compares the batches with the
+ * cities fetched in one go.
+ */
+public class ERXFetchSpecificationBatchIteratorTest extends PluginTest {
+
+	private EOEditingContext ec;
+	private NSArray<City> citiesByID;
+	private NSArray<City> citiesByName;
+
+	public ERXFetchSpecificationBatchIteratorTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		createTables();
+		resetData();
+		ec = ERXEC.newEditingContext();
+		ec.lock();
+		citiesByID = City.fetchAllCities(ec, new NSArray<>(EOSortOrdering.sortOrderingWithKey("id", EOSortOrdering.CompareAscending)));
+		citiesByName = City.fetchAllCities(ec, City.NAME.ascs());
+		assertTrue(citiesByID.count() > 20);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ec.unlock();
+		ec.dispose();
+		super.tearDown();
+	}
+
+	public void testAscendingSeek() {
+		KeysetIterator iterator = new KeysetIterator(fetchSpecification(null, null), 10);
+		NSArray<NSArray<City>> batches = batches(iterator);
+		assertEquals(citiesByID, flatten(batches));
+		assertEquals(10, batches.objectAtIndex(0).count());
+		assertEquals((citiesByID.count() + 9) / 10, batches.count());
+		assertFalse(iterator.hasNext());
+	}
+
+	public void testDescendingSeek() {
+		KeysetIterator iterator = new KeysetIterator(fetchSpecification(null, EOSortOrdering.sortOrderingWithKey("id", EOSortOrdering.CompareDescending)), 10);
+		assertEquals(reversed(citiesByID), flatten(batches(iterator)));
+	}
+
+	public void testNonPrimaryKeyAttribute() {
+		KeysetIterator iterator = new KeysetIterator(fetchSpecification(null, City.NAME.asc()), 7);
+		iterator.setKeysetAttributeName(City.NAME.key());
+		assertEquals(citiesByName, flatten(batches(iterator)));
+
+		iterator = new KeysetIterator(fetchSpecification(null, City.NAME.desc()), 7);
+		iterator.setKeysetAttributeName(City.NAME.key());
+		assertEquals(reversed(citiesByName), flatten(batches(iterator)));
+	}
+
+	public void testFetchLimit() {
+		EOFetchSpecification fetchSpecification = fetchSpecification(null, null);
+		fetchSpecification.setFetchLimit(7);
+		KeysetIterator iterator = new KeysetIterator(fetchSpecification, 10);
+		assertEquals(7, iterator.count());
+		NSArray<NSArray<City>> batches = batches(iterator);
+		assertEquals(1, batches.count());
+		assertEquals(citiesByID.subarrayWithRange(new NSRange(0, 7)), batches.objectAtIndex(0));
+
+		fetchSpecification.setFetchLimit(25);
+		iterator = new KeysetIterator(fetchSpecification, 10);
+		assertEquals(25, iterator.count());
+		batches = batches(iterator);
+		assertEquals(3, batches.count());
+		assertEquals(5, batches.lastObject().count());
+		assertEquals(citiesByID.subarrayWithRange(new NSRange(0, 25)), flatten(batches));
+	}
+
+	public void testCountWithoutFetchingKeys() {
+		EOQualifier qualifier = City.POPULATION.greaterThan(Integer.valueOf(200000));
+		KeysetIterator iterator = new KeysetIterator(fetchSpecification(qualifier, null), 10);
+		int count = EOQualifier.filteredArrayWithQualifier(citiesByID, qualifier).count();
+		assertTrue(count > 0 && count < citiesByID.count());
+		assertEquals(count, iterator.count());
+		assertEquals(count, flatten(batches(iterator)).count());
+		assertEquals(count, iterator.count());
+	}
+
+	public void testResetMidIteration() {
+		KeysetIterator iterator = new KeysetIterator(fetchSpecification(null, null), 10);
+		NSMutableArray<City> cities = new NSMutableArray<>();
+		cities.addObjectsFromArray(iterator.nextBatch());
+		// the keys of the second batch are fetched here and dropped by the reset
+		assertTrue(iterator.hasNextBatch());
+		iterator.reset();
+		assertEquals(citiesByID.count(), iterator.count());
+		cities.addObjectsFromArray(flatten(batches(iterator)));
+		assertEquals(citiesByID, cities);
+		assertEquals(citiesByID.count(), iterator.currentObjectFetchCount());
+	}
+
+	public void testNullKeysetValue() {
+		executeUpdateScript("update city set population = null where id = 17000");
+		KeysetIterator iterator = new KeysetIterator(fetchSpecification(null, null), 10);
+		iterator.setKeysetAttributeName(City.POPULATION.key());
+		try {
+			batches(iterator);
+			fail("Iterated over a null keyset value");
+		}
+		catch (IllegalStateException e) {
+			assertTrue(e.getMessage().indexOf("population") > 0);
+		}
+	}
+
+	private static EOFetchSpecification fetchSpecification(EOQualifier qualifier, EOSortOrdering sortOrdering) {
+		return new EOFetchSpecification(City.ENTITY_NAME, qualifier, sortOrdering != null ? new NSArray<>(sortOrdering) : null);
+	}
+
+	private static NSArray<NSArray<City>> batches(KeysetIterator iterator) {
+		NSMutableArray<NSArray<City>> batches = new NSMutableArray<>();
+		while (iterator.hasNextBatch()) {
+			batches.addObject(iterator.nextBatch());
+		}
+		return batches;
+	}
+
+	private static NSArray<City> flatten(NSArray<NSArray<City>> batches) {
+		NSMutableArray<City> cities = new NSMutableArray<>();
+		for (NSArray<City> batch : batches) {
+			cities.addObjectsFromArray(batch);
+		}
+		return cities;
+	}
+
+	private static NSArray<City> reversed(NSArray<City> cities) {
+		NSMutableArray<City> reversed = new NSMutableArray<>();
+		for (int i = cities.count() - 1; i >= 0; i--) {
+			reversed.addObject(cities.objectAtIndex(i));
+		}
+		return reversed;
+	}
+
+	/**
+	 * A keyset iterator that fails if it fetches all of the primary keys.
+	 */
+	private class KeysetIterator extends ERXFetchSpecificationBatchIterator<City> {
+		KeysetIterator(EOFetchSpecification fetchSpecification, int batchSize) {
+			super(fetchSpecification, ec, batchSize);
+			setUsesKeysetPagination(true);
+		}
+
+		@Override
+		protected NSArray primaryKeys() {
+			throw new AssertionFailedError("Fetched all of the primary keys in keyset mode");
+		}
+	}
+}
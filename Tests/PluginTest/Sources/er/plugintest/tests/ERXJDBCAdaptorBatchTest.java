@@ -0,0 +1,120 @@
+package er.plugintest.tests;
+
+import com.webobjects.eoaccess.EOAdaptorChannel;
+import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.eoaccess.EODatabaseContext;
+import com.webobjects.eoaccess.EOSQLExpression;
+import com.webobjects.eoaccess.EOUtilities;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOSortOrdering;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+
+import er.extensions.eof.ERXEC;
+import er.extensions.jdbc.ERXJDBCAdaptor;
+import er.plugintest.model.City;
+
+/**
+ * Saves the cities in batches with a channel delegate that refuses a row and checks
+ * that the rows are still changed in the order of the operations.
+ */
+public class ERXJDBCAdaptorBatchTest extends PluginTest {
+
+	private static final Integer REFUSED_CITY_ID = Integer.valueOf(17000);
+
+	private int batchSize;
+	private EOEditingContext ec;
+	private EODatabaseContext databaseContext;
+
+	public ERXJDBCAdaptorBatchTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		createTables();
+		resetData();
+		batchSize = ERXJDBCAdaptor.batchSize();
+		ERXJDBCAdaptor.setBatchSize(10);
+		ec = ERXEC.newEditingContext();
+		ec.lock();
+		databaseContext = EODatabaseContext.registeredDatabaseContextForModel(model, ec);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		setDelegate(null);
+		ERXJDBCAdaptor.setBatchSize(batchSize);
+		ec.unlock();
+		ec.dispose();
+		super.tearDown();
+	}
+
+	public void testRefusedRowKeepsItsPlace() {
+		NSArray<City> cities = City.fetchAllCities(ec, new NSArray<>(EOSortOrdering.sortOrderingWithKey("id", EOSortOrdering.CompareAscending)));
+		assertEquals(28, cities.count());
+		for (City city : cities) {
+			city.setPopulation(Integer.valueOf(city.population().intValue() + 1));
+		}
+		RefusingDelegate delegate = new RefusingDelegate();
+		setDelegate(delegate);
+		ec.saveChanges();
+
+		assertEquals(28, delegate.askedIDs.count());
+		assertTrue(delegate.refused);
+		assertEquals(delegate.askedIDs, delegate.evaluatedIDs);
+
+		// the refused row is changed by the superclass just like the batched ones
+		City refusedCity = (City) EOUtilities.objectWithPrimaryKeyValue(ec, City.ENTITY_NAME, REFUSED_CITY_ID);
+		NSArray<NSDictionary> rows = EOUtilities.rawRowsForSQL(ec, model.name(), "select population from city where id = " + REFUSED_CITY_ID, new NSArray<>("population"));
+		assertEquals(refusedCity.population().intValue(), ((Number) rows.lastObject().objectForKey("population")).intValue());
+	}
+
+	private void setDelegate(Object delegate) {
+		databaseContext.lock();
+		try {
+			databaseContext.availableChannel().adaptorChannel().setDelegate(delegate);
+		}
+		finally {
+			databaseContext.unlock();
+		}
+	}
+
+	/**
+	 * Refuses the update of a city the first time it is asked for it and records the ids
+	 * of the cities in the order they are asked for and evaluated.
+	 */
+	public static class RefusingDelegate {
+		NSMutableArray<Object> askedIDs = new NSMutableArray<>();
+		NSMutableArray<Object> evaluatedIDs = new NSMutableArray<>();
+		boolean refused;
+
+		public boolean adaptorChannelShouldEvaluateExpression(EOAdaptorChannel channel, EOSQLExpression expression) {
+			Object id = cityID(expression);
+			if (!askedIDs.containsObject(id)) {
+				askedIDs.addObject(id);
+			}
+			if (!refused && REFUSED_CITY_ID.equals(id)) {
+				refused = true;
+				return false;
+			}
+			return true;
+		}
+
+		public void adaptorChannelDidEvaluateExpression(EOAdaptorChannel channel, EOSQLExpression expression) {
+			evaluatedIDs.addObject(cityID(expression));
+		}
+
+		private static Object cityID(EOSQLExpression expression) {
+			for (NSDictionary<String, Object> binding : expression.bindVariableDictionaries()) {
+				EOAttribute attribute = (EOAttribute) binding.objectForKey(EOSQLExpression.BindVariableAttributeKey);
+				if ("id".equals(attribute.name())) {
+					return Integer.valueOf(((Number) binding.objectForKey(EOSQLExpression.BindVariableValueKey)).intValue());
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package er.plugintest.tests;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+
+import er.extensions.eof.ERXLongPrimaryKeyFactory;
+import er.extensions.foundation.ERXProperties;
+import er.plugintest.model.City;
+
+/**
+ * Hands out the keys of the cities with several factories, which share pk_table like
+ * the instances of an application do.
+ */
+public class ERXLongPrimaryKeyFactoryTest extends PluginTest {
+
+	private static final String PREFIX = "er.extensions.ERXLongPrimaryKeyFactory.";
+	private static final String MAX_CONNECTIONS_KEY = "er.extensions.ERXJDBCConnectionBroker.maxConnections";
+	private static final long FIRST_KEY = 100001L;
+	private static final long REFILL_INTERVAL = 200L;
+
+	private ExecutorService executor;
+
+	public ERXLongPrimaryKeyFactoryTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		createTables();
+		executeUpdateScript("drop table if exists pk_table;\n"
+				+ "create table pk_table (eoentity_name varchar(100) not null, pk_value bigint, primary key (eoentity_name));\n"
+				+ "insert into pk_table (eoentity_name, pk_value) values ('" + City.ENTITY_NAME + "', " + (FIRST_KEY - 1) + ");");
+		// a factory reads the settings when it hands out its first key
+		ERXProperties.setStringForKey("10", PREFIX + "increaseBy");
+		ERXProperties.setStringForKey("80", PREFIX + "maxIncreaseBy");
+		ERXProperties.setStringForKey(String.valueOf(REFILL_INTERVAL), PREFIX + "refillInterval");
+		ERXProperties.setStringForKey("4", MAX_CONNECTIONS_KEY);
+		executor = Executors.newFixedThreadPool(8);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		for (String key : new String[] { "increaseBy", "maxIncreaseBy", "refillInterval", "adaptiveBlocks" }) {
+			ERXProperties.removeKey(PREFIX + key);
+		}
+		ERXProperties.removeKey(MAX_CONNECTIONS_KEY);
+		super.tearDown();
+	}
+
+	public void testNoDuplicatesWithStacks() throws Exception {
+		assertNoDuplicates(false);
+	}
+
+	public void testNoDuplicatesWithAdaptiveBlocks() throws Exception {
+		assertNoDuplicates(true);
+	}
+
+	public void testBackgroundRefill() throws Exception {
+		ERXLongPrimaryKeyFactory factory = factory(true);
+		assertEquals(0, factory.blockStatistics().count());
+		assertEquals(FIRST_KEY, nextKey(factory));
+		NSDictionary<String, Object> statistics = statistics(factory);
+		assertEquals(1L, statistics.objectForKey("allocated"));
+		assertEquals(1L, statistics.objectForKey("refills"));
+		assertEquals(0L, statistics.objectForKey("backgroundRefills"));
+		// the first block is reserved by the thread that needs it
+		assertEquals(1L, statistics.objectForKey("waits"));
+		assertEquals(10, statistics.objectForKey("blockSize"));
+		assertEquals(9L, statistics.objectForKey("remaining"));
+
+		// the key at the refill mark, a quarter before the end of the block, reserves the next block
+		for (long key = FIRST_KEY + 1; key < FIRST_KEY + 8; key++) {
+			assertEquals(key, nextKey(factory));
+		}
+		assertEquals(1L, statistics(factory).objectForKey("refills"));
+		assertEquals(FIRST_KEY + 8, nextKey(factory));
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (((Long) statistics(factory).objectForKey("refills")).longValue() < 2L) {
+			assertTrue("The next block was not reserved", System.currentTimeMillis() < deadline);
+			Thread.sleep(10L);
+		}
+		assertEquals(1L, statistics(factory).objectForKey("remaining"));
+
+		// the next block continues where the first one ends
+		for (long key = FIRST_KEY + 9; key < FIRST_KEY + 12; key++) {
+			assertEquals(key, nextKey(factory));
+		}
+		statistics = statistics(factory);
+		assertEquals(12L, statistics.objectForKey("allocated"));
+		assertEquals(2L, statistics.objectForKey("refills"));
+		assertEquals(1L, statistics.objectForKey("backgroundRefills"));
+		assertEquals(8L, statistics.objectForKey("remaining"));
+	}
+
+	public void testBlockGrowthAndShrink() throws Exception {
+		ERXLongPrimaryKeyFactory factory = factory(true);
+		// blocks that are used up quickly double up to the maximum
+		long previous = 0L;
+		for (int i = 0; i < 500; i++) {
+			long key = nextKey(factory);
+			assertTrue(key > previous);
+			previous = key;
+		}
+		assertEquals(80, statistics(factory).objectForKey("blockSize"));
+		assertTrue(((Long) statistics(factory).objectForKey("refills")).longValue() < 500L / 10L);
+
+		// a block that lasts more than twice the refill interval halves the size down to increaseBy
+		long count = 500L;
+		for (int expectedBlockSize : new int[] { 40, 20, 10, 10 }) {
+			Thread.sleep(REFILL_INTERVAL * 2L + 100L);
+			count += useUpBlock(factory);
+			assertEquals(expectedBlockSize, statistics(factory).objectForKey("blockSize"));
+		}
+		assertEquals(count, statistics(factory).objectForKey("allocated"));
+	}
+
+	public void testStatisticsOfSharedFactory() {
+		ERXProperties.setStringForKey("true", PREFIX + "adaptiveBlocks");
+		// no other test uses the shared factory, so it is created with these settings
+		Number key = (Number) ERXLongPrimaryKeyFactory.primaryKeyValue(City.ENTITY_NAME);
+		assertEquals(FIRST_KEY, key.longValue());
+		NSDictionary<String, Object> statistics = ERXLongPrimaryKeyFactory.statistics().objectForKey(City.ENTITY_NAME);
+		assertEquals(1L, statistics.objectForKey("allocated"));
+		assertEquals(1L, statistics.objectForKey("refills"));
+		assertEquals(0, new ERXLongPrimaryKeyFactory().blockStatistics().count());
+	}
+
+	/**
+	 * Takes keys with four threads from each of two factories and checks that none is
+	 * handed out twice.
+	 */
+	private void assertNoDuplicates(boolean adaptiveBlocks) throws Exception {
+		final ERXLongPrimaryKeyFactory factory = factory(adaptiveBlocks);
+		final ERXLongPrimaryKeyFactory otherFactory = factory(adaptiveBlocks);
+		final Set<Long> keys = ConcurrentHashMap.newKeySet();
+		final CountDownLatch start = new CountDownLatch(1);
+		NSMutableArray<Future<Integer>> futures = new NSMutableArray<>();
+		for (int i = 0; i < 8; i++) {
+			final ERXLongPrimaryKeyFactory threadFactory = i % 2 == 0 ? factory : otherFactory;
+			futures.addObject(executor.submit(() -> {
+				start.await();
+				int duplicates = 0;
+				for (int j = 0; j < 250; j++) {
+					if (!keys.add(Long.valueOf(nextKey(threadFactory)))) {
+						duplicates++;
+					}
+				}
+				return Integer.valueOf(duplicates);
+			}));
+		}
+		start.countDown();
+		for (Future<Integer> future : futures) {
+			assertEquals(Integer.valueOf(0), future.get(60, TimeUnit.SECONDS));
+		}
+		assertEquals(8 * 250, keys.size());
+		for (Long key : keys) {
+			assertTrue(key.longValue() >= FIRST_KEY);
+		}
+		if (adaptiveBlocks) {
+			long allocated = ((Long) statistics(factory).objectForKey("allocated")).longValue();
+			assertEquals(8L * 250L, allocated + ((Long) statistics(otherFactory).objectForKey("allocated")).longValue());
+		}
+		else {
+			assertEquals(0, factory.blockStatistics().count());
+		}
+	}
+
+	private static ERXLongPrimaryKeyFactory factory(boolean adaptiveBlocks) {
+		ERXProperties.setStringForKey(String.valueOf(adaptiveBlocks), PREFIX + "adaptiveBlocks");
+		return new ERXLongPrimaryKeyFactory();
+	}
+
+	private static long nextKey(ERXLongPrimaryKeyFactory factory) {
+		return ((Number) factory.primaryKeyDictionary(City.ENTITY_NAME).allValues().lastObject()).longValue();
+	}
+
+	/**
+	 * Takes the keys left in the current block and the first one of the next block.
+	 */
+	private static long useUpBlock(ERXLongPrimaryKeyFactory factory) {
+		long count = ((Long) statistics(factory).objectForKey("remaining")).longValue() + 1L;
+		for (long i = 0; i < count; i++) {
+			nextKey(factory);
+		}
+		return count;
+	}
+
+	private static NSDictionary<String, Object> statistics(ERXLongPrimaryKeyFactory factory) {
+		return factory.blockStatistics().objectForKey(City.ENTITY_NAME);
+	}
+}
@@ -0,0 +1,372 @@
+package er.plugintest.tests;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+import com.webobjects.eoaccess.EOAdaptorChannel;
+import com.webobjects.eoaccess.EODatabaseContext;
+import com.webobjects.eoaccess.EOSQLExpression;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSForwardException;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.jdbcadaptor.JDBCContext;
+
+import er.extensions.eof.ERXEC;
+import er.extensions.eof.ERXEOAccessUtilities;
+import er.extensions.eof.ERXEOControlUtilities;
+import er.extensions.eof.ERXObjectStoreCoordinator;
+import er.extensions.eof.ERXQuery;
+import er.extensions.eof.ERXRowCursor;
+import er.plugintest.model.City;
+
+/**
+ * Reads the cities with {@link ERXRowCursor} and checks that the cursor releases its
+ * locks and ends its transaction however the iteration ends.
+ */
+public class ERXRowCursorTest extends PluginTest {
+
+	private static final String CITIES = "select id, name from city order by id";
+
+	private ExecutorService executor;
+	private EOEditingContext ec;
+	private EODatabaseContext databaseContext;
+	private int cityCount;
+
+	public ERXRowCursorTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		createTables();
+		resetData();
+		executor = Executors.newSingleThreadExecutor();
+		ec = ERXEC.newEditingContext();
+		ec.lock();
+		try {
+			databaseContext = EODatabaseContext.registeredDatabaseContextForModel(model, ec);
+			cityCount = ERXEOControlUtilities.objectCountWithQualifier(ec, City.ENTITY_NAME, null).intValue();
+		}
+		finally {
+			ec.unlock();
+		}
+		assertTrue(cityCount > 20);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		super.tearDown();
+	}
+
+	public void testCloseOnExhaustion() throws Exception {
+		ERXRowCursor<NSDictionary> cursor = cursor(CITIES);
+		assertTrue(cursor.hasNext());
+		assertFalse(isUnlocked());
+
+		int count = 0;
+		while (cursor.hasNext()) {
+			assertNotNull(cursor.next());
+			count++;
+		}
+		assertEquals(cityCount, count);
+		assertEquals(cityCount, cursor.count());
+		assertTrue(cursor.isClosed());
+		assertTrue(isUnlocked());
+		assertFalse(cursor.hasNext());
+	}
+
+	public void testCloseOnException() throws Exception {
+		ERXRowCursor<NSDictionary> cursor = cursor("select id from no_such_table");
+		try {
+			cursor.hasNext();
+			fail("Evaluated an expression for a missing table");
+		}
+		catch (RuntimeException e) {
+			// expected
+		}
+		assertTrue(cursor.isClosed());
+		assertTrue(isUnlocked());
+
+		cursor = failingCursor(3);
+		try {
+			while (cursor.hasNext()) {
+				cursor.next();
+			}
+			fail("Read past a failing row");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(3, cursor.count());
+		assertTrue(cursor.isClosed());
+		assertTrue(isUnlocked());
+	}
+
+	public void testDoubleClose() throws Exception {
+		ERXRowCursor<NSDictionary> unopened = cursor(CITIES);
+		unopened.close();
+		assertTrue(unopened.isClosed());
+		assertFalse(unopened.hasNext());
+
+		ec.lock();
+		try {
+			ERXRowCursor<NSDictionary> cursor = cursor(CITIES);
+			assertTrue(cursor.hasNext());
+			assertEquals(2, ERXEC.lockCountForCurrentThread(ec));
+			cursor.close();
+			cursor.close();
+			assertEquals(1, ERXEC.lockCountForCurrentThread(ec));
+		}
+		finally {
+			ec.unlock();
+		}
+		assertTrue(isUnlocked());
+	}
+
+	public void testLimit() throws Exception {
+		ERXRowCursor<NSDictionary> cursor = cursor(CITIES).setLimit(5);
+		assertEquals(5, cursor.nextBatch(100).count());
+		assertTrue(cursor.isClosed());
+		assertTrue(isUnlocked());
+
+		ERXQuery query = ERXQuery.create().select(City.NAME).from(City.ENTITY_NAME).orderBy(City.NAME.asc()).clientFetchLimit(7);
+		int count = 0;
+		try (ERXRowCursor<NSDictionary<String, Object>> queryCursor = query.fetchCursor(ec)) {
+			while (queryCursor.hasNext()) {
+				assertNotNull(queryCursor.next().objectForKey("name"));
+				count++;
+			}
+			assertTrue(queryCursor.isClosed());
+		}
+		assertEquals(7, count);
+		assertTrue(isUnlocked());
+	}
+
+	public void testBatches() throws Exception {
+		ERXRowCursor<NSDictionary> cursor = cursor(CITIES);
+		int count = 0;
+		for (NSArray<NSDictionary> batch; (batch = cursor.nextBatch(10)).count() > 0;) {
+			assertTrue(batch.count() == 10 || count + batch.count() == cityCount);
+			count += batch.count();
+		}
+		assertEquals(cityCount, count);
+		assertTrue(cursor.isClosed());
+
+		final NSMutableArray<Integer> sizes = new NSMutableArray<>();
+		assertEquals(cityCount, cursor(CITIES).forEachBatch(10, batch -> sizes.addObject(Integer.valueOf(batch.count()))));
+		assertEquals((cityCount + 9) / 10, sizes.count());
+		assertEquals(Integer.valueOf(10), sizes.objectAtIndex(0));
+		assertTrue(isUnlocked());
+
+		cursor = cursor(CITIES);
+		try {
+			cursor.forEachBatch(10, batch -> {
+				throw new IllegalStateException("Failed");
+			});
+			fail("Swallowed the exception of the consumer");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		assertTrue(cursor.isClosed());
+		assertTrue(isUnlocked());
+	}
+
+	public void testClosingStreamClosesCursor() throws Exception {
+		ERXRowCursor<NSDictionary> cursor = cursor(CITIES);
+		try (Stream<NSDictionary> rows = cursor.stream()) {
+			assertEquals(3, rows.limit(3).count());
+			assertFalse(cursor.isClosed());
+			assertFalse(isUnlocked());
+		}
+		assertTrue(cursor.isClosed());
+		assertTrue(isUnlocked());
+	}
+
+	public void testOtherEditingContextsWaitForCursor() throws Exception {
+		ERXRowCursor<NSDictionary> cursor = cursor(CITIES);
+		assertTrue(cursor.hasNext());
+		try {
+			// an editing context of its own coordinator is not held up by the cursor
+			ERXObjectStoreCoordinator osc = new ERXObjectStoreCoordinator(true);
+			try {
+				assertEquals(cityCount, executor.submit(() -> countCities(ERXEC.newEditingContext(osc))).get(10, TimeUnit.SECONDS).intValue());
+			}
+			finally {
+				osc.dispose();
+			}
+
+			Future<Integer> count = executor.submit(() -> countCities(ERXEC.newEditingContext()));
+			try {
+				count.get(500, TimeUnit.MILLISECONDS);
+				fail("Fetched while the database context was locked");
+			}
+			catch (TimeoutException e) {
+				// expected
+			}
+			cursor.close();
+			assertEquals(cityCount, count.get(10, TimeUnit.SECONDS).intValue());
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	public void testCommitsTransactionItBegan() throws Exception {
+		ERXRowCursor<NSDictionary> cursor = updatingCursor(-1);
+		while (cursor.hasNext()) {
+			cursor.next();
+		}
+		assertFalse(hasOpenTransaction());
+		assertEquals(-1, population(5000));
+	}
+
+	public void testRollsBackTransactionItBeganOnException() throws Exception {
+		ERXRowCursor<NSDictionary> cursor = updatingCursor(2);
+		try {
+			while (cursor.hasNext()) {
+				cursor.next();
+			}
+			fail("Read past a failing row");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		assertFalse(hasOpenTransaction());
+		assertEquals(731200, population(5000));
+	}
+
+	public void testLeavesTransactionOfCallerOpen() throws Exception {
+		ec.lock();
+		databaseContext.lock();
+		try {
+			EOAdaptorChannel channel = databaseContext.availableChannel().adaptorChannel();
+			if (!channel.isOpen()) {
+				channel.openChannel();
+			}
+			channel.adaptorContext().beginTransaction();
+			try {
+				try (ERXRowCursor<NSDictionary> cursor = cursor(CITIES)) {
+					assertEquals(cityCount, cursor.nextBatch(cityCount + 1).count());
+					assertTrue(cursor.isClosed());
+				}
+				assertTrue(channel.adaptorContext().hasOpenTransaction());
+			}
+			finally {
+				channel.adaptorContext().rollbackTransaction();
+			}
+		}
+		finally {
+			databaseContext.unlock();
+			ec.unlock();
+		}
+	}
+
+	private ERXRowCursor<NSDictionary> cursor(String sql) {
+		return ERXEOAccessUtilities.rawRowCursorForSQLExpression(ec, model, expression(sql), null);
+	}
+
+	/**
+	 * Returns a cursor that fails when it reads the given row.
+	 */
+	private ERXRowCursor<NSDictionary> failingCursor(final int failingRow) {
+		return new ERXRowCursor<NSDictionary>(ec, model, expression(CITIES), null) {
+			@Override
+			protected NSDictionary recordForRow(NSMutableDictionary<String, Object> row) {
+				if (count() == failingRow) {
+					throw new IllegalStateException("Failed at row " + failingRow);
+				}
+				return row;
+			}
+		};
+	}
+
+	/**
+	 * Returns a cursor that sets the population of Amsterdam to -1 in its transaction
+	 * when it reads the first row and fails at the given row.
+	 */
+	private ERXRowCursor<NSDictionary> updatingCursor(final int failingRow) {
+		return new ERXRowCursor<NSDictionary>(ec, model, expression(CITIES), null) {
+			@Override
+			protected NSDictionary recordForRow(NSMutableDictionary<String, Object> row) {
+				if (count() == 1) {
+					try (Statement statement = ((JDBCContext) databaseContext.adaptorContext()).connection().createStatement()) {
+						statement.executeUpdate("update city set population = -1 where id = 5000");
+					}
+					catch (SQLException e) {
+						throw new NSForwardException(e);
+					}
+				}
+				if (count() == failingRow) {
+					throw new IllegalStateException("Failed at row " + failingRow);
+				}
+				return row;
+			}
+		};
+	}
+
+	private EOSQLExpression expression(String sql) {
+		return databaseContext.database().adaptor().expressionFactory().expressionForString(sql);
+	}
+
+	private int population(int cityID) {
+		NSArray<NSDictionary> rows = ERXEOAccessUtilities.rawRowsForSQLExpression(ec, model.name(), expression("select population from city where id = " + cityID));
+		return ((Number) rows.lastObject().allValues().lastObject()).intValue();
+	}
+
+	private boolean hasOpenTransaction() {
+		databaseContext.lock();
+		try {
+			return databaseContext.adaptorContext().hasOpenTransaction();
+		}
+		finally {
+			databaseContext.unlock();
+		}
+	}
+
+	private static Integer countCities(EOEditingContext otherEC) {
+		otherEC.lock();
+		try {
+			return ERXEOControlUtilities.objectCountWithQualifier(otherEC, City.ENTITY_NAME, null);
+		}
+		finally {
+			otherEC.unlock();
+		}
+	}
+
+	/**
+	 * Returns true if another thread can lock the editing context and the database
+	 * context. An attempt that times out keeps waiting, so the next one only succeeds
+	 * after it.
+	 */
+	private boolean isUnlocked() throws Exception {
+		Future<?> lock = executor.submit(() -> {
+			ec.lock();
+			try {
+				databaseContext.lock();
+				databaseContext.unlock();
+			}
+			finally {
+				ec.unlock();
+			}
+		});
+		try {
+			lock.get(500, TimeUnit.MILLISECONDS);
+			return true;
+		}
+		catch (TimeoutException e) {
+			return false;
+		}
+	}
+}
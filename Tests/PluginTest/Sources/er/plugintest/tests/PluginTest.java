@@ -15,6 +15,7 @@ import er.extensions.eof.ERXEOAccessUtilities;
 import er.extensions.eof.ERXModelGroup;
 import er.extensions.foundation.ERXFileUtilities;
 import er.extensions.jdbc.ERXJDBCUtilities;
+import er.extensions.jdbc.ERXSQLHelper;
 import er.testrunner.ERXTestCase;
 
 public class PluginTest extends ERXTestCase {
@@ -39,6 +40,50 @@ public class PluginTest extends ERXTestCase {
 	}
 
 
+	/**
+	 * Drops and creates the tables of the model, so the tests can run against an empty database.
+	 */
+	protected void createTables() {
+		ERXEC ec = (ERXEC) ERXEC.newEditingContext();
+		final String sql = ERXSQLHelper.newSQLHelper(ec, model.name()).createSchemaSQLForEntitiesInModel(null, model);
+		ERXEOAccessUtilities.ChannelAction action = new ERXEOAccessUtilities.ChannelAction() {
+			@Override
+			protected int doPerform(EOAdaptorChannel channel) {
+				try {
+					// the tables that are dropped first don't exist in a new database
+					return ERXJDBCUtilities.executeUpdateScript(channel, sql, true);
+				}
+				catch (SQLException e) {
+					log.error(ExceptionUtils.getStackTrace(e), e);
+					throw new NSForwardException(e);
+				}
+			}
+		};
+		action.perform(ec, model.name());
+	}
+
+	/**
+	 * Executes the given SQL statements in a transaction of their own.
+	 * 
+	 * @param sql the statements to execute
+	 */
+	protected void executeUpdateScript(final String sql) {
+		ERXEC ec = (ERXEC) ERXEC.newEditingContext();
+		ERXEOAccessUtilities.ChannelAction action = new ERXEOAccessUtilities.ChannelAction() {
+			@Override
+			protected int doPerform(EOAdaptorChannel channel) {
+				try {
+					return ERXJDBCUtilities.executeUpdateScript(channel, sql);
+				}
+				catch (SQLException e) {
+					log.error(ExceptionUtils.getStackTrace(e), e);
+					throw new NSForwardException(e);
+				}
+			}
+		};
+		action.perform(ec, model.name());
+	}
+
 	protected void resetData() {
 		ERXEC ec = (ERXEC) ERXEC.newEditingContext();
 		ERXEOAccessUtilities.ChannelAction action = new ERXEOAccessUtilities.ChannelAction() {